@@ -0,0 +1,90 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.bench;
+
+import java.util.Date;
+import java.util.Random;
+
+import de.dal33t.powerfolder.light.AccountInfo;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+
+/**
+ * Creates reproducible test data for the benchmarks. Names resemble deep
+ * project trees with repeating directory prefixes.
+ */
+final class BenchData {
+
+    private static final String[] DIRS = {"src", "main", "java", "de",
+        "dal33t", "powerfolder", "docs", "Projects", "2018", "Customer A",
+        "Reports", "Images", "build", "target", "node_modules", "lib"};
+    private static final String[] EXTENSIONS = {".java", ".txt", ".docx",
+        ".xlsx", ".pdf", ".jpg", ".class", ".js", ".tmp", ".dwg"};
+
+    static final FolderInfo FOLDER = new FolderInfo("Benchmark",
+        "[bench]" + IdGenerator.makeFolderId());
+    static final MemberInfo MEMBER = new MemberInfo("bench", "BENCH-ID",
+        "BENCH-NET");
+    static final AccountInfo ACCOUNT = new AccountInfo("BENCH-ACC",
+        "bench@powerfolder.com");
+
+    private BenchData() {
+    }
+
+    /**
+     * @param n
+     * @return the relative name of the n-th file. Same n returns the same
+     *         name.
+     */
+    static String relativeName(int n) {
+        Random r = new Random(n);
+        StringBuilder b = new StringBuilder();
+        int depth = 1 + r.nextInt(6);
+        for (int i = 0; i < depth; i++) {
+            b.append(DIRS[r.nextInt(DIRS.length)]).append('/');
+        }
+        b.append("File_").append(n).append(
+            EXTENSIONS[r.nextInt(EXTENSIONS.length)]);
+        return b.toString();
+    }
+
+    static FileInfo fileInfo(int n) {
+        return FileInfoFactory.unmarshallExistingFile(FOLDER, relativeName(n),
+            null, 1000L + n, MEMBER, ACCOUNT, new Date(1500000000000L + n), 1,
+            null, false, null);
+    }
+
+    static FileInfo[] fileInfos(int count) {
+        FileInfo[] fInfos = new FileInfo[count];
+        for (int i = 0; i < count; i++) {
+            fInfos[i] = fileInfo(i);
+        }
+        return fInfos;
+    }
+
+    static byte[] randomBytes(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
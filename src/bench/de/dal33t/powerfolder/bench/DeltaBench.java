@@ -0,0 +1,120 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.bench;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.dal33t.powerfolder.util.delta.FilePartsRecord;
+import de.dal33t.powerfolder.util.delta.FilePartsRecordBuilder;
+import de.dal33t.powerfolder.util.delta.MatchInfo;
+import de.dal33t.powerfolder.util.delta.PartInfoMatcher;
+import de.dal33t.powerfolder.util.delta.RollingAdler32;
+
+/**
+ * Throughput of the delta sync primitives: {@link RollingAdler32} and
+ * {@link PartInfoMatcher}. Each invocation processes {@link #DATA_SIZE}
+ * bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeltaBench {
+
+    private static final int DATA_SIZE = 16 * 1024 * 1024;
+
+    @Param({"4096", "65536"})
+    public int partSize;
+
+    /**
+     * Percentage of the data changed before matching.
+     */
+    @Param({"0", "10"})
+    public int changedPercent;
+
+    private byte[] data;
+    private byte[] changedData;
+    private FilePartsRecord record;
+
+    @Setup
+    public void setUp() throws Exception {
+        data = BenchData.randomBytes(DATA_SIZE, 1);
+        FilePartsRecordBuilder builder = new FilePartsRecordBuilder(
+            new Adler32(), MessageDigest.getInstance("SHA-256"),
+            MessageDigest.getInstance("MD5"), partSize);
+        builder.update(data);
+        record = builder.getRecord();
+
+        changedData = data.clone();
+        int changes = DATA_SIZE / 100 * changedPercent / partSize;
+        for (int i = 0; i < changes; i++) {
+            int pos = (int) ((long) i * DATA_SIZE / Math.max(1, changes));
+            // Flip one byte: The part containing it no longer matches
+            changedData[pos] ^= 0x5A;
+        }
+    }
+
+    @Benchmark
+    public long rollingAdler32() {
+        RollingAdler32 chksum = new RollingAdler32(partSize);
+        chksum.update(data, 0, partSize);
+        for (int i = partSize; i < DATA_SIZE; i++) {
+            chksum.update(data[i]);
+        }
+        return chksum.getValue();
+    }
+
+    @Benchmark
+    public int partInfoMatcher() throws Exception {
+        PartInfoMatcher matcher = new PartInfoMatcher(
+            new ByteArrayInputStream(changedData), new RollingAdler32(
+                record.getPartLength()), MessageDigest.getInstance("SHA-256"),
+            record.getInfos());
+        int matches = 0;
+        try {
+            MatchInfo match;
+            while ((match = matcher.nextMatch()) != null) {
+                if (match.getMatchedPart() != null) {
+                    matches++;
+                }
+            }
+        } finally {
+            matcher.close();
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.dal33t.powerfolder.disk.DiskItemFilter;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.pattern.DefaultExcludes;
+
+/**
+ * {@link DiskItemFilter#isExcluded(de.dal33t.powerfolder.light.DiskItem)}
+ * with the default excludes plus a growing number of user patterns.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiskItemFilterBench {
+
+    private static final int FILES = 10000;
+
+    /**
+     * Number of user patterns in addition to the default excludes.
+     */
+    @Param({"0", "20", "200"})
+    public int userPatterns;
+
+    private DiskItemFilter filter;
+    private FileInfo[] files;
+    private String[] names;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<String> patterns = new ArrayList<String>();
+        for (DefaultExcludes exclude : DefaultExcludes.values()) {
+            patterns.add(exclude.getPattern());
+        }
+        for (int i = 0; i < userPatterns; i++) {
+            switch (i % 4) {
+                case 0 :
+                    patterns.add("build" + i + "/*");
+                    break;
+                case 1 :
+                    patterns.add("*.ext" + i);
+                    break;
+                case 2 :
+                    patterns.add("projects/report " + i + ".docx");
+                    break;
+                default :
+                    patterns.add("*/node_modules" + i + "/*");
+                    break;
+            }
+        }
+        Path file = Files.createTempFile("bench", ".patterns");
+        try {
+            Files.write(file, patterns, StandardCharsets.UTF_8);
+            filter = new DiskItemFilter();
+            filter.loadPatternsFrom(file, false);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        files = BenchData.fileInfos(FILES);
+        names = new String[FILES];
+        for (int i = 0; i < FILES; i++) {
+            names[i] = files[i].getRelativeName();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public int isExcludedFileInfo() {
+        int excluded = 0;
+        for (FileInfo fInfo : files) {
+            if (filter.isExcluded(fInfo)) {
+                excluded++;
+            }
+        }
+        return excluded;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILES)
+    public int isExcludedRelativeName() {
+        int excluded = 0;
+        for (String name : names) {
+            if (filter.isExcluded(name)) {
+                excluded++;
+            }
+        }
+        return excluded;
+    }
+}
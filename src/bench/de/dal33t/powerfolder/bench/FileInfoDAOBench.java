@@ -0,0 +1,117 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.bench;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.dal33t.powerfolder.disk.DiskItemFilter;
+import de.dal33t.powerfolder.disk.dao.FileInfoCriteria;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAOHashMapImpl;
+import de.dal33t.powerfolder.light.FileInfo;
+
+/**
+ * Store and lookup performance of {@link FileInfoDAOHashMapImpl} with large
+ * folders.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class FileInfoDAOBench {
+
+    private static final String SELF_DOMAIN = "ME";
+    private static final String REMOTE_DOMAIN = "REMOTE";
+
+    @Param({"100000", "500000", "2000000"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean searchIndex;
+
+    private FileInfo[] files;
+    private FileInfoDAOHashMapImpl dao;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        files = BenchData.fileInfos(size);
+        dao = new FileInfoDAOHashMapImpl(SELF_DOMAIN,
+            new DiskItemFilter(), searchIndex);
+        dao.store(null, files);
+        dao.store(REMOTE_DOMAIN, files);
+    }
+
+    private FileInfo nextFile() {
+        next = (next + 7919) % size;
+        return files[next];
+    }
+
+    @Benchmark
+    public void store() {
+        dao.store(null, nextFile());
+    }
+
+    @Benchmark
+    public FileInfo find() {
+        return dao.find(nextFile(), null);
+    }
+
+    @Benchmark
+    public FileInfo findNewestVersion() {
+        return dao.findNewestVersion(nextFile(), null, REMOTE_DOMAIN);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Collection<FileInfo> findFilesKeyword() {
+        FileInfoCriteria criteria = new FileInfoCriteria();
+        criteria.addDomain(null);
+        criteria.addDomain(REMOTE_DOMAIN);
+        criteria.setRecursive(true);
+        criteria.addKeyWord("file_12");
+        return dao.findFiles(criteria);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Collection<FileInfo> findFilesInDirectory() {
+        FileInfoCriteria criteria = new FileInfoCriteria();
+        criteria.addDomain(null);
+        criteria.setPath("src/main");
+        criteria.setRecursive(false);
+        return dao.findFiles(criteria);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.dal33t.powerfolder.util.Partitions;
+import de.dal33t.powerfolder.util.Range;
+import de.dal33t.powerfolder.util.delta.FilePartsState.PartState;
+
+/**
+ * {@link Partitions} as used by download part states of large files: Many
+ * chunk sized ranges in a 50 GB range.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PartitionsBench {
+
+    private static final long FILE_SIZE = 50L * 1024 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    /**
+     * Number of ranges already set to a different state.
+     */
+    @Param({"100", "10000"})
+    public int fragments;
+
+    private Partitions<PartState> partitions;
+    private Range full;
+    private Random random;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        full = Range.getRangeByLength(0, FILE_SIZE);
+        partitions = new Partitions<PartState>(full, PartState.NEEDED);
+        random = new Random(4711);
+        for (int i = 0; i < fragments; i++) {
+            partitions.insert(randomChunk(), PartState.AVAILABLE);
+        }
+    }
+
+    private Range randomChunk() {
+        long chunk = (long) (random.nextDouble() * (FILE_SIZE / CHUNK_SIZE));
+        return Range.getRangeByLength(chunk * CHUNK_SIZE, CHUNK_SIZE);
+    }
+
+    @Benchmark
+    public Partitions<PartState> insert() {
+        partitions.insert(randomChunk(), PartState.PENDING);
+        return partitions;
+    }
+
+    @Benchmark
+    public Range searchNeeded() {
+        return partitions.search(full, PartState.NEEDED);
+    }
+
+    @Benchmark
+    public long countAvailable() {
+        return partitions.count(full, PartState.AVAILABLE);
+    }
+}
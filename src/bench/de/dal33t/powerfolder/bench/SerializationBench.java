@@ -0,0 +1,134 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.d2d.D2DObject;
+import de.dal33t.powerfolder.disk.DiskItemFilter;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.message.FileChunkExt;
+import de.dal33t.powerfolder.message.FileList;
+import de.dal33t.powerfolder.message.FileListExt;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.protocol.FileListProto;
+import de.dal33t.powerfolder.protocol.FilePartReplyProto;
+import de.dal33t.powerfolder.util.ByteSerializer;
+
+/**
+ * {@link ByteSerializer} and D2D (protobuf) encoding of {@link FileList}s and
+ * {@link FileChunk}s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBench {
+
+    /**
+     * plain = Serializable, ext = Externalizable, d2d = protobuf
+     */
+    @Param({"plain", "ext", "d2d"})
+    public String format;
+
+    @Param({"true", "false"})
+    public boolean compress;
+
+    private final ByteSerializer serializer = new ByteSerializer();
+
+    private Message fileList;
+    private Message fileChunk;
+    private byte[] fileListData;
+    private byte[] fileChunkData;
+
+    @Setup
+    public void setUp() throws Exception {
+        FileInfo[] files = BenchData
+            .fileInfos(Constants.FILE_LIST_MAX_FILES_PER_MESSAGE);
+        FileInfo chunkFile = BenchData.fileInfo(0);
+        byte[] data = BenchData.randomBytes((int) Math.min(
+            chunkFile.getSize(), 32 * 1024), 42);
+        if (format.equals("ext") || format.equals("d2d")) {
+            fileList = FileList.create4Test(BenchData.FOLDER,
+                Arrays.asList(files), new DiskItemFilter())[0];
+            fileChunk = new FileChunkExt(chunkFile, 0, data);
+        } else {
+            fileList = new FileList(BenchData.FOLDER, files, 0);
+            fileChunk = new FileChunk(chunkFile, 0, data);
+        }
+        fileListData = serialize(fileList);
+        fileChunkData = serialize(fileChunk);
+    }
+
+    private byte[] serialize(Message message) throws Exception {
+        if (format.equals("d2d")) {
+            return ((D2DObject) message).toD2D().toByteArray();
+        }
+        return serializer.serialize(message, compress, -1);
+    }
+
+    @Benchmark
+    public byte[] serializeFileList() throws Exception {
+        return serialize(fileList);
+    }
+
+    @Benchmark
+    public byte[] serializeFileChunk() throws Exception {
+        return serialize(fileChunk);
+    }
+
+    @Benchmark
+    public Object deserializeFileList() throws Exception {
+        if (format.equals("d2d")) {
+            FileListExt result = new FileListExt();
+            result.initFromD2D(FileListProto.FileList.parseFrom(fileListData));
+            return result;
+        }
+        return ByteSerializer.deserializeStatic(fileListData, compress);
+    }
+
+    @Benchmark
+    public Object deserializeFileChunk() throws Exception {
+        if (format.equals("d2d")) {
+            FileChunkExt result = new FileChunkExt();
+            result.initFromD2D(FilePartReplyProto.FilePartReply
+                .parseFrom(fileChunkData));
+            return result;
+        }
+        return ByteSerializer.deserializeStatic(fileChunkData, compress);
+    }
+}
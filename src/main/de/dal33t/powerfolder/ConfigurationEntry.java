@@ -412,6 +412,13 @@ public enum ConfigurationEntry {
 
     ARCHIVE_DIRECTORY_NAME("files.archive.dir.name", "archive"),
 
+    /**
+     * Store new file versions as deduplicated chunks. Saves space when
+     * versions differ only partially. See
+     * {@link de.dal33t.powerfolder.disk.ChunkedFileArchiver}.
+     */
+    ARCHIVE_CHUNKED("files.archive.chunked", false),
+
     /**
      * Enable/Disable the Problems Tab
      */
@@ -719,6 +726,25 @@ public enum ConfigurationEntry {
      */
     NET_BROADCAST_INTERVAL_SECONDS("net.broadcast.interval.seconds", 60),
 
+    /**
+     * Maximum number of incoming connections handshaking at the same time.
+     * Further connections wait in a queue.
+     */
+    NET_ACCEPT_MAX_HANDSHAKES("net.accept.max.handshakes",
+        Constants.MAX_INCOMING_CONNECTIONS),
+
+    /**
+     * Maximum number of incoming connections waiting for their handshake.
+     * Further connections are rejected.
+     */
+    NET_ACCEPT_MAX_QUEUED("net.accept.max.queued", 5000),
+
+    /**
+     * Incoming connections per second accepted from one address. Bursts of
+     * twice the rate are allowed. 0 disables the limit.
+     */
+    NET_ACCEPT_RATE_PER_ADDRESS("net.accept.rate.per.address", 10),
+
     /**
      * Use a random port in the (49152) 0 to 65535 range, overides NET_PORT
      */
@@ -782,6 +808,19 @@ public enum ConfigurationEntry {
      */
     TRANSFERS_MAX_REQUESTS_QUEUED("transfers.max.request.queued", 15),
 
+    /**
+     * Files up to this size (in bytes) are requested in bundles of many files
+     * from sources supporting it. 0 disables bundled transfers.
+     */
+    TRANSFERS_BUNDLE_MAX_FILE_SIZE("transfers.bundle.max.file.size",
+        32 * 1024),
+
+    /**
+     * Copy files from local files with the same contents, e.g. after a move or
+     * copy, instead of downloading them again.
+     */
+    TRANSFERS_LOCAL_REUSE("transfers.local.reuse", true),
+
     /**
      * My dynamic dns hostname or fix ip.
      */
@@ -815,6 +854,12 @@ public enum ConfigurationEntry {
      */
     USE_ZIP_ON_LAN("use_zip_on_lan", false),
 
+    /**
+     * Setting to offer the fast, dictionary based compression of messages to
+     * other nodes. Only used if both sides support it.
+     */
+    USE_FAST_COMPRESSION("use_fast_compression", true),
+
     /**
      * Setting to enable/disable swarming in an LAN environment. If swarming
      * below is set to false, this is ignored!
@@ -828,6 +873,12 @@ public enum ConfigurationEntry {
 
     USE_DELTA_ON_LAN("deltasync.lan.enabled", true),
 
+    /**
+     * Delta-sync: Number of segments to match in parallel on large local
+     * files. 1 = sequential.
+     */
+    DELTA_MATCH_SEGMENTS("deltasync.match.segments", 1),
+
     /**
      * Setting to enable/disable swarming.
      */
@@ -967,6 +1018,13 @@ public enum ConfigurationEntry {
      */
     LOG_ACTIVE_THREADS("log.active_threads", false),
 
+    /**
+     * Whether to record hot path metrics. Always enabled when verbose=true.
+     *
+     * @see de.dal33t.powerfolder.util.metrics.Metrics
+     */
+    METRICS_ENABLED("metrics.enabled", false),
+
     /**
      * Whether to request debug reports
      *
@@ -1024,6 +1082,25 @@ public enum ConfigurationEntry {
      */
     FOLDER_DB_PERSIST_TIME("filedb.persist.seconds", 60),
 
+    /**
+     * Keep a trigram index of the file names of each folder to speed up
+     * keyword searches, e.g. in the files tab. Costs memory on large folders.
+     */
+    FOLDER_DB_SEARCH_INDEX("filedb.search.index", false),
+
+    /**
+     * Release the database of folders without connected members and not used
+     * for the given number of seconds. Loaded again on first use. Saves memory
+     * on servers hosting many folders. 0 = disabled.
+     */
+    FOLDER_HIBERNATE_IDLE_SECONDS("folder.hibernate.idle.seconds", 0),
+
+    /**
+     * The maximum time in milliseconds local changes of a folder are held
+     * back to be broadcasted together. 0 = broadcast every change immediately.
+     */
+    FOLDER_CHANGES_BATCH_MAX_DELAY("folder.changes.batch.max.delay", 2000),
+
     /**
      * #2637: Disabling can save OS resources.
      */
@@ -1232,12 +1309,30 @@ public enum ConfigurationEntry {
      */
     FOLDER_SCANNER_MAX_CRAWLERS("sync.folder.max_crawlers", 3),
 
+    /**
+     * The number of folders to maintain/scan in parallel.
+     */
+    FOLDER_MAINTENANCE_WORKERS("sync.folder.maintenance.workers", 2),
+
+    /**
+     * The max number of folders on the same storage device to maintain/scan in
+     * parallel.
+     */
+    FOLDER_MAINTENANCE_PER_DEVICE("sync.folder.maintenance.per_device", 2),
+
     /** PFC-3018: The max number of file requesting workers to spawn */
     FOLDER_FILE_REQUESTOR_MAX_WORKERS("sync.folder.max_filerequestors", 300),
 
     /** PFC-3018: The number of folders one requestor should handle */
     FOLDER_FOLDERS_PER_FILE_REQUESTOR("sync.folder.folders_per_filerequestors", 600),
 
+    /**
+     * The files to download automatically are determined again from all
+     * incoming files of a folder after this number of seconds. In between
+     * only changes are applied.
+     */
+    FOLDER_DOWNLOAD_PLAN_MAX_AGE("sync.folder.download_plan.max_age", 300),
+
     /**
      * Automatically setup all folders the user has access to and also
      * automatically accept folder invites.
@@ -47,6 +47,7 @@ import de.dal33t.powerfolder.ui.notices.Notice;
 import de.dal33t.powerfolder.ui.util.LimitedConnectivityChecker;
 import de.dal33t.powerfolder.util.*;
 import de.dal33t.powerfolder.util.logging.LoggingManager;
+import de.dal33t.powerfolder.util.metrics.Metrics;
 import de.dal33t.powerfolder.util.net.NetworkUtil;
 import de.dal33t.powerfolder.util.os.OSUtil;
 import de.dal33t.powerfolder.util.os.SystemUtil;
@@ -398,14 +399,18 @@ public class Controller extends PFComponent {
         verbose = ConfigurationEntry.VERBOSE.getValueBoolean(this);
         initLogger();
 
-        if (verbose) {
-            ByteSerializer.BENCHMARK = true;
+        if (verbose || ConfigurationEntry.METRICS_ENABLED.getValueBoolean(this))
+        {
+            Metrics.setEnabled(true);
+            Metrics.registerMBean();
             scheduleAndRepeat(new Runnable() {
                 @Override
                 public void run() {
-                    ByteSerializer.printStats();
+                    logFine(Metrics.dump());
                 }
             }, 600000L, 600000L);
+        }
+        if (verbose) {
             Profiling.setEnabled(false);
             Profiling.reset();
         }
@@ -1671,7 +1676,7 @@ public class Controller extends PFComponent {
         paused = newPausedValue;
 
         if (newPausedValue) {
-            folderRepository.getFolderScanner().abortScan();
+            folderRepository.abortScans();
             transferManager.abortAllDownloads();
             transferManager.abortAllUploads();
         } else {
@@ -1914,6 +1919,10 @@ public class Controller extends PFComponent {
         if (Profiling.isEnabled()) {
             logFine(Profiling.dumpStats());
         }
+        if (Metrics.isEnabled()) {
+            logFine(Metrics.dump());
+            Metrics.unregisterMBean();
+        }
 
         // Save anything important that has not been handled.
         savePersistentObjects();
@@ -39,6 +39,8 @@ import de.dal33t.powerfolder.transfer.Upload;
 import de.dal33t.powerfolder.ui.notices.WarningNotice;
 import de.dal33t.powerfolder.util.*;
 import de.dal33t.powerfolder.util.logging.LoggingManager;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+import de.dal33t.powerfolder.util.metrics.Timer;
 import de.dal33t.powerfolder.util.net.NetworkUtil;
 
 import java.io.Externalizable;
@@ -60,6 +62,15 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class Member extends PFComponent implements Comparable<Member> {
 
+    /** Timer per handled message type */
+    private static final ClassValue<Timer> HANDLE_MESSAGE_TIMERS = new ClassValue<Timer>()
+    {
+        @Override
+        protected Timer computeValue(Class<?> type) {
+            return Metrics.timer("message.handle." + type.getSimpleName());
+        }
+    };
+
     /** Listener support for incoming messages */
     private MessageListenerSupport messageListenerSupport;
 
@@ -1314,6 +1325,7 @@ public class Member extends PFComponent implements Comparable<Member> {
 
         int expectedTime = -1;
         long start = System.currentTimeMillis();
+        long metricsStart = Metrics.start();
         try {
             if (getController().getOSClient().isPrimaryServer(this)) {
                 ServerClient.SERVER_HANDLE_MESSAGE_THREAD.set(true);
@@ -1448,6 +1460,26 @@ public class Member extends PFComponent implements Comparable<Member> {
                 }
                 expectedTime = 100;
 
+            } else if (message instanceof RequestFileBundle) {
+                final RequestFileBundle bundleReq = (RequestFileBundle) message;
+                // Reads from disk. Put handling in background thread. Files
+                // not available (e.g. paused) are answered without contents.
+                Runnable runner = new Runnable() {
+                    @Override
+                    public void run() {
+                        getController().getTransferManager()
+                            .queueUploadBundle(Member.this, bundleReq);
+                    }
+                };
+                getController().getIOProvider().startIO(runner);
+                expectedTime = 100;
+
+            } else if (message instanceof FileBundle) {
+                FileBundle bundle = (FileBundle) message;
+                getController().getTransferManager().receivedFileBundle(this,
+                    bundle);
+                expectedTime = -1;
+
             } else if (message instanceof DownloadQueued) {
                 // set queued flag here, if we received status from other side
                 DownloadQueued dlQueued = (DownloadQueued) message;
@@ -1897,6 +1929,10 @@ public class Member extends PFComponent implements Comparable<Member> {
         } finally {
             ServerClient.SERVER_HANDLE_MESSAGE_THREAD.set(false);
             Profiling.end(profilingEntry, expectedTime);
+            if (metricsStart != 0L) {
+                HANDLE_MESSAGE_TIMERS.get(message.getClass()).stop(
+                    metricsStart);
+            }
             long took = System.currentTimeMillis() - start;
             if (took > 60000) {
                 logWarning("Handling took " + (took/1000) + "s: " + message);
@@ -2695,6 +2731,7 @@ public class Member extends PFComponent implements Comparable<Member> {
         if (updated) {
             // Re try connection
             connectionRetries = 0;
+            getController().getNodeManager().nodeInfoChanged(this);
         }
         return updated;
     }
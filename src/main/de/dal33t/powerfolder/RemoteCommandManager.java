@@ -69,6 +69,7 @@ import de.dal33t.powerfolder.util.Base64;
 import de.dal33t.powerfolder.util.BrowserLauncher;
 import de.dal33t.powerfolder.util.BrowserLauncher.URLProducer;
 import de.dal33t.powerfolder.util.Convert;
+import de.dal33t.powerfolder.util.Debug;
 import de.dal33t.powerfolder.util.IdGenerator;
 import de.dal33t.powerfolder.util.InvitationUtil;
 import de.dal33t.powerfolder.util.PathUtils;
@@ -127,6 +128,7 @@ public class RemoteCommandManager extends PFComponent implements Runnable {
     public static final String REMOVEFOLDER = "REMOVEFOLDER;";
     public static final String COPYLINK = "COPYLINK;";
     public static final String RELOAD_CONFIG = "RELOADCONFIG;";
+    public static final String DUMP_METRICS = "DUMPMETRICS;";
 
     // Private vars
     private ServerSocket serverSocket;
@@ -405,6 +407,9 @@ public class RemoteCommandManager extends PFComponent implements Runnable {
             getController().exit(0);
         }if (RELOAD_CONFIG.equalsIgnoreCase(command)) {
             getController().reloadConfigFile();
+        } else if (DUMP_METRICS.equalsIgnoreCase(command)) {
+            Path file = Debug.writeMetrics(getController());
+            logInfo("Metrics written to " + file);
         } else if (command.startsWith(OPEN)) {
             // Open files
             String fileStr = command.substring(OPEN.length());
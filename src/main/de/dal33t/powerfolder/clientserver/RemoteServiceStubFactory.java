@@ -38,10 +38,13 @@ import de.dal33t.powerfolder.net.ConnectionException;
 import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.StackDump;
 import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+import de.dal33t.powerfolder.util.metrics.Timer;
 
 public class RemoteServiceStubFactory {
     private static final Logger LOG = Logger
         .getLogger(RemoteServiceStubFactory.class.getName());
+    private static final Timer RPC_TIMER = Metrics.timer("rpc.call");
 
     private RemoteServiceStubFactory() {
         // No instance allowed
@@ -146,10 +149,13 @@ public class RemoteServiceStubFactory {
 
             }
             RemoteMethodCallResponse response;
+            long metricsStart = Metrics.start();
             try {
                 response = (RemoteMethodCallResponse) executor.execute(request);
             } catch (ConnectionException e) {
                 throw new RemoteCallException(e);
+            } finally {
+                RPC_TIMER.stop(metricsStart);
             }
             if (response.isException()) {
                 StackTraceElement[] serverSte = response.getException()
@@ -77,7 +77,7 @@ public class RequestExecutor extends PFComponent {
         }
         // Listen to receive the response
         getController().getNodeManager().addNodeManagerListener(discoListener);
-        node.addMessageListener(messageListener);
+        node.addMessageListener(Response.class, messageListener);
         node.sendMessage(request);
 
         try {
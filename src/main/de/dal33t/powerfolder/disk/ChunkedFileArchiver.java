@@ -0,0 +1,726 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.PathUtils;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * A file archiver that splits archived versions into content-defined chunks
+ * and stores each distinct chunk only once. Versions of a file that differ by
+ * a few percent share most of their chunks.
+ * <p>
+ * Chunks are stored by their SHA-256 in the chunk store directory and
+ * reference counted. The versions of all files are kept in an append only
+ * index in the store directory. Versions archived by the plain
+ * {@link FileArchiver} in the archive directory are still listed and
+ * restored.
+ */
+public class ChunkedFileArchiver extends FileArchiver {
+
+    private static final Logger log = Logger
+        .getLogger(ChunkedFileArchiver.class.getName());
+
+    static final int MIN_CHUNK_SIZE = 16 * 1024;
+    static final int MAX_CHUNK_SIZE = 256 * 1024;
+    /**
+     * Average chunk size of 64 KB after the minimum.
+     */
+    private static final long BOUNDARY_MASK = 0xFFFFL;
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x5046L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private static final String INDEX_FILE = "index";
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+    /**
+     * Rewrite the index if it contains more removed than live records.
+     */
+    private static final int COMPACT_THRESHOLD = 1000;
+
+    private final Path storeDirectory;
+    private final MemberInfo mySelf;
+
+    // Loaded on first use. Guarded by this.
+    private Map<String, List<Version>> versions;
+    private Map<String, ChunkRef> chunks;
+    private long storeSize;
+    private int liveRecords;
+    private int indexRecords;
+    /**
+     * The index could not be read completely. The versions read so far are
+     * listed and restored. The index is not written and no chunks are removed
+     * until it loads cleanly. Guarded by this.
+     */
+    private boolean indexUnreadable;
+
+    /**
+     * @param archiveDirectory
+     *            the directory of versions archived by {@link FileArchiver}
+     * @param storeDirectory
+     *            the directory of the chunk store and index
+     * @param mySelf
+     *            myself
+     */
+    public ChunkedFileArchiver(Path archiveDirectory, Path storeDirectory,
+        MemberInfo mySelf)
+    {
+        super(archiveDirectory, mySelf);
+        Reject.notNull(storeDirectory, "storeDirectory");
+        this.storeDirectory = storeDirectory;
+        this.mySelf = mySelf;
+    }
+
+    public Path getStoreDir() {
+        return storeDirectory;
+    }
+
+    @Override
+    public synchronized void archive(FileInfo fileInfo, Path source,
+        boolean forceKeepSource) throws IOException
+    {
+        Reject.notNull(fileInfo, "fileInfo");
+        Reject.notNull(source, "source");
+        if (getVersionsPerFile() == 0) {
+            // Optimization for zero-archive
+            if (!forceKeepSource && !Files.deleteIfExists(source)) {
+                log.warning("Unable to remove old file " + source);
+            }
+            return;
+        }
+        if (!ensureLoaded()) {
+            // Keep the version outside of the chunk store
+            super.archive(fileInfo, source, forceKeepSource);
+            return;
+        }
+        List<Version> list = versions.get(fileInfo.getRelativeName());
+        if (list != null && find(list, fileInfo.getVersion()) != null) {
+            if (log.isLoggable(Level.FINE)) {
+                log.fine("File " + fileInfo.toDetailString()
+                    + " seems to be archived already, doing nothing.");
+            }
+            return;
+        }
+
+        long lastModified = Files.getLastModifiedTime(source).toMillis();
+        List<String> ids = new ArrayList<String>();
+        List<Integer> lengths = new ArrayList<Integer>();
+        long size = storeChunks(source, ids, lengths);
+        Version version = new Version(fileInfo.getRelativeName(),
+            fileInfo.getVersion(), size, lastModified,
+            ids.toArray(new String[ids.size()]));
+        for (int i = 0; i < version.chunks.length; i++) {
+            addRef(version.chunks[i], lengths.get(i));
+        }
+        add(version);
+        appendToIndex(version, true);
+
+        if (!forceKeepSource) {
+            Files.deleteIfExists(source);
+        }
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Archived " + fileInfo.toDetailString() + " from "
+                + source + " in " + version.chunks.length + " chunks");
+        }
+        trimVersions(versions.get(version.relativeName));
+    }
+
+    @Override
+    public synchronized boolean hasArchivedFileInfo(FileInfo fileInfo) {
+        Reject.ifNull(fileInfo, "FileInfo is null");
+        ensureLoaded();
+        return versions.containsKey(fileInfo.getRelativeName())
+            || super.hasArchivedFileInfo(fileInfo);
+    }
+
+    @Override
+    public synchronized List<FileInfo> getArchivedFilesInfos(
+        FileInfo fileInfo)
+    {
+        Reject.ifNull(fileInfo, "FileInfo is null");
+        ensureLoaded();
+        List<FileInfo> legacy = super.getArchivedFilesInfos(fileInfo);
+        List<Version> list = versions.get(fileInfo.getRelativeName());
+        if (list == null) {
+            return legacy;
+        }
+        List<FileInfo> result = new ArrayList<FileInfo>(legacy.size()
+            + list.size());
+        result.addAll(legacy);
+        FolderInfo foInfo = fileInfo.getFolderInfo();
+        for (Version version : list) {
+            // PFC-2352: TODO: Support ID, hashes and tags
+            result.add(FileInfoFactory.archivedFile(foInfo,
+                version.relativeName, null, version.size, mySelf, null,
+                new Date(version.lastModified), version.version, null, null));
+        }
+        // Read-only, so others don't trash this.
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Versions in the chunk store have no single file. Only returns files
+     * archived by {@link FileArchiver}.
+     */
+    @Override
+    public Path getArchivedFile(FileInfo fileInfo) {
+        return super.getArchivedFile(fileInfo);
+    }
+
+    @Override
+    public synchronized boolean restore(FileInfo versionInfo, Path target)
+        throws IOException
+    {
+        ensureLoaded();
+        List<Version> list = versions.get(versionInfo.getRelativeName());
+        Version version = list != null
+            ? find(list, versionInfo.getVersion())
+            : null;
+        if (version == null) {
+            return super.restore(versionInfo, target);
+        }
+        log.fine("Restoring " + versionInfo.getRelativeName() + " from "
+            + version.chunks.length + " chunks to " + target.toAbsolutePath());
+        if (target.getParent() != null && Files.notExists(target.getParent()))
+        {
+            Files.createDirectories(target.getParent());
+        }
+        // Keep the target untouched until all chunks are read
+        Files.createDirectories(storeDirectory);
+        Path tempFile = Files.createTempFile(storeDirectory, "restore", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tempFile)) {
+                for (String id : version.chunks) {
+                    Files.copy(getChunkFile(id), out);
+                }
+            }
+            if (Files.size(tempFile) != version.size) {
+                throw new IOException("Restored file " + target
+                    + " has size " + Files.size(tempFile) + ", expected "
+                    + version.size);
+            }
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean maintain() {
+        boolean ok = super.maintain();
+        if (!ensureLoaded()) {
+            return false;
+        }
+        for (List<Version> list : new ArrayList<List<Version>>(
+            versions.values()))
+        {
+            try {
+                trimVersions(list);
+            } catch (IOException e) {
+                ok = false;
+                log.log(Level.WARNING, "Failed to check " + list, e);
+            }
+        }
+        try {
+            writeIndex();
+        } catch (IOException e) {
+            ok = false;
+            log.warning("Unable to write archive index " + storeDirectory
+                + ". " + e);
+        }
+        return removeUnreferencedChunks() && ok;
+    }
+
+    @Override
+    public synchronized long getSize() {
+        ensureLoaded();
+        return super.getSize() + storeSize;
+    }
+
+    @Override
+    public synchronized void purge() throws IOException {
+        super.purge();
+        PathUtils.recursiveDelete(storeDirectory);
+        versions = new HashMap<String, List<Version>>();
+        chunks = new HashMap<String, ChunkRef>();
+        storeSize = 0;
+        liveRecords = 0;
+        indexRecords = 0;
+        indexUnreadable = false;
+    }
+
+    @Override
+    public synchronized void cleanupOldArchiveFiles(Date cleanupDate) {
+        super.cleanupOldArchiveFiles(cleanupDate);
+        if (!ensureLoaded()) {
+            return;
+        }
+        for (List<Version> list : new ArrayList<List<Version>>(
+            versions.values()))
+        {
+            for (Version version : new ArrayList<Version>(list)) {
+                if (version.lastModified >= cleanupDate.getTime()) {
+                    continue;
+                }
+                try {
+                    remove(version);
+                } catch (IOException e) {
+                    log.warning("Unable to remove old archived version "
+                        + version + ". " + e);
+                }
+            }
+        }
+    }
+
+    // Chunking ***************************************************************
+
+    /**
+     * Splits the file into content-defined chunks and writes the chunks that
+     * are not yet in the store.
+     *
+     * @return the total size.
+     */
+    private long storeChunks(Path source, List<String> ids,
+        List<Integer> lengths) throws IOException
+    {
+        MessageDigest digest = newDigest();
+        byte[] data = new byte[4 * MAX_CHUNK_SIZE];
+        int start = 0;
+        int limit = 0;
+        boolean eof = false;
+        long size = 0;
+        try (InputStream in = Files.newInputStream(source)) {
+            while (true) {
+                if (!eof && limit - start < MAX_CHUNK_SIZE) {
+                    System.arraycopy(data, start, data, 0, limit - start);
+                    limit -= start;
+                    start = 0;
+                    while (limit < data.length) {
+                        int read = in.read(data, limit, data.length - limit);
+                        if (read < 0) {
+                            eof = true;
+                            break;
+                        }
+                        limit += read;
+                    }
+                }
+                if (start == limit) {
+                    break;
+                }
+                int end = findBoundary(data, start, limit);
+                int length = end - start;
+                digest.update(data, start, length);
+                String id = new String(Util.encodeHex(digest.digest()));
+                if (!chunks.containsKey(id)) {
+                    writeChunk(id, data, start, length);
+                }
+                ids.add(id);
+                lengths.add(length);
+                size += length;
+                start = end;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Gear hash based content-defined chunking.
+     *
+     * @return the exclusive end of the chunk starting at start.
+     */
+    static int findBoundary(byte[] data, int start, int limit) {
+        int n = Math.min(limit - start, MAX_CHUNK_SIZE);
+        if (n <= MIN_CHUNK_SIZE) {
+            return start + n;
+        }
+        long hash = 0;
+        int end = start + n;
+        for (int i = start + MIN_CHUNK_SIZE; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & BOUNDARY_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    private void writeChunk(String id, byte[] data, int offset, int length)
+        throws IOException
+    {
+        Path file = getChunkFile(id);
+        if (Files.exists(file) && Files.size(file) == length) {
+            // Orphan from previous run
+            return;
+        }
+        Files.createDirectories(file.getParent());
+        Path tempFile = file.resolveSibling(id + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tempFile)) {
+            out.write(data, offset, length);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path getChunkFile(String id) {
+        return storeDirectory.resolve(id.substring(0, 2)).resolve(id);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // Versions and references ************************************************
+
+    private void add(Version version) {
+        List<Version> list = versions.get(version.relativeName);
+        if (list == null) {
+            list = new ArrayList<Version>(2);
+            versions.put(version.relativeName, list);
+        }
+        list.add(version);
+        liveRecords++;
+    }
+
+    private void remove(Version version) throws IOException {
+        List<Version> list = versions.get(version.relativeName);
+        if (list == null || !list.remove(version)) {
+            return;
+        }
+        if (list.isEmpty()) {
+            versions.remove(version.relativeName);
+        }
+        liveRecords--;
+        appendToIndex(version, false);
+        for (String id : version.chunks) {
+            ChunkRef ref = chunks.get(id);
+            if (ref == null || --ref.refs > 0) {
+                continue;
+            }
+            chunks.remove(id);
+            storeSize -= ref.length;
+            Files.deleteIfExists(getChunkFile(id));
+        }
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Deleted archived version " + version);
+        }
+    }
+
+    private void addRef(String id, int length) {
+        ChunkRef ref = chunks.get(id);
+        if (ref == null) {
+            ref = new ChunkRef(length);
+            chunks.put(id, ref);
+            storeSize += length;
+        }
+        ref.refs++;
+    }
+
+    private void trimVersions(List<Version> list) throws IOException {
+        int versionsPerFile = getVersionsPerFile();
+        if (list == null || versionsPerFile < 0
+            || list.size() <= versionsPerFile)
+        {
+            return;
+        }
+        List<Version> sorted = new ArrayList<Version>(list);
+        Collections.sort(sorted, (o1, o2) -> o1.version - o2.version);
+        int toDelete = sorted.size() - versionsPerFile;
+        for (int i = 0; i < toDelete; i++) {
+            remove(sorted.get(i));
+        }
+    }
+
+    private static Version find(List<Version> list, int version) {
+        for (Version candidate : list) {
+            if (candidate.version == version) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private boolean removeUnreferencedChunks() {
+        if (Files.notExists(storeDirectory)) {
+            return true;
+        }
+        boolean ok = true;
+        try (DirectoryStream<Path> dirs = Files
+            .newDirectoryStream(storeDirectory))
+        {
+            for (Path dir : dirs) {
+                if (!Files.isDirectory(dir)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files
+                    .newDirectoryStream(dir))
+                {
+                    for (Path file : files) {
+                        if (!chunks.containsKey(file.getFileName().toString()))
+                        {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warning("Unable to remove unreferenced chunks in "
+                + storeDirectory + ". " + e);
+            ok = false;
+        }
+        return ok;
+    }
+
+    // Index ******************************************************************
+
+    /**
+     * Loads the index on first use. Retries to load an unreadable index.
+     * Repairs an index with a truncated last record.
+     *
+     * @return true if the index was loaded cleanly. false if it is unreadable.
+     *         The chunk store must not be changed in that case.
+     */
+    private boolean ensureLoaded() {
+        if (versions != null && !indexUnreadable) {
+            return true;
+        }
+        boolean retry = indexUnreadable;
+        indexUnreadable = false;
+        versions = new HashMap<String, List<Version>>();
+        chunks = new HashMap<String, ChunkRef>();
+        storeSize = 0;
+        liveRecords = 0;
+        indexRecords = 0;
+        Path indexFile = storeDirectory.resolve(INDEX_FILE);
+        if (Files.notExists(indexFile)) {
+            return true;
+        }
+        boolean truncated = false;
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(indexFile))))
+        {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    readRecord(type, in);
+                    indexRecords++;
+                } catch (EOFException e) {
+                    truncated = true;
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Not a truncated last record. Maybe only temporary.
+            String msg = "Unable to read archive index " + indexFile
+                + ". Not changing the chunk store until it can be read. " + e;
+            if (retry) {
+                log.fine(msg);
+            } else {
+                log.warning(msg);
+            }
+            indexUnreadable = true;
+            return false;
+        }
+        if (truncated) {
+            try {
+                writeIndex();
+            } catch (IOException e) {
+                log.warning("Unable to repair archive index " + indexFile
+                    + ". " + e);
+            }
+        }
+        return true;
+    }
+
+    private void readRecord(byte type, DataInputStream in) throws IOException
+    {
+        String relativeName = in.readUTF();
+        int versionNumber = in.readInt();
+        if (type == RECORD_REMOVE) {
+            List<Version> list = versions.get(relativeName);
+            Version version = list != null ? find(list, versionNumber) : null;
+            if (version != null) {
+                list.remove(version);
+                if (list.isEmpty()) {
+                    versions.remove(relativeName);
+                }
+                liveRecords--;
+                for (String id : version.chunks) {
+                    ChunkRef ref = chunks.get(id);
+                    if (ref != null && --ref.refs <= 0) {
+                        chunks.remove(id);
+                        storeSize -= ref.length;
+                    }
+                }
+            }
+            return;
+        }
+        if (type != RECORD_ADD) {
+            throw new IOException("Illegal record type " + type);
+        }
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        int n = in.readInt();
+        String[] ids = new String[n];
+        int[] lengths = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = in.readUTF();
+            lengths[i] = in.readInt();
+        }
+        for (int i = 0; i < n; i++) {
+            addRef(ids[i], lengths[i]);
+        }
+        add(new Version(relativeName, versionNumber, size, lastModified, ids));
+    }
+
+    private void appendToIndex(Version version, boolean added)
+        throws IOException
+    {
+        if (indexRecords > COMPACT_THRESHOLD && indexRecords > 2 * liveRecords)
+        {
+            writeIndex();
+            return;
+        }
+        Files.createDirectories(storeDirectory);
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(
+                storeDirectory.resolve(INDEX_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND))))
+        {
+            writeRecord(out, version, added);
+        }
+        indexRecords++;
+    }
+
+    /**
+     * Rewrites the index with the live versions only.
+     */
+    private void writeIndex() throws IOException {
+        Files.createDirectories(storeDirectory);
+        Path indexFile = storeDirectory.resolve(INDEX_FILE);
+        Path tempFile = storeDirectory.resolve(INDEX_FILE + ".tmp");
+        int records = 0;
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(tempFile))))
+        {
+            for (List<Version> list : versions.values()) {
+                for (Version version : list) {
+                    writeRecord(out, version, true);
+                    records++;
+                }
+            }
+        }
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        indexRecords = records;
+    }
+
+    private void writeRecord(DataOutputStream out, Version version,
+        boolean added) throws IOException
+    {
+        out.writeByte(added ? RECORD_ADD : RECORD_REMOVE);
+        out.writeUTF(version.relativeName);
+        out.writeInt(version.version);
+        if (!added) {
+            return;
+        }
+        out.writeLong(version.size);
+        out.writeLong(version.lastModified);
+        out.writeInt(version.chunks.length);
+        for (String id : version.chunks) {
+            out.writeUTF(id);
+            out.writeInt(chunks.get(id).length);
+        }
+    }
+
+    private static final class Version {
+        private final String relativeName;
+        private final int version;
+        private final long size;
+        private final long lastModified;
+        private final String[] chunks;
+
+        private Version(String relativeName, int version, long size,
+            long lastModified, String[] chunks)
+        {
+            this.relativeName = relativeName;
+            this.version = version;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public String toString() {
+            return relativeName + " v" + version;
+        }
+    }
+
+    private static final class ChunkRef {
+        private final int length;
+        private int refs;
+
+        private ChunkRef(int length) {
+            this.length = length;
+        }
+    }
+}
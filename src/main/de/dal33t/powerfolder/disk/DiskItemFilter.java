@@ -30,7 +30,10 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.PatternSyntaxException;
@@ -42,6 +45,7 @@ import de.dal33t.powerfolder.light.DirectoryInfo;
 import de.dal33t.powerfolder.light.DiskItem;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.pattern.MultiPatternMatcher;
 import de.dal33t.powerfolder.util.pattern.Pattern;
 import de.dal33t.powerfolder.util.pattern.PatternFactory;
 
@@ -68,11 +72,26 @@ public class DiskItemFilter {
      */
     private static final String PATTERN_IGNORE_ALL = "*";
 
+    /**
+     * Max number of cached directory verdicts before the cache gets cleared.
+     */
+    private static final int MAX_CACHED_DIRECTORIES = 10000;
+
     /**
      * The patterns that will be used to match DiskItems with.
      */
     private final Set<Pattern> patterns = new CopyOnWriteArraySet<Pattern>();
 
+    /**
+     * Incremented on every change of the patterns.
+     */
+    private final AtomicInteger patternsVersion = new AtomicInteger();
+
+    /**
+     * The patterns compiled into one matcher. Rebuilt lazily after changes.
+     */
+    private volatile CompiledPatterns compiled;
+
     /**
      * Whether the patterns have been modified since the last save.
      */
@@ -150,11 +169,13 @@ public class DiskItemFilter {
                 log.fine("Received a pattern file different to own, so loading it.");
                 for (Pattern oldPattern : patterns) {
                     patterns.remove(oldPattern);
+                    patternsChanged();
                     listenerSupport.patternRemoved(new PatternChangedEvent(
                         this, oldPattern.getPatternText(), false));
                 }
                 for (Pattern newPattern : tempPatterns) {
                     patterns.add(newPattern);
+                    patternsChanged();
                     listenerSupport.patternAdded(new PatternChangedEvent(this,
                         newPattern.getPatternText(), true));
                 }
@@ -232,6 +253,7 @@ public class DiskItemFilter {
         }
         try {
             patterns.add(pattern);
+            patternsChanged();
             dirty = true;
             listenerSupport.patternAdded(new PatternChangedEvent(this, pattern
                 .getPatternText(), true));
@@ -244,6 +266,7 @@ public class DiskItemFilter {
     void removeAllPatterns() {
         for (Pattern pattern : patterns) {
             patterns.remove(pattern);
+            patternsChanged();
             dirty = true;
             listenerSupport.patternRemoved(new PatternChangedEvent(this,
                 pattern.getPatternText(), false));
@@ -260,6 +283,7 @@ public class DiskItemFilter {
         for (Pattern pattern : patterns) {
             if (pattern.equals(targetPattern)) {
                 patterns.remove(pattern);
+                patternsChanged();
                 dirty = true;
                 listenerSupport.patternRemoved(new PatternChangedEvent(this,
                     pattern.getPatternText(), false));
@@ -282,28 +306,40 @@ public class DiskItemFilter {
      * @return
      */
     private boolean isMatches(DiskItem diskItem) {
+        if (patterns.isEmpty()) {
+            return false;
+        }
         if (diskItem instanceof DirectoryInfo) {
-            DirectoryInfo directoryInfo = (DirectoryInfo) diskItem;
-            String dirName = directoryInfo.getRelativeName() + "/*";
-
-            for (Pattern pattern : patterns) {
-                if (pattern.isMatch(dirName)) {
-                    return true;
-                }
-            }
+            return getCompiled().isDirectoryMatch(diskItem.getRelativeName());
         } else if (diskItem instanceof FileInfo) {
-            String name = diskItem.getRelativeName();
-
-            for (Pattern pattern : patterns) {
-                if (pattern.isMatch(name)) {
-                    return true;
-                }
-            }
+            return getCompiled().matcher.isMatch(diskItem.getRelativeName());
         }
-
         return false;
     }
 
+    /**
+     * Invalidates the compiled patterns and cached directory verdicts.
+     */
+    private void patternsChanged() {
+        patternsVersion.incrementAndGet();
+    }
+
+    /**
+     * @return the compiled matcher for the current patterns.
+     */
+    private CompiledPatterns getCompiled() {
+        CompiledPatterns c = compiled;
+        int version = patternsVersion.get();
+        if (c != null && c.version == version) {
+            return c;
+        }
+        // Read version before patterns: A concurrent change leaves this
+        // instance outdated and causes another rebuild on next call.
+        c = new CompiledPatterns(version, new MultiPatternMatcher(patterns));
+        compiled = c;
+        return c;
+    }
+
     /**
      * Returns patterns.
      *
@@ -355,12 +391,7 @@ public class DiskItemFilter {
         if (patterns.isEmpty()) {
             return false;
         }
-        for (Pattern pattern : patterns) {
-            if (pattern.isMatch(relativeName)) {
-                return true;
-            }
-        }
-        return false;
+        return getCompiled().matcher.isMatch(relativeName);
     }
 
     /**
@@ -373,4 +404,35 @@ public class DiskItemFilter {
     public boolean isRetained(DiskItem diskItem) {
         return !isExcluded(diskItem);
     }
+
+    /**
+     * Matcher for one version of the patterns plus the verdicts of
+     * directories already checked against it.
+     */
+    private static final class CompiledPatterns {
+        private final int version;
+        private final MultiPatternMatcher matcher;
+        private final ConcurrentMap<String, Boolean> directoryVerdicts =
+            new ConcurrentHashMap<String, Boolean>();
+
+        private CompiledPatterns(int version, MultiPatternMatcher matcher) {
+            this.version = version;
+            this.matcher = matcher;
+        }
+
+        /**
+         * Directories have "/*" appended for matching.
+         */
+        private boolean isDirectoryMatch(String dirName) {
+            Boolean verdict = directoryVerdicts.get(dirName);
+            if (verdict == null) {
+                verdict = matcher.isMatch(dirName + "/*");
+                if (directoryVerdicts.size() >= MAX_CACHED_DIRECTORIES) {
+                    directoryVerdicts.clear();
+                }
+                directoryVerdicts.put(dirName, verdict);
+            }
+            return verdict;
+        }
+    }
 }
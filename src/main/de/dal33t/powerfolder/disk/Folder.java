@@ -37,6 +37,8 @@ import de.dal33t.powerfolder.util.*;
 import de.dal33t.powerfolder.util.compare.FileInfoComparator;
 import de.dal33t.powerfolder.util.compare.ReverseComparator;
 import de.dal33t.powerfolder.util.logging.LoggingManager;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+import de.dal33t.powerfolder.util.metrics.Timer;
 import de.dal33t.powerfolder.util.os.OSUtil;
 import de.dal33t.powerfolder.util.os.Win32.WinUtils;
 import de.dal33t.powerfolder.util.pattern.DefaultExcludes;
@@ -74,6 +76,9 @@ public class Folder extends PFComponent {
     private static final int FIVE_MINUTES = 60 * 5;
     //private static final int THIRTY_SECONDS = 30;
 
+    private static final Timer PERSIST_TIMER = Metrics
+        .timer("folder.db.persist");
+
     /** The base location of the folder. */
     private Path localBase;
 
@@ -211,12 +216,28 @@ public class Folder extends PFComponent {
     private int syncWarnSeconds;
     private Persister persister;
     private ScheduledFuture<?> persisterFuture;
+    private final FolderChangesBroadcaster changesBroadcaster;
 
     /**
      * PFS-1994: Mark this folder as a folder which has been moved.
      */
     private boolean isMovedFolder;
 
+    /**
+     * Folder database not loaded to save memory. Only the folder info,
+     * settings and statistics are available. See {@link #activate()}.
+     */
+    private volatile boolean hibernated;
+    /**
+     * Loading the database on activation. Guarded by scanLock.
+     */
+    private boolean activating;
+    /**
+     * Hibernation in progress. Activations wait for it on the scanLock.
+     */
+    private volatile boolean hibernating;
+    private volatile long lastActivity = System.currentTimeMillis();
+
     /**
      * Constructor for folder.
      *
@@ -227,6 +248,23 @@ public class Folder extends PFComponent {
      */
     Folder(Controller controller, FolderInfo fInfo,
         FolderSettings folderSettings)
+    {
+        this(controller, fInfo, folderSettings, false);
+    }
+
+    /**
+     * Constructor for folder.
+     *
+     * @param controller
+     * @param fInfo
+     * @param folderSettings
+     * @param hibernate
+     *            true to start hibernated if the folder database and
+     *            statistics exist on disk. See {@link #activate()}.
+     * @throws FolderException
+     */
+    Folder(Controller controller, FolderInfo fInfo,
+        FolderSettings folderSettings, boolean hibernate)
     {
         super(controller);
 
@@ -359,7 +397,19 @@ public class Folder extends PFComponent {
         members = new ConcurrentHashMap<Member, Member>();
 
         // Load folder database, ignore patterns and other metadata stuff.
-        loadMetadata();
+        if (hibernate && !currentInfo.isMetaFolder() && !deviceDisconnected
+            && Files.exists(getSystemSubDir0().resolve(Constants.DB_FILENAME))
+            && Files.exists(getSystemSubDir0().resolve(FOLDER_STATISTIC)))
+        {
+            // Load database on first use.
+            hibernated = true;
+            hasOwnDatabase = true;
+            loadLastSyncDate();
+            diskItemFilter.loadPatternsFrom(getSystemSubDir0().resolve(
+                DiskItemFilter.PATTERNS_FILENAME), false);
+        } else {
+            loadMetadata();
+        }
 
         // PFS-457: Start
         List<String> oldPatterns = diskItemFilter.getPatterns();
@@ -383,6 +433,11 @@ public class Folder extends PFComponent {
 
         // Stats
         statistic = new FolderStatistic(this);
+        if (hibernated && statistic.getKnownItemsCount() <= 0) {
+            // Item count unknown. Statistics of an older version.
+            loadFolderDB();
+            hibernated = false;
+        }
 
         // Check desktop ini in Windows environments
         if (!currentInfo.isMetaFolder()) {
@@ -401,7 +456,7 @@ public class Folder extends PFComponent {
                     + hasOwnDatabase);
             }
         }
-        if (hasOwnDatabase) {
+        if (hasOwnDatabase && !hibernated) {
             // Write filelist
             writeFilelist(getMySelf());
         }
@@ -417,6 +472,7 @@ public class Folder extends PFComponent {
         archiver.setVersionsPerFile(folderSettings.getVersions());
 
         watcher = new FolderWatcher(this);
+        changesBroadcaster = new FolderChangesBroadcaster(this);
         
         // PFS-457: Make sure the new patterns are broadcasted
         List<String> newPatterns = diskItemFilter.getPatterns();
@@ -568,7 +624,8 @@ public class Folder extends PFComponent {
                 + scanResult.getNewFiles().size() + " new, "
                 + scanResult.getRestoredFiles().size() + " restored, "
                 + scanResult.getDeletedFiles().size() + " removed, "
-                + scanResult.getProblemFiles().size() + " problems";
+                + scanResult.getProblemFiles().size() + " problems, "
+                + scanResult.getMetadataReads() + " metadata reads";
             if (scanResult.isChangeDetected() && !currentInfo.isMetaFolder()) {
                 logInfo(msg);
             } else {
@@ -1002,32 +1059,43 @@ public class Folder extends PFComponent {
      * @return if the local files where scanned
      */
     public boolean scanLocalFiles() {
+        activate();
         if (shutdown) {
             logFine(getName() + ": Already shutdown: Not scanLocalFiles");
             return false;
         }
         checkIfDeviceDisconnected();
         ScanResult result;
-        FolderScanner scanner = getController().getFolderRepository()
-            .getFolderScanner();
-        // Acquire the folder wait
-        boolean scannerBusy;
-        do {
-            synchronized (scanLock) {
-                result = scanner.scanFolder(this);
-            }
-            scannerBusy = ScanResult.ResultState.BUSY == result
-                .getResultState();
-            if (scannerBusy) {
-                logFine("Folder scanner is busy, waiting...");
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                    logFiner(e);
-                    return false;
+        FolderRepository repo = getController().getFolderRepository();
+        FolderScanner scanner;
+        try {
+            scanner = repo.acquireFolderScanner();
+        } catch (InterruptedException e) {
+            logFiner(e);
+            return false;
+        }
+        try {
+            // Acquire the folder wait
+            boolean scannerBusy;
+            do {
+                synchronized (scanLock) {
+                    result = scanner.scanFolder(this);
                 }
-            }
-        } while (scannerBusy);
+                scannerBusy = ScanResult.ResultState.BUSY == result
+                    .getResultState();
+                if (scannerBusy) {
+                    logFine("Folder scanner is busy, waiting...");
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        logFiner(e);
+                        return false;
+                    }
+                }
+            } while (scannerBusy);
+        } finally {
+            repo.releaseFolderScanner(scanner);
+        }
 
         if (checkIfDeviceDisconnected()) {
             if (isFiner()) {
@@ -1224,6 +1292,7 @@ public class Folder extends PFComponent {
      * @return the new {@link FileInfo} or null if file was not actually changed
      */
     public FileInfo scanChangedFile(FileInfo fileInfo) {
+        activate();
         Reject.ifNull(fileInfo, "FileInfo is null");
         if (shutdown) {
             logFine(getName() + ": Already shutdown: Not scanChangedFile: " + fileInfo);
@@ -1247,6 +1316,7 @@ public class Folder extends PFComponent {
      * @param fileInfo
      */
     public void scanAllParentDirectories(FileInfo fileInfo) {
+        activate();
         if (shutdown) {
             logFine(getName() + ": Already shutdown: Not scanAllParentDirectories: " + fileInfo.toDetailString());
             return;
@@ -1313,13 +1383,7 @@ public class Folder extends PFComponent {
             fireFilesChanged(fileInfos);
             setDBDirty();
 
-            broadcastMessages(new MessageProducer() {
-                @Override
-                public Message[] getMessages(boolean useExt) {
-                    return FolderFilesChanged.create(currentInfo, fileInfos,
-                        diskItemFilter, useExt);
-                }
-            });
+            changesBroadcaster.add(fileInfos);
         }
     }
 
@@ -1491,6 +1555,7 @@ public class Folder extends PFComponent {
      *            the directory
      */
     public void scanDirectory(FileInfo dirInfo, Path dir) {
+        activate();
         Reject.ifNull(dirInfo, "DirInfo is null");
         if (shutdown) {
             logFine(getName() + ": Already shutdown: Not scanDirectory: " + dirInfo.toDetailString() + " at " + dir);
@@ -1666,6 +1731,7 @@ public class Folder extends PFComponent {
      * @param fInfos
      */
     public void removeFilesLocal(Collection<FileInfo> fInfos) {
+        activate();
         Reject.ifNull(fInfos, "Files null");
         if (fInfos.isEmpty()) {
             return;
@@ -1707,13 +1773,7 @@ public class Folder extends PFComponent {
             fireFilesDeleted(removedFiles);
             setDBDirty();
 
-            broadcastMessages(new MessageProducer() {
-                @Override
-                public Message[] getMessages(boolean useExt) {
-                    return FolderFilesChanged.create(currentInfo, removedFiles,
-                        diskItemFilter, useExt);
-                }
-            });
+            changesBroadcaster.add(removedFiles);
         }
     }
 
@@ -1726,6 +1786,7 @@ public class Folder extends PFComponent {
      * @return
      */
     public boolean erase(FileInfo fInfo) {
+        activate();
         Reject.ifNull(fInfo, "fInfo");
         if (shutdown) {
             logFine(getName() + ": Already shutdown: Not erase: " + fInfo.toDetailString());
@@ -1753,7 +1814,8 @@ public class Folder extends PFComponent {
             dao.stop();
         }
         dao = new FileInfoDAOHashMapImpl(getMySelf().getId(),
-            diskItemFilter);
+            diskItemFilter, ConfigurationEntry.FOLDER_DB_SEARCH_INDEX
+                .getValueBoolean(getController()));
     }
 
     /**
@@ -1935,6 +1997,7 @@ public class Folder extends PFComponent {
         if (isFine()) {
             logFine("Shutting down " + this);
         }
+        changesBroadcaster.flush();
         shutdown = true;
         if (ConfigurationEntry.FOLDER_WATCHER_ENABLED.getValueBoolean(getController())) {
             watcher.remove();
@@ -1957,6 +2020,94 @@ public class Folder extends PFComponent {
         diskItemFilter.removeAllListener();
     }
 
+    /**
+     * @return true if the folder database is currently not loaded.
+     * @see #activate()
+     */
+    public boolean isHibernated() {
+        return hibernated;
+    }
+
+    /**
+     * Marks the folder as used. Loads the folder database if hibernated.
+     * Called on all access to the database, e.g. member join, file list
+     * changes, local scans and {@link #getDAO()}.
+     */
+    public void activate() {
+        lastActivity = System.currentTimeMillis();
+        if (!hibernated && !hibernating) {
+            return;
+        }
+        synchronized (scanLock) {
+            if (!hibernated || activating) {
+                return;
+            }
+            activating = true;
+            try {
+                loadFolderDB();
+            } finally {
+                activating = false;
+                hibernated = false;
+            }
+        }
+        logFine("Activated " + this);
+        // Changes while hibernated
+        recommendScanOnNextMaintenance();
+        statistic.scheduleCalculate();
+        getController().getFolderRepository().triggerMaintenance();
+    }
+
+    /**
+     * Stores the folder database and releases it from memory if the folder
+     * has not been used for the given time and no member is connected.
+     *
+     * @param idleMillis
+     *            the minimum time since last use.
+     * @return true if the folder is hibernated now.
+     */
+    public boolean hibernateIfIdle(long idleMillis) {
+        if (hibernated || shutdown || currentInfo.isMetaFolder()) {
+            return hibernated;
+        }
+        if (System.currentTimeMillis() - lastActivity < idleMillis
+            || getConnectedMembersCount() > 0)
+        {
+            return false;
+        }
+        synchronized (scanLock) {
+            if (hibernated) {
+                return true;
+            }
+            // From here activate() blocks on the scanLock. Re-check for use
+            // or joins since the first check.
+            hibernating = true;
+            try {
+                if (System.currentTimeMillis() - lastActivity < idleMillis
+                    || getConnectedMembersCount() > 0
+                    || checkIfDeviceDisconnected())
+                {
+                    return false;
+                }
+                if (dirty || !hasOwnDatabase) {
+                    if (!hasOwnDatabase || !storeFolderDB()) {
+                        return false;
+                    }
+                    dirty = false;
+                }
+                // Real count for getKnownItemCount() while hibernated
+                statistic.setKnownItemsCount(dao.count(null, true, false));
+                synchronized (dbAccessLock) {
+                    hibernated = true;
+                    initFileInfoDAO();
+                }
+            } finally {
+                hibernating = false;
+            }
+        }
+        logFine("Hibernated " + this);
+        return true;
+    }
+
     /**
      * This is the date that the folder last 100% synced with other members. It
      * may be null if never synchronized externally.
@@ -1989,6 +2140,10 @@ public class Folder extends PFComponent {
         try {
             FileInfo[] diskItems;
             synchronized (dbAccessLock) {
+                if (hibernated) {
+                    // Never overwrite the database with the empty one.
+                    return true;
+                }
                 Collection<FileInfo> files = dao.findAllFiles(null);
                 Collection<DirectoryInfo> dirs = dao.findAllDirectories(null);
                 diskItems = new FileInfo[files.size() + dirs.size()];
@@ -2103,6 +2258,7 @@ public class Folder extends PFComponent {
      * @param removeBefore
      */
     public void maintainFolderDB(long removeBefore) {
+        activate();
         if (shutdown) {
             logFine(getName() + ": Already shutdown: Not maintainFolderDB: " + removeBefore);
             return;
@@ -2313,15 +2469,13 @@ public class Folder extends PFComponent {
             synchronized (scanLock) {
                 if (Files.exists(file)) {
                     try {
-                        Path problemPath = archiver.getArchiveDir().resolve(
-                            fileInfo.getRelativeName());
                         watcher.addIgnoreFile(fileInfo);
                         archiver.archive(fileInfo, file, false);
 
                         Files.deleteIfExists(file);
                         if (!currentInfo.isMetaFolder()) {
                             addProblem(new FolderReadOnlyProblem(this,
-                                problemPath));
+                                getRevertedProblemPath(fileInfo, file)));
                         }
                     } catch (IOException e) {
                         logWarning("Unable to revert changes on file " + file
@@ -2332,9 +2486,8 @@ public class Folder extends PFComponent {
                     }
                 } else {
                     if (!currentInfo.isMetaFolder()) {
-                        addProblem(new FolderReadOnlyProblem(this, archiver
-                            .getArchiveDir().resolve(
-                                fileInfo.getRelativeName())));
+                        addProblem(new FolderReadOnlyProblem(this,
+                            getRevertedProblemPath(fileInfo, file)));
                     }
                 }
                 dao.delete(null, fileInfo);
@@ -2345,6 +2498,23 @@ public class Folder extends PFComponent {
         }
     }
 
+    /**
+     * @param fileInfo
+     *            the reverted file
+     * @param file
+     *            the local file
+     * @return the archived version to show in the problem. The local file if
+     *         the archiver keeps no single file for the version, e.g. in the
+     *         chunk store.
+     */
+    private Path getRevertedProblemPath(FileInfo fileInfo, Path file) {
+        Path archived = archiver.getArchivedFile(fileInfo);
+        if (archived == null || Files.notExists(archived)) {
+            return file;
+        }
+        return archived;
+    }
+
     /**
      * Set the needed folder/file attributes on windows systems, if we have a
      * desktop.ini
@@ -2585,6 +2755,9 @@ public class Folder extends PFComponent {
      * @return true if this folder requires the maintenance to be run.
      */
     public boolean isMaintenanceRequired() {
+        if (hibernated) {
+            return false;
+        }
         return scanForced || autoScanRequired() || maintainFolderDBrequired();
     }
 
@@ -2626,6 +2799,7 @@ public class Folder extends PFComponent {
      * @return true if actually joined the folder.
      */
     public boolean join(Member member) {
+        activate();
         if (!member.isServer()) {
             boolean memberRead = hasReadPermission(member);
             boolean mySelfRead = hasReadPermission(getMySelf());
@@ -2899,6 +3073,7 @@ public class Folder extends PFComponent {
      * @param fileInfo
      */
     public void removeDeletedFileInfo(FileInfo fileInfo) {
+        activate();
         Reject.ifFalse(fileInfo.isDeleted(),
             "Should only be removing deleted infos.");
         dao.delete(null, fileInfo);
@@ -2938,8 +3113,7 @@ public class Folder extends PFComponent {
      * @return true if the folder get currently scanned
      */
     public boolean isScanning() {
-        return getController().getFolderRepository().getFolderScanner()
-            .getCurrentScanningFolder() == this;
+        return getController().getFolderRepository().isScanning(this);
     }
 
     /**
@@ -3093,13 +3267,7 @@ public class Folder extends PFComponent {
             fireFilesDeleted(removedFiles);
             setDBDirty();
 
-            broadcastMessages(new MessageProducer() {
-                @Override
-                public Message[] getMessages(boolean useExt) {
-                    return FolderFilesChanged.create(currentInfo, removedFiles,
-                        diskItemFilter, useExt);
-                }
-            });
+            changesBroadcaster.add(removedFiles);
         }
     }
 
@@ -3475,42 +3643,16 @@ public class Folder extends PFComponent {
             return;
         }
 
-        if (!scanResult.getNewFiles().isEmpty()) {
-            broadcastMessages(new MessageProducer() {
-                @Override
-                public Message[] getMessages(boolean useExt) {
-                    return FolderFilesChanged.create(currentInfo,
-                        scanResult.getNewFiles(), diskItemFilter, useExt);
-                }
-            });
-        }
-        if (!scanResult.getChangedFiles().isEmpty()) {
-            broadcastMessages(new MessageProducer() {
-                @Override
-                public Message[] getMessages(boolean useExt) {
-                    return FolderFilesChanged.create(currentInfo,
-                        scanResult.getChangedFiles(), diskItemFilter, useExt);
-                }
-            });
-        }
-        if (!scanResult.getDeletedFiles().isEmpty()) {
-            broadcastMessages(new MessageProducer() {
-                @Override
-                public Message[] getMessages(boolean useExt) {
-                    return FolderFilesChanged.create(currentInfo,
-                        scanResult.getDeletedFiles(), diskItemFilter, useExt);
-                }
-            });
-        }
-        if (!scanResult.getRestoredFiles().isEmpty()) {
-            broadcastMessages(new MessageProducer() {
-                @Override
-                public Message[] getMessages(boolean useExt) {
-                    return FolderFilesChanged.create(currentInfo,
-                        scanResult.getRestoredFiles(), diskItemFilter, useExt);
-                }
-            });
-        }
+        List<FileInfo> changes = new ArrayList<FileInfo>(scanResult
+            .getNewFiles().size()
+            + scanResult.getChangedFiles().size()
+            + scanResult.getDeletedFiles().size()
+            + scanResult.getRestoredFiles().size());
+        changes.addAll(scanResult.getNewFiles());
+        changes.addAll(scanResult.getChangedFiles());
+        changes.addAll(scanResult.getDeletedFiles());
+        changes.addAll(scanResult.getRestoredFiles());
+        changesBroadcaster.add(changes);
         if (isFine()) {
             logFine("Broadcasted folder changes for: " + scanResult);
         }
@@ -3523,6 +3665,7 @@ public class Folder extends PFComponent {
      * @param newList
      */
     public void fileListChanged(Member from, FileList newList) {
+        activate();
         if (shutdown) {
             logFine(getName() + ": Already shutdown: Not fileListChanged: " + newList + " received from " + from);
             return;
@@ -3578,6 +3721,7 @@ public class Folder extends PFComponent {
      * @param changes
      */
     public void fileListChanged(Member from, FolderFilesChanged changes) {
+        activate();
         if (shutdown) {
             logFine(getName() + ": Already shutdown: Not fileListChanged: " + changes + " received from " + from);
             return;
@@ -3638,7 +3782,7 @@ public class Folder extends PFComponent {
                         + changes + " from " + from);
                 }
                 getController().getFolderRepository().getFileRequestor()
-                    .triggerFileRequesting(changes.folder);
+                    .remoteFilesChanged(this, from, changes.getFiles());
             } else if (isFiner()) {
                 logFiner("Not triggering filerequestor, no new files in remote filelist"
                     + changes + " from " + from);
@@ -3863,6 +4007,10 @@ public class Folder extends PFComponent {
      * Persists settings to disk.
      */
     private void persist() {
+        if (hibernated) {
+            // Nothing loaded, nothing changed.
+            return;
+        }
         if (checkIfDeviceDisconnected()) {
             if (!currentInfo.isMetaFolder()) {
                 logWarning("Unable to persist database. Storage/Device disconnected: "
@@ -3881,6 +4029,7 @@ public class Folder extends PFComponent {
         }
 
         int tries = 1;
+        long metricsStart = Metrics.start();
         boolean success = storeFolderDB();
         while (!success && tries < 10) {
             try {
@@ -3892,6 +4041,7 @@ public class Folder extends PFComponent {
             tries += 1;
             success = storeFolderDB();
         }
+        PERSIST_TIMER.stop(metricsStart);
         if (tries > 1) {
             if (success) {
                 logWarning("Was able to write folder database, but only after "
@@ -4145,6 +4295,10 @@ public class Folder extends PFComponent {
     }
 
     public int getKnownItemCount() {
+        if (hibernated) {
+            // From the last calculation before hibernation
+            return statistic.getKnownItemsCount();
+        }
         // All! Also excluded items
         return dao.count(null, true, false);
     }
@@ -4156,6 +4310,7 @@ public class Folder extends PFComponent {
      *         hashmap (keySet).
      */
     public Collection<FileInfo> getKnownFiles() {
+        activate();
         return dao.findAllFiles(null);
     }
 
@@ -4166,6 +4321,7 @@ public class Folder extends PFComponent {
      *         database hashmap (keySet).
      */
     public Collection<DirectoryInfo> getKnownDirectories() {
+        activate();
         return dao.findAllDirectories(null);
     }
 
@@ -4278,6 +4434,7 @@ public class Folder extends PFComponent {
     public Collection<FileInfo> getIncomingFiles(boolean includeDeleted,
         int maxPerMember)
     {
+        activate();
         // build a temp list
         SortedMap<FileInfo, FileInfo> incomingFiles = new TreeMap<FileInfo, FileInfo>(
             new FileInfoComparator(FileInfoComparator.BY_RELATIVE_NAME));
@@ -4436,6 +4593,7 @@ public class Folder extends PFComponent {
      *            the {@link Visitor} to pass the incoming files to.
      */
     public void visitIncomingFiles(Visitor<FileInfo> vistor) {
+        activate();
         // add0 expeced files
         for (Member member : getMembersAsCollection()) {
             if (!member.isCompletelyConnected()) {
@@ -4507,6 +4665,7 @@ public class Folder extends PFComponent {
      * @return the list of files from a member as unmodifiable collection
      */
     public Collection<FileInfo> getFilesAsCollection(Member member) {
+        activate();
         if (member == null) {
             throw new NullPointerException("Member is null");
         }
@@ -4518,6 +4677,7 @@ public class Folder extends PFComponent {
      * @return the list of directories from a member as unmodifiable collection
      */
     public Collection<DirectoryInfo> getDirectoriesAsCollection(Member member) {
+        activate();
         if (member == null) {
             throw new NullPointerException("Member is null");
         }
@@ -4627,6 +4787,7 @@ public class Folder extends PFComponent {
      * @return the local fileinfo instance
      */
     public FileInfo getFile(FileInfo fInfo) {
+        activate();
         Reject.ifNull(fInfo, "FileInfo is null");
         FileInfo localInfo = dao.find(fInfo, null);
         if (localInfo != null) {
@@ -4707,6 +4868,7 @@ public class Folder extends PFComponent {
      * @return the {@link FileInfoDAO}. TRAC #1422
      */
     public FileInfoDAO getDAO() {
+        activate();
         return dao;
     }
 
@@ -4870,8 +5032,13 @@ public class Folder extends PFComponent {
 
     // PFS-638
     private static final long HAS_PERMISSION_CACHE_TIMEOUT = 987L;
-    private final SimpleCache<Member, Boolean> hasReadCache = new SimpleCache<>(Util.createConcurrentHashMap(), HAS_PERMISSION_CACHE_TIMEOUT, TimeUnit.MILLISECONDS);
-    private final SimpleCache<Member, Boolean> hasWriteCache = new SimpleCache<>(Util.createConcurrentHashMap(), HAS_PERMISSION_CACHE_TIMEOUT, TimeUnit.MILLISECONDS);
+    private static final int HAS_PERMISSION_CACHE_MAX_ENTRIES = 5000;
+    private final SimpleCache<Member, Boolean> hasReadCache = new SimpleCache<>(
+        "folder.permission.read", HAS_PERMISSION_CACHE_MAX_ENTRIES, false,
+        HAS_PERMISSION_CACHE_TIMEOUT, TimeUnit.MILLISECONDS);
+    private final SimpleCache<Member, Boolean> hasWriteCache = new SimpleCache<>(
+        "folder.permission.write", HAS_PERMISSION_CACHE_MAX_ENTRIES, false,
+        HAS_PERMISSION_CACHE_TIMEOUT, TimeUnit.MILLISECONDS);
 
     public boolean hasReadPermission(Member member) {
         Boolean hasRead = hasReadCache.getValidEntry(member);
@@ -4985,13 +5152,7 @@ public class Folder extends PFComponent {
         if (fileInfosList.size() >= 1
             || diskItemFilter.isRetained(fileInfosList.get(0)))
         {
-            broadcastMessages(new MessageProducer() {
-                @Override
-                public Message[] getMessages(boolean useExt) {
-                    return FolderFilesChanged.create(getInfo(), fileInfosList,
-                        diskItemFilter, useExt);
-                }
-            });
+            changesBroadcaster.add(fileInfosList);
         }
     }
 
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.message.FolderFilesChanged;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.MessageProducer;
+import de.dal33t.powerfolder.util.metrics.Counter;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+
+/**
+ * Collects the local changes of a folder and broadcasts them as few and full
+ * {@link FolderFilesChanged} messages as possible.
+ * <p>
+ * Changes are held back for a short window. Multiple changes of the same file
+ * within the window are collapsed to the newest version. The window starts at
+ * {@link #MIN_DELAY} and doubles while changes keep coming in bursts, up to
+ * {@link ConfigurationEntry#FOLDER_CHANGES_BATCH_MAX_DELAY}. Once a full
+ * message worth of changes is pending it is sent right away.
+ */
+class FolderChangesBroadcaster extends PFComponent {
+    private static final long MIN_DELAY = 50L;
+    private static final int MAX_FILES = Constants.FILE_LIST_MAX_FILES_PER_MESSAGE;
+
+    private static final Counter COLLAPSED = Metrics
+        .counter("folder.changes.collapsed");
+    private static final Counter MESSAGES_SAVED = Metrics
+        .counter("folder.changes.messages.saved");
+
+    private final Folder folder;
+    private final long maxDelay;
+
+    /**
+     * The pending changes in the order of their first occurrence.
+     */
+    private final Map<FileInfo, FileInfo> pending = new LinkedHashMap<>();
+    private long delay;
+    private ScheduledFuture<?> flushFuture;
+    /**
+     * Number of changes added within the current window.
+     */
+    private int nAdds;
+    /**
+     * Messages that would have been sent without batching, since pending was
+     * empty the last time.
+     */
+    private long nUnbatched;
+    private long nSent;
+
+    FolderChangesBroadcaster(Folder folder) {
+        super(folder.getController());
+        this.folder = folder;
+        maxDelay = Math.max(0L,
+            ConfigurationEntry.FOLDER_CHANGES_BATCH_MAX_DELAY
+                .getValueInt(getController()));
+        delay = Math.min(MIN_DELAY, maxDelay);
+    }
+
+    /**
+     * Queues the changed files for broadcast to all connected members.
+     *
+     * @param files
+     *            the changed, new or deleted files.
+     */
+    void add(Collection<FileInfo> files) {
+        if (files == null || files.isEmpty()) {
+            return;
+        }
+        if (maxDelay == 0) {
+            broadcast(new ArrayList<>(files));
+            return;
+        }
+        List<FileInfo> full = null;
+        synchronized (this) {
+            nAdds++;
+            nUnbatched += (files.size() + MAX_FILES - 1) / MAX_FILES;
+            for (FileInfo fileInfo : files) {
+                FileInfo existing = pending.get(fileInfo);
+                if (existing != null) {
+                    COLLAPSED.increment();
+                    if (existing.isNewerThan(fileInfo)) {
+                        continue;
+                    }
+                }
+                pending.put(fileInfo, fileInfo);
+            }
+            if (pending.size() >= MAX_FILES) {
+                full = takeFullMessages();
+            }
+            if (!pending.isEmpty() && flushFuture == null) {
+                flushFuture = getController().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushWindow();
+                    }
+                }, delay);
+            }
+            if (flushFuture == null && !pending.isEmpty()) {
+                // Controller shutting down. Nothing will be sent anyway.
+                pending.clear();
+            }
+        }
+        if (full != null) {
+            broadcast(full);
+        }
+    }
+
+    /**
+     * Broadcasts all pending changes immediately.
+     */
+    void flush() {
+        List<FileInfo> files;
+        synchronized (this) {
+            if (flushFuture != null) {
+                flushFuture.cancel(false);
+                flushFuture = null;
+            }
+            files = takeAll();
+        }
+        broadcast(files);
+    }
+
+    private void flushWindow() {
+        List<FileInfo> files;
+        synchronized (this) {
+            flushFuture = null;
+            if (nAdds > 1) {
+                // Burst: Wait longer next time.
+                delay = Math.min(Math.max(delay * 2, MIN_DELAY), maxDelay);
+            } else {
+                delay = Math.min(MIN_DELAY, maxDelay);
+            }
+            nAdds = 0;
+            files = takeAll();
+        }
+        broadcast(files);
+    }
+
+    private List<FileInfo> takeFullMessages() {
+        int n = pending.size() / MAX_FILES * MAX_FILES;
+        List<FileInfo> files = new ArrayList<>(n);
+        Iterator<FileInfo> it = pending.values().iterator();
+        while (files.size() < n) {
+            files.add(it.next());
+            it.remove();
+        }
+        nSent += n / MAX_FILES;
+        return files;
+    }
+
+    private List<FileInfo> takeAll() {
+        List<FileInfo> files = new ArrayList<>(pending.values());
+        pending.clear();
+        nSent += (files.size() + MAX_FILES - 1) / MAX_FILES;
+        if (nUnbatched > nSent) {
+            MESSAGES_SAVED.add(nUnbatched - nSent);
+        }
+        nUnbatched = 0;
+        nSent = 0;
+        return files;
+    }
+
+    /**
+     * Sends the files to all connected members. Overridden by tests.
+     *
+     * @param files
+     */
+    void broadcast(final List<FileInfo> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+        if (isFiner()) {
+            logFiner(folder.getName() + ": Broadcasting " + files.size()
+                + " changed files");
+        }
+        final FolderInfo foInfo = folder.getInfo();
+        final DiskItemFilter filter = folder.getDiskItemFilter();
+        folder.broadcastMessages(new MessageProducer() {
+            @Override
+            public Message[] getMessages(boolean useExt) {
+                return createMessages(foInfo, files, filter, useExt);
+            }
+        });
+    }
+
+    /**
+     * Legacy messages mark all contained files as removed if the first one is
+     * deleted. Deleted and other files therefore never share a legacy
+     * message.
+     */
+    private static Message[] createMessages(FolderInfo foInfo,
+        List<FileInfo> files, DiskItemFilter filter, boolean useExt)
+    {
+        if (useExt) {
+            return FolderFilesChanged.create(foInfo, files, filter, true);
+        }
+        List<FileInfo> deleted = new ArrayList<>();
+        List<FileInfo> existing = new ArrayList<>(files.size());
+        for (FileInfo fileInfo : files) {
+            if (fileInfo.isDeleted()) {
+                deleted.add(fileInfo);
+            } else {
+                existing.add(fileInfo);
+            }
+        }
+        Message[] existingMsgs = FolderFilesChanged.create(foInfo, existing,
+            filter, false);
+        Message[] deletedMsgs = FolderFilesChanged.create(foInfo, deleted,
+            filter, false);
+        if (existingMsgs == null) {
+            return deletedMsgs;
+        } else if (deletedMsgs == null) {
+            return existingMsgs;
+        }
+        Message[] msgs = new Message[existingMsgs.length + deletedMsgs.length];
+        System.arraycopy(existingMsgs, 0, msgs, 0, existingMsgs.length);
+        System.arraycopy(deletedMsgs, 0, msgs, existingMsgs.length,
+            deletedMsgs.length);
+        return msgs;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.util.NamedThreadFactory;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+import de.dal33t.powerfolder.util.metrics.Timer;
+
+/**
+ * Runs the maintenance of folders on a pool of workers.
+ * <p>
+ * Folders are queued by the time they became due. Folders due at the same
+ * time are maintained smallest first. The number of concurrent maintenances
+ * per storage device is limited by
+ * {@link ConfigurationEntry#FOLDER_MAINTENANCE_PER_DEVICE}.
+ */
+class FolderMaintenanceScheduler extends PFComponent {
+    private static final Timer MAINTENANCE_TIMER = Metrics
+        .timer("folder.maintenance");
+    private static final Timer LAG_TIMER = Metrics
+        .timer("folder.maintenance.lag");
+
+    private final FolderRepository repository;
+    private final int workers;
+    private final int perDevice;
+    private final Semaphore workerSlots;
+
+    /**
+     * Folder -> time in millis since maintenance is required but not started.
+     */
+    private final ConcurrentMap<Folder, Long> dueSince = new ConcurrentHashMap<>();
+    private final Set<Folder> maintaining = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<Object, Semaphore> deviceSlots = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Path, Object> deviceKeys = new ConcurrentHashMap<>();
+    private ExecutorService executor;
+
+    FolderMaintenanceScheduler(Controller controller,
+        FolderRepository repository)
+    {
+        super(controller);
+        this.repository = repository;
+        workers = Math.max(1, ConfigurationEntry.FOLDER_MAINTENANCE_WORKERS
+            .getValueInt(controller));
+        perDevice = Math.max(1,
+            ConfigurationEntry.FOLDER_MAINTENANCE_PER_DEVICE
+                .getValueInt(controller));
+        workerSlots = new Semaphore(workers);
+    }
+
+    /**
+     * @return the number of folders that may be maintained in parallel.
+     */
+    int getWorkers() {
+        return workers;
+    }
+
+    void start() {
+        executor = Executors.newFixedThreadPool(workers,
+            new NamedThreadFactory("FolderMaintenance-"));
+    }
+
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        dueSince.clear();
+    }
+
+    /**
+     * Starts the maintenance of the given folders that require it, as far as
+     * workers and devices are available. Others stay queued until the next
+     * call.
+     *
+     * @param folders
+     *            the folders to check
+     * @return the number of maintenances started.
+     */
+    int dispatch(Collection<Folder> folders) {
+        if (executor == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        List<Due> queue = new ArrayList<>();
+        for (Folder folder : folders) {
+            if (maintaining.contains(folder)) {
+                continue;
+            }
+            if (!folder.isMaintenanceRequired()) {
+                dueSince.remove(folder);
+                continue;
+            }
+            Long since = dueSince.putIfAbsent(folder, now);
+            queue.add(new Due(folder, since != null ? since : now, folder
+                .getStatistic().getLocalFilesCount(), folder.getName()));
+        }
+        if (queue.isEmpty()) {
+            return 0;
+        }
+        Collections.sort(queue);
+
+        int started = 0;
+        for (Due due : queue) {
+            Folder folder = due.folder;
+            if (getController().isPaused()) {
+                break;
+            }
+            if (!workerSlots.tryAcquire()) {
+                break;
+            }
+            Semaphore device = getDeviceSlots(folder);
+            if (!device.tryAcquire()) {
+                // Device busy. Maybe others are free
+                workerSlots.release();
+                continue;
+            }
+            maintaining.add(folder);
+            try {
+                executor.execute(new MaintenanceTask(folder, device));
+                started++;
+            } catch (RejectedExecutionException e) {
+                // Shutdown
+                maintaining.remove(folder);
+                device.release();
+                workerSlots.release();
+                logFiner(e);
+                break;
+            }
+        }
+        return started;
+    }
+
+    /**
+     * Forgets a removed folder.
+     *
+     * @param folder
+     */
+    void remove(Folder folder) {
+        dueSince.remove(folder);
+        deviceKeys.remove(folder.getLocalBase());
+    }
+
+    /**
+     * @return the folders currently being maintained.
+     */
+    Collection<Folder> getMaintainingFolders() {
+        return Collections.unmodifiableSet(maintaining);
+    }
+
+    /**
+     * @param folder
+     * @return the time in milliseconds the folder is waiting for maintenance
+     *         or 0 if not waiting.
+     */
+    long getMaintenanceLag(Folder folder) {
+        Long since = dueSince.get(folder);
+        if (since == null) {
+            return 0L;
+        }
+        return Math.max(0L, System.currentTimeMillis() - since);
+    }
+
+    private Semaphore getDeviceSlots(Folder folder) {
+        Path base = folder.getLocalBase();
+        Object key = deviceKeys.get(base);
+        if (key == null) {
+            try {
+                key = Files.getFileStore(base);
+                deviceKeys.put(base, key);
+            } catch (IOException | RuntimeException e) {
+                // Disconnected? Don't remember
+                key = base.getRoot() != null ? base.getRoot() : base;
+            }
+        }
+        Semaphore slots = deviceSlots.get(key);
+        if (slots == null) {
+            slots = new Semaphore(perDevice);
+            Semaphore existing = deviceSlots.putIfAbsent(key, slots);
+            if (existing != null) {
+                slots = existing;
+            }
+        }
+        return slots;
+    }
+
+    private class MaintenanceTask implements Runnable {
+        private final Folder folder;
+        private final Semaphore device;
+
+        private MaintenanceTask(Folder folder, Semaphore device) {
+            this.folder = folder;
+            this.device = device;
+        }
+
+        public void run() {
+            Long since = dueSince.remove(folder);
+            if (since != null && Metrics.ENABLED) {
+                LAG_TIMER.record(TimeUnit.MILLISECONDS.toNanos(System
+                    .currentTimeMillis() - since));
+            }
+            long metricsStart = Metrics.start();
+            try {
+                repository.fireMaintanceStarted(folder);
+                folder.maintain();
+            } catch (RuntimeException e) {
+                // PFS-2000:
+                logWarning("Unable to maintain folder " + folder.getName()
+                    + "/" + folder.getId() + ": " + e, e);
+            } finally {
+                MAINTENANCE_TIMER.stop(metricsStart);
+                maintaining.remove(folder);
+                device.release();
+                workerSlots.release();
+            }
+            try {
+                repository.fireMaintenanceFinished(folder);
+            } catch (RuntimeException e) {
+                logWarning("Error after maintenance of folder "
+                    + folder.getName() + "/" + folder.getId() + ": " + e, e);
+            }
+            if (!dueSince.isEmpty()) {
+                // Others waiting for this worker
+                repository.wakeUpMaintenance();
+            }
+        }
+    }
+
+    /**
+     * A queued folder with its sort keys. Longest waiting first, then
+     * smallest folder first. The keys are taken once before sorting, the live
+     * values may change while sorting.
+     */
+    static final class Due implements Comparable<Due> {
+        final Folder folder;
+        private final long since;
+        private final int size;
+        private final String name;
+
+        Due(Folder folder, long since, int size, String name) {
+            this.folder = folder;
+            this.since = since;
+            this.size = size;
+            this.name = name.toLowerCase();
+        }
+
+        public int compareTo(Due o) {
+            if (since != o.since) {
+                return since < o.since ? -1 : 1;
+            }
+            if (size != o.size) {
+                return size < o.size ? -1 : 1;
+            }
+            return name.compareTo(o.name);
+        }
+    }
+}
@@ -45,7 +45,6 @@ import de.dal33t.powerfolder.ui.notices.WarningNotice;
 import de.dal33t.powerfolder.ui.util.UIUtil;
 import de.dal33t.powerfolder.util.*;
 import de.dal33t.powerfolder.util.collection.CompositeCollection;
-import de.dal33t.powerfolder.util.compare.FolderComparator;
 import de.dal33t.powerfolder.util.os.LinuxUtil;
 import de.dal33t.powerfolder.util.os.OSUtil;
 import de.dal33t.powerfolder.util.os.Win32.WinUtils;
@@ -84,7 +83,6 @@ public class FolderRepository extends PFComponent implements Runnable {
     private final Map<FolderInfo, Folder> metaFolders;
     private Thread myThread;
     private final FileRequestor fileRequestor;
-    private Folder currentlyMaintainingFolder;
     private final Set<String> onLoginFolderEntryIds = new HashSet<String>();
     // Flag if the repo is started
     private boolean started;
@@ -104,6 +102,15 @@ public class FolderRepository extends PFComponent implements Runnable {
      */
     private final FolderScanner folderScanner;
 
+    /**
+     * One disk scanner per maintenance worker. Allows to scan different
+     * folders in parallel.
+     */
+    private final List<FolderScanner> folderScanners;
+    private final BlockingQueue<FolderScanner> idleFolderScanners;
+
+    private final FolderMaintenanceScheduler maintenanceScheduler;
+
     /**
      * PFC-1962: For locking files
      */
@@ -158,7 +165,15 @@ public class FolderRepository extends PFComponent implements Runnable {
         started = false;
         loadIgnoredFolders();
 
+        maintenanceScheduler = new FolderMaintenanceScheduler(getController(),
+                this);
         folderScanner = new FolderScanner(getController());
+        folderScanners = new ArrayList<>(maintenanceScheduler.getWorkers());
+        folderScanners.add(folderScanner);
+        while (folderScanners.size() < maintenanceScheduler.getWorkers()) {
+            folderScanners.add(new FolderScanner(getController()));
+        }
+        idleFolderScanners = new LinkedBlockingQueue<>(folderScanners);
         locking = new Locking(getController());
 
         // Create listener support
@@ -212,6 +227,43 @@ public class FolderRepository extends PFComponent implements Runnable {
         return folderScanner;
     }
 
+    /**
+     * Waits for a idle folder scanner. Call
+     * {@link #releaseFolderScanner(FolderScanner)} after use.
+     *
+     * @return the folder scanner for exclusive use.
+     * @throws InterruptedException
+     */
+    FolderScanner acquireFolderScanner() throws InterruptedException {
+        return idleFolderScanners.take();
+    }
+
+    void releaseFolderScanner(FolderScanner scanner) {
+        idleFolderScanners.offer(scanner);
+    }
+
+    /**
+     * @param folder
+     * @return true if the folder is currently scanned by any folder scanner.
+     */
+    public boolean isScanning(Folder folder) {
+        for (FolderScanner scanner : folderScanners) {
+            if (scanner.getCurrentScanningFolder() == folder) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Aborts all running scans.
+     */
+    public void abortScans() {
+        for (FolderScanner scanner : folderScanners) {
+            scanner.abortScan();
+        }
+    }
+
     public Locking getLocking() {
         return locking;
     }
@@ -510,6 +562,9 @@ public class FolderRepository extends PFComponent implements Runnable {
         // Find all folder entries.
         Set<String> entryIds = FolderSettings.loadEntryIds(config);
 
+        final boolean hibernate = ConfigurationEntry.FOLDER_HIBERNATE_IDLE_SECONDS
+                .getValueInt(getController()) > 0;
+
         // Load on many processors
         int loaders = Math.min(Runtime.getRuntime().availableProcessors() - 2,
                 8);
@@ -587,7 +642,8 @@ public class FolderRepository extends PFComponent implements Runnable {
                         // Do not add0 if already added
                         if (!hasJoinedFolder(foInfo) && folderId != null
                                 && folderSettings != null) {
-                            createFolder(foInfo, folderSettings, false, true);
+                            createFolder(foInfo, folderSettings, false, true,
+                                    hibernate);
                         }
                     } catch (Exception e) {
                         logSevere("Problem loading/creating folder #"
@@ -628,7 +684,10 @@ public class FolderRepository extends PFComponent implements Runnable {
             return;
         }
 
-        folderScanner.start();
+        for (FolderScanner scanner : folderScanners) {
+            scanner.start();
+        }
+        maintenanceScheduler.start();
 
         // Now start thread
         myThread = new Thread(this, getClass().getName());
@@ -645,6 +704,12 @@ public class FolderRepository extends PFComponent implements Runnable {
                 1000L * Constants.FOLDER_UNSYNCED_CHECK_DELAY,
                 Constants.MILLIS_PER_MINUTE);
 
+        if (ConfigurationEntry.FOLDER_HIBERNATE_IDLE_SECONDS
+                .getValueInt(getController()) > 0) {
+            getController().scheduleAndRepeat(new FolderHibernator(),
+                    Constants.MILLIS_PER_MINUTE, Constants.MILLIS_PER_MINUTE);
+        }
+
         // ============
         // Monitor the default directory for possible new folders.
         // ============
@@ -765,7 +830,10 @@ public class FolderRepository extends PFComponent implements Runnable {
                 folderMembershipSynchronizer.canceled.set(true);
             }
         }
-        folderScanner.shutdown();
+        for (FolderScanner scanner : folderScanners) {
+            scanner.shutdown();
+        }
+        maintenanceScheduler.shutdown();
 
         if (myThread != null) {
             myThread.interrupt();
@@ -1071,6 +1139,22 @@ public class FolderRepository extends PFComponent implements Runnable {
      */
     private Folder createFolder(FolderInfo folderInfo,
                                 FolderSettings folderSettings, boolean saveConfig, boolean fireEvent) {
+        return createFolder(folderInfo, folderSettings, saveConfig, fireEvent,
+                false);
+    }
+
+    /**
+     * @param folderInfo     the folder info object
+     * @param folderSettings the settings for the folder
+     * @param saveConfig     true if the configuration file should be saved after creation.
+     * @param fireEvent      if the methd should fire
+     * @param hibernate      true to load the folder database on first use.
+     * @return the freshly created folder
+     * @see Folder#activate()
+     */
+    private Folder createFolder(FolderInfo folderInfo,
+                                FolderSettings folderSettings, boolean saveConfig, boolean fireEvent,
+                                boolean hibernate) {
         Reject.ifNull(folderInfo, "FolderInfo is null");
         Reject.ifNull(folderSettings, "FolderSettings is null");
 
@@ -1219,7 +1303,8 @@ public class FolderRepository extends PFComponent implements Runnable {
         }
         //PFS-1918: End: Folder WebDAV support. Mount this folder as WebDAV resource.
 
-        Folder folder = new Folder(getController(), folderInfo, folderSettings);
+        Folder folder = new Folder(getController(), folderInfo, folderSettings,
+                hibernate);
         folder.addProblemListener(valveProblemListenerSupport);
 
         // Now create metaFolder and map to the same FolderInfo key.
@@ -1390,11 +1475,12 @@ public class FolderRepository extends PFComponent implements Runnable {
             triggerSynchronizeAllFolderMemberships();
 
             // Abort scanning
-            boolean folderCurrentlyScannng = folder.equals(folderScanner
-                    .getCurrentScanningFolder());
-            if (folderCurrentlyScannng) {
-                folderScanner.abortScan();
+            for (FolderScanner scanner : folderScanners) {
+                if (folder.equals(scanner.getCurrentScanningFolder())) {
+                    scanner.abortScan();
+                }
             }
+            maintenanceScheduler.remove(folder);
 
             // Delete the .PowerFolder dir and contents
             if (deleteSystemSubDir) {
@@ -1561,11 +1647,30 @@ public class FolderRepository extends PFComponent implements Runnable {
     }
 
     /**
-     * @return the folder that currently gets maintainted or null if not
+     * @return one of the folders that currently get maintainted or null if not
      * maintaining any folder.
+     * @see #getMaintainingFolders()
      */
     public Folder getCurrentlyMaintainingFolder() {
-        return currentlyMaintainingFolder;
+        Iterator<Folder> it = maintenanceScheduler.getMaintainingFolders()
+                .iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * @return the folders that currently get maintained.
+     */
+    public Collection<Folder> getMaintainingFolders() {
+        return maintenanceScheduler.getMaintainingFolders();
+    }
+
+    /**
+     * @param folder
+     * @return the time in milliseconds the folder is waiting for a free
+     * maintenance worker or 0 if not waiting.
+     */
+    public long getMaintenanceLag(Folder folder) {
+        return maintenanceScheduler.getMaintenanceLag(folder);
     }
 
     /**
@@ -1583,7 +1688,17 @@ public class FolderRepository extends PFComponent implements Runnable {
     }
 
     /**
-     * Mainenance thread for the folders
+     * Wakes up the maintenance thread once to start waiting maintenances.
+     */
+    void wakeUpMaintenance() {
+        synchronized (scanTrigger) {
+            scanTrigger.notifyAll();
+        }
+    }
+
+    /**
+     * Mainenance thread for the folders. Dispatches the folders to the workers
+     * of the {@link FolderMaintenanceScheduler}.
      */
     public void run() {
         // Wait to build up ui
@@ -1602,60 +1717,18 @@ public class FolderRepository extends PFComponent implements Runnable {
             }
         }
 
-        List<Folder> scanningFolders = new ArrayList<Folder>();
+        List<Folder> candidates = new ArrayList<Folder>();
         Controller controller = getController();
 
         while (!myThread.isInterrupted() && myThread.isAlive()) {
             // Only scan if not in paused mode
             if (!controller.isPaused()) {
-                scanningFolders.clear();
-                for (Folder folder : folders.values()) {
-                    if (folder.isMaintenanceRequired()) {
-                        scanningFolders.add(folder);
-                    }
-                }
-                for (Folder metaFolder : metaFolders.values()) {
-                    if (metaFolder.isMaintenanceRequired()) {
-                        scanningFolders.add(metaFolder);
-                    }
-                }
-                Collections.sort(scanningFolders, FolderComparator.INSTANCE);
-                if (isFiner()) {
-                    logFiner("Maintaining " + scanningFolders.size()
-                            + " folders...");
-                }
-                for (Folder folder : scanningFolders) {
-                    currentlyMaintainingFolder = folder;
-                    // Fire event
-                    fireMaintanceStarted(currentlyMaintainingFolder);
-                    try {
-                        currentlyMaintainingFolder.maintain();
-                    } catch (RuntimeException e) {
-                        // PFS-2000:
-                        logWarning("Unable to maintain folder "
-                                + currentlyMaintainingFolder.getName() + "/"
-                                + currentlyMaintainingFolder.getId() + ": " + e, e);
-                    }
-                    Folder maintainedFolder = currentlyMaintainingFolder;
-                    currentlyMaintainingFolder = null;
-                    // Fire event
-                    fireMaintenanceFinished(maintainedFolder);
-
-                    if (controller.isPaused() || myThread.isInterrupted()) {
-                        break;
-                    }
-
-                    // Wait a bit to give other waiting sync processes time...
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException e) {
-                        break;
-                    }
-                }
-
-                if (isFiner()) {
-                    logFiner("Maintained " + scanningFolders.size()
-                            + " folder(s)");
+                candidates.clear();
+                candidates.addAll(folders.values());
+                candidates.addAll(metaFolders.values());
+                int started = maintenanceScheduler.dispatch(candidates);
+                if (started > 0 && isFiner()) {
+                    logFiner("Maintaining " + started + " folders...");
                 }
             }
 
@@ -3007,12 +3080,12 @@ public class FolderRepository extends PFComponent implements Runnable {
                 .folderMoved(new FolderRepositoryEvent(this, newFolder, oldFolder));
     }
 
-    private void fireMaintanceStarted(Folder folder) {
+    void fireMaintanceStarted(Folder folder) {
         folderRepositoryListenerSupport
                 .maintenanceStarted(new FolderRepositoryEvent(this, folder));
     }
 
-    private void fireMaintenanceFinished(Folder folder) {
+    void fireMaintenanceFinished(Folder folder) {
         folderRepositoryListenerSupport
                 .maintenanceFinished(new FolderRepositoryEvent(this, folder));
     }
@@ -3102,11 +3175,37 @@ public class FolderRepository extends PFComponent implements Runnable {
         return true;
     }
 
+    /**
+     * Releases the database of folders not used for
+     * {@link ConfigurationEntry#FOLDER_HIBERNATE_IDLE_SECONDS}.
+     */
+    private class FolderHibernator implements Runnable {
+        public void run() {
+            long idleMillis = 1000L * ConfigurationEntry.FOLDER_HIBERNATE_IDLE_SECONDS
+                    .getValueInt(getController());
+            if (idleMillis <= 0) {
+                return;
+            }
+            int n = 0;
+            for (Folder folder : getFolders()) {
+                if (!folder.isHibernated() && folder.hibernateIfIdle(idleMillis)) {
+                    n++;
+                }
+            }
+            if (n > 0 && isFine()) {
+                logFine("Hibernated " + n + " idle folder(s)");
+            }
+        }
+    }
+
     private class CheckSyncTask implements Runnable {
         public void run() {
             boolean syncMemberShips = false;
             for (Folder folder : getController().getFolderRepository()
                     .getFolders()) {
+                if (folder.isHibernated()) {
+                    continue;
+                }
                 // PFS-1800: Start
                 if (folder.getStatistic().getTotalFilesCount() == 0) {
                     folder.getStatistic().scheduleCalculate();
@@ -28,11 +28,17 @@ import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.util.PathUtils;
 import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.metrics.Counter;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+import de.dal33t.powerfolder.util.metrics.Timer;
 
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
@@ -54,6 +60,9 @@ import java.util.concurrent.Semaphore;
  * </code>
  */
 public class FolderScanner extends PFComponent {
+    private static final Timer SCAN_TIMER = Metrics.timer("folder.scan");
+    private static final Counter METADATA_READS = Metrics
+        .counter("folder.scan.metadata.reads");
     /** The folder that is being scanned */
     private Folder currentScanningFolder;
     private ScanResult currentScanResult;
@@ -179,6 +188,7 @@ public class FolderScanner extends PFComponent {
             return new ScanResult(ScanResult.ResultState.BUSY);
         }
 
+        long metricsStart = Metrics.start();
         try {
             currentScanningFolder = folder;
             if (isFiner()) {
@@ -314,6 +324,7 @@ public class FolderScanner extends PFComponent {
             currentScanningFolder = null;
             // Remove ownership for this thread
             threadOwnership.release();
+            SCAN_TIMER.stop(metricsStart);
         }
     }
 
@@ -392,47 +403,32 @@ public class FolderScanner extends PFComponent {
             return false;
         }
 
-        try (DirectoryStream<Path> stream = Files
-            .newDirectoryStream(folderBase)) {
-
-            if (stream == null) {
-                failure = true;
-                return false;
-            }
-
-            Iterator<Path> it = stream.iterator();
-
-            if (it == null) {
-                failure = true;
-                return false;
-            }
-
-            while (it.hasNext()) {
-                Path path = it.next();
-
+        DirectoryLister lister = new DirectoryLister(folderBase) {
+            @Override
+            boolean entry(Path path, BasicFileAttributes attrs) {
                 if (failure) {
                     return false;
                 }
                 if (abort) {
-                    break;
+                    return false;
                 }
-                if (Files.exists(path) && Files.isRegularFile(path)) {
+                if (attrs.isRegularFile()) {
                     if (PathUtils.isScannable(path, currentScanningFolder)) {
-                        if (!scanFile(path, "")) {
+                        if (!scanFile(path, attrs, "")) {
                             failure = true;
                             return false;
                         }
                     }
-                } else if (Files.isDirectory(path)) {
+                } else if (attrs.isDirectory()) {
                     if (!PathUtils.isScannable(path, currentScanningFolder)
                         || currentScanningFolder.isSystemSubDir(path))
                     {
-                        continue;
+                        return true;
                     }
                     while (directoryCrawlersPool.isEmpty()) {
-                        synchronized (this) {
+                        synchronized (FolderScanner.this) {
                             try {
-                                wait();
+                                FolderScanner.this.wait();
                             } catch (InterruptedException e) {
                             }
                         }
@@ -444,21 +440,34 @@ public class FolderScanner extends PFComponent {
                         crawler.scan(path);
                     }
                 } else {
-                    boolean deviceDisconnected = currentScanningFolder
-                        .checkIfDeviceDisconnected();
-                    logWarning("Unable to scan file: " + path.toAbsolutePath()
-                        + ". Folder device disconnected? " + deviceDisconnected);
-                    if (deviceDisconnected) {
-                        // Hardware not longer available? BREAK scan!
-                        failure = true;
-                        return false;
-                    }
-                    unableToScanFiles.add(path);
+                    return unreadable(path);
                 }
+                return true;
             }
+
+            @Override
+            boolean unreadable(Path path) {
+                boolean deviceDisconnected = currentScanningFolder
+                    .checkIfDeviceDisconnected();
+                logWarning("Unable to scan file: " + path.toAbsolutePath()
+                    + ". Folder device disconnected? " + deviceDisconnected);
+                if (deviceDisconnected) {
+                    // Hardware not longer available? BREAK scan!
+                    failure = true;
+                    return false;
+                }
+                unableToScanFiles.add(path);
+                return true;
+            }
+        };
+        try {
+            lister.list();
         } catch (IOException ioe) {
             return false;
         }
+        if (failure) {
+            return false;
+        }
 
         while (!isReady()) {
             try {
@@ -522,7 +531,9 @@ public class FolderScanner extends PFComponent {
      * @return true on success and false on IOError (disk failure or file
      *         removed in the meantime)
      */
-    private boolean scanFile(Path fileToScan, String currentDirName) {
+    private boolean scanFile(Path fileToScan, BasicFileAttributes attrs,
+        String currentDirName)
+    {
         Reject.ifNull(currentScanningFolder,
             "currentScanningFolder must not be null");
         currentScanResult.incrementTotalFilesCount();
@@ -532,7 +543,8 @@ public class FolderScanner extends PFComponent {
         } else {
             filename = currentDirName + '/' + fileToScan.getFileName().toString();
         }
-        return scanDiskItem(fileToScan, FileInfoFactory.decodeIllegalChars(filename), false);
+        return scanDiskItem(fileToScan, attrs,
+            FileInfoFactory.decodeIllegalChars(filename), false);
     }
 
     /**
@@ -547,14 +559,17 @@ public class FolderScanner extends PFComponent {
      * @return true on success and false on IOError (disk failure or file
      *         removed in the meantime)
      */
-    private boolean scanDirectory(Path dirToScan, String currentDirName) {
+    private boolean scanDirectory(Path dirToScan, BasicFileAttributes attrs,
+        String currentDirName)
+    {
         Reject.ifNull(currentScanningFolder,
             "currentScanningFolder must not be null");
         if (isFiner()) {
             logFiner("Scanning subdir " + dirToScan + " / " + currentDirName);
         }
         currentScanResult.incrementTotalFilesCount();
-        return scanDiskItem(dirToScan, FileInfoFactory.decodeIllegalChars(currentDirName), true);
+        return scanDiskItem(dirToScan, attrs,
+            FileInfoFactory.decodeIllegalChars(currentDirName), true);
     }
 
     /**
@@ -569,8 +584,8 @@ public class FolderScanner extends PFComponent {
      * @return true on success and false on IOError (disk failure or file
      *         removed in the meantime)
      */
-    private boolean scanDiskItem(Path fileToScan, String filename,
-        boolean directory)
+    private boolean scanDiskItem(Path fileToScan, BasicFileAttributes attrs,
+        String filename, boolean directory)
     {
         Reject.ifNull(currentScanningFolder,
             "currentScanningFolder must not be null");
@@ -607,19 +622,19 @@ public class FolderScanner extends PFComponent {
                 if (exists.isDeleted()) {
                     // file restored
                     FileInfo restoredFile = exists.syncFromDiskIfRequired(
-                        currentScanningFolder, fileToScan);
+                        currentScanningFolder, fileToScan, attrs);
                     if (restoredFile != null) {
                         if (isInfo()) {
                             logInfo("Restored detected: "
                                 + exists.toDetailString() + ". On disk: size: "
-                                + Files.size(fileToScan) + ", lastMod: "
-                                + Files.getLastModifiedTime(fileToScan));
+                                + attrs.size() + ", lastMod: "
+                                + attrs.lastModifiedTime());
                         }
                         currentScanResult.restoredFiles.add(restoredFile);
                     }
                 } else {
                     FileInfo changedFile = exists.syncFromDiskIfRequired(
-                        currentScanningFolder, fileToScan);
+                        currentScanningFolder, fileToScan, attrs);
                     if (changedFile != null) {
                         if (isInfo()
                             && currentScanningFolder.getDiskItemFilter()
@@ -627,8 +642,8 @@ public class FolderScanner extends PFComponent {
                         {
                             logInfo("Change detected: "
                                 + exists.toDetailString() + ". On disk: size: "
-                                + Files.size(fileToScan) + ", lastMod: "
-                                + Files.getLastModifiedTime(fileToScan));
+                                + attrs.size() + ", lastMod: "
+                                + attrs.lastModifiedTime());
                         }
                         currentScanResult.changedFiles.add(changedFile);
                     }
@@ -637,7 +652,7 @@ public class FolderScanner extends PFComponent {
                 // file is new
                 // PFC-2352: TODO Generate ID / Hashes
                 FileInfo info = FileInfoFactory.newFile(currentScanningFolder,
-                    fileToScan, null, getController().getMySelf().getInfo(),
+                    fileToScan, attrs, null, getController().getMySelf().getInfo(),
                     getController().getMySelf().getAccountInfo(), null,
                     directory, null);
                 currentScanResult.newFiles.add(info);
@@ -671,6 +686,106 @@ public class FolderScanner extends PFComponent {
         return fileName;
     }
 
+    /**
+     * Lists the entries of a directory together with their attributes. The
+     * attributes of each entry are read only once. Where the directory listing
+     * already provides them (e.g. on Windows) no further metadata read is
+     * required.
+     */
+    private abstract class DirectoryLister extends SimpleFileVisitor<Path> {
+        private final Path dir;
+        private IOException exception;
+
+        private DirectoryLister(Path dir) {
+            this.dir = dir;
+        }
+
+        /**
+         * Lists the directory.
+         *
+         * @throws IOException
+         *             if the directory could not be read
+         */
+        void list() throws IOException {
+            Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+                1, this);
+            if (exception != null) {
+                throw exception;
+            }
+        }
+
+        /**
+         * Called with the attributes of the listed directory itself.
+         *
+         * @param directory
+         * @param attrs
+         */
+        void directory(Path directory, BasicFileAttributes attrs) {
+        }
+
+        /**
+         * @param path
+         * @param attrs
+         * @return false to stop listing
+         */
+        abstract boolean entry(Path path, BasicFileAttributes attrs);
+
+        /**
+         * @param path
+         *            the entry, which attributes could not be read
+         * @return false to stop listing
+         */
+        abstract boolean unreadable(Path path);
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path directory,
+            BasicFileAttributes attrs)
+        {
+            metadataRead();
+            directory(directory, attrs);
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+        {
+            metadataRead();
+            return entry(file, attrs)
+                ? FileVisitResult.CONTINUE
+                : FileVisitResult.TERMINATE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException exc) {
+            if (file.equals(dir)) {
+                exception = exc;
+                return FileVisitResult.TERMINATE;
+            }
+            metadataRead();
+            return unreadable(file)
+                ? FileVisitResult.CONTINUE
+                : FileVisitResult.TERMINATE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path directory,
+            IOException exc)
+        {
+            if (exc != null) {
+                exception = exc;
+            }
+            return FileVisitResult.CONTINUE;
+        }
+    }
+
+    private void metadataRead() {
+        METADATA_READS.increment();
+        ScanResult result = currentScanResult;
+        if (result != null) {
+            result.incrementMetadataReads();
+        }
+    }
+
     /** A Thread that scans a directory */
     private class DirectoryCrawler implements Runnable {
         private Path root;
@@ -756,59 +871,66 @@ public class FolderScanner extends PFComponent {
                     + dirToScan);
                 return false;
             }
-            String currentDirName = getCurrentDirName(currentScanningFolder,
-                dirToScan);
+            final String currentDirName = getCurrentDirName(
+                currentScanningFolder, dirToScan);
             try {
                 // Give CPU room to breath. Don't consume 100% CPU.
                 Thread.sleep(1);
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
-            scanDirectory(dirToScan, currentDirName);
 
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirToScan)) {
-                Iterator<Path> it = stream.iterator();
-
-                if (it == null) {
-                    throw new IOException("Unable to access directory");
+            DirectoryLister lister = new DirectoryLister(dirToScan) {
+                @Override
+                void directory(Path dir, BasicFileAttributes attrs) {
+                    scanDirectory(dir, attrs, currentDirName);
                 }
 
-                while (it.hasNext()) {
-                    Path path = it.next();
+                @Override
+                boolean entry(Path path, BasicFileAttributes attrs) {
                     if (failure) {
                         return false;
                     }
                     if (abort) {
-                        break;
+                        return false;
                     }
-                    if (Files.isRegularFile(path)) {
+                    if (attrs.isRegularFile()) {
                         if (PathUtils.isScannable(path, currentScanningFolder)
-                            && !scanFile(path, currentDirName)) {
+                            && !scanFile(path, attrs, currentDirName)) {
                             failure = true;
                             return false;
                         }
-                    } else if (Files.isDirectory(path)) {
+                    } else if (attrs.isDirectory()) {
                         if (PathUtils.isScannable(path, currentScanningFolder)
                             && !scanDir(path)) {
                             failure = true;
                             return false;
                         }
                     } else {
-                        boolean deviceDisconnected = currentScanningFolder
-                            .checkIfDeviceDisconnected();
-                        logWarning("Unable to scan file: "
-                            + path.toAbsolutePath()
-                            + ". Folder device disconnected? " + deviceDisconnected);
-                        if (deviceDisconnected) {
-                            // hardware failure
-                            failure = true;
-                            return false;
-                        }
-                        unableToScanFiles.add(path);
+                        return unreadable(path);
                     }
+                    return true;
                 }
 
-                return true;
+                @Override
+                boolean unreadable(Path path) {
+                    boolean deviceDisconnected = currentScanningFolder
+                        .checkIfDeviceDisconnected();
+                    logWarning("Unable to scan file: "
+                        + path.toAbsolutePath()
+                        + ". Folder device disconnected? " + deviceDisconnected);
+                    if (deviceDisconnected) {
+                        // hardware failure
+                        failure = true;
+                        return false;
+                    }
+                    unableToScanFiles.add(path);
+                    return true;
+                }
+            };
+            try {
+                lister.list();
+                return !failure;
             }
             catch (IOException ioe) {
                 boolean deviceDisconnected = currentScanningFolder
@@ -120,6 +120,10 @@ public class FolderStatistic extends PFComponent {
 
     // package protected called from Folder
     public long scheduleCalculate() {
+        if (folder.isHibernated()) {
+            // Keep loaded summary
+            return -1L;
+        }
         if (calculating != null) {
             return -1L;
         }
@@ -181,7 +185,7 @@ public class FolderStatistic extends PFComponent {
         if (isFiner()) {
             logFiner("-------------Recalculation statistics on " + folder);
         }
-        if (!folder.isStarted()) {
+        if (!folder.isStarted() || folder.isHibernated()) {
             return;
         }
         long startTime = System.currentTimeMillis();
@@ -205,6 +209,8 @@ public class FolderStatistic extends PFComponent {
         calculating.setEstimatedSyncDate(estimator.updateEstimate(calculating
             .getAverageSyncPercentage()));
 
+        calculating.setKnownItemsCount(folder.getKnownItemCount());
+
         // Archive size
         long archiveStart = System.currentTimeMillis();
         calculating.setArchiveSize(folder.getFileArchiver().getSize());
@@ -220,26 +226,7 @@ public class FolderStatistic extends PFComponent {
         current = calculating;
         calculating = null;
 
-        if (!folder.isDeviceDisconnected()) {
-            Path tempFile = folder.getSystemSubDir().resolve(
-                Folder.FOLDER_STATISTIC + ".writing");
-            Path file = folder.getSystemSubDir().resolve(
-                Folder.FOLDER_STATISTIC);
-            FolderStatisticInfo existing = FolderStatisticInfo.load(file);
-            if (!current.equals(existing) && current.save(tempFile)) {
-                try {
-                    Files.deleteIfExists(file);
-                    Files.move(tempFile, file);
-                } catch (IOException e) {
-                    try {
-                        Files.copy(tempFile, file);
-                        Files.delete(tempFile);
-                    } catch (IOException e2) {
-                    }
-                }
-                // Ignore exceptions. Folder Statistics are not crucial for operations.
-            }
-        }
+        store(current);
 
         // Recalculate the last modified date of the folder.
         Date date = null;
@@ -493,6 +480,51 @@ public class FolderStatistic extends PFComponent {
         return size != null ? size : 0;
     }
 
+    /**
+     * Updates the number of known items without a full calculation. Used
+     * before the folder database gets unloaded.
+     *
+     * @param knownItemsCount
+     */
+    void setKnownItemsCount(int knownItemsCount) {
+        FolderStatisticInfo info = current;
+        if (info.getKnownItemsCount() != knownItemsCount) {
+            info.setKnownItemsCount(knownItemsCount);
+            store(info);
+        }
+    }
+
+    private void store(FolderStatisticInfo info) {
+        if (folder.isDeviceDisconnected()) {
+            return;
+        }
+        Path tempFile = folder.getSystemSubDir().resolve(
+            Folder.FOLDER_STATISTIC + ".writing");
+        Path file = folder.getSystemSubDir().resolve(Folder.FOLDER_STATISTIC);
+        FolderStatisticInfo existing = FolderStatisticInfo.load(file);
+        if (!info.equals(existing) && info.save(tempFile)) {
+            try {
+                Files.deleteIfExists(file);
+                Files.move(tempFile, file);
+            } catch (IOException e) {
+                try {
+                    Files.copy(tempFile, file);
+                    Files.delete(tempFile);
+                } catch (IOException e2) {
+                }
+            }
+            // Ignore exceptions. Folder Statistics are not crucial for operations.
+        }
+    }
+
+    /**
+     * @return number of items in the local database at the last calculation.
+     *         Also deleted and excluded ones.
+     */
+    public int getKnownItemsCount() {
+        return current.getKnownItemsCount();
+    }
+
     /**
      * @return number of local files
      */
@@ -25,6 +25,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.dal33t.powerfolder.disk.problem.Problem;
 import de.dal33t.powerfolder.light.FileInfo;
@@ -61,6 +62,9 @@ public class ScanResult {
 
     private volatile int totalFilesCount;
 
+    /** Number of file system metadata reads during the scan */
+    private final AtomicLong metadataReads = new AtomicLong();
+
     public ScanResult(ResultState result) {
         this(false);
         Reject.ifNull(result, "Result state is null");
@@ -169,8 +173,20 @@ public class ScanResult {
             totalFilesCount++;
     }
 
+    public void incrementMetadataReads() {
+        metadataReads.incrementAndGet();
+    }
+
+    /**
+     * @return the number of file system metadata reads during the scan.
+     */
+    public long getMetadataReads() {
+        return metadataReads.get();
+    }
+
     public String toString() {
         return resultState + ", Total files: " + totalFilesCount
+            + ", metadata reads: " + metadataReads
             + ", Newfiles: " + newFiles.size() + ", changed files: "
             + changedFiles.size() + ", deleted files: " + deletedFiles.size()
             + " restoredFiles: " + restoredFiles.size() + ", movedFiles: "
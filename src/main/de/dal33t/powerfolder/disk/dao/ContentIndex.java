@@ -0,0 +1,112 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.StringUtils;
+
+/**
+ * Index of {@link FileInfo}s by their OID and hashes. Finds the files with the
+ * same contents, e.g. moved or copied files, without walking all files.
+ * <p>
+ * Only existing files are indexed. Directories and deleted files are not.
+ */
+final class ContentIndex {
+    private final Map<String, Set<FileInfo>> byOID = new HashMap<>();
+    private final Map<String, Set<FileInfo>> byHashes = new HashMap<>();
+
+    /**
+     * Replaces the previous version of a file.
+     *
+     * @param old
+     *            the previous version or null if none
+     * @param fInfo
+     *            the new version or null if removed
+     */
+    synchronized void replace(FileInfo old, FileInfo fInfo) {
+        if (old != null) {
+            remove(byOID, old.getOID(), old);
+            remove(byHashes, old.getHashes(), old);
+        }
+        if (fInfo != null && fInfo.isFile() && !fInfo.isDeleted()) {
+            add(byOID, fInfo.getOID(), fInfo);
+            add(byHashes, fInfo.getHashes(), fInfo);
+        }
+    }
+
+    /**
+     * @param oid
+     * @return all files with the OID.
+     */
+    synchronized Collection<FileInfo> findByOID(String oid) {
+        return copy(byOID.get(oid));
+    }
+
+    /**
+     * @param hashes
+     * @return all files with exactly these hashes.
+     */
+    synchronized Collection<FileInfo> findByHashes(String hashes) {
+        return copy(byHashes.get(hashes));
+    }
+
+    private static void add(Map<String, Set<FileInfo>> map, String key,
+        FileInfo fInfo)
+    {
+        if (StringUtils.isBlank(key)) {
+            return;
+        }
+        Set<FileInfo> files = map.get(key);
+        if (files == null) {
+            files = new HashSet<>(2);
+            map.put(key, files);
+        }
+        // Equal by name. Replace the instance.
+        files.remove(fInfo);
+        files.add(fInfo);
+    }
+
+    private static void remove(Map<String, Set<FileInfo>> map, String key,
+        FileInfo fInfo)
+    {
+        if (StringUtils.isBlank(key)) {
+            return;
+        }
+        Set<FileInfo> files = map.get(key);
+        if (files != null && files.remove(fInfo) && files.isEmpty()) {
+            map.remove(key);
+        }
+    }
+
+    private static Collection<FileInfo> copy(Set<FileInfo> files) {
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(files);
+    }
+}
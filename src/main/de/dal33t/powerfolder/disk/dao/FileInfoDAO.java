@@ -103,6 +103,25 @@ public interface FileInfoDAO {
      */
     FileInfo findNewestByHash(String hash, String... domains);
 
+    /**
+     * Finds all existing files with the OID. Indexed for my own domain.
+     *
+     * @param oid
+     * @param domain
+     * @return the files with the OID. Not deleted ones.
+     */
+    Collection<FileInfo> findByOID(String oid, String domain);
+
+    /**
+     * Finds all existing files with exactly these hashes. Indexed for my own
+     * domain.
+     *
+     * @param hashes
+     * @param domain
+     * @return the files with the hashes. Not deleted ones.
+     */
+    Collection<FileInfo> findByHashes(String hashes, String domain);
+
     /**
      * Deletes the FileInfo from the DAO.
      * 
@@ -1,9 +1,11 @@
 package de.dal33t.powerfolder.disk.dao;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -30,10 +32,26 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
 
     private String selfDomain;
     private DiskItemFilter filter;
+    private final boolean searchIndex;
 
     public FileInfoDAOHashMapImpl(String selfDomain, DiskItemFilter filter) {
+        this(selfDomain, filter, false);
+    }
+
+    /**
+     * @param selfDomain
+     * @param filter
+     * @param searchIndex
+     *            true to maintain a trigram index of the relative names for
+     *            keyword searches by {@link #findFiles(FileInfoCriteria)}.
+     *            Costs memory in the order of the total length of all names.
+     */
+    public FileInfoDAOHashMapImpl(String selfDomain, DiskItemFilter filter,
+        boolean searchIndex)
+    {
         super();
         this.selfDomain = selfDomain;
+        this.searchIndex = searchIndex;
         this.filter = filter;
         if (filter == null) {
             this.filter = new DiskItemFilter();
@@ -120,11 +138,21 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
     }
 
     public void delete(String domain, FileInfo info) {
+        Domain d = getDomain(domain);
         if (info.isFile()) {
-            getDomain(domain).files.remove(info);
+            if (d.content != null) {
+                synchronized (d.content) {
+                    d.content.replace(d.files.remove(info), null);
+                }
+            } else {
+                d.files.remove(info);
+            }
         } else {
             logWarning("Deleting directory: " + info.toDetailString());
-            getDomain(domain).directories.remove(info);
+            d.directories.remove(info);
+        }
+        if (d.index != null) {
+            d.index.remove(info);
         }
     }
 
@@ -132,7 +160,8 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
         domains.remove(theDomain);
         if (newInitialSize > 0) {
-            domains.put(theDomain, new Domain(newInitialSize));
+            domains.put(theDomain, new Domain(newInitialSize, searchIndex,
+                theDomain.equals(selfDomain)));
             if (isFiner()) {
                 logFiner("Created new domain (" + theDomain
                     + ") with initial capacity " + newInitialSize);
@@ -210,6 +239,42 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         return newestVersion;
     }
 
+    @Override
+    public Collection<FileInfo> findByOID(String oid, String domain) {
+        Reject.ifBlank(oid, "OID");
+        Domain d = getDomain(domain);
+        if (d.content != null) {
+            return d.content.findByOID(oid);
+        }
+        List<FileInfo> found = new ArrayList<>(1);
+        for (FileInfo candidateFile : d.files.values()) {
+            if (oid.equals(candidateFile.getOID())
+                && !candidateFile.isDeleted())
+            {
+                found.add(candidateFile);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public Collection<FileInfo> findByHashes(String hashes, String domain) {
+        Reject.ifBlank(hashes, "Hashes");
+        Domain d = getDomain(domain);
+        if (d.content != null) {
+            return d.content.findByHashes(hashes);
+        }
+        List<FileInfo> found = new ArrayList<>(1);
+        for (FileInfo candidateFile : d.files.values()) {
+            if (hashes.equals(candidateFile.getHashes())
+                && !candidateFile.isDeleted())
+            {
+                found.add(candidateFile);
+            }
+        }
+        return found;
+    }
+
     public Collection<FileInfo> findAllFiles(String domain) {
         return Collections.unmodifiableCollection(getDomain(domain).files
             .values());
@@ -264,10 +329,21 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
 
     public void store(String domain, Collection<FileInfo> infos) {
         Domain d = getDomain(domain);
+        if (d.content == null) {
+            store(d, infos);
+            return;
+        }
+        // Index consistent with the files
+        synchronized (d.content) {
+            store(d, infos);
+        }
+    }
 
+    private void store(Domain d, Collection<FileInfo> infos) {
         for (FileInfo fileInfo : infos) {
+            FileInfo old;
             if (fileInfo.isFile()) {
-                d.files.put(fileInfo, fileInfo);
+                old = d.files.put(fileInfo, fileInfo);
                 // Make sure not dir is left with name name.
                 d.directories.remove(fileInfo);
             } else {
@@ -277,7 +353,13 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
                 d.directories.put((DirectoryInfo) fileInfo,
                     (DirectoryInfo) fileInfo);
                 // Make sure not file is left with name name.
-                d.files.remove(fileInfo);
+                old = d.files.remove(fileInfo);
+            }
+            if (d.index != null) {
+                d.index.add(fileInfo);
+            }
+            if (d.content != null) {
+                d.content.replace(old, fileInfo);
             }
         }
     }
@@ -322,6 +404,17 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
             if (domain == null) {
                 continue;
             }
+            Collection<FileInfo> candidates = null;
+            if (domain.index != null && !criteria.getKeyWords().isEmpty()) {
+                candidates = domain.index.findCandidates(criteria
+                    .getKeyWords());
+            }
+            if (candidates != null) {
+                if (!addMatches(candidates, criteria, path, items)) {
+                    return items;
+                }
+                continue;
+            }
             if (criteria.getType() == Type.DIRECTORIES_ONLY
                 || criteria.getType() == Type.FILES_AND_DIRECTORIES)
             {
@@ -376,6 +469,42 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         return items;
     }
 
+    /**
+     * Adds the candidates from the search index matching the criteria.
+     *
+     * @return false if the maximum number of results has been reached.
+     */
+    private boolean addMatches(Collection<FileInfo> candidates,
+        FileInfoCriteria criteria, String path, Collection<FileInfo> items)
+    {
+        boolean files = criteria.getType() != Type.DIRECTORIES_ONLY;
+        boolean dirs = criteria.getType() != Type.FILES_ONLY;
+        for (FileInfo fInfo : candidates) {
+            if (criteria.getMaxResults() > 0
+                && items.size() >= criteria.getMaxResults())
+            {
+                return false;
+            }
+            if (fInfo.isFile() ? !files : !dirs) {
+                continue;
+            }
+            if (!isInSubDir(fInfo, path, criteria.isRecursive())) {
+                continue;
+            }
+            if (!fInfo.isFile()
+                && Util.equalsRelativeName(fInfo.getRelativeName(), path))
+            {
+                continue;
+            }
+            if (!items.contains(fInfo)
+                && matches(fInfo, criteria.getKeyWords()))
+            {
+                items.add(fInfo);
+            }
+        }
+        return true;
+    }
+
     public FileHistory getFileHistory(FileInfo fileInfo) {
         // TODO Auto-generated method stub
         return null;
@@ -393,15 +522,12 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
             if (isFiner()) {
                 logFiner("Domain '" + theDomain + "' created");
             }
-            d = new Domain(500);
+            d = new Domain(500, searchIndex, theDomain.equals(selfDomain));
             domains.put(theDomain, d);
             return d;
         }
     }
 
-    /*
-     * TODO: Performance optimization
-     */
     private boolean matches(FileInfo fInfo, Set<String> keyWords) {
         if (keyWords.isEmpty()) {
             return true;
@@ -433,10 +559,21 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         private final ConcurrentMap<FileInfo, FileInfo> files;
         private final ConcurrentMap<DirectoryInfo, DirectoryInfo> directories = Util
             .createConcurrentHashMap(4);
-
-        public Domain(int suggestedSize) {
+        /** Optional keyword search index. null if disabled. */
+        private final TrigramIndex index;
+        /**
+         * Index of the files by OID and hashes. Only of my own files, null
+         * for other domains. Guards changes of the files.
+         */
+        private final ContentIndex content;
+
+        public Domain(int suggestedSize, boolean searchIndex,
+            boolean contentIndex)
+        {
             super();
             files = Util.createConcurrentHashMap(suggestedSize);
+            index = searchIndex ? new TrigramIndex() : null;
+            content = contentIndex ? new ContentIndex() : null;
         }
 
         public String toString() {
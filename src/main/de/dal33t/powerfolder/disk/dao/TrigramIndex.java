@@ -0,0 +1,219 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import de.dal33t.powerfolder.light.FileInfo;
+
+/**
+ * Index of the lower case relative names of {@link FileInfo}s by their
+ * trigrams (three character sequences). Narrows the files that may contain a
+ * keyword to those containing all of its trigrams.
+ * <p>
+ * Results are candidates only and have to be verified by the caller. Removed
+ * files leave stale entries behind, which are dropped when they make up half
+ * of the index.
+ */
+final class TrigramIndex {
+    private static final int MIN_STALE_ENTRIES_COMPACT = 1024;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<FileInfo, Integer> slots = new HashMap<>();
+    private final Map<Long, Postings> postings = new HashMap<>();
+    private FileInfo[] files = new FileInfo[16];
+    /** Number of trigrams per slot */
+    private int[] trigramCounts = new int[16];
+    private int nextSlot;
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+
+    private long entries;
+    private long staleEntries;
+
+    void add(FileInfo fInfo) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.get(fInfo);
+            if (slot != null) {
+                // Same name, newer version.
+                files[slot] = fInfo;
+                return;
+            }
+            int s = allocateSlot();
+            slots.put(fInfo, s);
+            files[s] = fInfo;
+            index(s, fInfo);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(FileInfo fInfo) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.remove(fInfo);
+            if (slot == null) {
+                return;
+            }
+            files[slot] = null;
+            staleEntries += trigramCounts[slot];
+            if (freeCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            }
+            freeSlots[freeCount++] = slot;
+            if (staleEntries > MIN_STALE_ENTRIES_COMPACT
+                && staleEntries * 2 > entries)
+            {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param keyWords
+     *            the lower case keywords.
+     * @return the files that may contain all keywords, or null if the index
+     *         can't narrow the search, e.g. all keywords are shorter than
+     *         three characters.
+     */
+    Collection<FileInfo> findCandidates(Collection<String> keyWords) {
+        lock.readLock().lock();
+        try {
+            Postings best = null;
+            for (String keyWord : keyWords) {
+                for (int i = 0; i + 3 <= keyWord.length(); i++) {
+                    Postings p = postings.get(trigram(keyWord, i));
+                    if (p == null) {
+                        // No file contains it.
+                        return Collections.emptyList();
+                    }
+                    if (best == null || p.size < best.size) {
+                        best = p;
+                    }
+                }
+            }
+            if (best == null) {
+                return null;
+            }
+            List<FileInfo> candidates = new ArrayList<>(best.size);
+            for (int i = 0; i < best.size; i++) {
+                FileInfo fInfo = files[best.slots[i]];
+                if (fInfo != null) {
+                    candidates.add(fInfo);
+                }
+            }
+            return candidates;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return slots.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Internal helper ********************************************************
+
+    private int allocateSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (nextSlot == files.length) {
+            int newLength = files.length * 2;
+            files = Arrays.copyOf(files, newLength);
+            trigramCounts = Arrays.copyOf(trigramCounts, newLength);
+        }
+        return nextSlot++;
+    }
+
+    private void index(int slot, FileInfo fInfo) {
+        String name = fInfo.getRelativeName().toLowerCase();
+        int n = name.length() - 2;
+        if (n <= 0) {
+            trigramCounts[slot] = 0;
+            return;
+        }
+        long[] trigrams = new long[n];
+        for (int i = 0; i < n; i++) {
+            trigrams[i] = trigram(name, i);
+        }
+        Arrays.sort(trigrams);
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (i > 0 && trigrams[i] == trigrams[i - 1]) {
+                continue;
+            }
+            Postings p = postings.get(trigrams[i]);
+            if (p == null) {
+                p = new Postings();
+                postings.put(trigrams[i], p);
+            }
+            p.add(slot);
+            count++;
+        }
+        trigramCounts[slot] = count;
+        entries += count;
+    }
+
+    private void compact() {
+        postings.clear();
+        entries = 0;
+        staleEntries = 0;
+        for (int slot = 0; slot < nextSlot; slot++) {
+            if (files[slot] != null) {
+                index(slot, files[slot]);
+            }
+        }
+    }
+
+    private static long trigram(String str, int offset) {
+        return ((long) str.charAt(offset) << 32)
+            | ((long) str.charAt(offset + 1) << 16) | str.charAt(offset + 2);
+    }
+
+    private static final class Postings {
+        private int[] slots = new int[4];
+        private int size;
+
+        void add(int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size + (size >> 1) + 1);
+            }
+            slots[size++] = slot;
+        }
+    }
+}
@@ -23,6 +23,7 @@ import com.google.protobuf.AbstractMessage;
 import de.dal33t.powerfolder.util.Reject;
 
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Date;
 
 /**
@@ -138,8 +139,15 @@ public class DirectoryInfo extends FileInfo {
      * @return true if the fileinfo is in sync with the file on disk.
      */
     public boolean inSyncWithDisk(Path diskFile) {
+        return inSyncWithDisk(diskFile, null);
+    }
+
+    @Override
+    public boolean inSyncWithDisk(Path diskFile,
+        BasicFileAttributes diskAttributes)
+    {
         Reject.ifNull(diskFile, "Diskfile is null");
-        return inSyncWithDisk0(diskFile, true);
+        return inSyncWithDisk0(diskFile, diskAttributes, true);
     }
 
     // hashCode() is used from FileInfo
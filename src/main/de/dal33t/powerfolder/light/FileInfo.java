@@ -37,9 +37,8 @@ import java.lang.ref.WeakReference;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Date;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -74,11 +73,33 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
     private static final long serialVersionUID = 100L;
 
     /**
-     * Unix-style separated path of the file relative to the folder base dir. So
-     * like 'myFile.txt' or 'directory/myFile.txt' or
-     * 'directory/subdirectory/myFile.txt'.
+     * The serialized fields. Kept compatible to the time when the relative
+     * name was held in the field fileName.
      */
-    private String fileName;
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("fileName", String.class),
+        new ObjectStreamField("oid", String.class),
+        new ObjectStreamField("hashes", String.class),
+        new ObjectStreamField("tags", String.class),
+        new ObjectStreamField("size", Long.class),
+        new ObjectStreamField("modifiedBy", MemberInfo.class),
+        new ObjectStreamField("modifiedByAccount", AccountInfo.class),
+        new ObjectStreamField("lastModifiedDate", Date.class),
+        new ObjectStreamField("version", Integer.TYPE),
+        new ObjectStreamField("deleted", Boolean.TYPE),
+        new ObjectStreamField("folderInfo", FolderInfo.class)};
+
+    /**
+     * The shared node of the directory the file is located in. Together with
+     * {@link #leafName} this is the unix-style separated path of the file
+     * relative to the folder base dir. So like 'myFile.txt' or
+     * 'directory/myFile.txt' or 'directory/subdirectory/myFile.txt'.
+     */
+    private transient PathNode directory;
+    /**
+     * The name of the file without the directory.
+     */
+    private transient String leafName;
 
     // PFC-2352
     private String oid;
@@ -131,7 +152,8 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
     protected FileInfo() {
         // ONLY for backward compatibility to MP3FileInfo
 
-        fileName = null;
+        directory = null;
+        leafName = null;
         oid = null;
         hashes = null;
         tags = null;
@@ -157,7 +179,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
                 "relativeName must not contain /../: " + relativeName);
         }
 
-        this.fileName = relativeName;
+        setRelativeName(relativeName);
         this.oid = oid;
         this.hashes = hashes;
         this.tags = tags;
@@ -182,7 +204,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
                 "relativeName must not contain /../: " + relativeName);
         }
 
-        fileName = relativeName;
+        setRelativeName(relativeName);
         folderInfo = folder;
 
         oid = null;
@@ -223,6 +245,27 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
      *         sync
      */
     public FileInfo syncFromDiskIfRequired(Folder folder, Path diskFile) {
+        return syncFromDiskIfRequired(folder, diskFile, null);
+    }
+
+    /**
+     * Syncs fileinfo with diskfile. If diskfile has other lastmodified date
+     * that this. Assume that file has changed on disk and update its modified
+     * info.
+     *
+     * @param folder
+     *            the folder to sync with
+     * @param diskFile
+     *            the diskfile of this file, not gets it from controller !
+     * @param diskAttributes
+     *            the attributes of the diskfile if already read, e.g. while
+     *            scanning. null to read them from disk.
+     * @return the new FileInfo if the file was synced or null if the file is in
+     *         sync
+     */
+    public FileInfo syncFromDiskIfRequired(Folder folder, Path diskFile,
+        BasicFileAttributes diskAttributes)
+    {
         Reject.ifNull(folder, "Folder is null");
         Reject.ifFalse(folder.getInfo().equals(folderInfo), "Folder mismatch");
         if (diskFile == null) {
@@ -230,7 +273,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         }
         String diskFileName = FileInfoFactory.decodeIllegalChars(diskFile
             .getFileName().toString());
-        boolean nameMatch = fileName.endsWith(diskFileName);
+        boolean nameMatch = leafName.endsWith(diskFileName);
 
         if (!nameMatch && IGNORE_CASE) {
             // Try harder if ignore case
@@ -250,15 +293,15 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         // log.warning("File does not exsists on disk: " + toDetailString());
         // }
 
-        if (!inSyncWithDisk(diskFile)) {
+        if (!inSyncWithDisk(diskFile, diskAttributes)) {
             MemberInfo mySelf = folder.getController().getMySelf().getInfo();
             AccountInfo myAccount = folder.getController().getMySelf()
                 .getAccountInfo();
-            if (Files.exists(diskFile)) {
+            if (diskAttributes != null || Files.exists(diskFile)) {
                 // PFC-2352: TODO: Calc new hashes
                 String newHashes = null;
                 return FileInfoFactory.modifiedFile(this, folder, diskFile,
-                    mySelf, myAccount, newHashes);
+                    diskAttributes, mySelf, myAccount, newHashes);
             } else {
                 return FileInfoFactory.deletedFile(this, mySelf, myAccount,
                     new Date());
@@ -274,40 +317,55 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
      * @return true if the fileinfo is in sync with the file on disk.
      */
     public boolean inSyncWithDisk(Path diskFile) {
-        return inSyncWithDisk0(diskFile, false);
+        return inSyncWithDisk(diskFile, null);
     }
 
     /**
      * @param diskFile
      *            the file on disk.
+     * @param diskAttributes
+     *            the attributes of the file on disk if already read. null to
+     *            read them from disk.
+     * @return true if the fileinfo is in sync with the file on disk.
+     */
+    public boolean inSyncWithDisk(Path diskFile,
+        BasicFileAttributes diskAttributes)
+    {
+        return inSyncWithDisk0(diskFile, diskAttributes, false);
+    }
+
+    /**
+     * @param diskFile
+     *            the file on disk.
+     * @param attrs
+     *            the attributes of the file on disk if already read. null to
+     *            read them from disk.
      * @param ignoreSizeAndModDate
      *            ignore the reported size of the diskfile/dir.
      * @return true if the fileinfo is in sync with the file on disk.
      */
-    protected boolean inSyncWithDisk0(Path diskFile,
+    protected boolean inSyncWithDisk0(Path diskFile, BasicFileAttributes attrs,
         boolean ignoreSizeAndModDate)
     {
         Reject.ifNull(diskFile, "Diskfile is null");
 
         // PFC-2849:
-        boolean diskFileDeleted;
-        Map<String, Object> attrs;
-        try {
-            attrs = Files.readAttributes(diskFile,
-                "size,lastModifiedTime,isDirectory");
-            diskFileDeleted = false;
-        } catch (FileNotFoundException | NoSuchFileException e) {
-            diskFileDeleted = true;
-            attrs = null;
-        } catch (IOException e) {
-            diskFileDeleted = Files.notExists(diskFile);
-            if (!diskFileDeleted) {
-                log.warning("Could not access file attributes of file "
-                    + diskFile.toAbsolutePath().toString() + "\n"
-                    + toDetailString() + "\n" + e.toString());
-                return false;
+        boolean diskFileDeleted = false;
+        if (attrs == null) {
+            try {
+                attrs = Files.readAttributes(diskFile,
+                    BasicFileAttributes.class);
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                diskFileDeleted = true;
+            } catch (IOException e) {
+                diskFileDeleted = Files.notExists(diskFile);
+                if (!diskFileDeleted) {
+                    log.warning("Could not access file attributes of file "
+                        + diskFile.toAbsolutePath().toString() + "\n"
+                        + toDetailString() + "\n" + e.toString());
+                    return false;
+                }
             }
-            attrs = null;
         }
 
         boolean existanceSync = diskFileDeleted && deleted || !diskFileDeleted
@@ -322,18 +380,9 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         long diskSize;
 
         if (!diskFileDeleted) {
-            try {
-                diskSize = ((Long) attrs.get("size")).longValue();
-                diskLastMod = ((FileTime) attrs.get("lastModifiedTime"))
-                    .toMillis();
-                diskIsDirectory = ((Boolean) attrs.get("isDirectory"))
-                    .booleanValue();
-            } catch (Exception e) {
-                log.warning("Could not access file attributes of file "
-                    + diskFile.toAbsolutePath().toString() + "\n"
-                    + toDetailString() + "\n" + e.toString());
-                return false;
-            }
+            diskSize = attrs.size();
+            diskLastMod = attrs.lastModifiedTime().toMillis();
+            diskIsDirectory = attrs.isDirectory();
 
             if (ignoreSizeAndModDate) {
                 boolean dirFileSync = diskFileDeleted
@@ -361,7 +410,33 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
      */
     @Override
     public String getRelativeName() {
-        return fileName;
+        if (leafName == null) {
+            return null;
+        }
+        if (directory == PathNode.ROOT) {
+            return leafName;
+        }
+        FileInfoStrings strings = getStringsCache();
+        if (strings.getRelativeName() == null) {
+            strings.setRelativeName(directory.toPath(leafName));
+        }
+        return strings.getRelativeName();
+    }
+
+    private void setRelativeName(String relativeName) {
+        if (relativeName == null) {
+            directory = null;
+            leafName = null;
+            return;
+        }
+        int i = relativeName.lastIndexOf('/');
+        if (i < 0) {
+            directory = PathNode.ROOT;
+            leafName = relativeName;
+        } else {
+            directory = PathNode.lookup(relativeName, i);
+            leafName = relativeName.substring(i + 1);
+        }
     }
 
     /**
@@ -375,7 +450,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         // }
         FileInfoStrings strings = getStringsCache();
         if (strings.getLowerCaseName() == null) {
-            strings.setLowerCaseName(fileName.toLowerCase());
+            strings.setLowerCaseName(getRelativeName().toLowerCase());
         }
         return strings.getLowerCaseName();
     }
@@ -423,12 +498,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
     }
 
     private String getFilenameOnly0() {
-        int index = fileName.lastIndexOf('/');
-        if (index > -1) {
-            return fileName.substring(index + 1);
-        } else {
-            return fileName;
-        }
+        return leafName;
     }
 
     public String getOID() {
@@ -543,7 +613,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
     }
 
     public boolean isBaseDirectory() {
-        return StringUtils.isBlank(fileName);
+        return directory == PathNode.ROOT && StringUtils.isBlank(leafName);
     }
 
     /**
@@ -551,12 +621,10 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
      *         located in.
      */
     public DirectoryInfo getDirectory() {
-        int i = fileName.lastIndexOf('/');
-        if (i < 0) {
+        if (directory == PathNode.ROOT) {
             return FileInfoFactory.createBaseDirectoryInfo(folderInfo);
         }
-        String dirName = fileName.substring(0, i);
-        return FileInfoFactory.lookupDirectory(folderInfo, dirName);
+        return FileInfoFactory.lookupDirectory(folderInfo, directory.toPath());
     }
 
     // PFC-1962: Deligating methods.
@@ -820,8 +888,10 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
     }
 
     private int hashCode0() {
-        int hash = IGNORE_CASE ? fileName.toLowerCase().hashCode() : fileName
-            .hashCode();
+        String relativeName = getRelativeName();
+        int hash = IGNORE_CASE
+            ? relativeName.toLowerCase().hashCode()
+            : relativeName.hashCode();
         hash += folderInfo.hashCode();
         return hash;
     }
@@ -833,18 +903,32 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         }
         if (other instanceof FileInfo) {
             FileInfo otherInfo = (FileInfo) other;
-            boolean caseMatch = Util.equalsRelativeName(fileName,
-                otherInfo.fileName);
-            return caseMatch && Util.equals(folderInfo, otherInfo.folderInfo);
+            return equalsRelativeName(otherInfo)
+                && Util.equals(folderInfo, otherInfo.folderInfo);
         }
 
         return false;
     }
 
+    private boolean equalsRelativeName(FileInfo otherInfo) {
+        if (directory == null || otherInfo.directory == null) {
+            return Util.equalsRelativeName(getRelativeName(),
+                otherInfo.getRelativeName());
+        }
+        if (!Util.equalsRelativeName(leafName, otherInfo.leafName)) {
+            return false;
+        }
+        // Directory nodes are internalized
+        if (directory == otherInfo.directory) {
+            return true;
+        }
+        return IGNORE_CASE && directory.equalsIgnoreCase(otherInfo.directory);
+    }
+
     @Override
     public String toString() {
         return '[' + folderInfo.getName() + "]:" + (deleted ? "(del) /" : "/")
-            + fileName;
+            + getRelativeName();
     }
 
     /**
@@ -916,11 +1000,12 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
             throw new IllegalStateException("Modification date is invalid: "
                 + lastModifiedDate + ": " + toDetailString());
         }
-        Reject.ifTrue(StringUtils.isEmpty(fileName), "Filename is empty");
-        char lastChar = fileName.charAt(fileName.length() - 1);
-        if (lastChar == '/' || lastChar == '\\') {
+        Reject.ifTrue(
+            StringUtils.isEmpty(leafName) && directory == PathNode.ROOT,
+            "Filename is empty");
+        if (StringUtils.isEmpty(leafName) || leafName.endsWith("\\")) {
             throw new IllegalStateException("Filename ends with slash: "
-                + fileName + ": " + toDetailString());
+                + getRelativeName() + ": " + toDetailString());
         }
 
         //Reject.ifNull(size, "Size is null");
@@ -930,13 +1015,42 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
 
     // Serialization optimization *********************************************
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("fileName", getRelativeName());
+        fields.put("oid", oid);
+        fields.put("hashes", hashes);
+        fields.put("tags", tags);
+        fields.put("size", size);
+        fields.put("modifiedBy", modifiedBy);
+        fields.put("modifiedByAccount", modifiedByAccount);
+        fields.put("lastModifiedDate", lastModifiedDate);
+        fields.put("version", version);
+        fields.put("deleted", deleted);
+        fields.put("folderInfo", folderInfo);
+        out.writeFields();
+    }
+
     private void readObject(ObjectInputStream in) throws IOException,
         ClassNotFoundException
     {
-        in.defaultReadObject();
+        ObjectInputStream.GetField fields = in.readFields();
+        String fileName = (String) fields.get("fileName", null);
+        oid = (String) fields.get("oid", null);
+        hashes = (String) fields.get("hashes", null);
+        tags = (String) fields.get("tags", null);
+        size = (Long) fields.get("size", null);
+        modifiedBy = (MemberInfo) fields.get("modifiedBy", null);
+        modifiedByAccount = (AccountInfo) fields.get("modifiedByAccount",
+            null);
+        lastModifiedDate = (Date) fields.get("lastModifiedDate", null);
+        version = fields.get("version", 0);
+        deleted = fields.get("deleted", false);
+        folderInfo = (FolderInfo) fields.get("folderInfo", null);
 
         // #2037: Removed internalization
         // fileName = fileName.intern();
+        // Directories are shared through setRelativeName instead.
 
         // Oh! Default value. Better recalculate hashcode cache
         // if (hash == 0) {
@@ -955,6 +1069,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         if (fileName.startsWith("/")) {
             fileName = fileName.substring(1);
         }
+        setRelativeName(fileName);
 
         // validate();
     }
@@ -972,7 +1087,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
                     + ", supported: " + extVersion100UID + ", "
                     + extVersionCurrentUID);
         }
-        fileName = in.readUTF();
+        setRelativeName(in.readUTF());
         size = in.readLong();
         if (in.readBoolean()) {
             modifiedBy = MemberInfo.readExt(in);
@@ -1024,7 +1139,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         }
         out.writeInt(isFile() ? 0 : 1);
         out.writeLong(extUID);
-        out.writeUTF(fileName);
+        out.writeUTF(getRelativeName());
         out.writeLong(size);
         out.writeBoolean(modifiedBy != null);
         if (modifiedBy != null) {
@@ -1107,7 +1222,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         if (mesg instanceof FileInfoProto.FileInfo) {
             FileInfoProto.FileInfo fileInfo = (FileInfoProto.FileInfo) mesg;
             this.deleted = fileInfo.getDeleted();
-            this.fileName = fileInfo.getFileName();
+            setRelativeName(fileInfo.getFileName());
             // Todo: Hacky
             this.folderInfo = new FolderInfo("", fileInfo.getFolderId());
             this.lastModifiedDate = new Date(fileInfo.getLastModifiedDate());
@@ -1132,7 +1247,7 @@ public class FileInfo implements Serializable, DiskItem, Cloneable, D2DObject {
         FileInfoProto.FileInfo.Builder builder = FileInfoProto.FileInfo.newBuilder();
         builder.setClazzName(this.getClass().getSimpleName());
         builder.setDeleted(this.deleted);
-        if (this.fileName != null) builder.setFileName(this.fileName);
+        if (this.leafName != null) builder.setFileName(getRelativeName());
         if (this.folderInfo != null) builder.setFolderId(this.folderInfo.getId());
         if (this.lastModifiedDate != null) builder.setLastModifiedDate(this.lastModifiedDate.getTime());
         if (this.modifiedBy != null) builder.setModifiedByNodeId(modifiedBy.getId());
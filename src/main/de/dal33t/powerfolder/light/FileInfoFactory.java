@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -206,14 +207,43 @@ public final class FileInfoFactory {
     public static FileInfo newFile(Folder folder, Path localFile, String oid,
         MemberInfo creatorDevice, AccountInfo creatorAccount, String hashes,
         boolean directory, String tags)
+    {
+        return newFile(folder, localFile, null, oid, creatorDevice,
+            creatorAccount, hashes, directory, tags);
+    }
+
+    /**
+     * Initialize within a folder
+     *
+     * @param folder
+     * @param localFile
+     * @param attrs
+     *            the attributes of the local file if already read, e.g. while
+     *            scanning. null to read them from disk.
+     * @param creatorDevice
+     * @param directory
+     *            if the given file is a directory.
+     * @return the new file
+     */
+    public static FileInfo newFile(Folder folder, Path localFile,
+        BasicFileAttributes attrs, String oid, MemberInfo creatorDevice,
+        AccountInfo creatorAccount, String hashes, boolean directory,
+        String tags)
     {
         long date = new Date().getTime();
         long size = 0;
 
-        try {
-            date = Files.getLastModifiedTime(localFile).toMillis();
-        } catch (IOException ioe) {
-            LOG.fine(ioe.getMessage());
+        if (attrs == null) {
+            try {
+                attrs = Files.readAttributes(localFile,
+                    BasicFileAttributes.class);
+            } catch (IOException ioe) {
+                LOG.fine(ioe.getMessage());
+            }
+        }
+        if (attrs != null) {
+            date = attrs.lastModifiedTime().toMillis();
+            size = attrs.size();
         }
 
         if (directory) {
@@ -221,11 +251,6 @@ public final class FileInfoFactory {
                 localFile), oid, creatorDevice, creatorAccount, new Date(date),
                 0, hashes, false, tags, folder.getInfo());
         } else {
-            try {
-                size = Files.size(localFile);
-            } catch (IOException ioe) {
-                LOG.fine(ioe.getMessage());
-            }
             return new FileInfo(
                 buildFileName(folder.getLocalBase(), localFile), oid, size,
                 creatorDevice, creatorAccount, new Date(date), 0, hashes,
@@ -236,6 +261,26 @@ public final class FileInfoFactory {
     public static FileInfo modifiedFile(FileInfo original, Folder folder,
         Path localFile, MemberInfo modByDevice, AccountInfo modByAccount,
         String newHashes)
+    {
+        return modifiedFile(original, folder, localFile, null, modByDevice,
+            modByAccount, newHashes);
+    }
+
+    /**
+     * @param original
+     * @param folder
+     * @param localFile
+     * @param attrs
+     *            the attributes of the local file if already read, e.g. while
+     *            scanning. null to read them from disk.
+     * @param modByDevice
+     * @param modByAccount
+     * @param newHashes
+     * @return the modified file or null if the local file could not be read.
+     */
+    public static FileInfo modifiedFile(FileInfo original, Folder folder,
+        Path localFile, BasicFileAttributes attrs, MemberInfo modByDevice,
+        AccountInfo modByAccount, String newHashes)
     {
         Reject.ifNull(original, "Original FileInfo is null");
         Reject.ifTrue(original.isLookupInstance(),
@@ -246,42 +291,41 @@ public final class FileInfoFactory {
             fn = original.getRelativeName();
         }
 
-        boolean isDir = Files.isDirectory(localFile);
-        try {
-            if (original.isFile()) {
-                if (isDir) {
-                    return new DirectoryInfo(fn, original.getOID(),
-                        Files.size(localFile), modByDevice, modByAccount,
-                        new Date(Files.getLastModifiedTime(localFile)
-                            .toMillis()), original.getVersion() + 1, newHashes,
-                        false, original.getTags(), original.getFolderInfo());
-                }
-                return new FileInfo(fn, original.getOID(),
-                    Files.size(localFile), modByDevice, modByAccount, new Date(
-                        Files.getLastModifiedTime(localFile).toMillis()),
-                    original.getVersion() + 1, newHashes, false,
-                    original.getTags(), original.getFolderInfo());
-            } else if (original.isDiretory()) {
-                if (!isDir) {
-                    return new FileInfo(fn, original.getOID(),
-                        Files.size(localFile), modByDevice, modByAccount,
-                        new Date(Files.getLastModifiedTime(localFile)
-                            .toMillis()), original.getVersion() + 1, newHashes,
-                        false, original.getTags(), original.getFolderInfo());
-                }
-                return new DirectoryInfo(fn, original.getOID(),
-                    Files.size(localFile), modByDevice, modByAccount, new Date(
-                        Files.getLastModifiedTime(localFile).toMillis()),
+        if (attrs == null) {
+            try {
+                attrs = Files.readAttributes(localFile,
+                    BasicFileAttributes.class);
+            } catch (IOException ioe) {
+                LOG.warning(ioe.getMessage());
+                return null;
+            }
+        }
+        boolean isDir = attrs.isDirectory();
+        long size = attrs.size();
+        Date lastModified = new Date(attrs.lastModifiedTime().toMillis());
+        if (original.isFile()) {
+            if (isDir) {
+                return new DirectoryInfo(fn, original.getOID(), size,
+                    modByDevice, modByAccount, lastModified,
                     original.getVersion() + 1, newHashes, false,
                     original.getTags(), original.getFolderInfo());
-            } else {
-                throw new IllegalArgumentException(
-                    "Illegal original FileInfo: " + original.getClass() + ": "
-                        + original.toDetailString());
             }
-        } catch (IOException ioe) {
-            LOG.warning(ioe.getMessage());
-            return null;
+            return new FileInfo(fn, original.getOID(), size, modByDevice,
+                modByAccount, lastModified, original.getVersion() + 1,
+                newHashes, false, original.getTags(), original.getFolderInfo());
+        } else if (original.isDiretory()) {
+            if (!isDir) {
+                return new FileInfo(fn, original.getOID(), size, modByDevice,
+                    modByAccount, lastModified, original.getVersion() + 1,
+                    newHashes, false, original.getTags(),
+                    original.getFolderInfo());
+            }
+            return new DirectoryInfo(fn, original.getOID(), size, modByDevice,
+                modByAccount, lastModified, original.getVersion() + 1,
+                newHashes, false, original.getTags(), original.getFolderInfo());
+        } else {
+            throw new IllegalArgumentException("Illegal original FileInfo: "
+                + original.getClass() + ": " + original.toDetailString());
         }
     }
 
@@ -29,6 +29,7 @@ public class FileInfoStrings {
     private String fileNameOnly;
     private String lowerCaseName;
     private String locationInFolder;
+    private String relativeName;
 
     String getFileNameOnly() {
         return fileNameOnly;
@@ -53,4 +54,12 @@ public class FileInfoStrings {
     void setLowerCaseName(String lowerCaseName) {
         this.lowerCaseName = lowerCaseName;
     }
+
+    String getRelativeName() {
+        return relativeName;
+    }
+
+    void setRelativeName(String relativeName) {
+        this.relativeName = relativeName;
+    }
 }
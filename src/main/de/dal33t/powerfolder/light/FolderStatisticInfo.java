@@ -72,6 +72,9 @@ public class FolderStatisticInfo extends Loggable implements Serializable {
     // Finer values
     private volatile int incomingFilesCount;
 
+    // All items in the local database. Also deleted and excluded ones
+    private volatile int knownItemsCount;
+
     private transient int analyzedFiles;
 
     // Number of files
@@ -141,6 +144,14 @@ public class FolderStatisticInfo extends Loggable implements Serializable {
         this.incomingFilesCount = incomingFilesCount;
     }
 
+    public int getKnownItemsCount() {
+        return knownItemsCount;
+    }
+
+    public void setKnownItemsCount(int knownItemsCount) {
+        this.knownItemsCount = knownItemsCount;
+    }
+
     public int getAnalyzedFiles() {
         return analyzedFiles;
     }
@@ -343,6 +354,7 @@ public class FolderStatisticInfo extends Loggable implements Serializable {
             + ((filesCountInSync == null) ? 0 : filesCountInSync.hashCode());
         result = prime * result + ((folder == null) ? 0 : folder.hashCode());
         result = prime * result + incomingFilesCount;
+        result = prime * result + knownItemsCount;
         result = prime * result + ((sizes == null) ? 0 : sizes.hashCode());
         result = prime * result
             + ((sizesInSync == null) ? 0 : sizesInSync.hashCode());
@@ -378,6 +390,9 @@ public class FolderStatisticInfo extends Loggable implements Serializable {
         if (incomingFilesCount != other.incomingFilesCount) {
             return false;
         }
+        if (knownItemsCount != other.knownItemsCount) {
+            return false;
+        }
         if (!Util.equals(sizes, other.sizes)) {
             return false;
         }
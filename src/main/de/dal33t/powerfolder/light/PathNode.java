@@ -0,0 +1,184 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.light;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A shared directory node of a relative path. {@link FileInfo}s reference the
+ * node of their parent directory plus their leaf name instead of holding the
+ * full path. Nodes are internalized, so every directory prefix exists only
+ * once in memory, no matter how many files, members or file lists share it.
+ * <p>
+ * Nodes with the same path are always the same instance. Unused nodes are
+ * garbage collected.
+ *
+ * @see FileInfo#getRelativeName()
+ */
+final class PathNode {
+    private static final Map<PathNode, WeakReference<PathNode>> INSTANCES = new WeakHashMap<PathNode, WeakReference<PathNode>>();
+
+    /**
+     * The base directory of a folder.
+     */
+    static final PathNode ROOT = new PathNode(null, "");
+
+    private final PathNode parent;
+    private final String name;
+    private final int length;
+    private final int hash;
+
+    private PathNode(PathNode parent, String name) {
+        this.parent = parent;
+        this.name = name;
+        if (parent == null) {
+            length = 0;
+            hash = 0;
+        } else {
+            length = parent == ROOT ? name.length() : parent.length + 1
+                + name.length();
+            hash = 31 * System.identityHashCode(parent) + name.hashCode();
+        }
+    }
+
+    /**
+     * @param path
+     *            the unix-style separated directory path, e.g. "dir/subdir"
+     * @param end
+     *            the length of the directory part in path
+     * @return the internalized node of the directory.
+     */
+    static PathNode lookup(String path, int end) {
+        PathNode node = ROOT;
+        int start = 0;
+        synchronized (INSTANCES) {
+            while (start < end) {
+                int i = path.indexOf('/', start);
+                if (i < 0 || i > end) {
+                    i = end;
+                }
+                node = node.child(path.substring(start, i));
+                start = i + 1;
+            }
+        }
+        return node;
+    }
+
+    private PathNode child(String childName) {
+        PathNode candidate = new PathNode(this, childName);
+        WeakReference<PathNode> ref = INSTANCES.get(candidate);
+        PathNode child = ref != null ? ref.get() : null;
+        if (child == null) {
+            child = candidate;
+            INSTANCES.put(child, new WeakReference<PathNode>(child));
+        }
+        return child;
+    }
+
+    /**
+     * @return the length of the materialized path.
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * @param leafName
+     *            the name of the file in this directory.
+     * @return the materialized path of the file.
+     */
+    String toPath(String leafName) {
+        if (this == ROOT) {
+            return leafName;
+        }
+        char[] chars = new char[length + 1 + leafName.length()];
+        leafName.getChars(0, leafName.length(), chars, length + 1);
+        chars[length] = '/';
+        appendTo(chars);
+        return new String(chars);
+    }
+
+    /**
+     * @return the materialized path of this directory.
+     */
+    String toPath() {
+        if (this == ROOT) {
+            return "";
+        }
+        char[] chars = new char[length];
+        appendTo(chars);
+        return new String(chars);
+    }
+
+    private void appendTo(char[] chars) {
+        int end = length;
+        for (PathNode node = this; node != ROOT; node = node.parent) {
+            int start = end - node.name.length();
+            node.name.getChars(0, node.name.length(), chars, start);
+            if (start > 0) {
+                chars[start - 1] = '/';
+            }
+            end = start - 1;
+        }
+    }
+
+    /**
+     * @param other
+     * @return true if both directories have the same path, ignoring the case.
+     */
+    boolean equalsIgnoreCase(PathNode other) {
+        PathNode a = this;
+        PathNode b = other;
+        while (a != b) {
+            if (a == ROOT || b == ROOT || a.length != b.length
+                || !a.name.equalsIgnoreCase(b.name))
+            {
+                return false;
+            }
+            a = a.parent;
+            b = b.parent;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof PathNode)) {
+            return false;
+        }
+        PathNode other = (PathNode) obj;
+        return parent == other.parent && name.equals(other.name);
+    }
+
+    @Override
+    public String toString() {
+        return toPath();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.message;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Contains the contents of files requested with {@link RequestFileBundle}. A
+ * file, which could not be sent has no contents. It has to be downloaded
+ * the regular way then.
+ */
+public class FileBundle extends Message implements LimitBandwidth {
+    private static final long serialVersionUID = 100L;
+
+    private FileInfo[] files;
+    /**
+     * The contents of the files. null if not available.
+     */
+    private byte[][] contents;
+    /**
+     * The MD5 digests of the contents.
+     */
+    private byte[][] digests;
+
+    public FileBundle() {
+        // Serialisation constructor
+    }
+
+    public FileBundle(FileInfo[] files, byte[][] contents, byte[][] digests) {
+        Reject.noNullElements(files, contents, digests);
+        Reject.ifFalse(files.length == contents.length
+            && files.length == digests.length, "Bundle size mismatch");
+        this.files = files;
+        this.contents = contents;
+        this.digests = digests;
+    }
+
+    /**
+     * @return true if the bundle is complete and consistent.
+     */
+    public boolean isValid() {
+        return files != null && contents != null && digests != null
+            && files.length == contents.length
+            && files.length == digests.length;
+    }
+
+    /**
+     * @return the number of files in this bundle.
+     */
+    public int size() {
+        return files.length;
+    }
+
+    public FileInfo getFile(int i) {
+        return files[i];
+    }
+
+    /**
+     * @param i
+     * @return the contents of the file or null if the file could not be sent.
+     */
+    public byte[] getContents(int i) {
+        return contents[i];
+    }
+
+    public byte[] getDigest(int i) {
+        return digests[i];
+    }
+
+    @Override
+    public String toString() {
+        return "File bundle of " + files.length + " files";
+    }
+}
@@ -27,6 +27,7 @@ import de.dal33t.powerfolder.light.MemberInfo;
 import de.dal33t.powerfolder.net.ConnectionHandler;
 import de.dal33t.powerfolder.protocol.IdentityProto;
 import de.dal33t.powerfolder.protocol.NodeInfoProto;
+import de.dal33t.powerfolder.util.ByteSerializer;
 import de.dal33t.powerfolder.util.Reject;
 
 import java.io.Externalizable;
@@ -90,6 +91,18 @@ public class Identity extends Message
     private boolean supportingPartTransfers = true;
 
     private Boolean useCompressedStream;
+
+    /**
+     * Supports messages compressed with the dictionary codec of
+     * {@link ByteSerializer}. Always false for older versions.
+     */
+    private boolean supportsFastCompression;
+
+    /**
+     * Supports requests of small files in bundles with
+     * {@link RequestFileBundle} answered by {@link FileBundle}s.
+     */
+    private boolean supportsFileBundles;
     /**
      * #2072: {@link Externalizable} protocol history:
      * <p>
@@ -170,6 +183,9 @@ public class Identity extends Message
             .getValueBoolean(controller);
         this.useCompressedStream = !handler.isOnLAN()
             || (handler.isOnLAN() && useZIPonLAN);
+        this.supportsFastCompression = ConfigurationEntry.USE_FAST_COMPRESSION
+            .getValueBoolean(controller);
+        this.supportsFileBundles = true;
         // #2569
         this.requestFullFolderlist = controller.getMySelf().isServer();
 
@@ -236,6 +252,21 @@ public class Identity extends Message
         return useCompressedStream;
     }
 
+    /**
+     * @return true if messages compressed with the dictionary codec of
+     *         {@link ByteSerializer} can be read.
+     */
+    public boolean isSupportsFastCompression() {
+        return supportsFastCompression;
+    }
+
+    /**
+     * @return true if {@link RequestFileBundle}s are supported.
+     */
+    public boolean isSupportsFileBundles() {
+        return supportsFileBundles;
+    }
+
     /**
      * #2569: Connection improvement: Don't send full folderlist from server to
      * client.
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.message;
+
+/**
+ * A message listener, which handles the messages on its own thread instead of
+ * the thread receiving them. Messages are handled in the order they were
+ * received.
+ * <p>
+ * The receiving thread waits while the queue of the listener is full. A slow
+ * listener therefore only stalls the reception after falling behind by
+ * {@link #getMaxQueuedMessages()} messages.
+ */
+public interface QueuedMessageListener extends MessageListener {
+    /**
+     * Don't make the implementation of this method dynamic. It is evaluated
+     * when the listener is added.
+     *
+     * @return the maximum number of messages waiting to be handled by this
+     *         listener.
+     */
+    int getMaxQueuedMessages();
+}
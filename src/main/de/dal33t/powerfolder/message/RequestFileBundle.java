@@ -0,0 +1,54 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.message;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Requests many small files at once. Answered by one or more
+ * {@link FileBundle}s, which contain every requested file exactly once.
+ *
+ * @see Identity#isSupportsFileBundles()
+ */
+public class RequestFileBundle extends Message {
+    private static final long serialVersionUID = 100L;
+
+    private FileInfo[] files;
+
+    public RequestFileBundle() {
+        // Serialisation constructor
+    }
+
+    public RequestFileBundle(FileInfo[] files) {
+        Reject.ifNull(files, "Files are null");
+        this.files = files;
+    }
+
+    public FileInfo[] getFiles() {
+        return files;
+    }
+
+    @Override
+    public String toString() {
+        return "Request file bundle of "
+            + (files != null ? files.length : 0) + " files";
+    }
+}
@@ -19,6 +19,7 @@
  */
 package de.dal33t.powerfolder.net;
 
+import java.net.InetAddress;
 import java.util.Date;
 
 import de.dal33t.powerfolder.Constants;
@@ -46,6 +47,13 @@ public abstract class AbstractAcceptor extends PFComponent implements Runnable {
      */
     public abstract String getConnectionInfo();
 
+    /**
+     * @return the address of the remote side or null if unknown
+     */
+    public InetAddress getRemoteAddress() {
+        return null;
+    }
+
     /**
      * Shuts the acceptor down and closes the socket
      */
@@ -88,7 +96,7 @@ public abstract class AbstractAcceptor extends PFComponent implements Runnable {
                 + "Closing incoming connection attempt: " + this);
             return;
         }
-        ProfilingEntry pe = Profiling.start();
+        ProfilingEntry pe = Profiling.start("AbstractAcceptor.run");
         startTime = new Date();
         try {
             accept();
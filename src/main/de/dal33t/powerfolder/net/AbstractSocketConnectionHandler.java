@@ -166,6 +166,17 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         return serializer;
     }
 
+    /**
+     * @return true if messages should be compressed with the dictionary codec
+     *         of {@link ByteSerializer}. Only after both sides announced
+     *         support for it.
+     */
+    protected boolean isUseFastCompression() {
+        Identity remote = identity;
+        return myIdentity != null && myIdentity.isSupportsFastCompression()
+            && remote != null && remote.isSupportsFastCompression();
+    }
+
     /**
      * @return the tcp/ip socket
      */
@@ -351,6 +362,9 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         }
 
         // make sure the garbage collector gets this
+        if (serializer != null) {
+            serializer.close();
+        }
         serializer = null;
     }
 
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.util.metrics.Counter;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+import de.dal33t.powerfolder.util.metrics.Timer;
+
+/**
+ * Admits incoming connections to their handshake without blocking the
+ * listener thread.
+ * <p>
+ * Only a limited number of acceptors handshake at the same time. Further
+ * acceptors wait in one queue per remote address. The queues are served round
+ * robin, so a single address reconnecting many times cannot starve others.
+ * Every address has a token bucket limiting the connection rate. Connections
+ * over the rate or exceeding the maximum queue size are closed immediately.
+ * Acceptors without remote address, e.g. relayed connections, are not rate
+ * limited and queued on their own.
+ */
+class ConnectionAdmission extends PFComponent {
+    private static final Counter ADMITTED = Metrics
+        .counter("net.accept.admitted");
+    private static final Counter REJECTED = Metrics
+        .counter("net.accept.rejected");
+    private static final Timer WAIT = Metrics.timer("net.accept.wait");
+    private static final Timer HANDSHAKE = Metrics
+        .timer("net.accept.handshake");
+
+    private final NodeManager nodeManager;
+    private final int maxHandshakes;
+    private final int maxQueued;
+    /**
+     * Tokens per second.
+     */
+    private final double rate;
+    private final double burst;
+
+    /**
+     * The waiting acceptors per remote address. Iteration order is the round
+     * robin order. Guarded by this.
+     */
+    private final LinkedHashMap<Object, ArrayDeque<Queued>> queues = new LinkedHashMap<Object, ArrayDeque<Queued>>();
+    /** Guarded by this */
+    private final Map<Object, Bucket> buckets = new HashMap<Object, Bucket>();
+    /** Guarded by this */
+    private int queued;
+    /** Guarded by this */
+    private int handshaking;
+    /** Guarded by this */
+    private long rejected;
+
+    ConnectionAdmission(Controller controller, NodeManager nodeManager) {
+        super(controller);
+        this.nodeManager = nodeManager;
+        this.maxHandshakes = Math.max(1,
+            ConfigurationEntry.NET_ACCEPT_MAX_HANDSHAKES
+                .getValueInt(controller));
+        this.maxQueued = Math.max(0,
+            ConfigurationEntry.NET_ACCEPT_MAX_QUEUED.getValueInt(controller));
+        this.rate = Math.max(0,
+            ConfigurationEntry.NET_ACCEPT_RATE_PER_ADDRESS
+                .getValueInt(controller));
+        this.burst = 2 * rate;
+    }
+
+    /**
+     * Queues the acceptor for its handshake. Does not block.
+     *
+     * @param acceptor
+     * @param address
+     *            the remote address or null if unknown
+     * @return true if admitted. false if rejected. The caller has to shut
+     *         down rejected acceptors.
+     */
+    boolean offer(AbstractAcceptor acceptor, InetAddress address) {
+        // Don't throttle unrelated connections without address as one host
+        Object key = address != null ? address : acceptor;
+        boolean startWorker = false;
+        synchronized (this) {
+            // Acceptors about to be taken by idle workers are not waiting
+            if (queued >= maxQueued + maxHandshakes - handshaking) {
+                rejected++;
+                REJECTED.increment();
+                return false;
+            }
+            if (address != null && !takeToken(key)) {
+                rejected++;
+                REJECTED.increment();
+                return false;
+            }
+            ArrayDeque<Queued> queue = queues.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<Queued>();
+                queues.put(key, queue);
+            }
+            queue.add(new Queued(acceptor, nanoTime()));
+            queued++;
+            if (handshaking < maxHandshakes) {
+                handshaking++;
+                startWorker = true;
+            }
+        }
+        ADMITTED.increment();
+        if (startWorker) {
+            getController().getIOProvider().startIO(new Worker());
+        }
+        return true;
+    }
+
+    /**
+     * @return the current time in nanoseconds. Overridden by tests.
+     */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @return the number of acceptors waiting for their handshake.
+     */
+    synchronized int getQueueSize() {
+        return queued;
+    }
+
+    /**
+     * @return the number of acceptors currently handshaking.
+     */
+    synchronized int getHandshaking() {
+        return handshaking;
+    }
+
+    /**
+     * @return the number of rejected connections.
+     */
+    synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Removes acceptors waiting longer than the keep alive timeout and token
+     * buckets of inactive addresses.
+     *
+     * @return the timed out acceptors. To be shut down by the caller.
+     */
+    List<AbstractAcceptor> purge() {
+        long now = nanoTime();
+        long timeout = TimeUnit.SECONDS
+            .toNanos(Constants.CONNECTION_KEEP_ALIVE_TIMOUT);
+        List<AbstractAcceptor> timedOut = new ArrayList<AbstractAcceptor>();
+        synchronized (this) {
+            for (Iterator<ArrayDeque<Queued>> it = queues.values().iterator(); it
+                .hasNext();)
+            {
+                ArrayDeque<Queued> queue = it.next();
+                // Oldest first
+                while (!queue.isEmpty()
+                    && now - queue.peek().queuedNanos > timeout)
+                {
+                    timedOut.add(queue.poll().acceptor);
+                    queued--;
+                }
+                if (queue.isEmpty()) {
+                    it.remove();
+                }
+            }
+            for (Iterator<Bucket> it = buckets.values().iterator(); it
+                .hasNext();)
+            {
+                if (it.next().refill(now, rate, burst) >= burst) {
+                    it.remove();
+                }
+            }
+        }
+        return timedOut;
+    }
+
+    /**
+     * Removes all waiting acceptors.
+     *
+     * @return the removed acceptors. To be shut down by the caller.
+     */
+    synchronized List<AbstractAcceptor> clear() {
+        List<AbstractAcceptor> removed = new ArrayList<AbstractAcceptor>();
+        for (ArrayDeque<Queued> queue : queues.values()) {
+            for (Queued q : queue) {
+                removed.add(q.acceptor);
+            }
+        }
+        queues.clear();
+        buckets.clear();
+        queued = 0;
+        return removed;
+    }
+
+    private boolean takeToken(Object key) {
+        if (rate <= 0) {
+            return true;
+        }
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket(burst, nanoTime());
+            buckets.put(key, bucket);
+        }
+        if (bucket.refill(nanoTime(), rate, burst) < 1) {
+            return false;
+        }
+        bucket.tokens--;
+        return true;
+    }
+
+    /**
+     * @return the next acceptor round robin over the addresses or null if
+     *         none is waiting. Ends the worker in that case.
+     */
+    private synchronized Queued next() {
+        Iterator<Map.Entry<Object, ArrayDeque<Queued>>> it = queues
+            .entrySet().iterator();
+        if (!it.hasNext()) {
+            handshaking--;
+            return null;
+        }
+        Map.Entry<Object, ArrayDeque<Queued>> head = it.next();
+        ArrayDeque<Queued> queue = head.getValue();
+        Queued next = queue.poll();
+        queued--;
+        // Move address to the end of the round
+        it.remove();
+        if (!queue.isEmpty()) {
+            queues.put(head.getKey(), queue);
+        }
+        return next;
+    }
+
+    private class Worker implements Runnable {
+        public void run() {
+            Queued q;
+            while ((q = next()) != null) {
+                if (Metrics.ENABLED) {
+                    WAIT.record(nanoTime() - q.queuedNanos);
+                }
+                if (!nodeManager.isStarted()) {
+                    q.acceptor.shutdown();
+                    nodeManager.acceptors.remove(q.acceptor);
+                    continue;
+                }
+                long start = Metrics.start();
+                try {
+                    q.acceptor.run();
+                } catch (RuntimeException e) {
+                    logSevere("Exception while accepting "
+                        + q.acceptor + ": " + e, e);
+                    q.acceptor.shutdown();
+                } finally {
+                    HANDSHAKE.stop(start);
+                }
+            }
+        }
+    }
+
+    private static class Queued {
+        private final AbstractAcceptor acceptor;
+        private final long queuedNanos;
+
+        private Queued(AbstractAcceptor acceptor, long queuedNanos) {
+            this.acceptor = acceptor;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+
+    private static class Bucket {
+        private double tokens;
+        private long lastRefill;
+
+        private Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+
+        private double refill(long now, double rate, double burst) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate
+                / TimeUnit.SECONDS.toNanos(1));
+            lastRefill = now;
+            return tokens;
+        }
+    }
+}
@@ -525,6 +525,11 @@ public class ConnectionListener extends PFComponent implements Runnable {
             return socket.getRemoteSocketAddress().toString();
         }
 
+        @Override
+        public InetAddress getRemoteAddress() {
+            return socket.getInetAddress();
+        }
+
         @Override
         protected void accept() throws ConnectionException {
             if (isFiner()) {
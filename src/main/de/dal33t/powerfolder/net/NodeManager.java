@@ -99,10 +99,21 @@ public class NodeManager extends PFComponent {
     /** The list of active acceptors for incoming connections */
     List<AbstractAcceptor> acceptors;
 
-    // Lock which is hold while a acception is pending
-    private Object acceptLock = new Object();
+    /** Admits incoming connections to their handshake */
+    private ConnectionAdmission admission;
+
+    /**
+     * Locks hold while a acception is pending. Striped by member id, so only
+     * connections of the same member wait for each other.
+     */
+    private final Object[] acceptLocks = new Object[64];
 
     private Map<String, Member> knownNodes;
+    /**
+     * Indexes over the known nodes. Also locks changes to the known nodes, so
+     * they stay consistent with the indexes.
+     */
+    private final NodeRegistry registry = new NodeRegistry();
     private Map<String, Member> friends;
     private Map<String, Member> connectedNodes;
     private List<AddressRange> lanRanges;
@@ -168,6 +179,10 @@ public class NodeManager extends PFComponent {
 
         // Acceptors
         acceptors = new CopyOnWriteArrayList<AbstractAcceptor>();
+        admission = new ConnectionAdmission(controller, this);
+        for (int i = 0; i < acceptLocks.length; i++) {
+            acceptLocks[i] = new Object();
+        }
 
         // Value message/event listner support
         valveMessageListenerSupport = new MessageListenerSupport(this);
@@ -242,6 +257,7 @@ public class NodeManager extends PFComponent {
 
         logFine("Shutting down " + acceptors.size()
             + " incoming connections (Acceptors)");
+        admission.clear();
         for (AbstractAcceptor acceptor : acceptors) {
             acceptor.shutdown();
         }
@@ -341,15 +357,7 @@ public class NodeManager extends PFComponent {
      * @return the number of nodes, which are online on the network.
      */
     public int countOnlineNodes() {
-        int nConnected = 1;
-        synchronized (knownNodes) {
-            for (Member node : knownNodes.values()) {
-                if (node.isConnected() || node.isConnectedToNetwork()) {
-                    nConnected++;
-                }
-            }
-        }
-        return nConnected;
+        return 1 + registry.countOnline();
     }
 
     /**
@@ -357,7 +365,7 @@ public class NodeManager extends PFComponent {
      */
     public int countOnlineSupernodes() {
         int nConnected = 1;
-        for (Member node : knownNodes.values()) {
+        for (Member node : registry.getSupernodes()) {
             if (node.isSupernode()
                 && (node.isConnected() || node.isConnectedToNetwork()))
             {
@@ -371,13 +379,7 @@ public class NodeManager extends PFComponent {
      * @return the number of known supernodes.
      */
     public int countSupernodes() {
-        int nSupernodes = 0;
-        for (Member node : knownNodes.values()) {
-            if (node.isSupernode()) {
-                nSupernodes++;
-            }
-        }
-        return nSupernodes;
+        return registry.countSupernodes();
     }
 
     /**
@@ -609,7 +611,10 @@ public class NodeManager extends PFComponent {
 
         // removed from folders
         getController().getFolderRepository().removeFromAllFolders(node);
-        knownNodes.remove(node.getId());
+        synchronized (registry) {
+            knownNodes.remove(node.getId());
+            registry.remove(node);
+        }
 
         // Remove all his listeners
         node.removeAllListeners();
@@ -731,6 +736,7 @@ public class NodeManager extends PFComponent {
      */
     public void networkConnectionStateChanged(Member node) {
         Reject.ifNull(node, "Node");
+        updateRegistry(node);
         if (node.isConnectedToNetwork()) {
             fireNodeOnline(node);
         } else {
@@ -755,6 +761,7 @@ public class NodeManager extends PFComponent {
      */
     public void connectStateChanged(Member node) {
         boolean nodeConnected = node.isCompletelyConnected();
+        updateRegistry(node);
         if (nodeConnected) {
             // Add to online nodes
             connectedNodes.put(node.getId(), node);
@@ -805,6 +812,28 @@ public class NodeManager extends PFComponent {
         }
     }
 
+    /**
+     * Callback method from Member after its info (e.g. supernode state or
+     * nick) was updated.
+     *
+     * @param node
+     */
+    public void nodeInfoChanged(Member node) {
+        updateRegistry(node);
+    }
+
+    private void updateRegistry(Member node) {
+        if (node.isMySelf()) {
+            return;
+        }
+        // Only index known nodes. Atomic with removeNode
+        synchronized (registry) {
+            if (knownNodes.get(node.getId()) == node) {
+                registry.update(node);
+            }
+        }
+    }
+
     /**
      * Callback method from Member.
      *
@@ -836,13 +865,16 @@ public class NodeManager extends PFComponent {
         Runnable searcher = new Runnable() {
             public void run() {
                 List<MemberInfo> reply = new LinkedList<MemberInfo>();
-                for (Member m : getController().getNodeManager()
-                    .getNodesAsCollection())
-                {
+                // Exact IP matches are not indexed
+                boolean addressSearch = isAddressLiteral(request.searchString);
+                Collection<Member> candidates = addressSearch
+                    ? getNodesAsCollection()
+                    : registry.search(request.searchString);
+                for (Member m : candidates) {
                     if (m.getInfo().isInvalid(getController())) {
                         continue;
                     }
-                    if (m.matches(request.searchString)) {
+                    if (!addressSearch || m.matches(request.searchString)) {
                         reply.add(m.getInfo());
                     }
                 }
@@ -862,6 +894,11 @@ public class NodeManager extends PFComponent {
         getController().getIOProvider().startIO(searcher);
     }
 
+    private static boolean isAddressLiteral(String searchString) {
+        return (searchString.indexOf('.') >= 0 || searchString.indexOf(':') >= 0)
+            && searchString.matches("[0-9a-fA-F.:]+");
+    }
+
     /**
      * Creates the default request for nodelist according to our own status. In
      * supernode mode we might want to request more node information that in
@@ -1019,29 +1056,36 @@ public class NodeManager extends PFComponent {
 
         // Enqueue for later processing
         acceptors.add(acceptor);
-        getController().getIOProvider().startIO(acceptor);
-
-        // Throttle acception a bit depending on how much incoming connections
-        // we are currently processing.
-        long waitTime = 10L * acceptors.size();
-        if (isFiner()) {
-            logFiner("Currently processing incoming connections ("
-                + acceptors.size() + "), throttled (" + waitTime + "ms wait)");
-        }
-        if (acceptors.size() > Constants.MAX_INCOMING_CONNECTIONS) {
-            String msg = "Processing many incoming connections ("
-                + acceptors.size() + "), throttled (" + waitTime + "ms wait)";
-            if (acceptors.size() > Constants.MAX_INCOMING_CONNECTIONS * 3) {
-                logWarning(msg);
-            } else {
-                logFine(msg);
+        if (!admission.offer(acceptor, acceptor.getRemoteAddress())) {
+            acceptors.remove(acceptor);
+            acceptor.shutdown();
+            if (isFine()) {
+                logFine("Rejected incoming connection " + acceptor
+                    + ". Too many connection attempts. Queued: "
+                    + admission.getQueueSize());
             }
         }
-        try {
-            Thread.sleep(waitTime);
-        } catch (InterruptedException e) {
-            logFiner(e);
-        }
+    }
+
+    /**
+     * @return the number of incoming connections waiting for their handshake
+     */
+    public int getAcceptQueueSize() {
+        return admission.getQueueSize();
+    }
+
+    /**
+     * @return the number of incoming connections rejected because of too many
+     *         connection attempts
+     */
+    public long getRejectedConnectionsCount() {
+        return admission.getRejected();
+    }
+
+    private Object getAcceptLock(MemberInfo memberInfo) {
+        String id = memberInfo.id;
+        int hash = id != null ? id.hashCode() : 0;
+        return acceptLocks[(hash & Integer.MAX_VALUE) % acceptLocks.length];
     }
 
     /**
@@ -1123,8 +1167,8 @@ public class NodeManager extends PFComponent {
         boolean acceptHandler;
         String rejectCause = null;
 
-        // Accept only one node at a time
-        synchronized (acceptLock) {
+        // Accept only one connection of the node at a time
+        synchronized (getAcceptLock(remoteIdentity.getMemberInfo())) {
             if (isFiner()) {
                 logFiner("Accept lock taken. Member: "
                     + remoteIdentity.getMemberInfo() + ", Handler: " + handler);
@@ -1219,6 +1263,24 @@ public class NodeManager extends PFComponent {
         return member;
     }
 
+    /**
+     * Adds a new node if not known yet. Concurrent calls for the same member
+     * return the same node.
+     *
+     * @param mInfo
+     * @return the known or new node
+     */
+    public Member getOrAddNode(MemberInfo mInfo) {
+        Member node = getNode(mInfo);
+        if (node != null) {
+            return node;
+        }
+        synchronized (getAcceptLock(mInfo)) {
+            node = getNode(mInfo);
+            return node != null ? node : addNode(mInfo);
+        }
+    }
+
     /**
      * Adds a new node to the nodemanger
      *
@@ -1237,7 +1299,10 @@ public class NodeManager extends PFComponent {
             removeNode(oldNode);
         }
 
-        knownNodes.put(node.getId(), node);
+        synchronized (registry) {
+            knownNodes.put(node.getId(), node);
+            registry.update(node);
+        }
 
         if (!node.isOnSameNetwork()) {
             if (isFine()) {
@@ -1372,7 +1437,7 @@ public class NodeManager extends PFComponent {
         }
         int nNodes = 0;
         List<Member> supernodes = new LinkedList<Member>();
-        for (Member node : knownNodes.values()) {
+        for (Member node : connectedNodes.values()) {
             if (node.isCompletelyConnected() && node.isSupernode()) {
                 // Only broadcast after completely connected
                 supernodes.add(node);
@@ -1419,7 +1484,7 @@ public class NodeManager extends PFComponent {
         }
         int nNodes = 0;
         List<Member> lanNodes = new LinkedList<Member>();
-        for (Member node : knownNodes.values()) {
+        for (Member node : connectedNodes.values()) {
             if (node.isCompletelyConnected() && node.isOnLAN()) {
                 // Only broadcast after completely connected
                 lanNodes.add(node);
@@ -1592,7 +1657,7 @@ public class NodeManager extends PFComponent {
     private void storeOnlineSupernodes() {
         Collection<MemberInfo> latestSupernodesInfos = new ArrayList<MemberInfo>();
         Collection<Member> latestSupernodes = new ArrayList<Member>();
-        for (Member node : getNodesAsCollection()) {
+        for (Member node : registry.getSupernodes()) {
             if (!node.isSupernode()) {
                 // Skip non-supernode
                 continue;
@@ -1757,9 +1822,17 @@ public class NodeManager extends PFComponent {
     private class AcceptorsChecker extends TimerTask {
         @Override
         public void run() {
+            for (AbstractAcceptor acceptor : admission.purge()) {
+                logFine("Acceptor timed out in queue: " + acceptor);
+                acceptor.shutdown();
+                acceptors.remove(acceptor);
+            }
             int size = acceptors.size();
             if (isFine()) {
-                logFine("Checking incoming connection queue (" + size + ")");
+                logFine("Checking incoming connection queue (" + size
+                    + "), handshaking: " + admission.getHandshaking()
+                    + ", waiting: " + admission.getQueueSize()
+                    + ", rejected: " + admission.getRejected());
             }
             if (size > Constants.MAX_INCOMING_CONNECTIONS) {
                 String msg = "Processing many incoming connections (" + size
@@ -1872,6 +1945,7 @@ public class NodeManager extends PFComponent {
     }
 
     public void fireNodeSettingsChanged(final Member node) {
+        updateRegistry(node);
         listenerSupport.settingsChanged(new NodeManagerEvent(this, node));
     }
 }
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import de.dal33t.powerfolder.Member;
+
+/**
+ * Secondary indexes over the known nodes of the {@link NodeManager}. Kept up
+ * to date from the state change callbacks of the nodes, so counting and
+ * searching does not need to walk all known nodes.
+ * <p>
+ * The online and supernode indexes may briefly contain nodes, which changed
+ * their state in the meantime. Callers check the actual state of the returned
+ * nodes.
+ */
+class NodeRegistry {
+    private final Set<Member> online = Collections
+        .newSetFromMap(new ConcurrentHashMap<Member, Boolean>());
+    private final Set<Member> supernodes = Collections
+        .newSetFromMap(new ConcurrentHashMap<Member, Boolean>());
+
+    /**
+     * Search tokens (lower case nick words, nick and id) to the nodes.
+     */
+    private final ConcurrentSkipListMap<String, Set<Member>> tokens = new ConcurrentSkipListMap<String, Set<Member>>();
+    /**
+     * The nick and id each node is currently indexed with.
+     */
+    private final ConcurrentMap<Member, String> indexed = new ConcurrentHashMap<Member, String>();
+
+    /**
+     * Updates the indexes with the current state of the node.
+     *
+     * @param node
+     */
+    void update(Member node) {
+        setIndexed(online, node,
+            node.isConnected() || node.isConnectedToNetwork());
+        setIndexed(supernodes, node, node.isSupernode());
+        updateTokens(node);
+    }
+
+    /**
+     * Removes the node from all indexes.
+     *
+     * @param node
+     */
+    void remove(Member node) {
+        online.remove(node);
+        supernodes.remove(node);
+        synchronized (tokens) {
+            String key = indexed.remove(node);
+            if (key != null) {
+                for (String token : tokenize(key)) {
+                    removeToken(token, node);
+                }
+            }
+        }
+    }
+
+    void clear() {
+        online.clear();
+        supernodes.clear();
+        synchronized (tokens) {
+            tokens.clear();
+            indexed.clear();
+        }
+    }
+
+    /**
+     * @return the number of nodes online on the network, excluding myself.
+     */
+    int countOnline() {
+        return online.size();
+    }
+
+    /**
+     * @return the number of known supernodes.
+     */
+    int countSupernodes() {
+        return supernodes.size();
+    }
+
+    /**
+     * @return the known supernodes. Unmodifiable live view.
+     */
+    Collection<Member> getSupernodes() {
+        return Collections.unmodifiableSet(supernodes);
+    }
+
+    /**
+     * @param searchString
+     * @return the nodes with a nick word, nick or id starting with the search
+     *         string. Case insensitive.
+     */
+    Collection<Member> search(String searchString) {
+        String prefix = searchString.toLowerCase();
+        if (prefix.isEmpty()) {
+            return Collections.emptyList();
+        }
+        ConcurrentNavigableMap<String, Set<Member>> matches = tokens.subMap(
+            prefix, true, prefix + Character.MAX_VALUE, false);
+        Set<Member> result = new HashSet<Member>();
+        for (Set<Member> nodes : matches.values()) {
+            result.addAll(nodes);
+        }
+        return result;
+    }
+
+    private static void setIndexed(Set<Member> index, Member node,
+        boolean member)
+    {
+        if (member) {
+            index.add(node);
+        } else {
+            index.remove(node);
+        }
+    }
+
+    private void updateTokens(Member node) {
+        String nick = node.getNick();
+        String id = node.getId();
+        String key = (nick != null ? nick.toLowerCase() : "") + '\n'
+            + (id != null ? id.toLowerCase() : "");
+        if (key.equals(indexed.get(node))) {
+            // Unchanged. Fast path
+            return;
+        }
+        synchronized (tokens) {
+            String oldKey = indexed.put(node, key);
+            if (oldKey != null) {
+                for (String token : tokenize(oldKey)) {
+                    removeToken(token, node);
+                }
+            }
+            for (String token : tokenize(key)) {
+                Set<Member> nodes = tokens.get(token);
+                if (nodes == null) {
+                    nodes = Collections
+                        .newSetFromMap(new ConcurrentHashMap<Member, Boolean>(
+                            2));
+                    tokens.put(token, nodes);
+                }
+                nodes.add(node);
+            }
+        }
+    }
+
+    private void removeToken(String token, Member node) {
+        Set<Member> nodes = tokens.get(token);
+        if (nodes != null) {
+            nodes.remove(node);
+            if (nodes.isEmpty()) {
+                tokens.remove(token);
+            }
+        }
+    }
+
+    /**
+     * @param key
+     *            lower case nick and id, separated by newline
+     * @return the search tokens
+     */
+    private static Set<String> tokenize(String key) {
+        int sep = key.indexOf('\n');
+        String nick = key.substring(0, sep);
+        String id = key.substring(sep + 1);
+        Set<String> result = new HashSet<String>();
+        if (!nick.isEmpty()) {
+            result.add(nick);
+        }
+        if (!id.isEmpty()) {
+            result.add(id);
+        }
+        int start = -1;
+        for (int i = 0; i <= nick.length(); i++) {
+            boolean wordChar = i < nick.length()
+                && Character.isLetterOrDigit(nick.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                result.add(nick.substring(start, i));
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "NodeRegistry online: " + online.size() + ", supernodes: "
+            + supernodes.size() + ", search tokens: " + tokens.size();
+    }
+
+}
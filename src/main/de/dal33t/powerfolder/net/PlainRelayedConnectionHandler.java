@@ -55,8 +55,9 @@ public class PlainRelayedConnectionHandler extends
     @Override
     protected byte[] serialize(Message message) throws ConnectionException {
         try {
-            return getSerializer().serialize(message,
-                getMyIdentity().isUseCompressedStream(), -1);
+            boolean compressed = getMyIdentity().isUseCompressedStream();
+            return getSerializer().serialize(message, compressed,
+                compressed && isUseFastCompression(), -1);
         } catch (IOException e) {
             throw new ConnectionException(
                 "Unable to send message to peer, connection closed", e)
@@ -75,7 +76,11 @@ public class PlainRelayedConnectionHandler extends
             expectCompressed = getIdentity().isUseCompressedStream();
         }
         try {
-            return ByteSerializer.deserializeStatic(data, expectCompressed);
+            ByteSerializer serializer = getSerializer();
+            if (serializer == null) {
+                return ByteSerializer.deserializeStatic(data, expectCompressed);
+            }
+            return serializer.deserialize(data, expectCompressed);
         } catch (IOException e) {
             throw new ConnectionException(
                 "Unable to send message to peer, connection closed", e)
@@ -67,7 +67,11 @@ public class PlainSocketConnectionHandler extends
             expectCompressed = getIdentity().isUseCompressedStream();
         }
         try {
-            return ByteSerializer.deserializeStatic(data, expectCompressed);
+            ByteSerializer serializer = getSerializer();
+            if (serializer == null) {
+                return ByteSerializer.deserializeStatic(data, expectCompressed);
+            }
+            return serializer.deserialize(data, expectCompressed);
         } catch (IOException e) {
             throw new ConnectionException(
                 "Unable to read message from peer, connection closed", e)
@@ -83,7 +87,8 @@ public class PlainSocketConnectionHandler extends
             if (serializer == null) {
                 throw new IOException("Connection already closed");
             }
-            return serializer.serialize(message, compressed, -1);
+            return serializer.serialize(message, compressed,
+                compressed && isUseFastCompression(), -1);
         } catch (IOException e) {
             throw new ConnectionException(
                 "Unable to send message to peer, connection closed", e)
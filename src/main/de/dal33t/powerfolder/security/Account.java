@@ -222,6 +222,11 @@ public class Account implements Serializable, D2DObject {
     @LazyCollection(LazyCollectionOption.FALSE)
     private Collection<Permission> permissions;
 
+    /**
+     * Lookup structure over {@link #permissions}. Rebuilt on demand.
+     */
+    private transient volatile PermissionIndex permissionIndex;
+
     @ManyToMany
     @JoinTable(name = "Account_Groups", joinColumns = @JoinColumn(name = "Account_oid"), inverseJoinColumns = @JoinColumn(name = "AGroup_oid"))
     @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
@@ -298,7 +303,9 @@ public class Account implements Serializable, D2DObject {
                     continue;
                 }
             }
+            PermissionIndex index = getPermissionIndex();
             permissions.add(p);
+            index.added(p);
         }
         LOG.fine("Granted permission to " + this + ": "
                 + Arrays.asList(newPermissions));
@@ -307,7 +314,9 @@ public class Account implements Serializable, D2DObject {
     public synchronized void revoke(Permission... revokePermissions) {
         Reject.ifNull(revokePermissions, "Permission is null");
         for (Permission p : revokePermissions) {
+            PermissionIndex index = getPermissionIndex();
             if (permissions.remove(p)) {
+                index.removed(p);
                 LOG.fine("Revoked permission from " + this + ": " + p);
             }
         }
@@ -342,6 +351,7 @@ public class Account implements Serializable, D2DObject {
                     + permissions);
         }
         permissions.clear();
+        permissionIndex = null;
     }
 
     public boolean hasPermission(Permission permission) {
@@ -350,17 +360,8 @@ public class Account implements Serializable, D2DObject {
             LOG.severe("Illegal account " + username + ", permissions is null");
             return false;
         }
-        for (Permission p : permissions) {
-            if (p == null) {
-                LOG.severe("Got null permission on " + this);
-                continue;
-            }
-            if (p.equals(permission)) {
-                return true;
-            }
-            if (p.implies(permission)) {
-                return true;
-            }
+        if (getPermissionIndex().implies(permission)) {
+            return true;
         }
         for (Group g : groups) {
             if (g.hasPermission(permission)) {
@@ -371,34 +372,14 @@ public class Account implements Serializable, D2DObject {
     }
 
     public boolean hasAnyFolderAdmin() {
-        for (Permission p : permissions) {
-            if (p == null) {
-                continue;
-            }
-            if (p instanceof FolderPermission) {
-                AccessMode mode = ((FolderPermission) p).getMode();
-                if (mode.equals(AccessMode.ADMIN)
-                        || mode.equals(AccessMode.OWNER)) {
-                    return true;
-                }
-            }
+        if (getPermissionIndex().hasAnyFolderAdmin()) {
+            return true;
         }
-
         for (Group g : groups) {
-            for (Permission p : g.getPermissions()) {
-                if (p == null) {
-                    continue;
-                }
-                if (p instanceof FolderPermission) {
-                    AccessMode mode = ((FolderPermission) p).getMode();
-                    if (mode.equals(AccessMode.ADMIN)
-                            || mode.equals(AccessMode.OWNER)) {
-                        return true;
-                    }
-                }
+            if (g.getPermissionIndex().hasAnyFolderAdmin()) {
+                return true;
             }
         }
-
         return false;
     }
 
@@ -406,6 +387,20 @@ public class Account implements Serializable, D2DObject {
         return Collections.unmodifiableCollection(permissions);
     }
 
+    /**
+     * @return the index over the current permissions. Rebuilt if the
+     *         permissions were replaced or changed without it.
+     */
+    private PermissionIndex getPermissionIndex() {
+        PermissionIndex index = permissionIndex;
+        Collection<Permission> perms = permissions;
+        if (index == null || !index.isCurrent(perms)) {
+            index = new PermissionIndex(perms);
+            permissionIndex = index;
+        }
+        return index;
+    }
+
     /**
      * Returns the {@link FolderPermission} this {@link Account} has for a
      * certain {@code Folder}.
@@ -414,15 +409,11 @@ public class Account implements Serializable, D2DObject {
      * @return A FolderPermission with the correct {@code AccessMode}.
      */
     public FolderPermission getPermissionFor(FolderInfo foInfo) {
-        for (Permission perm : permissions) {
-            if (perm instanceof FolderPermission) {
-                FolderPermission foPerm = (FolderPermission) perm;
-                if (foPerm.getFolder().equals(foInfo)) {
-                    return foPerm;
-                }
-            }
+        FolderPermission foPerm = getPermissionIndex().getFolderPermission(
+                foInfo);
+        if (foPerm != null) {
+            return foPerm;
         }
-
         return FolderPermission.get(foInfo, AccessMode.NO_ACCESS);
     }
 
@@ -433,13 +424,8 @@ public class Account implements Serializable, D2DObject {
      * empty collection will be returned.
      */
     public Collection<OrganizationAdminPermission> getOrgAdminPermissions() {
-        Collection<OrganizationAdminPermission> orgAdmins = new ArrayList<>();
-        for (Permission perm : permissions) {
-            if (perm instanceof OrganizationAdminPermission) {
-                orgAdmins.add((OrganizationAdminPermission) perm);
-            }
-        }
-        return Collections.unmodifiableCollection(orgAdmins);
+        return Collections.unmodifiableCollection(getPermissionIndex()
+                .getOthers(OrganizationAdminPermission.class));
     }
 
     /**
@@ -480,13 +466,8 @@ public class Account implements Serializable, D2DObject {
             return true;
         }
 
-        for (Permission p : permissions) {
-            if (p instanceof OrganizationAdminPermission) {
-                return true;
-            }
-        }
-
-        return false;
+        return !getPermissionIndex().getOthers(
+                OrganizationAdminPermission.class).isEmpty();
     }
 
     public boolean isInSameOrganization(Account other) {
@@ -86,6 +86,11 @@ public class Group implements Serializable, D2DObject {
     @LazyCollection(LazyCollectionOption.FALSE)
     private Collection<Permission> permissions;
 
+    /**
+     * Lookup structure over {@link #permissions}. Rebuilt on demand.
+     */
+    private transient volatile PermissionIndex permissionIndex;
+
     /**
      * Serialization constructor
      */
@@ -111,22 +116,26 @@ public class Group implements Serializable, D2DObject {
         initFromD2D(mesg);
     }
 
-    public void grant(Permission... newPermissions) {
+    public synchronized void grant(Permission... newPermissions) {
         Reject.ifNull(newPermissions, "Permission is null");
         for (Permission p : newPermissions) {
             if (hasPermission(p)) {
                 // Skip
                 continue;
             } else {
+                PermissionIndex index = getPermissionIndex();
                 permissions.add(p);
+                index.added(p);
             }
         }
     }
 
-    public void revoke(Permission... revokePermission) {
+    public synchronized void revoke(Permission... revokePermission) {
         Reject.ifNull(revokePermission, "Permission is null");
         for (Permission p : revokePermission) {
+            PermissionIndex index = getPermissionIndex();
             if (permissions.remove(p)) {
+                index.removed(p);
                 LOG.fine("Revoked permission from " + this + ": " + p);
             }
         }
@@ -140,7 +149,7 @@ public class Group implements Serializable, D2DObject {
     public void revokeAllGroupAdminPermissions() {
         for (Permission p : permissions) {
             if (p instanceof GroupAdminPermission) {
-                permissions.remove(p);
+                revoke(p);
             }
         }
     }
@@ -148,7 +157,7 @@ public class Group implements Serializable, D2DObject {
     public void revokeAllOrgAdminPermissions() {
         for (Permission p : permissions) {
             if (p instanceof OrganizationAdminPermission) {
-                permissions.remove(p);
+                revoke(p);
             }
         }
     }
@@ -159,26 +168,27 @@ public class Group implements Serializable, D2DObject {
             LOG.severe("Illegal group " + name + ", permissions is null");
             return false;
         }
-        for (Permission p : permissions) {
-            if (p == null) {
-                LOG.severe("Got null permission on " + this);
-                continue;
-            }
-            if (p.equals(permission)) {
-                return true;
-            }
-            if (p.implies(permission)) {
-                return true;
-            }
-        }
-
-        return false;
+        return getPermissionIndex().implies(permission);
     }
 
     public Collection<Permission> getPermissions() {
         return Collections.unmodifiableCollection(permissions);
     }
 
+    /**
+     * @return the index over the current permissions. Rebuilt if the
+     *         permissions were replaced or changed without it.
+     */
+    PermissionIndex getPermissionIndex() {
+        PermissionIndex index = permissionIndex;
+        Collection<Permission> perms = permissions;
+        if (index == null || !index.isCurrent(perms)) {
+            index = new PermissionIndex(perms);
+            permissionIndex = index;
+        }
+        return index;
+    }
+
     public Collection<FolderInfo> getFolders() {
         Collection<FolderInfo> folder = new ArrayList<FolderInfo>(
             permissions.size());
@@ -201,13 +211,8 @@ public class Group implements Serializable, D2DObject {
      *         empty collection will be returned.
      */
     public Collection<OrganizationAdminPermission> getOrgAdminPermissions() {
-        Collection<OrganizationAdminPermission> orgAdmins = new ArrayList<>();
-        for (Permission perm : permissions) {
-            if (perm instanceof OrganizationAdminPermission) {
-                orgAdmins.add((OrganizationAdminPermission) perm);
-            }
-        }
-        return Collections.unmodifiableCollection(orgAdmins);
+        return Collections.unmodifiableCollection(getPermissionIndex()
+            .getOthers(OrganizationAdminPermission.class));
     }
 
     public String getOID() {
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.dal33t.powerfolder.light.FolderInfo;
+
+/**
+ * Index over the permissions of an {@link Account} or {@link Group}.
+ * <p>
+ * Read, read/write, admin and owner folder permissions are held in a map
+ * folder id -> strongest permission, so folder checks don't walk all
+ * permissions. All other permissions (e.g. {@link AdminPermission},
+ * {@link OrganizationAdminPermission}) are few and kept in a list that is
+ * checked with equals/implies as before.
+ * <p>
+ * Updated incrementally by the owner on grant/revoke. Detects changes to the
+ * source collection that bypassed it by reference and size, see
+ * {@link #isCurrent(Collection)}.
+ */
+final class PermissionIndex {
+    private final Collection<Permission> source;
+    private volatile int expectedSize;
+
+    private final ConcurrentMap<String, FolderPermission> folders = new ConcurrentHashMap<>();
+    private final Collection<Permission> others = new CopyOnWriteArrayList<>();
+    /** Number of folders with admin or owner permission */
+    private final AtomicInteger adminFolders = new AtomicInteger();
+
+    PermissionIndex(Collection<Permission> source) {
+        this.source = source;
+        // Size before content: A concurrent change leads to a rebuild.
+        expectedSize = source.size();
+        for (Permission p : source) {
+            index(p);
+        }
+    }
+
+    /**
+     * @param permissions
+     *            the current permissions of the owner.
+     * @return true if this index still represents the given permissions.
+     */
+    boolean isCurrent(Collection<Permission> permissions) {
+        return permissions == source && permissions.size() == expectedSize;
+    }
+
+    /**
+     * Call after adding a permission to the source.
+     */
+    synchronized void added(Permission p) {
+        index(p);
+        expectedSize = source.size();
+    }
+
+    /**
+     * Call after removing a permission from the source.
+     */
+    synchronized void removed(Permission p) {
+        // FolderPermission.equals only compares the folder. The removed
+        // element might be another permission on that folder.
+        FolderInfo foInfo = p instanceof FolderPermission
+            ? ((FolderPermission) p).getFolder()
+            : null;
+        if (foInfo != null) {
+            reindexFolder(foInfo);
+        } else {
+            others.remove(p);
+        }
+        expectedSize = source.size();
+    }
+
+    /**
+     * @param permission
+     * @return true if any of the permissions equals or implies the given
+     *         permission.
+     */
+    boolean implies(Permission permission) {
+        AccessMode required = getRequiredMode(permission);
+        if (required != null) {
+            FolderInfo foInfo = ((FolderPermission) permission).getFolder();
+            FolderPermission held = foInfo != null
+                ? folders.get(foInfo.id)
+                : null;
+            if (held != null
+                && held.getMode().ordinal() >= required.ordinal())
+            {
+                return true;
+            }
+        }
+        for (Permission p : others) {
+            if (p.equals(permission) || p.implies(permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param foInfo
+     * @return the strongest read, read/write, admin or owner permission on
+     *         the folder. Falls back to any other folder permission on it.
+     *         null if none.
+     */
+    FolderPermission getFolderPermission(FolderInfo foInfo) {
+        FolderPermission held = folders.get(foInfo.id);
+        if (held != null) {
+            return held;
+        }
+        for (Permission p : others) {
+            if (p instanceof FolderPermission
+                && foInfo.equals(((FolderPermission) p).getFolder()))
+            {
+                return (FolderPermission) p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if there is admin or owner permission on any folder.
+     */
+    boolean hasAnyFolderAdmin() {
+        if (adminFolders.get() > 0) {
+            return true;
+        }
+        for (Permission p : others) {
+            if (p instanceof FolderPermission
+                && isAdminMode(((FolderPermission) p).getMode()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param type
+     * @return all non folder permissions of the given type.
+     */
+    <P extends Permission> List<P> getOthers(Class<P> type) {
+        List<P> result = new ArrayList<>();
+        for (Permission p : others) {
+            if (type.isInstance(p)) {
+                result.add(type.cast(p));
+            }
+        }
+        return result;
+    }
+
+    // Internal helper ********************************************************
+
+    private void index(Permission p) {
+        if (p == null) {
+            return;
+        }
+        String folderId = getIndexedFolderId(p);
+        if (folderId == null) {
+            others.add(p);
+            return;
+        }
+        FolderPermission fp = (FolderPermission) p;
+        FolderPermission held = folders.get(folderId);
+        if (held != null
+            && held.getMode().ordinal() >= fp.getMode().ordinal())
+        {
+            return;
+        }
+        folders.put(folderId, fp);
+        if (isAdminMode(fp.getMode())
+            && (held == null || !isAdminMode(held.getMode())))
+        {
+            adminFolders.incrementAndGet();
+        }
+    }
+
+    private void reindexFolder(FolderInfo foInfo) {
+        FolderPermission held = folders.remove(foInfo.id);
+        if (held != null && isAdminMode(held.getMode())) {
+            adminFolders.decrementAndGet();
+        }
+        for (Permission p : others) {
+            if (isOnFolder(p, foInfo)) {
+                others.remove(p);
+            }
+        }
+        for (Permission p : source) {
+            if (isOnFolder(p, foInfo)) {
+                index(p);
+            }
+        }
+    }
+
+    private static boolean isOnFolder(Permission p, FolderInfo foInfo) {
+        return p instanceof FolderPermission
+            && foInfo.equals(((FolderPermission) p).getFolder());
+    }
+
+    /**
+     * @return the folder id if p is a read, read/write, admin or owner
+     *         permission on a folder, otherwise null.
+     */
+    private static String getIndexedFolderId(Permission p) {
+        if (p == null) {
+            return null;
+        }
+        Class<?> type = p.getClass();
+        if (type != FolderReadPermission.class
+            && type != FolderReadWritePermission.class
+            && type != FolderAdminPermission.class
+            && type != FolderOwnerPermission.class)
+        {
+            return null;
+        }
+        FolderInfo foInfo = ((FolderPermission) p).getFolder();
+        return foInfo != null ? foInfo.id : null;
+    }
+
+    /**
+     * @return the minimum mode of a held folder permission that implies the
+     *         given permission. null if it is no (known) folder permission.
+     */
+    private static AccessMode getRequiredMode(Permission p) {
+        Class<?> type = p.getClass();
+        if (type == FolderReadPermission.class
+            || type == FolderDeletePermission.class)
+        {
+            return AccessMode.READ;
+        } else if (type == FolderReadWritePermission.class) {
+            return AccessMode.READ_WRITE;
+        } else if (type == FolderAdminPermission.class) {
+            return AccessMode.ADMIN;
+        } else if (type == FolderOwnerPermission.class) {
+            return AccessMode.OWNER;
+        }
+        return null;
+    }
+
+    private static boolean isAdminMode(AccessMode mode) {
+        return mode == AccessMode.ADMIN || mode == AccessMode.OWNER;
+    }
+}
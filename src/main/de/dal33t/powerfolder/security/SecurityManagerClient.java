@@ -24,11 +24,19 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Controller;
@@ -39,12 +47,16 @@ import de.dal33t.powerfolder.clientserver.RemoteCallException;
 import de.dal33t.powerfolder.clientserver.ServerClient;
 import de.dal33t.powerfolder.clientserver.ServerClientEvent;
 import de.dal33t.powerfolder.clientserver.ServerClientListener;
+import de.dal33t.powerfolder.disk.Folder;
 import de.dal33t.powerfolder.event.ListenerSupportFactory;
 import de.dal33t.powerfolder.light.AccountInfo;
 import de.dal33t.powerfolder.light.FolderInfo;
 import de.dal33t.powerfolder.light.MemberInfo;
 import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.metrics.Counter;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+import de.dal33t.powerfolder.util.metrics.Timer;
 
 /**
  * The security manager for the client.
@@ -59,6 +71,22 @@ public class SecurityManagerClient extends PFComponent implements
     private static final boolean CACHE_ENABLED = true;
     private static final int MAX_REQUEST_ACCOUNT_INFOS = 21;
 
+    /**
+     * Time to wait for further permission requests of the same account to
+     * send them to the server in one request.
+     */
+    private static final long PERMISSION_BATCH_WINDOW_MS = 25;
+
+    /**
+     * Maximum number of permissions asked for in one request.
+     */
+    static final int MAX_REQUEST_PERMISSIONS = 250;
+
+    private static final Timer PERMISSION_CHECK_TIMER = Metrics
+        .timer("security.permission.check");
+    private static final Counter PERMISSION_REQUESTS = Metrics
+        .counter("security.permission.requests");
+
     private static final AccountInfo NULL_ACCOUNT = new AccountInfo(null, null)
     {
         private static final long serialVersionUID = 1L;
@@ -73,6 +101,18 @@ public class SecurityManagerClient extends PFComponent implements
     private Map<Member, Session> sessions;
     private Map<AccountInfo, PermissionsCacheSegment> permissionsCacheAccounts;
 
+    /**
+     * Batches of permission requests per account not yet sent to the server.
+     */
+    private final ConcurrentMap<AccountInfo, PermissionBatch> permissionBatches = new ConcurrentHashMap<>();
+
+    /**
+     * Pending or running permission requests per account and folder (or non
+     * folder permission). Concurrent checks of the same folder wait for the
+     * same request.
+     */
+    private final ConcurrentMap<PermissionRequestKey, PermissionBatch> permissionRequests = new ConcurrentHashMap<>();
+
     public SecurityManagerClient(Controller controller, ServerClient client) {
         super(controller);
         Reject.ifNull(client, "Client is null");
@@ -111,8 +151,6 @@ public class SecurityManagerClient extends PFComponent implements
         client.logout();
     }
 
-    private final Object requestPermissionLock = new Object();
-
     public boolean hasPermission(MemberInfo memberInfo, Permission permission) {
         Member m = memberInfo.getNode(getController(), true);
         if (m.isServer()) {
@@ -141,6 +179,17 @@ public class SecurityManagerClient extends PFComponent implements
     }
 
     public boolean hasPermission(AccountInfo accountInfo, Permission permission)
+    {
+        long start = Metrics.start();
+        try {
+            return checkPermission(accountInfo, permission);
+        } finally {
+            PERMISSION_CHECK_TIMER.stop(start);
+        }
+    }
+
+    private boolean checkPermission(AccountInfo accountInfo,
+        Permission permission)
     {
         if (accountInfo != null && client.isLoggedIn()
             && client.getAccount().createInfo().equals(accountInfo))
@@ -151,45 +200,21 @@ public class SecurityManagerClient extends PFComponent implements
             }
         }
         try {
-            Boolean hasPermission;
-            PermissionsCacheSegment cache = permissionsCacheAccounts
-                .get(nullSafeGet(accountInfo));
-            if (cache != null) {
-                hasPermission = cache.hasPermission(permission);
-            } else {
-                // Create cache
-                hasPermission = null;
-                cache = new PermissionsCacheSegment();
-                permissionsCacheAccounts.put(nullSafeGet(accountInfo), cache);
-            }
+            PermissionsCacheSegment cache = getPermissionsCache(accountInfo);
+            Boolean hasPermission = cache.hasPermission(permission);
             String source;
             if (!CACHE_ENABLED) {
                 hasPermission = null;
             }
             if (hasPermission == null) {
                 if (client.isConnected() && client.isLoggedIn()) {
-                    synchronized (requestPermissionLock) {
-                        // Re-check cache
-                        PermissionsCacheSegment secondCheck = permissionsCacheAccounts
-                            .get(nullSafeGet(accountInfo));
-                        hasPermission = secondCheck != null ? secondCheck
-                            .hasPermission(permission) : null;
-                        if (!CACHE_ENABLED) {
-                            hasPermission = null;
-                        }
-                        if (hasPermission == null) {
-                            hasPermission = retrievePermission(accountInfo,
-                                permission, cache);
-                            source = "recvd";
-                            if (isFine()) {
-                                logFine("(" + source + ") "
-                                    + nullSafeGet(accountInfo) + " has "
-                                    + (hasPermission ? "" : "NOT ")
-                                    + permission);
-                            }
-                        } else {
-                            source = "cache";
-                        }
+                    hasPermission = retrievePermission(accountInfo,
+                        permission, cache);
+                    source = "recvd";
+                    if (isFine()) {
+                        logFine("(" + source + ") " + nullSafeGet(accountInfo)
+                            + " has " + (hasPermission ? "" : "NOT ")
+                            + permission);
                     }
                 } else {
                     hasPermission = hasPermissionDisconnected(permission);
@@ -212,13 +237,88 @@ public class SecurityManagerClient extends PFComponent implements
         }
     }
 
+    private PermissionsCacheSegment getPermissionsCache(AccountInfo aInfo) {
+        AccountInfo key = nullSafeGet(aInfo);
+        PermissionsCacheSegment cache = permissionsCacheAccounts.get(key);
+        if (cache == null) {
+            cache = new PermissionsCacheSegment();
+            PermissionsCacheSegment existing = permissionsCacheAccounts
+                .putIfAbsent(key, cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    private void clearPermissionsCache() {
+        permissionsCacheAccounts.clear();
+        // Don't join requests started before
+        permissionBatches.clear();
+        permissionRequests.clear();
+    }
+
     private Boolean retrievePermission(AccountInfo aInfo,
         Permission permission, PermissionsCacheSegment cache)
     {
         if (aInfo == null || aInfo.getOID() == null) {
             return Boolean.FALSE;
         }
+        PermissionBatch batch = enqueuePermission(aInfo, permission, cache);
+        batch.await();
+        Boolean result = batch.getResult(permission);
+        if (result != null) {
+            return result;
+        }
+        // Should not happen. Single request.
+        PERMISSION_REQUESTS.increment();
+        boolean singleResult = client.getSecurityService().hasPermission(aInfo,
+            permission);
+        cache.set(permission, singleResult);
+        return singleResult;
+    }
+
+    /**
+     * Adds the permission to the batch of requests of the account or returns
+     * the batch that already requests it.
+     *
+     * @return the batch the result will be available at.
+     */
+    PermissionBatch enqueuePermission(AccountInfo aInfo,
+        Permission permission, PermissionsCacheSegment cache)
+    {
+        PermissionRequestKey key = new PermissionRequestKey(aInfo, permission);
+        PermissionBatch running = permissionRequests.get(key);
+        if (running != null && running.contains(permission)) {
+            return running;
+        }
+        while (true) {
+            PermissionBatch batch = permissionBatches.get(aInfo);
+            if (batch == null) {
+                batch = new PermissionBatch(aInfo, cache);
+                PermissionBatch existing = permissionBatches.putIfAbsent(
+                    aInfo, batch);
+                if (existing != null) {
+                    batch = existing;
+                }
+            }
+            if (batch.add(key, permission)) {
+                return batch;
+            }
+            // Already sent or full
+            permissionBatches.remove(aInfo, batch);
+        }
+    }
 
+    /**
+     * Requests the permissions from the server.
+     *
+     * @return the results by permission id.
+     */
+    Map<String, Boolean> requestPermissions(AccountInfo aInfo,
+        List<Permission> permissions)
+    {
+        Map<String, Boolean> results = new HashMap<>(permissions.size() * 2);
         boolean supportsBulkRequest = false;
         try {
             supportsBulkRequest = Util.compareVersions(client.getServer()
@@ -226,38 +326,24 @@ public class SecurityManagerClient extends PFComponent implements
         } catch (Exception e) {
         }
 
-        if (supportsBulkRequest && permission instanceof FolderPermission) {
-            // Optimization. Request all folder permissions in bulk
-            FolderPermission fp = (FolderPermission) permission;
-            FolderInfo foInfo = fp.folder;
+        if (supportsBulkRequest) {
             if (isFine()) {
-                logFine("Using bulk permission request for " + aInfo + " on "
-                    + foInfo);
+                logFine("Using bulk permission request for " + aInfo + ": "
+                    + permissions.size() + " permissions");
             }
-
-            List<Permission> permissions = new ArrayList<Permission>(5);
-            permissions.add(permission);
-            permissions.add(FolderPermission.read(foInfo));
-            permissions.add(FolderPermission.readWrite(foInfo));
-            permissions.add(FolderPermission.admin(foInfo));
-            permissions.add(FolderPermission.owner(foInfo));
-
             try {
+                PERMISSION_REQUESTS.increment();
                 List<Boolean> result = client.getSecurityService()
                     .hasPermissions(aInfo, permissions);
-
-                cache.set(FolderPermission.read(foInfo), result.get(1));
-                cache.set(FolderPermission.readWrite(foInfo), result.get(2));
-                cache.set(FolderPermission.admin(foInfo), result.get(3));
-                cache.set(FolderPermission.owner(foInfo), result.get(4));
-
-                // Original request.
-                return result.get(0);
+                for (int i = 0; i < permissions.size(); i++) {
+                    results.put(permissions.get(i).getId(), result.get(i));
+                }
+                return results;
             } catch (RemoteCallException e) {
                 if (e.getCause() instanceof NoSuchMethodException) {
                     // Fallthrough. Use single method.
                     logWarning("Unable to retrieve permissions in bulk. Falling back to legacy call. "
-                        + aInfo + " has? " + permission);
+                        + aInfo + " has? " + permissions);
                 } else {
                     throw e;
                 }
@@ -265,11 +351,56 @@ public class SecurityManagerClient extends PFComponent implements
         }
 
         // Single request / Legacy call.
-        boolean singleResult = client.getSecurityService().hasPermission(aInfo,
-            permission);
-        cache.set(permission, singleResult);
-        return singleResult;
+        for (Permission permission : permissions) {
+            PERMISSION_REQUESTS.increment();
+            results.put(permission.getId(), client.getSecurityService()
+                .hasPermission(aInfo, permission));
+        }
+        return results;
+    }
 
+    /**
+     * Requests the folder permissions of all members of all folders, so
+     * checks after login are answered from the cache.
+     */
+    private void prefetchPermissions() {
+        if (!client.isConnected() || !client.isLoggedIn()) {
+            return;
+        }
+        Set<PermissionBatch> batches = new LinkedHashSet<>();
+        for (Folder folder : getController().getFolderRepository()
+            .getFolders())
+        {
+            Permission permission = FolderPermission.read(folder.getInfo());
+            for (Member member : folder.getMembersAsCollection()) {
+                Session session = sessions.get(member);
+                AccountInfo aInfo = session != null ? session
+                    .getAccountInfo() : null;
+                if (aInfo == null || aInfo.getOID() == null) {
+                    continue;
+                }
+                PermissionsCacheSegment cache = getPermissionsCache(aInfo);
+                if (cache.hasPermission(permission) == null) {
+                    batches.add(enqueuePermission(aInfo, permission, cache));
+                }
+            }
+        }
+        if (batches.isEmpty()) {
+            return;
+        }
+        if (isFine()) {
+            logFine("Pre-fetching permissions in " + batches.size()
+                + " requests");
+        }
+        for (PermissionBatch batch : batches) {
+            try {
+                batch.await();
+            } catch (RemoteCallException e) {
+                logWarning("Unable to pre-fetch permissions. " + e);
+                logFiner(e);
+                return;
+            }
+        }
     }
 
     private Boolean hasPermissionDisconnected(Permission permission) {
@@ -542,6 +673,7 @@ public class SecurityManagerClient extends PFComponent implements
                 boolean server = false;
                 if (client.isPrimaryServer(node) && node.isConnected()) {
                     prefetchAccountInfos();
+                    prefetchPermissions();
                     server = true;
                 }
 
@@ -585,13 +717,17 @@ public class SecurityManagerClient extends PFComponent implements
 
         public void login(ServerClientEvent event) {
             if (event.isLoginSuccess()) {
-                permissionsCacheAccounts.clear();
+                clearPermissionsCache();
+                if (getController().isStarted()) {
+                    getController().getIOProvider().startIO(
+                        SecurityManagerClient.this::prefetchPermissions);
+                }
             }
         }
 
         public void accountUpdated(ServerClientEvent event) {
             if (event.isLoginSuccess()) {
-                permissionsCacheAccounts.clear();
+                clearPermissionsCache();
             }
         }
 
@@ -632,4 +768,165 @@ public class SecurityManagerClient extends PFComponent implements
             return permissions.get(permission);
         }
     }
+
+    /**
+     * Identifies a permission request: The account and the folder or, for non
+     * folder permissions, the permission itself.
+     */
+    private static final class PermissionRequestKey {
+        private final AccountInfo aInfo;
+        private final String target;
+
+        PermissionRequestKey(AccountInfo aInfo, Permission permission) {
+            this.aInfo = aInfo;
+            this.target = permission instanceof FolderPermission
+                ? ((FolderPermission) permission).getFolder().id
+                : permission.getId();
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * aInfo.hashCode() + target.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof PermissionRequestKey)) {
+                return false;
+            }
+            PermissionRequestKey other = (PermissionRequestKey) obj;
+            return aInfo.equals(other.aInfo) && target.equals(other.target);
+        }
+    }
+
+    /**
+     * Permission requests of one account collected during
+     * {@link #PERMISSION_BATCH_WINDOW_MS} and sent in one request. The first
+     * thread waiting for the result sends it.
+     */
+    final class PermissionBatch {
+        private final AccountInfo aInfo;
+        private final PermissionsCacheSegment cache;
+        private final long created = System.currentTimeMillis();
+        /** Permissions by id. Guarded by this. */
+        private final Map<String, Permission> permissions = new LinkedHashMap<>();
+        private final Set<PermissionRequestKey> keys = new LinkedHashSet<>();
+        /** No more permissions accepted. Guarded by this. */
+        private boolean closed;
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private final CompletableFuture<Map<String, Boolean>> results = new CompletableFuture<>();
+
+        PermissionBatch(AccountInfo aInfo, PermissionsCacheSegment cache) {
+            this.aInfo = aInfo;
+            this.cache = cache;
+        }
+
+        /**
+         * @return false if the batch was already sent or has no room for the
+         *         permission. Never exceeds {@link #MAX_REQUEST_PERMISSIONS}.
+         */
+        synchronized boolean add(PermissionRequestKey key,
+            Permission permission)
+        {
+            if (closed) {
+                return false;
+            }
+            Map<String, Permission> adding = new LinkedHashMap<>();
+            adding.put(permission.getId(), permission);
+            if (permission instanceof FolderPermission) {
+                // Optimization. Request all folder permissions in bulk
+                FolderInfo foInfo = ((FolderPermission) permission).folder;
+                for (Permission p : new Permission[]{
+                    FolderPermission.read(foInfo),
+                    FolderPermission.readWrite(foInfo),
+                    FolderPermission.admin(foInfo),
+                    FolderPermission.owner(foInfo)})
+                {
+                    adding.put(p.getId(), p);
+                }
+            }
+            adding.keySet().removeAll(permissions.keySet());
+            if (!permissions.isEmpty()
+                && permissions.size() + adding.size() > MAX_REQUEST_PERMISSIONS)
+            {
+                // Full. Continue in a new batch
+                return false;
+            }
+            permissions.putAll(adding);
+            keys.add(key);
+            permissionRequests.put(key, this);
+            return true;
+        }
+
+        synchronized boolean contains(Permission permission) {
+            return permissions.containsKey(permission.getId());
+        }
+
+        Boolean getResult(Permission permission) {
+            return results.getNow(Collections.<String, Boolean> emptyMap())
+                .get(permission.getId());
+        }
+
+        /**
+         * Waits for the results. Sends the request if no other thread does.
+         *
+         * @throws RemoteCallException
+         *             if the request failed.
+         */
+        void await() {
+            if (sending.compareAndSet(false, true)) {
+                send();
+            }
+            try {
+                results.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteCallException("Interrupted while waiting for "
+                    + "permissions of " + aInfo, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RemoteCallException) {
+                    throw (RemoteCallException) e.getCause();
+                }
+                throw new RemoteCallException(e.getCause());
+            }
+        }
+
+        private void send() {
+            long wait = created + PERMISSION_BATCH_WINDOW_MS
+                - System.currentTimeMillis();
+            if (wait > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            List<Permission> request;
+            synchronized (this) {
+                closed = true;
+                request = new ArrayList<>(permissions.values());
+            }
+            permissionBatches.remove(aInfo, this);
+            try {
+                Map<String, Boolean> received = requestPermissions(aInfo,
+                    request);
+                for (Permission p : request) {
+                    Boolean hasPermission = received.get(p.getId());
+                    if (hasPermission != null) {
+                        cache.set(p, hasPermission);
+                    }
+                }
+                results.complete(received);
+            } catch (RuntimeException e) {
+                results.completeExceptionally(e);
+            } finally {
+                for (PermissionRequestKey key : keys) {
+                    permissionRequests.remove(key, this);
+                }
+            }
+        }
+    }
 }
@@ -23,17 +23,23 @@ import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.util.NamedThreadFactory;
 import de.dal33t.powerfolder.util.Waiter;
 
 /**
@@ -43,6 +49,11 @@ import de.dal33t.powerfolder.util.Waiter;
  * working properly. (In an older revision they actually are killed after a
  * certain amount of time. I removed it because those tasks represent real
  * "faulty" implementations which need to be fixed.)
+ * <p>
+ * Added and removed tasks are written to a {@link TaskJournal} immediately,
+ * so they survive a crash. The journal is compacted on start, on shutdown and
+ * when it contains mostly removed tasks. Tasks are initialized on a small
+ * pool of threads of this manager.
  *
  * @author Dennis "Bytekeeper" Waldherr </a>
  * @version $Revision$
@@ -54,24 +65,39 @@ public class PersistentTaskManager extends PFComponent {
     
     // PFC-2832
     private static final int WAIT_PENDING_TASKS_TIMEOUT_SECONDS = 30;
-    
-    private List<PersistentTask> tasks;
+
+    private static final int INIT_THREADS = 4;
+
+    /**
+     * Compact the journal if it has more records than this and twice the
+     * number of tasks.
+     */
+    private static final int COMPACT_MIN_RECORDS = 1000;
+
+    /**
+     * Task -> id in the journal.
+     */
+    private Map<PersistentTask, Long> tasks;
     /**
      * Pending tasks that await initialization.
      */
     private List<PersistentTask> pendingTasks;
     private volatile boolean shuttingDown = false;
+    private TaskJournal journal;
+    private long nextTaskId;
+    private int sendMessageTasks;
+    private ThreadPoolExecutor initExecutor;
 
     public PersistentTaskManager(Controller controller) {
         super(controller);
     }
 
     /**
-     * Returns the file which represents the persistent store of tasks.
+     * Returns the file of the tasks stored by previous versions.
      *
      * @return the tasklist-file
      */
-    private Path getTaskFile() {
+    Path getTaskFile() {
         String filename = getController().getConfigName() + ".tasks";
         Path taskFile = Controller.getMiscFilesLocation().resolve(filename);
         try {
@@ -83,60 +109,109 @@ public class PersistentTaskManager extends PFComponent {
         }
     }
 
+    /**
+     * @return the file of the task journal.
+     */
+    Path getJournalFile() {
+        Path taskFile = getTaskFile();
+        if (taskFile == null) {
+            return null;
+        }
+        return taskFile.resolveSibling(taskFile.getFileName() + ".journal");
+    }
+
     /**
      * Starts this manager.
      */
     public synchronized void start() {
         shuttingDown = false;
         pendingTasks = new Vector<PersistentTask>();
+        initExecutor = new ThreadPoolExecutor(INIT_THREADS, INIT_THREADS, 60,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new NamedThreadFactory("PersistentTask-"));
+        initExecutor.allowCoreThreadTimeOut(true);
+
+        Map<Long, PersistentTask> loaded = new LinkedHashMap<Long, PersistentTask>();
+        Path journalFile = getJournalFile();
+        if (journalFile != null) {
+            journal = new TaskJournal(journalFile);
+            try {
+                loaded = journal.recover();
+            } catch (IOException e) {
+                // Keep the journal and the legacy file for the next start.
+                logSevere("Unable to read task journal " + journalFile
+                    + ". Tasks of this session will not be saved: " + e, e);
+                journal = null;
+            }
+        }
+        for (Long id : loaded.keySet()) {
+            nextTaskId = Math.max(nextTaskId, id + 1);
+        }
         Path taskfile = getTaskFile();
-        if (taskfile != null && Files.exists(taskfile)) {
-            logFine("Loading taskfile: " + taskfile);
-            try (ObjectInputStream oin = new ObjectInputStream(Files.newInputStream(taskfile))) {
-                tasks = new LinkedList<PersistentTask>();
-                PersistentTask task = null;
-                while (true) {
-                    try {
-                        task = (PersistentTask) oin.readObject();
-                    } catch (ClassNotFoundException e) {
-                        logSevere("ClassNotFoundException", e);
-                        continue;
-                    } catch (ClassCastException e) {
-                        logSevere("ClassCastException", e);
-                        continue;
-                    }
-                    if (task == null) {
-                        break;
-                    }
-                    tasks.add(task);
+        boolean legacyTaskfile = taskfile != null && Files.exists(taskfile);
+        if (legacyTaskfile) {
+            for (PersistentTask task : loadTaskFile(taskfile)) {
+                loaded.put(nextTaskId++, task);
+            }
+        }
+        logInfo("Loaded " + loaded.size() + " tasks.");
+
+        tasks = new LinkedHashMap<PersistentTask, Long>();
+        for (Map.Entry<Long, PersistentTask> entry : loaded.entrySet()) {
+            add(entry.getValue(), entry.getKey());
+        }
+        if (journal != null) {
+            try {
+                journal.compact(loaded);
+                if (legacyTaskfile) {
+                    Files.delete(taskfile);
                 }
-                oin.close();
-                logInfo("Loaded " + tasks.size() + " tasks.");
-            } catch (FileNotFoundException e) {
-                logSevere("FileNotFoundException", e);
-            } catch (EOFException e) {
-                // End of File. OK!
             } catch (IOException e) {
-                logSevere("IOException", e);
-            } catch (ClassCastException e) {
-                logSevere("ClassCastException", e);
+                logSevere("Unable to write task journal " + journalFile + ": "
+                    + e, e);
             }
-        } else {
-            logInfo("No taskfile found - probably first start of PF.");
         }
-        // If no taskfile was found or errors occurred while loading it
-        if (tasks == null) {
-            tasks = new LinkedList<PersistentTask>();
+        for (PersistentTask t : loaded.values()) {
+            initialize(t, true);
         }
-        for (PersistentTask t : tasks.toArray(new PersistentTask[tasks.size()]))
-        {
-            try {
-                t.init(this);
-            } catch (RuntimeException e) {
-                logSevere("RuntimeException", e);
-                tasks.remove(t);
+    }
+
+    /**
+     * Reads the tasks saved by previous versions.
+     *
+     * @param taskfile
+     * @return the tasks
+     */
+    private List<PersistentTask> loadTaskFile(Path taskfile) {
+        logFine("Loading taskfile: " + taskfile);
+        List<PersistentTask> loaded = new LinkedList<PersistentTask>();
+        try (ObjectInputStream oin = new ObjectInputStream(Files.newInputStream(taskfile))) {
+            PersistentTask task = null;
+            while (true) {
+                try {
+                    task = (PersistentTask) oin.readObject();
+                } catch (ClassNotFoundException e) {
+                    logSevere("ClassNotFoundException", e);
+                    continue;
+                } catch (ClassCastException e) {
+                    logSevere("ClassCastException", e);
+                    continue;
+                }
+                if (task == null) {
+                    break;
+                }
+                loaded.add(task);
             }
+        } catch (FileNotFoundException e) {
+            logSevere("FileNotFoundException", e);
+        } catch (EOFException e) {
+            // End of File. OK!
+        } catch (IOException e) {
+            logSevere("IOException", e);
+        } catch (ClassCastException e) {
+            logSevere("ClassCastException", e);
         }
+        return loaded;
     }
 
     /**
@@ -150,24 +225,30 @@ public class PersistentTaskManager extends PFComponent {
             logFine("Shutdown before initialization!");
             return;
         }
+        // Not yet initialized tasks stay in the journal for the next start.
+        List<Runnable> notStarted = new ArrayList<Runnable>();
+        initExecutor.getQueue().drainTo(notStarted);
+        for (Runnable r : notStarted) {
+            pendingTasks.remove(((Initializer) r).task);
+        }
+        initExecutor.shutdown();
         waitForPendingTasks();
-        for (PersistentTask t : tasks) {
+        for (PersistentTask t : tasks.keySet()) {
             try {
                 t.shutdown();
             } catch (RuntimeException e) {
                 logSevere("RuntimeException", e);
             }
         }
-        Path taskFile = getTaskFile();
-        try (ObjectOutputStream oout = new ObjectOutputStream(Files.newOutputStream(taskFile))) {
-            logInfo("There are " + tasks.size() + " tasks not completed yet.");
-            for (PersistentTask task : tasks) {
-                oout.writeUnshared(task);
+        logInfo("There are " + tasks.size() + " tasks not completed yet.");
+        if (journal != null) {
+            try {
+                // Latest state of the tasks
+                journal.compact(getTasksById());
+                journal.close();
+            } catch (IOException e) {
+                logSevere("IOException", e);
             }
-        } catch (FileNotFoundException e) {
-            logSevere("FileNotFoundException", e);
-        } catch (IOException e) {
-            logSevere("IOException", e);
         }
     }
 
@@ -177,7 +258,7 @@ public class PersistentTaskManager extends PFComponent {
 
     /**
      * Schedules a new task. The given task will be started as soon as possible
-     * by the shared ThreadPool of the Controller class.
+     * by the threads of this manager.
      *
      * @param task
      *            the task to start
@@ -189,31 +270,26 @@ public class PersistentTaskManager extends PFComponent {
                     + task, new RuntimeException("here"));
             return;
         }
-        if (!tasks.contains(task) && !shuttingDown) {
+        if (!tasks.containsKey(task) && !shuttingDown) {
             if (isFine()) {
                 logFine("Adding " + task);
             }
-            tasks.add(task);
-            Runnable adder = new Runnable() {
-                public void run() {
-                    try {
-                        task.init(PersistentTaskManager.this);
-                    } finally {
-                        pendingTasks.remove(task);
-                        synchronized (PersistentTaskManager.this) {
-                            PersistentTaskManager.this.notify();
-                        }
-                    }
+            long id = nextTaskId++;
+            add(task, id);
+            if (journal != null) {
+                try {
+                    journal.added(id, task);
+                } catch (IOException e) {
+                    logWarning("Unable to write task journal: " + e);
                 }
-            };
-            pendingTasks.add(task);
-            getController().getThreadPool().execute(adder);
+            }
+            initialize(task, false);
         }
     }
 
     /**
-     * Shuts down and removes a given task. This method will block until all
-     * tasks are properly initialized before removing the given task.
+     * Shuts down and removes a given task. Does not wait for other tasks
+     * being initialized.
      *
      * @param task
      *            the task to remove
@@ -221,15 +297,12 @@ public class PersistentTaskManager extends PFComponent {
     public synchronized void removeTask(PersistentTask task) {
         boolean oldSD = shuttingDown;
         shuttingDown = true;
-        if (pendingTasks.contains(task)) {
-            pendingTasks.remove(task);
-        } else {
-            waitForPendingTasks();
-        }
+        pendingTasks.remove(task);
         if (oldSD == false) { // Prevent cyclic calls from task.shutdown() ->
             // task.remove() on faulty tasks.
             task.shutdown();
-            tasks.remove(task);
+            remove(task);
+            compactIfRequired();
         } else {
             logInfo(task
                 + " shouldn't call remove() in shutdown(), it will automatically be removed!");
@@ -246,9 +319,13 @@ public class PersistentTaskManager extends PFComponent {
         boolean oldSD = shuttingDown;
         shuttingDown = true;
         waitForPendingTasks();
-        while (!tasks.isEmpty()) {
-            tasks.remove(0).shutdown();
+        for (PersistentTask task : new ArrayList<PersistentTask>(
+            tasks.keySet()))
+        {
+            remove(task);
+            task.shutdown();
         }
+        compactIfRequired();
         shuttingDown = oldSD;
     }
 
@@ -280,22 +357,108 @@ public class PersistentTaskManager extends PFComponent {
         if (tasks == null) {
             return false;
         }
-        for (PersistentTask task : tasks) {
-            if (task instanceof SendMessageTask) {
-                if (isFiner()) {
-                    logFiner("Found pending message(s). total active tasks: "
-                        + tasks.size());
+        if (sendMessageTasks > 0 && isFiner()) {
+            logFiner("Found pending message(s). total active tasks: "
+                + tasks.size());
+        }
+        return sendMessageTasks > 0;
+    }
+
+    private void add(PersistentTask task, long id) {
+        tasks.put(task, id);
+        if (task instanceof SendMessageTask) {
+            sendMessageTasks++;
+        }
+    }
+
+    private void remove(PersistentTask task) {
+        Long id = tasks.remove(task);
+        if (id == null) {
+            return;
+        }
+        if (task instanceof SendMessageTask) {
+            sendMessageTasks--;
+        }
+        if (journal != null) {
+            try {
+                journal.removed(id);
+            } catch (IOException e) {
+                logWarning("Unable to write task journal: " + e);
+            }
+        }
+    }
+
+    private Map<Long, PersistentTask> getTasksById() {
+        Map<Long, PersistentTask> byId = new LinkedHashMap<Long, PersistentTask>(
+            tasks.size());
+        for (Map.Entry<PersistentTask, Long> entry : tasks.entrySet()) {
+            byId.put(entry.getValue(), entry.getKey());
+        }
+        return byId;
+    }
+
+    private void compactIfRequired() {
+        if (journal == null) {
+            return;
+        }
+        int records = journal.getRecords();
+        if (records <= COMPACT_MIN_RECORDS || records <= 2 * tasks.size()) {
+            return;
+        }
+        try {
+            journal.compact(getTasksById());
+            if (isFine()) {
+                logFine("Compacted task journal from " + records + " to "
+                    + journal.getRecords() + " records");
+            }
+        } catch (IOException e) {
+            logWarning("Unable to compact task journal: " + e);
+        }
+    }
+
+    /**
+     * Initializes the task on the threads of this manager.
+     *
+     * @param task
+     * @param removeOnError
+     *            if the task should be removed if the initialization fails.
+     */
+    private void initialize(PersistentTask task, boolean removeOnError) {
+        pendingTasks.add(task);
+        initExecutor.execute(new Initializer(task, removeOnError));
+    }
+
+    private class Initializer implements Runnable {
+        private final PersistentTask task;
+        private final boolean removeOnError;
+
+        Initializer(PersistentTask task, boolean removeOnError) {
+            this.task = task;
+            this.removeOnError = removeOnError;
+        }
+
+        public void run() {
+            try {
+                if (!pendingTasks.contains(task)) {
+                    // Removed in the meantime
+                    return;
+                }
+                task.init(PersistentTaskManager.this);
+            } catch (RuntimeException e) {
+                if (!removeOnError) {
+                    throw e;
+                }
+                logSevere("RuntimeException", e);
+                synchronized (PersistentTaskManager.this) {
+                    remove(task);
+                }
+            } finally {
+                pendingTasks.remove(task);
+                synchronized (PersistentTaskManager.this) {
+                    PersistentTaskManager.this.notify();
                 }
-                return true;
             }
-            // SendMessageTask sendTask = (SendMessageTask) task;
-            // if (!sendTask.getTargetID().equals(node.id)) {
-            // logWarning("Found pending message(s) to " + node);
-            // return true;
-            // }
         }
-        // No pending found
-        return false;
     }
 
     /** Assumes the caller to have locked the manager. */
@@ -313,7 +476,11 @@ public class PersistentTaskManager extends PFComponent {
             logWarning(b.toString());
             // Note: This will also remove tasks which "might" still finish
             // initialization
-            tasks.removeAll(pendingTasks);
+            for (PersistentTask t : new ArrayList<PersistentTask>(
+                pendingTasks))
+            {
+                remove(t);
+            }
             pendingTasks.clear();
         }
     }
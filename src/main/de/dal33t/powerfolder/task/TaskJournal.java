@@ -0,0 +1,271 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.task;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the {@link PersistentTask}s. Every added task is
+ * written as a record with its serialized state, every removed task as a
+ * record with its id only. Each record carries a CRC32 checksum.
+ * <p>
+ * On recovery the records are replayed up to the first incomplete or
+ * corrupt record, e.g. the one written during a crash. Compaction rewrites
+ * the journal with the live tasks only.
+ * <p>
+ * Records are flushed to the operating system when written. The journal is
+ * forced to the disk on compaction and close.
+ */
+class TaskJournal {
+    private static final Logger LOG = Logger.getLogger(TaskJournal.class
+        .getName());
+
+    private static final byte ADDED = 1;
+    private static final byte REMOVED = 2;
+
+    private final Path file;
+    private FileChannel channel;
+    private DataOutputStream out;
+    private int records;
+
+    TaskJournal(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the tasks of the journal.
+     *
+     * @return the tasks not removed by their id in the order they were added.
+     * @throws IOException
+     */
+    synchronized Map<Long, PersistentTask> recover() throws IOException {
+        Map<Long, PersistentTask> tasks = new LinkedHashMap<Long, PersistentTask>();
+        records = 0;
+        if (Files.notExists(file)) {
+            return tasks;
+        }
+        long fileSize = Files.size(file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            Files.newInputStream(file))))
+        {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                long id;
+                byte[] data;
+                long checksum;
+                try {
+                    id = in.readLong();
+                    int length = in.readInt();
+                    if (length < 0 || length > fileSize) {
+                        LOG.warning("Invalid record length " + length
+                            + " in task journal " + file);
+                        break;
+                    }
+                    data = new byte[length];
+                    in.readFully(data);
+                    checksum = in.readLong();
+                } catch (EOFException e) {
+                    LOG.warning("Incomplete record at the end of task journal "
+                        + file);
+                    break;
+                }
+                if (checksum != checksum(type, id, data)) {
+                    LOG.warning("Checksum mismatch in task journal " + file
+                        + ". Ignoring remaining records");
+                    break;
+                }
+                records++;
+                if (type == ADDED) {
+                    PersistentTask task = deserialize(data);
+                    if (task != null) {
+                        tasks.put(id, task);
+                    }
+                } else if (type == REMOVED) {
+                    tasks.remove(id);
+                } else {
+                    LOG.warning("Unknown record type " + type
+                        + " in task journal " + file);
+                    break;
+                }
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Writes a record for an added task.
+     *
+     * @param id
+     * @param task
+     * @throws IOException
+     */
+    synchronized void added(long id, PersistentTask task) throws IOException {
+        write(ADDED, id, serialize(task));
+    }
+
+    /**
+     * Writes a record for a removed task.
+     *
+     * @param id
+     * @throws IOException
+     */
+    synchronized void removed(long id) throws IOException {
+        write(REMOVED, id, new byte[0]);
+    }
+
+    /**
+     * @return the number of records in the journal.
+     */
+    synchronized int getRecords() {
+        return records;
+    }
+
+    /**
+     * Replaces the journal with one containing the given tasks only.
+     *
+     * @param tasks
+     *            the live tasks by their id.
+     * @throws IOException
+     */
+    synchronized void compact(Map<Long, PersistentTask> tasks)
+        throws IOException
+    {
+        close();
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        int n = 0;
+        try (FileChannel tempChannel = FileChannel.open(tempFile,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            DataOutputStream tempOut = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(tempChannel)));
+            for (Map.Entry<Long, PersistentTask> entry : tasks.entrySet()) {
+                byte[] data;
+                try {
+                    data = serialize(entry.getValue());
+                } catch (IOException e) {
+                    LOG.warning("Unable to write task " + entry.getValue()
+                        + ": " + e);
+                    continue;
+                }
+                writeRecord(tempOut, ADDED, entry.getKey(), data);
+                n++;
+            }
+            tempOut.flush();
+            tempChannel.force(true);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        records = n;
+    }
+
+    /**
+     * Forces the journal to the disk and closes it. Opened again on next
+     * write.
+     */
+    synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            out.flush();
+            channel.force(true);
+        } finally {
+            channel.close();
+            channel = null;
+            out = null;
+        }
+    }
+
+    private void write(byte type, long id, byte[] data) throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            out = new DataOutputStream(new BufferedOutputStream(
+                Channels.newOutputStream(channel)));
+        }
+        writeRecord(out, type, id, data);
+        out.flush();
+        records++;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte type, long id,
+        byte[] data) throws IOException
+    {
+        out.writeByte(type);
+        out.writeLong(id);
+        out.writeInt(data.length);
+        out.write(data);
+        out.writeLong(checksum(type, id, data));
+    }
+
+    private static long checksum(byte type, long id, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        for (int i = 56; i >= 0; i -= 8) {
+            crc.update((int) (id >>> i));
+        }
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    private static byte[] serialize(PersistentTask task) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (ObjectOutputStream oout = new ObjectOutputStream(bout)) {
+            oout.writeObject(task);
+        }
+        return bout.toByteArray();
+    }
+
+    private static PersistentTask deserialize(byte[] data) {
+        try (ObjectInputStream oin = new ObjectInputStream(
+            new ByteArrayInputStream(data)))
+        {
+            return (PersistentTask) oin.readObject();
+        } catch (ClassNotFoundException | ClassCastException | IOException e) {
+            LOG.severe("Unable to read task from journal: " + e);
+            return null;
+        }
+    }
+}
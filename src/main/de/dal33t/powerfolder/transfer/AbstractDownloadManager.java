@@ -21,6 +21,7 @@ package de.dal33t.powerfolder.transfer;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
@@ -34,9 +35,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.d2d.D2DSocketConnectionHandler;
 import de.dal33t.powerfolder.disk.Folder;
 import de.dal33t.powerfolder.disk.FolderStatistic;
 import de.dal33t.powerfolder.light.FileInfo;
@@ -70,6 +73,7 @@ import de.dal33t.powerfolder.util.delta.MatchResultWorker;
 public abstract class AbstractDownloadManager extends PFComponent implements
     DownloadManager
 {
+    private static final long LOCAL_COPY_CHUNK_SIZE = 8 * 1024 * 1024;
 
     private enum InternalState {
         WAITING_FOR_SOURCE, WAITING_FOR_UPLOAD_READY, WAITING_FOR_FILEPARTSRECORD,
@@ -114,6 +118,7 @@ public abstract class AbstractDownloadManager extends PFComponent implements
     private final FileInfo fileInfo;
     private Controller controller;
     private FileChannel tempFileChannel = null;
+    private volatile ChunkWritePipeline chunkWriter;
 
     /**
      * Only set on init(boolean).
@@ -134,6 +139,18 @@ public abstract class AbstractDownloadManager extends PFComponent implements
 
     private Path metaDataBaseDir;
 
+    /**
+     * Local file with the same contents, see {@link LocalSourceFinder}. Used
+     * as base for delta sync if it could not be copied completely.
+     */
+    private Path localSource;
+    private boolean localSourceChecked;
+    private boolean copyingLocalSource;
+    /**
+     * The local source was copied completely and needs to be verified.
+     */
+    private boolean verifyingLocalCopy;
+
     public AbstractDownloadManager(Controller controller, FileInfo file,
         boolean automatic)
     {
@@ -186,14 +203,29 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         return addSource0(download);
     }
 
-    public synchronized void chunkReceived(Download download, FileChunk chunk) {
+    public void chunkReceived(Download download, FileChunk chunk) {
         Reject.noNullElements(download, chunk);
-        validateDownload(download);
-        assert chunk.file.isVersionDateAndSizeIdentical(getFileInfo());
-        try {
-            receivedChunk0(download, chunk);
-        } catch (BrokenDownloadException e) {
-            setBroken(TransferProblem.BROKEN_DOWNLOAD, e.toString());
+        // Wait for the disk without holding the lock. Otherwise abort or
+        // shutdown would wait for the disk too.
+        ChunkWritePipeline writer = chunkWriter;
+        if (writer != null) {
+            try {
+                writer.awaitCapacity();
+            } catch (InterruptedIOException e) {
+                logSevere("IOException", e);
+                setBroken(TransferProblem.IO_EXCEPTION,
+                    "Couldn't write to tempfile!");
+                return;
+            }
+        }
+        synchronized (this) {
+            validateDownload(download);
+            assert chunk.file.isVersionDateAndSizeIdentical(getFileInfo());
+            try {
+                receivedChunk0(download, chunk);
+            } catch (BrokenDownloadException e) {
+                setBroken(TransferProblem.BROKEN_DOWNLOAD, e.toString());
+            }
         }
     }
 
@@ -391,26 +423,29 @@ public abstract class AbstractDownloadManager extends PFComponent implements
             logFiner("Init tempfile at " + getTempFile());
         }
 
-        try {
-            tempFileChannel = FileChannel.open(tempFile,
-                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
-        } catch (FileAlreadyExistsException e) {
-            tempFileChannel = FileChannel.open(tempFile,
-                    StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        // Not APPEND: Chunks are written at their offset.
+        tempFileChannel = FileChannel.open(tempFile,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        long fileSize = fileInfo.getSize();
+        if (tempFileChannel.size() < fileSize) {
+            // Preallocate. The last byte has not been received yet.
+            tempFileChannel.write(ByteBuffer.allocate(1), fileSize - 1);
         }
+        chunkWriter = new ChunkWritePipeline(tempFileChannel, tm::doWork,
+            new ChunkWriteListener());
     }
 
     protected boolean isNeedingFilePartsRecord() {
         return !isCompleted() && remotePartRecord == null
             && fileInfo.getSize() >= Constants.MIN_SIZE_FOR_PARTTRANSFERS
-            && fileInfo.diskFileExists(getController());
+            && (localSource != null || fileInfo.diskFileExists(getController()));
     }
 
     protected void matchAndCopyData() throws BrokenDownloadException,
         InterruptedException
     {
         try {
-            Path src = getFile();
+            Path src = localSource != null ? localSource : getFile();
 
             setTransferState(TransferState.MATCHING);
             ProgressListener transferObs = new ProgressListener() {
@@ -419,7 +454,9 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                 }
             };
             Callable<List<MatchInfo>> mInfoWorker = new MatchResultWorker(
-                remotePartRecord, src, transferObs);
+                remotePartRecord, src, transferObs, getController()
+                    .getThreadPool(), ConfigurationEntry.DELTA_MATCH_SEGMENTS
+                    .getValueInt(getController()));
             List<MatchInfo> mInfoRes = null;
             mInfoRes = mInfoWorker.call();
 
@@ -517,20 +554,22 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                 }
             }
             // PFC-2465: End
-        } else {
+        } else if (filePartsState == null
+            || filePartsState.countPartStates(filePartsState.getRange(),
+                PartState.AVAILABLE) == 0)
+        {
+            // Nothing to resume. The tempfile is preallocated, so its size
+            // tells nothing about the received data.
             try {
-                if (getTempFile() != null && Files.exists(getTempFile())
-                    && Files.size(getTempFile()) == 0)
-                {
-                    if (isFiner()) {
-                        logFiner("Deleting tempfile with size 0.");
-                    }
-                    Files.delete(getTempFile());
+                if (isFiner()) {
+                    logFiner("Deleting tempfile without available parts.");
                 }
+                deleteTempFile();
             } catch (IOException ioe) {
                 logWarning("Failed to delete temp file: "
                     + getTempFile().toAbsolutePath().toString() + ". " + ioe);
             }
+            deleteMetaData();
         }
         final Download sources[] = getSources().toArray(new Download[0]);
         for (Download d : sources) {
@@ -621,11 +660,16 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         if (isFiner()) {
             logFine("Shutting down " + fileInfo.toDetailString());
         }
+        chunkWriter.close();
         try {
             if (isFiner()) {
                 logFiner("Closing temp file: " + getTempFile() + " of "
                     + getFile());
             }
+            if (isBroken()) {
+                // Parts in meta data must be on disk.
+                tempFileChannel.force(false);
+            }
             tempFileChannel.close();
             tempFileChannel = null;
         } catch (IOException e) {
@@ -680,20 +724,34 @@ public abstract class AbstractDownloadManager extends PFComponent implements
 
         setStarted();
 
-        try {
-            tempFileChannel.position(chunk.offset);
-            tempFileChannel.write(ByteBuffer.wrap(chunk.data));
-        } catch (IOException e) {
-            logSevere("IOException", e);
-            setBroken(TransferProblem.IO_EXCEPTION,
-                "Couldn't write to tempfile!");
-            return;
-        }
+        // Parts get available after written. See chunksWritten
+        chunkWriter.write(chunk);
 
         getCounter().chunkTransferred(chunk);
 
-        Range range = Range.getRangeByLength(chunk.offset, chunk.data.length);
-        filePartsState.setPartState(range, PartState.AVAILABLE);
+        // add bytes to transferred status
+        FolderStatistic stat = fileInfo.getFolder(
+            getController().getFolderRepository()).getStatistic();
+        if (stat != null) {
+            stat.getDownloadCounter().chunkTransferred(chunk);
+        }
+    }
+
+    /**
+     * Marks the written chunks as available and completes the download if all
+     * parts are available.
+     *
+     * @param chunks
+     */
+    private synchronized void chunksWritten(List<FileChunk> chunks) {
+        if (isDone() || filePartsState == null) {
+            return;
+        }
+        for (FileChunk chunk : chunks) {
+            Range range = Range.getRangeByLength(chunk.offset,
+                chunk.data.length);
+            filePartsState.setPartState(range, PartState.AVAILABLE);
+        }
 
         long avs = filePartsState.countPartStates(filePartsState.getRange(),
             PartState.AVAILABLE);
@@ -701,11 +759,31 @@ public abstract class AbstractDownloadManager extends PFComponent implements
             ? (double) avs / fileInfo.getSize()
             : 1);
 
-        // add bytes to transferred status
-        FolderStatistic stat = fileInfo.getFolder(
-            getController().getFolderRepository()).getStatistic();
-        if (stat != null) {
-            stat.getDownloadCounter().chunkTransferred(chunk);
+        if (!filePartsState.isCompleted()) {
+            return;
+        }
+        if (state == InternalState.ACTIVE_DOWNLOAD) {
+            checkFileValidity();
+        } else if (state == InternalState.PASSIVE_DOWNLOAD) {
+            setCompleted();
+        }
+    }
+
+    private synchronized void chunkWriteFailed(IOException e) {
+        if (isDone()) {
+            return;
+        }
+        logSevere("IOException", e);
+        setBroken(TransferProblem.IO_EXCEPTION, "Couldn't write to tempfile!");
+    }
+
+    private class ChunkWriteListener implements ChunkWritePipeline.Listener {
+        public void chunksWritten(List<FileChunk> chunks) {
+            AbstractDownloadManager.this.chunksWritten(chunks);
+        }
+
+        public void writeFailed(IOException e) {
+            chunkWriteFailed(e);
         }
     }
 
@@ -725,6 +803,12 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                     "Manager already broken!");
                 return false;
             case MATCHING_AND_COPYING :
+                addSourceImpl(download);
+                if (!copyingLocalSource) {
+                    download.request(0);
+                }
+                // Otherwise requested if the local copy fails
+                break;
             case CHECKING_FILE_VALIDITY :
             case ACTIVE_DOWNLOAD :
             case WAITING_FOR_UPLOAD_READY :
@@ -754,9 +838,17 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                     return false;
                 }
 
+                if (filePartsState == null && !localSourceChecked
+                    && tm.getLocalSourceFinder().isApplicable(fileInfo))
+                {
+                    localSourceChecked = true;
+                    copyFromLocalSource();
+                    return true;
+                }
+
                 long _offset = 0;
                 if (filePartsState != null) {
-                    assert !filePartsState.isCompleted();
+                    assert !filePartsState.isCompleted() || verifyingLocalCopy;
 
                     Range range = filePartsState
                         .findFirstPart(PartState.NEEDED);
@@ -780,6 +872,175 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                 illegalState("addSource");
                 return false;
         }
+        return true;
+    }
+
+    /**
+     * Copies the file from a local file with the same contents, if available.
+     * Otherwise requests it from the sources.
+     */
+    private void copyFromLocalSource() {
+        setState(InternalState.MATCHING_AND_COPYING);
+        copyingLocalSource = true;
+        tm.doWork(new Runnable() {
+            public void run() {
+                Path src = tm.getLocalSourceFinder().find(fileInfo);
+                boolean copied = false;
+                if (src != null) {
+                    setTransferState(TransferState.COPYING);
+                    try {
+                        copied = copyLocalSource(src);
+                    } catch (IOException e) {
+                        logFine("Unable to copy local source " + src
+                            + " to " + fileInfo.toDetailString() + ": " + e);
+                    }
+                }
+                localSourceCopied(src, copied);
+            }
+        });
+    }
+
+    /**
+     * @param src
+     * @return true if the whole file was copied and the source was not
+     *         changed in the meantime.
+     * @throws IOException
+     */
+    private boolean copyLocalSource(Path src) throws IOException {
+        long size = fileInfo.getSize();
+        FileTime modified = Files.getLastModifiedTime(src);
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(getTempFile(),
+                StandardOpenOption.WRITE))
+        {
+            if (in.size() != size) {
+                return false;
+            }
+            long position = 0;
+            while (position < size) {
+                if (isDone()) {
+                    return false;
+                }
+                long n = in.transferTo(position,
+                    Math.min(size - position, LOCAL_COPY_CHUNK_SIZE), out);
+                if (n <= 0) {
+                    return false;
+                }
+                position += n;
+                setTransferState((double) position / size);
+            }
+        }
+        return Files.size(src) == size
+            && Files.getLastModifiedTime(src).equals(modified);
+    }
+
+    private synchronized void localSourceCopied(Path src, boolean copied) {
+        copyingLocalSource = false;
+        if (isDone()) {
+            return;
+        }
+        if (copied) {
+            if (isFine()) {
+                logFine("Copied " + fileInfo.toDetailString()
+                    + " from local source " + src + ". Verifying");
+            }
+            FilePartsState copiedState = new FilePartsState(fileInfo.getSize());
+            copiedState.setPartState(copiedState.getRange(),
+                PartState.AVAILABLE);
+            setFilePartsState(copiedState);
+            counter = new TransferCounter(fileInfo.getSize(),
+                fileInfo.getSize());
+            // Verified with the file digest from the record of a source. See
+            // receivedFilePartsRecord0
+            verifyingLocalCopy = true;
+        }
+        // Differs after all or copy failed. Download only what differs.
+        localSource = src;
+        setTransferState(TransferState.NONE);
+        if (!hasSources()) {
+            setState(InternalState.WAITING_FOR_SOURCE);
+            return;
+        }
+        setState(InternalState.WAITING_FOR_UPLOAD_READY);
+        for (Download source : getSources()) {
+            source.request(0);
+        }
+    }
+
+    /**
+     * Completes the download if the local copy has the digest of the record.
+     * Otherwise matches the local source against the record and downloads
+     * the rest.
+     *
+     * @param record
+     */
+    private void verifyLocalCopy(FilePartsRecord record) {
+        if (checkCompleted()) {
+            if (isFine()) {
+                logFine("Verified copy of " + fileInfo.toDetailString()
+                    + " from local source " + localSource);
+            }
+            tm.getLocalSourceFinder().reused(fileInfo.getSize());
+            setCompleted();
+            return;
+        }
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            logFine("Copy of " + fileInfo.toDetailString()
+                + " from local source " + localSource
+                + " differs. Matching it");
+            // Reset by checkCompleted. Rare case, so match even if delta
+            // sync is not used with the source.
+            remotePartRecord = record;
+        }
+        matchAndContinue();
+    }
+
+    /**
+     * @param download
+     * @return true if a local copy has to be verified and the record can be
+     *         requested from the source for that.
+     */
+    private boolean canVerifyLocalCopy(Download download) {
+        return verifyingLocalCopy
+            && !(download.getPartner().getPeer() instanceof D2DSocketConnectionHandler);
+    }
+
+    /**
+     * Matches the local data against the {@link #remotePartRecord}, then
+     * checks the file or requests the missing parts.
+     */
+    private void matchAndContinue() {
+        try {
+            matchAndCopyData();
+            if (isDone()) {
+                return;
+            }
+            if (filePartsState.isCompleted()) {
+                checkFileValidity();
+            } else {
+                // Protect empty check
+                synchronized (AbstractDownloadManager.this) {
+                    if (getSources().isEmpty()) {
+                        throw new BrokenDownloadException("Out of sources");
+                    }
+                    if (!isDone()) {
+                        try {
+                            startActiveDownload();
+                        } catch (BrokenDownloadException e) {
+                            setBroken(TransferProblem.IO_EXCEPTION,
+                                e.toString());
+                        }
+                    }
+                }
+            }
+        } catch (final BrokenDownloadException e) {
+            setBroken(TransferProblem.IO_EXCEPTION, e.toString());
+        } catch (InterruptedException e) {
+            logFiner("InterruptedException", e);
+        }
     }
 
     private void validateDownload(Download download) {
@@ -1012,11 +1273,21 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                 break;
             case WAITING_FOR_UPLOAD_READY :
                 if (isNeedingFilePartsRecord()
-                    && Util.useDeltaSync(getController(), download))
+                    && (Util.useDeltaSync(getController(), download)
+                        || canVerifyLocalCopy(download)))
                 {
                     setState(InternalState.WAITING_FOR_FILEPARTSRECORD);
                     requestFilePartsRecord(download);
                 } else {
+                    if (verifyingLocalCopy) {
+                        // No record to verify the local copy with.
+                        logFine("Unable to verify copy of "
+                            + fileInfo.toDetailString()
+                            + " from local source. Downloading it");
+                        verifyingLocalCopy = false;
+                        filePartsState = null;
+                        counter = new TransferCounter(0, fileInfo.getSize());
+                    }
                     if (filePartsState == null) {
                         setFilePartsState(new FilePartsState(fileInfo.getSize()));
                     }
@@ -1058,18 +1329,15 @@ public abstract class AbstractDownloadManager extends PFComponent implements
                 download.abort();
                 break;
             case ACTIVE_DOWNLOAD :
+                // Completed after written
                 storeFileChunk(download, chunk);
-                if (filePartsState.isCompleted()) {
-                    checkFileValidity();
-                } else {
+                if (!isDone()) {
                     sendPartRequests();
                 }
                 break;
             case PASSIVE_DOWNLOAD :
+                // Completed after written
                 storeFileChunk(download, chunk);
-                if (filePartsState.isCompleted()) {
-                    setCompleted();
-                }
                 break;
             case WAITING_FOR_UPLOAD_READY :
                 setState(InternalState.PASSIVE_DOWNLOAD);
@@ -1089,46 +1357,24 @@ public abstract class AbstractDownloadManager extends PFComponent implements
     {
         switch (state) {
             case WAITING_FOR_FILEPARTSRECORD :
+                setState(InternalState.MATCHING_AND_COPYING);
+                remotePartRecord = record;
+                if (verifyingLocalCopy) {
+                    verifyingLocalCopy = false;
+                    tm.doWork(new Runnable() {
+                        public void run() {
+                            verifyLocalCopy(record);
+                        }
+                    });
+                    break;
+                }
                 if (isFine()) {
                     logFine("Matching and copying..."
                         + fileInfo.toDetailString());
                 }
-                setState(InternalState.MATCHING_AND_COPYING);
-                remotePartRecord = record;
-
                 tm.doWork(new Runnable() {
                     public void run() {
-                        try {
-                            matchAndCopyData();
-                            if (isDone()) {
-                                return;
-                            }
-                            if (filePartsState.isCompleted()) {
-                                checkFileValidity();
-                            } else {
-                                // Protect empty check
-                                synchronized (AbstractDownloadManager.this) {
-                                    if (getSources().isEmpty()) {
-                                        throw new BrokenDownloadException(
-                                            "Out of sources");
-                                    }
-                                    if (!isDone()) {
-                                        try {
-                                            startActiveDownload();
-                                        } catch (BrokenDownloadException e) {
-                                            setBroken(
-                                                TransferProblem.IO_EXCEPTION,
-                                                e.toString());
-                                        }
-                                    }
-                                }
-                            }
-                        } catch (final BrokenDownloadException e) {
-                            setBroken(TransferProblem.IO_EXCEPTION,
-                                e.toString());
-                        } catch (InterruptedException e) {
-                            logFiner("InterruptedException", e);
-                        }
+                        matchAndContinue();
                     }
                 });
                 break;
@@ -1197,7 +1443,8 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(mf))) {
             out.writeObject(fileInfo);
             List<Object> list = new LinkedList<Object>();
-            if (filePartsState != null) {
+            // An unverified local copy is no progress.
+            if (filePartsState != null && !verifyingLocalCopy) {
                 filePartsState.purgePending();
                 list.add(filePartsState);
             }
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.metrics.Counter;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+import de.dal33t.powerfolder.util.metrics.Timer;
+
+/**
+ * Writes the received chunks of one download to its temp file off the
+ * receiving thread.
+ * <p>
+ * Chunks queued while a write is running are sorted and chunks at adjacent
+ * offsets are written with one gathering write. The {@link Listener} is
+ * informed after the chunks have been written. Receivers have to wait in
+ * {@link #awaitCapacity()} if too many bytes are queued.
+ */
+class ChunkWritePipeline {
+    private static final Timer CHUNK_WRITE_TIMER = Metrics
+        .timer("transfer.chunk.write");
+    private static final Counter CHUNK_BYTES = Metrics
+        .counter("transfer.chunk.bytes");
+
+    /**
+     * Maximum size of one merged write.
+     */
+    static final int MAX_WRITE_SIZE = 1024 * 1024;
+    /**
+     * Maximum bytes queued before the receiver has to wait.
+     */
+    static final long MAX_QUEUED_BYTES = 8L * 1024 * 1024;
+
+    interface Listener {
+        /**
+         * @param chunks
+         *            the chunks written to the file. Sorted by offset.
+         */
+        void chunksWritten(List<FileChunk> chunks);
+
+        void writeFailed(IOException e);
+    }
+
+    private final FileChannel channel;
+    private final Executor executor;
+    private final Listener listener;
+
+    // Guarded by this
+    private List<FileChunk> queue = new ArrayList<FileChunk>();
+    private long queuedBytes;
+    private boolean draining;
+    private boolean closed;
+
+    ChunkWritePipeline(FileChannel channel, Executor executor,
+        Listener listener)
+    {
+        Reject.noNullElements(channel, executor, listener);
+        this.channel = channel;
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    /**
+     * Waits until the queued bytes are below the limit. Call this before
+     * {@link #write(FileChunk)} without holding any locks.
+     *
+     * @throws InterruptedIOException
+     *             if interrupted while waiting.
+     */
+    synchronized void awaitCapacity() throws InterruptedIOException {
+        while (queuedBytes >= MAX_QUEUED_BYTES && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(
+                    "Interrupted while waiting for chunk write");
+            }
+        }
+    }
+
+    /**
+     * Queues the chunk for writing. Does not wait, see
+     * {@link #awaitCapacity()}.
+     *
+     * @param chunk
+     */
+    void write(FileChunk chunk) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            queue.add(chunk);
+            queuedBytes += chunk.data.length;
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Drops all queued chunks. Does not wait for a running write.
+     */
+    synchronized void close() {
+        closed = true;
+        queue.clear();
+        queuedBytes = 0;
+        notifyAll();
+    }
+
+    /**
+     * @return true if no chunks are queued or being written.
+     */
+    synchronized boolean isIdle() {
+        return !draining;
+    }
+
+    private void drain() {
+        boolean drained = false;
+        try {
+            drainQueue();
+            drained = true;
+        } catch (RuntimeException e) {
+            fail();
+            listener.writeFailed(new IOException("Unable to write chunks: "
+                + e, e));
+        } finally {
+            if (!drained) {
+                // Don't leave receivers waiting for a drain that never comes.
+                fail();
+            }
+        }
+    }
+
+    private synchronized void fail() {
+        closed = true;
+        queue.clear();
+        queuedBytes = 0;
+        draining = false;
+        notifyAll();
+    }
+
+    private void drainQueue() {
+        while (true) {
+            List<FileChunk> batch;
+            synchronized (this) {
+                if (queue.isEmpty() || closed) {
+                    draining = false;
+                    notifyAll();
+                    return;
+                }
+                batch = queue;
+                queue = new ArrayList<FileChunk>();
+            }
+            Collections.sort(batch, (o1, o2) -> Long.compare(o1.offset,
+                o2.offset));
+
+            IOException failure = null;
+            int nWritten = 0;
+            long bytes = 0;
+            int n = batch.size();
+            while (nWritten < n) {
+                int end = nextRunEnd(batch, nWritten);
+                try {
+                    bytes += writeRun(batch, nWritten, end);
+                } catch (IOException e) {
+                    failure = e;
+                    break;
+                }
+                nWritten = end;
+            }
+
+            synchronized (this) {
+                for (FileChunk chunk : batch) {
+                    queuedBytes -= chunk.data.length;
+                }
+                if (queuedBytes < 0) {
+                    // Closed in the meantime
+                    queuedBytes = 0;
+                }
+                notifyAll();
+            }
+            if (failure != null) {
+                fail();
+            }
+            CHUNK_BYTES.add(bytes);
+            if (nWritten > 0) {
+                listener.chunksWritten(batch.subList(0, nWritten));
+            }
+            if (failure != null) {
+                listener.writeFailed(failure);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the exclusive end index of the chunks adjacent to the chunk at
+     *         start.
+     */
+    static int nextRunEnd(List<FileChunk> sorted, int start) {
+        FileChunk first = sorted.get(start);
+        long nextOffset = first.offset + first.data.length;
+        int size = first.data.length;
+        int end = start + 1;
+        while (end < sorted.size()) {
+            FileChunk next = sorted.get(end);
+            if (next.offset != nextOffset
+                || size + next.data.length > MAX_WRITE_SIZE)
+            {
+                break;
+            }
+            nextOffset += next.data.length;
+            size += next.data.length;
+            end++;
+        }
+        return end;
+    }
+
+    private long writeRun(List<FileChunk> sorted, int start, int end)
+        throws IOException
+    {
+        long metricsStart = Metrics.start();
+        long offset = sorted.get(start).offset;
+        long total = 0;
+        if (end - start == 1) {
+            ByteBuffer buf = ByteBuffer.wrap(sorted.get(start).data);
+            while (buf.hasRemaining()) {
+                total += channel.write(buf, offset + total);
+            }
+        } else {
+            ByteBuffer[] bufs = new ByteBuffer[end - start];
+            long size = 0;
+            for (int i = start; i < end; i++) {
+                bufs[i - start] = ByteBuffer.wrap(sorted.get(i).data);
+                size += sorted.get(i).data.length;
+            }
+            // Only this pipeline writes to the channel.
+            channel.position(offset);
+            while (total < size) {
+                total += channel.write(bufs);
+            }
+        }
+        CHUNK_WRITE_TIMER.stop(metricsStart);
+        return total;
+    }
+}
@@ -67,6 +67,8 @@ public class Download extends Transfer {
     private Queue<RequestPart> pendingRequests = new ConcurrentLinkedQueue<RequestPart>();
 
     private transient DownloadManager dlManager;
+    /** If requested as part of a file bundle */
+    private transient boolean bundled;
 
     /** for serialisation */
     public Download() {
@@ -297,6 +299,15 @@ public class Download extends Transfer {
             "Invalid startOffset: " + startOffset);
         requestCheckState();
 
+        if (startOffset == 0 && dlManager != null && !dlManager.isStarted()
+            && getTransferManager().getFileBundler().request(this))
+        {
+            return;
+        }
+        sendRequest(startOffset);
+    }
+
+    private void sendRequest(long startOffset) {
         if (isFiner()) {
             logFiner("request(" + startOffset + "): "
                 + getFile().toDetailString());
@@ -310,6 +321,47 @@ public class Download extends Transfer {
         }
     }
 
+    /**
+     * @return true if this download was requested as part of a file bundle
+     */
+    boolean isBundled() {
+        return bundled;
+    }
+
+    void setBundled(boolean bundled) {
+        this.bundled = bundled;
+    }
+
+    /**
+     * Called when the partner could not send the file in a bundle. Requests
+     * the download the regular way.
+     */
+    void bundleRejected() {
+        bundled = false;
+        if (isBroken() || isCompleted()) {
+            return;
+        }
+        lastTouch.setTime(System.currentTimeMillis());
+        sendRequest(0);
+    }
+
+    /**
+     * Called when the contents of the file were received in a bundle.
+     *
+     * @param fileInfo
+     *            the fileInfo the remote side uses.
+     * @param contents
+     *            the complete contents of the file
+     */
+    void bundleReceived(FileInfo fileInfo, byte[] contents) {
+        checkFileInfo(fileInfo);
+        lastTouch.setTime(System.currentTimeMillis());
+        if (!isStarted()) {
+            setStarted();
+        }
+        addChunk(new FileChunk(getFile(), 0, contents));
+    }
+
     /**
      * Requests to abort this dl
      */
@@ -357,10 +409,13 @@ public class Download extends Transfer {
     @Override
     void setCompleted() {
         super.setCompleted();
-        if (getPartner().getProtocolVersion() >= Identity.PROTOCOL_VERSION_110) {
-            getPartner().sendMessagesAsynchron(new StopUploadExt(getFile()));
-        } else {
-            getPartner().sendMessagesAsynchron(new StopUpload(getFile()));
+        // Bundled files have no upload at the partner
+        if (!bundled) {
+            if (getPartner().getProtocolVersion() >= Identity.PROTOCOL_VERSION_110) {
+                getPartner().sendMessagesAsynchron(new StopUploadExt(getFile()));
+            } else {
+                getPartner().sendMessagesAsynchron(new StopUpload(getFile()));
+            }
         }
 
         getTransferManager().setCompleted(Download.this);
@@ -484,7 +539,8 @@ public class Download extends Transfer {
         TransferState state = getTransferState();
         return state != TransferState.FILERECORD_REQUEST
             && state != TransferState.VERIFYING
-            && state != TransferState.MATCHING;
+            && state != TransferState.MATCHING
+            && state != TransferState.COPYING;
     }
 
     /**
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.transfer.TransferPriorities.TransferPriority;
+
+/**
+ * The files of a folder to be downloaded automatically, in the order they
+ * should be requested: By {@link TransferPriority}, then in the order they
+ * were planned.
+ * <p>
+ * The plan is built from the incoming files of the folder and then kept up
+ * to date with the changes received from other members. Files are removed
+ * when taken for requesting. The priority of a file is taken when it is
+ * added to the plan. A plan built from a limited number of incoming files has
+ * to be built again when it ran empty.
+ */
+class DownloadPlan {
+    private final TransferPriorities priorities;
+    private final Map<FileInfo, Entry> entries = new HashMap<FileInfo, Entry>();
+    private final TreeSet<Entry> queue = new TreeSet<Entry>();
+    private long sequence;
+    private long built;
+    private boolean invalid = true;
+    private boolean truncated;
+
+    DownloadPlan(TransferPriorities priorities) {
+        this.priorities = priorities;
+    }
+
+    /**
+     * @param maxAge
+     *            the maximum age of the plan in milliseconds
+     * @return if the plan has to be built again from the incoming files.
+     */
+    synchronized boolean isRebuildRequired(long maxAge) {
+        return invalid || truncated && queue.isEmpty()
+            || System.currentTimeMillis() - built > maxAge;
+    }
+
+    /**
+     * Marks the plan to be built again before the next files are taken.
+     */
+    synchronized void invalidate() {
+        invalid = true;
+    }
+
+    /**
+     * Replaces the plan.
+     *
+     * @param incomingFiles
+     *            the incoming files of the folder
+     * @param truncated
+     *            if there might be more incoming files than given.
+     */
+    synchronized void rebuild(Collection<FileInfo> incomingFiles,
+        boolean truncated)
+    {
+        entries.clear();
+        queue.clear();
+        for (FileInfo fInfo : incomingFiles) {
+            add0(fInfo);
+        }
+        built = System.currentTimeMillis();
+        invalid = false;
+        this.truncated = truncated;
+    }
+
+    /**
+     * Adds an incoming file or replaces an older version of it.
+     *
+     * @param fInfo
+     */
+    synchronized void add(FileInfo fInfo) {
+        add0(fInfo);
+    }
+
+    /**
+     * Takes the next files to request off the plan.
+     *
+     * @param max
+     *            the maximum number of files
+     * @return the files in the order to request them.
+     */
+    synchronized List<FileInfo> poll(int max) {
+        List<FileInfo> files = new ArrayList<FileInfo>(Math.min(max,
+            queue.size()));
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext() && files.size() < max) {
+            Entry entry = it.next();
+            it.remove();
+            entries.remove(entry.fInfo);
+            files.add(entry.fInfo);
+        }
+        return files;
+    }
+
+    /**
+     * @return the number of planned files.
+     */
+    synchronized int size() {
+        return queue.size();
+    }
+
+    /**
+     * @return the milliseconds since the plan was built or -1 if never.
+     */
+    synchronized long getAge() {
+        if (built == 0) {
+            return -1;
+        }
+        return System.currentTimeMillis() - built;
+    }
+
+    private void add0(FileInfo fInfo) {
+        Entry existing = entries.get(fInfo);
+        if (existing != null) {
+            if (!fInfo.isNewerThan(existing.fInfo)) {
+                return;
+            }
+            queue.remove(existing);
+        }
+        Entry entry = new Entry(fInfo, priorities.getPriority(fInfo),
+            existing != null ? existing.sequence : sequence++);
+        entries.put(fInfo, entry);
+        queue.add(entry);
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final FileInfo fInfo;
+        private final TransferPriority priority;
+        private final long sequence;
+
+        Entry(FileInfo fInfo, TransferPriority priority, long sequence) {
+            this.fInfo = fInfo;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Entry o) {
+            // Highest priority first
+            int c = o.priority.compareTo(priority);
+            if (c != 0) {
+                return c;
+            }
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+}
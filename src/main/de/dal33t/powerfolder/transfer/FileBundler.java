@@ -0,0 +1,348 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.disk.Folder;
+import de.dal33t.powerfolder.disk.FolderRepository;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.message.FileBundle;
+import de.dal33t.powerfolder.message.Identity;
+import de.dal33t.powerfolder.message.RequestFileBundle;
+
+/**
+ * Transfers small files in bundles. Normally each file is requested with its
+ * own RequestDownload, StartUpload, RequestPart/FileChunk and StopUpload
+ * exchange. Small files spend more time in these round trips than in
+ * transferring their bytes.
+ * <p>
+ * Here the downloads of small files from one source are collected for a short
+ * moment and requested with a single {@link RequestFileBundle}. The source
+ * verifies every file against its own database and disk and streams back the
+ * contents in {@link FileBundle}s.
+ * <p>
+ * Every file still has its own {@link Download} and {@link DownloadManager}.
+ * The contents are received as a single chunk, so completion, scanning and
+ * events are the same as for regular downloads. Files the source could not
+ * send fall back to the regular download.
+ */
+class FileBundler extends PFComponent {
+    /**
+     * Hard limit for files in bundles, independent of the setting.
+     */
+    private static final long MAX_FILE_SIZE = 1024 * 1024;
+    /**
+     * Maximum files per bundle. Files exceeding it are ignored by the source.
+     */
+    private static final int MAX_BUNDLE_FILES = 200;
+    /**
+     * Maximum bytes per bundle. Files exceeding it are sent without contents
+     * by the source.
+     */
+    private static final long MAX_BUNDLE_BYTES = 2 * 1024 * 1024;
+    /**
+     * Contents per {@link FileBundle} message.
+     */
+    private static final int MAX_FRAME_BYTES = 128 * 1024;
+    /**
+     * To collect downloads requested in one go.
+     */
+    private static final long COLLECT_DELAY = 50L;
+
+    private final TransferManager tm;
+    /**
+     * Collected downloads, which are not requested yet.
+     */
+    private final Map<Member, Batch> batches = new HashMap<Member, Batch>();
+
+    FileBundler(TransferManager tm) {
+        super(tm.getController());
+        this.tm = tm;
+    }
+
+    // Download side **********************************************************
+
+    /**
+     * Requests the download as part of a bundle, if the file is small enough
+     * and the source supports it.
+     *
+     * @param download
+     * @return true if the download will be requested in a bundle. false if it
+     *         has to be requested the regular way.
+     */
+    boolean request(Download download) {
+        final Member source = download.getPartner();
+        long size = download.getFile().getSize();
+        long maxSize = Math.min(MAX_FILE_SIZE,
+            ConfigurationEntry.TRANSFERS_BUNDLE_MAX_FILE_SIZE
+                .getValueInt(getController()));
+        if (source == null || size <= 0 || size > maxSize) {
+            return false;
+        }
+        Identity identity = source.getIdentity();
+        if (identity == null || !identity.isSupportsFileBundles()) {
+            return false;
+        }
+        download.setBundled(true);
+        Batch full = null;
+        boolean created = false;
+        synchronized (batches) {
+            Batch batch = batches.get(source);
+            if (batch != null && batch.bytes + size > MAX_BUNDLE_BYTES) {
+                // Doesn't fit. Send the collected ones now.
+                full = batches.remove(source);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch();
+                batches.put(source, batch);
+                created = true;
+            }
+            batch.downloads.add(download);
+            batch.bytes += size;
+            if (full == null
+                && (batch.downloads.size() >= MAX_BUNDLE_FILES
+                    || batch.bytes >= MAX_BUNDLE_BYTES))
+            {
+                full = batches.remove(source);
+                created = false;
+            }
+        }
+        if (full != null) {
+            send(source, full);
+        }
+        if (created) {
+            getController().schedule(new Runnable() {
+                public void run() {
+                    Batch batch;
+                    synchronized (batches) {
+                        batch = batches.remove(source);
+                    }
+                    if (batch != null) {
+                        send(source, batch);
+                    }
+                }
+            }, COLLECT_DELAY);
+        }
+        return true;
+    }
+
+    private void send(Member source, Batch batch) {
+        FileInfo[] files = new FileInfo[batch.downloads.size()];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = batch.downloads.get(i).getFile();
+        }
+        if (isFine()) {
+            logFine("Requesting bundle of " + files.length + " files from "
+                + source.getNick());
+        }
+        source.sendMessagesAsynchron(new RequestFileBundle(files));
+    }
+
+    /**
+     * Hands the received contents to the downloads.
+     *
+     * @param from
+     * @param bundle
+     */
+    void received(Member from, FileBundle bundle) {
+        if (!bundle.isValid()) {
+            logWarning("Received invalid file bundle from " + from.getNick());
+            return;
+        }
+        for (int i = 0; i < bundle.size(); i++) {
+            FileInfo fInfo = bundle.getFile(i);
+            if (fInfo == null) {
+                continue;
+            }
+            Download download = tm.getActiveDownload(from, fInfo);
+            if (download == null || !download.isBundled()) {
+                // Aborted in the meantime
+                continue;
+            }
+            byte[] contents = bundle.getContents(i);
+            if (contents == null) {
+                if (isFine()) {
+                    logFine("Not in bundle, requesting regularly: "
+                        + fInfo.toDetailString());
+                }
+                download.bundleRejected();
+            } else if (!verify(download.getFile(), fInfo, contents,
+                bundle.getDigest(i)))
+            {
+                logWarning("Received corrupt file in bundle from "
+                    + from.getNick() + ": " + fInfo.toDetailString());
+                download.bundleRejected();
+            } else {
+                download.bundleReceived(fInfo, contents);
+            }
+        }
+    }
+
+    private static boolean verify(FileInfo expected, FileInfo fInfo,
+        byte[] contents, byte[] digest)
+    {
+        return expected.isVersionDateAndSizeIdentical(fInfo)
+            && contents.length == expected.getSize() && digest != null
+            && MessageDigest.isEqual(digest(contents), digest);
+    }
+
+    // Upload side ************************************************************
+
+    /**
+     * Sends the requested files. Files, which are not available in the
+     * requested version are sent without contents.
+     *
+     * @param to
+     * @param request
+     */
+    void upload(Member to, RequestFileBundle request) {
+        FileInfo[] requested = request.getFiles();
+        if (requested == null) {
+            return;
+        }
+        int nFiles = requested.length;
+        if (nFiles > MAX_BUNDLE_FILES) {
+            logWarning(to.getNick() + " requested bundle of " + nFiles
+                + " files. Only sending the first " + MAX_BUNDLE_FILES);
+            nFiles = MAX_BUNDLE_FILES;
+        }
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        List<byte[]> contents = new ArrayList<byte[]>();
+        List<byte[]> digests = new ArrayList<byte[]>();
+        int frameBytes = 0;
+        long bundleBytes = 0;
+        int sent = 0;
+        for (int i = 0; i < nFiles; i++) {
+            FileInfo fInfo = requested[i];
+            if (fInfo == null) {
+                continue;
+            }
+            byte[] data = null;
+            if (bundleBytes + fInfo.getSize() <= MAX_BUNDLE_BYTES) {
+                data = read(to, fInfo);
+            }
+            files.add(fInfo);
+            contents.add(data);
+            digests.add(data != null ? digest(data) : null);
+            if (data != null) {
+                frameBytes += data.length;
+                bundleBytes += data.length;
+                sent++;
+                tm.getUploadCounter().bytesTransferred(data.length);
+            }
+            if (frameBytes >= MAX_FRAME_BYTES) {
+                sendFrame(to, files, contents, digests);
+                frameBytes = 0;
+            }
+        }
+        if (!files.isEmpty()) {
+            sendFrame(to, files, contents, digests);
+        }
+        if (isFine()) {
+            logFine("Sent bundle of " + sent + "/" + nFiles
+                + " files to " + to.getNick());
+        }
+    }
+
+    private static void sendFrame(Member to, List<FileInfo> files,
+        List<byte[]> contents, List<byte[]> digests)
+    {
+        to.sendMessagesAsynchron(new FileBundle(files
+            .toArray(new FileInfo[files.size()]), contents
+            .toArray(new byte[contents.size()][]), digests
+            .toArray(new byte[digests.size()][])));
+        files.clear();
+        contents.clear();
+        digests.clear();
+    }
+
+    /**
+     * @param to
+     * @param fInfo
+     * @return the contents of the file in exactly the requested version or
+     *         null if not available.
+     */
+    private byte[] read(Member to, FileInfo fInfo) {
+        if (getController().isPaused() || fInfo.getSize() > MAX_FILE_SIZE) {
+            return null;
+        }
+        // Never upload db files !!
+        if (Constants.DB_FILENAME.equalsIgnoreCase(fInfo.getRelativeName())
+            || Constants.DB_BACKUP_FILENAME.equalsIgnoreCase(fInfo
+                .getRelativeName()))
+        {
+            logSevere(to.getNick()
+                + " has illegally requested to download a folder database file");
+            return null;
+        }
+        FolderRepository repo = getController().getFolderRepository();
+        Folder folder = fInfo.getFolder(repo);
+        if (folder == null || !folder.hasReadPermission(to)) {
+            return null;
+        }
+        if (tm.isDownloadingActive(fInfo)) {
+            return null;
+        }
+        FileInfo localFile = fInfo.getLocalFileInfo(repo);
+        if (localFile == null || !localFile.isVersionDateAndSizeIdentical(fInfo))
+        {
+            return null;
+        }
+        Path diskFile = fInfo.getDiskFile(repo);
+        if (diskFile == null || !fInfo.inSyncWithDisk(diskFile)) {
+            return null;
+        }
+        try {
+            byte[] data = Files.readAllBytes(diskFile);
+            // Changed while reading?
+            return data.length == fInfo.getSize() ? data : null;
+        } catch (IOException e) {
+            logFine("Unable to read " + diskFile + " for bundle: " + e);
+            return null;
+        }
+    }
+
+    private static byte[] digest(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Batch {
+        private final List<Download> downloads = new ArrayList<Download>();
+        private long bytes;
+    }
+}
@@ -23,6 +23,7 @@ package de.dal33t.powerfolder.transfer;
 import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.PFComponent;
 import de.dal33t.powerfolder.disk.Folder;
 import de.dal33t.powerfolder.light.DirectoryInfo;
@@ -35,13 +36,24 @@ import de.dal33t.powerfolder.util.ProblemUtil;
 import de.dal33t.powerfolder.util.Profiling;
 import de.dal33t.powerfolder.util.ProfilingEntry;
 import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.metrics.Counter;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+import de.dal33t.powerfolder.util.metrics.Timer;
 
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * The filerequestor handles all stuff about requesting new downloads
+ * <p>
+ * Files to download automatically are taken from a {@link DownloadPlan} per
+ * folder. The plan is built from the incoming files of the folder once and
+ * then updated with the file list changes of other members. It is built again
+ * when explicitly triggered or older than
+ * {@link ConfigurationEntry#FOLDER_DOWNLOAD_PLAN_MAX_AGE}.
  * 
  * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc </a>
  * @version $Revision: 1.18 $
@@ -51,15 +63,30 @@ public class FileRequestor extends PFComponent {
     private static final long PERIODIC_REQUEST_MS = 1000L * 60;
     // 30 minutes
     private static final long WORKER_TIMEOUT = PERIODIC_REQUEST_MS * 30;
+    /**
+     * Maximum incoming files per member taken into a download plan. The plan
+     * is built again when it ran empty.
+     */
+    private static final int MAX_PLANNED_FILES_PER_MEMBER = 1000;
+    private static final Timer PLAN_BUILD_TIMER = Metrics
+        .timer("filerequestor.plan.build");
+    private static final Counter PLAN_UPDATES = Metrics
+        .counter("filerequestor.plan.updates");
+
     private final Queue<Worker> workerPool;
-    private final Queue<Folder> folderQueue;
+    /**
+     * Folders to request files on. Guarded by itself.
+     */
+    private final Set<Folder> folderQueue;
     private final Queue<FileInfo> pendingRequests;
+    private final ConcurrentMap<FolderInfo, DownloadPlan> plans;
 
     public FileRequestor(Controller controller) {
         super(controller);
-        folderQueue = new ConcurrentLinkedQueue<Folder>();
+        folderQueue = new LinkedHashSet<Folder>();
         pendingRequests = new ConcurrentLinkedQueue<FileInfo>();
         workerPool = new ConcurrentLinkedQueue<Worker>();
+        plans = new ConcurrentHashMap<FolderInfo, DownloadPlan>();
     }
 
     /**
@@ -72,7 +99,8 @@ public class FileRequestor extends PFComponent {
     }
 
     /**
-     * Triggers the worker to request new files on the given folder.
+     * Triggers the worker to request new files on the given folder. The files
+     * to download are determined again.
      * 
      * @param foInfo
      *            the folder to request files on
@@ -85,37 +113,183 @@ public class FileRequestor extends PFComponent {
             logWarning("Folder not joined, not requesting files: " + foInfo);
             return;
         }
-        synchronized (folderQueue) {
-            if (folderQueue.contains(folder)) {
-                return;
+        DownloadPlan plan = plans.get(foInfo);
+        if (plan != null) {
+            plan.invalidate();
+        }
+        enqueue(folder);
+    }
+
+    /**
+     * Triggers the worker to request the next planned files on the given
+     * folder, e.g. after a download completed. Does not determine the files to
+     * download again.
+     * 
+     * @param foInfo
+     *            the folder to request files on
+     */
+    public void continueFileRequesting(FolderInfo foInfo) {
+        Reject.ifNull(foInfo, "Folder is null");
+        Folder folder = foInfo.getFolder(getController());
+        if (folder != null) {
+            enqueue(folder);
+        }
+    }
+
+    /**
+     * Adds the new files of a remote file list change to the download plan of
+     * the folder and triggers the worker.
+     * 
+     * @param folder
+     * @param from
+     *            the member the changes were received from.
+     * @param files
+     *            the changed files
+     */
+    public void remoteFilesChanged(Folder folder, Member from,
+        FileInfo[] files)
+    {
+        Reject.ifNull(folder, "Folder is null");
+        DownloadPlan plan = plans.get(folder.getInfo());
+        if (plan != null && files != null && files.length > 0
+            && !plan.isRebuildRequired(getPlanMaxAge()))
+        {
+            if (folder.hasWritePermission(from)) {
+                int n = 0;
+                for (FileInfo remoteFile : files) {
+                    if (isIncoming(folder, remoteFile)) {
+                        plan.add(remoteFile);
+                        n++;
+                    }
+                }
+                PLAN_UPDATES.add(n);
             }
-            folderQueue.offer(folder);
-            addWorker();
+        }
+        enqueue(folder);
+    }
+
+    /**
+     * Adds a file to the download plan of its folder again, e.g. after the
+     * download broke. Requested on next file requesting.
+     * 
+     * @param fInfo
+     */
+    void planDownload(FileInfo fInfo) {
+        DownloadPlan plan = plans.get(fInfo.getFolderInfo());
+        if (plan != null) {
+            plan.add(fInfo);
         }
     }
 
     /**
-     * Triggers to request missing files on all folders.
+     * Triggers to request missing files on all folders. The files to download
+     * are determined again.
      * 
      * @see #triggerFileRequesting(FolderInfo) for single folder file requesting
      *      (=lower CPU usage)
      */
     public void triggerFileRequesting() {
-        ProfilingEntry pe = Profiling.start();
+        for (DownloadPlan plan : plans.values()) {
+            plan.invalidate();
+        }
+        enqueueAll();
+    }
+
+    /**
+     * @return the number of folders waiting for file requesting.
+     */
+    public int getQueuedFoldersCount() {
+        synchronized (folderQueue) {
+            return folderQueue.size();
+        }
+    }
+
+    /**
+     * @return the number of files planned for download on all folders.
+     */
+    public int getPlannedFilesCount() {
+        int n = 0;
+        for (DownloadPlan plan : plans.values()) {
+            n += plan.size();
+        }
+        return n;
+    }
+
+    /**
+     * @param foInfo
+     * @return the number of files planned for download on the folder.
+     */
+    public int getPlannedFilesCount(FolderInfo foInfo) {
+        DownloadPlan plan = plans.get(foInfo);
+        return plan != null ? plan.size() : 0;
+    }
+
+    /**
+     * @param foInfo
+     * @return the milliseconds since the download plan of the folder was
+     *         built. -1 if not built yet.
+     */
+    public long getPlanAge(FolderInfo foInfo) {
+        DownloadPlan plan = plans.get(foInfo);
+        return plan != null ? plan.getAge() : -1;
+    }
+
+    private void enqueue(Folder folder) {
+        synchronized (folderQueue) {
+            if (folderQueue.add(folder)) {
+                addWorker();
+            }
+        }
+    }
+
+    private void enqueueAll() {
+        ProfilingEntry pe = Profiling
+            .start("FileRequestor.triggerFileRequesting");
         Collection<Folder> folders = getController().getFolderRepository()
             .getFolders(true);
         synchronized (folderQueue) {
+            boolean added = false;
             for (Folder folder : folders) {
-                if (folderQueue.contains(folder)) {
-                    continue;
-                }
-                folderQueue.offer(folder);
+                added |= folderQueue.add(folder);
+            }
+            if (added) {
                 addWorker();
             }
         }
         Profiling.end(pe, 100);
     }
 
+    private Folder pollFolder() {
+        synchronized (folderQueue) {
+            Iterator<Folder> it = folderQueue.iterator();
+            if (!it.hasNext()) {
+                return null;
+            }
+            Folder folder = it.next();
+            it.remove();
+            return folder;
+        }
+    }
+
+    private long getPlanMaxAge() {
+        return 1000L * ConfigurationEntry.FOLDER_DOWNLOAD_PLAN_MAX_AGE
+            .getValueInt(getController());
+    }
+
+    /**
+     * Same criteria as {@link Folder#getIncomingFiles(boolean, int)}.
+     */
+    private static boolean isIncoming(Folder folder, FileInfo remoteFile) {
+        if (remoteFile.isDeleted()) {
+            return false;
+        }
+        if (folder.getDiskItemFilter().isExcluded(remoteFile)) {
+            return false;
+        }
+        FileInfo localFile = folder.getFile(remoteFile);
+        return localFile == null || remoteFile.isNewerThan(localFile);
+    }
+
     /**
      * Stops file requsting
      */
@@ -167,6 +341,7 @@ public class FileRequestor extends PFComponent {
             if (isFiner()) {
                 logFiner("Skipping " + folder + ". not on auto donwload");
             }
+            plans.remove(folder.getInfo());
             return;
         }
         if (isFiner()) {
@@ -216,8 +391,28 @@ public class FileRequestor extends PFComponent {
             }
             return;
         }
-        Collection<FileInfo> incomingFiles = folder.getIncomingFiles(false,
-            Constants.MAX_DLS_FROM_LAN_MEMBER * 2);
+        DownloadPlan plan = plans.get(folder.getInfo());
+        if (plan == null) {
+            plan = new DownloadPlan(folder.getTransferPriorities());
+            DownloadPlan existing = plans.putIfAbsent(folder.getInfo(), plan);
+            if (existing != null) {
+                plan = existing;
+            }
+        }
+        if (plan.isRebuildRequired(getPlanMaxAge())) {
+            long start = Metrics.start();
+            Collection<FileInfo> incomingFiles = folder.getIncomingFiles(
+                false, MAX_PLANNED_FILES_PER_MEMBER);
+            plan.rebuild(incomingFiles,
+                incomingFiles.size() >= MAX_PLANNED_FILES_PER_MEMBER);
+            PLAN_BUILD_TIMER.stop(start);
+            if (isFiner()) {
+                logFiner("Planned " + plan.size() + " incoming files of "
+                    + folder);
+            }
+        }
+        List<FileInfo> incomingFiles = plan.poll(Constants.MAX_DLS_FROM_LAN_MEMBER
+            * 2 * folder.getConnectedMembersCount());
         if (incomingFiles.isEmpty()) {
             if (isFiner()) {
                 logFiner("Not requesting files. No incoming files " + folder);
@@ -225,7 +420,12 @@ public class FileRequestor extends PFComponent {
             return;
         }
 
-        retrieveNewestVersions(folder, incomingFiles, true);
+        // E.g. no source with free upload capacity. Keep them planned.
+        for (FileInfo fInfo : retrieveNewestVersions(folder, incomingFiles,
+            true))
+        {
+            plan.add(fInfo);
+        }
     }
 
     /**
@@ -235,16 +435,17 @@ public class FileRequestor extends PFComponent {
      * @param folder
      * @param fInfos
      * @param autoDownload
+     * @return the files still incoming, which could not be requested.
      */
-    private void retrieveNewestVersions(Folder folder,
+    private List<FileInfo> retrieveNewestVersions(Folder folder,
         Collection<FileInfo> fInfos, boolean autoDownload)
     {
         TransferManager tm = getController().getTransferManager();
         List<FileInfo> filesToDownload = new ArrayList<FileInfo>(fInfos.size());
-        int i = 0;
+        List<FileInfo> notRequested = new ArrayList<FileInfo>();
         for (FileInfo fInfo : fInfos) {
             if (Thread.currentThread().isInterrupted()) {
-                return;
+                return notRequested;
             }
             if (fInfo.isDeleted()) {
                 // Dont retrieve deleted. done in a different place:
@@ -268,8 +469,9 @@ public class FileRequestor extends PFComponent {
         }
         if (filesToDownload.isEmpty()) {
             // Quit here.
-            return;
+            return notRequested;
         }
+        // Stable: Keeps the order of the download plan.
         Collections.sort(filesToDownload, folder.getTransferPriorities().getComparator());
         for (FileInfo fInfo : filesToDownload) {
             try {
@@ -281,12 +483,19 @@ public class FileRequestor extends PFComponent {
                         + fInfo.toDetailString());
                     continue;
                 }
-                prepareDownload(newestVersion, autoDownload);
+                if (prepareDownload(newestVersion, autoDownload) == null
+                    && isIncoming(folder, newestVersion)
+                    && !tm.isDownloadingActive(newestVersion)
+                    && !tm.isDownloadingPending(newestVersion))
+                {
+                    notRequested.add(newestVersion);
+                }
             } catch (RuntimeException e) {
                 logWarning("Unable to download: " + fInfo.toDetailString()
                     + ": " + e);
             }
         }
+        return notRequested;
     }
 
     private void createDirectory(DirectoryInfo dirInfo) {
@@ -305,9 +514,11 @@ public class FileRequestor extends PFComponent {
         }
     }
 
-    private void prepareDownload(FileInfo newestVersion, boolean autoDownload) {
+    private DownloadManager prepareDownload(FileInfo newestVersion,
+        boolean autoDownload)
+    {
         TransferManager tm = getController().getTransferManager();
-        tm.downloadNewestVersion(newestVersion, autoDownload);
+        return tm.downloadNewestVersion(newestVersion, autoDownload);
     }
 
     /**
@@ -367,13 +578,14 @@ public class FileRequestor extends PFComponent {
     }
 
     private void addWorker() {
+        int nQueued = getQueuedFoldersCount();
         synchronized (workerPool) {
             // Now do the actual resizing.
             int nWorkers = workerPool.size();
             // Calculate required workers. check min / max bounds.
             int maxWorkers = ConfigurationEntry.FOLDER_FILE_REQUESTOR_MAX_WORKERS.getValueInt(getController());
             int foldersPerWorker = 2* ConfigurationEntry.FOLDER_FOLDERS_PER_FILE_REQUESTOR.getValueInt(getController());
-            int reqWorkers = Math.max(1, Math.min(maxWorkers, folderQueue.size() / foldersPerWorker));
+            int reqWorkers = Math.max(1, Math.min(maxWorkers, nQueued / foldersPerWorker));
             int diff = reqWorkers - nWorkers;
 
             if (isFiner() && diff != 0) {
@@ -410,7 +622,7 @@ public class FileRequestor extends PFComponent {
 
         public void run() {
             try {
-                if (folderQueue.isEmpty()) {
+                if (getQueuedFoldersCount() == 0) {
                     return;
                 }
                 if (stopped) {
@@ -421,30 +633,12 @@ public class FileRequestor extends PFComponent {
                     logFiner("Started requesting files");
                 }
                 long start = System.currentTimeMillis();
-                for (Folder folder : folderQueue) {
-                    if (stopped) {
-                        return;
-                    }
-                    /*
-                    if (folderQueue.size() < 5) {
-                        logWarning("Still in queue: " + folderQueue);
-                    } else {
-                        logWarning("Still in queue: "
-                                + folderQueue.size());
-                    }*/
-
+                Folder folder;
+                while (!stopped && (folder = pollFolder()) != null) {
                     try {
-                        folderQueue.remove(folder);
                         nFolders++;
+                        lastActivity = new Date();
                         requestMissingFilesForAutodownload(folder);
-
-                        // Give CPU a bit time.
-                        if (nFolders % 5 == 0 && !stopped) {
-                            lastActivity = new Date();
-                            if (!getMySelf().isServer()) {
-                                Thread.sleep(1);
-                            }
-                        }
                     } catch (RuntimeException e) {
                         logSevere("RuntimeException: " + e.toString(), e);
                     }
@@ -456,13 +650,10 @@ public class FileRequestor extends PFComponent {
                         logWarning("Requesting files for " + nFolders + " folder(s) took " + took + "ms.");
                     }
                 }
-            } catch (InterruptedException e) {
-                logFine("Stopped");
-                logFiner(e);
             } finally {
                 stopped = true;
                 workerPool.remove(this);
-                if (!folderQueue.isEmpty()) {
+                if (getQueuedFoldersCount() > 0) {
                     addWorker();
                 }
             }
@@ -475,7 +666,18 @@ public class FileRequestor extends PFComponent {
     private final class PeriodicalTriggerTask extends TimerTask {
         @Override
         public void run() {
-            triggerFileRequesting();
+            enqueueAll();
+
+            // Drop plans of removed folders
+            for (FolderInfo foInfo : plans.keySet()) {
+                if (foInfo.getFolder(getController()) == null) {
+                    plans.remove(foInfo);
+                }
+            }
+            if (isFine()) {
+                logFine("Queued folders: " + getQueuedFoldersCount()
+                    + ", planned files: " + getPlannedFilesCount());
+            }
 
             for (Worker worker : workerPool) {
                 if (worker.isTimeout()) {
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.nio.file.Path;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.disk.Folder;
+import de.dal33t.powerfolder.disk.FolderRepository;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.StringUtils;
+import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.metrics.Counter;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+
+/**
+ * Finds local files with the same contents as a file to download. Moved,
+ * renamed or copied files are then copied locally instead of being downloaded
+ * again. The copy is verified with the file digest of the parts record.
+ * <p>
+ * Local files are looked up by their OID or hashes in all folders. The
+ * candidate has to have the same size and, if only the OID matches, the same
+ * modification date. It also has to be in sync with the disk.
+ * <p>
+ * The candidates are looked up in the OID and hashes index of the folder
+ * databases.
+ */
+class LocalSourceFinder extends PFComponent {
+    private static final Counter REUSED = Metrics
+        .counter("transfer.local.reused");
+    private static final Counter REUSED_BYTES = Metrics
+        .counter("transfer.local.reused.bytes");
+
+    LocalSourceFinder(Controller controller) {
+        super(controller);
+    }
+
+    /**
+     * @param fInfo
+     *            the file to download
+     * @return if a local source might be available for the file. Cheap check.
+     */
+    boolean isApplicable(FileInfo fInfo) {
+        // Copies are verified with the file digest of the parts record.
+        if (fInfo.getSize() < Constants.MIN_SIZE_FOR_PARTTRANSFERS
+            || fInfo.isDeleted()
+            || fInfo.getFolderInfo().isMetaFolder())
+        {
+            return false;
+        }
+        if (StringUtils.isBlank(fInfo.getOID())
+            && StringUtils.isBlank(fInfo.getHashes()))
+        {
+            return false;
+        }
+        return ConfigurationEntry.TRANSFERS_LOCAL_REUSE
+            .getValueBoolean(getController());
+    }
+
+    /**
+     * @param fInfo
+     *            the file to download
+     * @return the local file with the same contents or null if not available.
+     */
+    Path find(FileInfo fInfo) {
+        if (!isApplicable(fInfo)) {
+            return null;
+        }
+        FolderRepository repo = getController().getFolderRepository();
+        // Same folder first. Moves and renames.
+        Folder own = fInfo.getFolder(repo);
+        Path file = own != null ? find(own, fInfo) : null;
+        for (Folder folder : repo.getFolders()) {
+            if (file != null) {
+                break;
+            }
+            if (folder != own) {
+                file = find(folder, fInfo);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Counts a file copied from a local source.
+     *
+     * @param size
+     */
+    void reused(long size) {
+        REUSED.increment();
+        REUSED_BYTES.add(size);
+    }
+
+    private Path find(Folder folder, FileInfo fInfo) {
+        if (folder.isHibernated() || folder.isDeviceDisconnected()) {
+            return null;
+        }
+        String hashes = StringUtils.isNotBlank(fInfo.getHashes())
+            ? fInfo.getHashes()
+            : null;
+        String oid = StringUtils.isNotBlank(fInfo.getOID())
+            ? fInfo.getOID()
+            : null;
+        FileInfoDAO dao = folder.getDAO();
+        // Same hashes first, OID only if none matches.
+        if (hashes != null) {
+            for (FileInfo candidate : dao.findByHashes(hashes, null)) {
+                Path file = verify(folder, candidate, fInfo, true);
+                if (file != null) {
+                    return file;
+                }
+            }
+        }
+        if (oid != null) {
+            for (FileInfo candidate : dao.findByOID(oid, null)) {
+                if (hashes != null && hashes.equals(candidate.getHashes())) {
+                    // Checked above
+                    continue;
+                }
+                Path file = verify(folder, candidate, fInfo, false);
+                if (file != null) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Path verify(Folder folder, FileInfo candidate, FileInfo fInfo,
+        boolean sameHashes)
+    {
+        if (candidate.getSize() != fInfo.getSize()) {
+            return null;
+        }
+        if (!sameHashes
+            && !Util.equals(candidate.getModifiedDate(),
+                fInfo.getModifiedDate()))
+        {
+            return null;
+        }
+        if (candidate.equals(fInfo)
+            && candidate.isVersionDateAndSizeIdentical(fInfo))
+        {
+            // Not a different file.
+            return null;
+        }
+        FileInfo current = folder.getFile(candidate);
+        if (current == null || current.isDeleted()
+            || !current.isVersionDateAndSizeIdentical(candidate))
+        {
+            return null;
+        }
+        Path file = current.getDiskFile(getController()
+            .getFolderRepository());
+        if (file == null || !current.inSyncWithDisk(file)) {
+            return null;
+        }
+        if (isFine()) {
+            logFine("Found local source " + current.toDetailString()
+                + " for " + fInfo.toDetailString());
+        }
+        return file;
+    }
+}
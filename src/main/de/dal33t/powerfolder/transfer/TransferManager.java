@@ -76,8 +76,10 @@ import de.dal33t.powerfolder.light.FileInfoKey.Type;
 import de.dal33t.powerfolder.light.FolderInfo;
 import de.dal33t.powerfolder.message.AbortUpload;
 import de.dal33t.powerfolder.message.DownloadQueued;
+import de.dal33t.powerfolder.message.FileBundle;
 import de.dal33t.powerfolder.message.FileChunk;
 import de.dal33t.powerfolder.message.RequestDownload;
+import de.dal33t.powerfolder.message.RequestFileBundle;
 import de.dal33t.powerfolder.message.TransferStatus;
 import de.dal33t.powerfolder.net.ConnectionHandler;
 import de.dal33t.powerfolder.transfer.swarm.FileRecordProvider;
@@ -183,6 +185,10 @@ public class TransferManager extends PFComponent {
 
     private final TransferManagerListener listenerSupport;
 
+    /** Transfers small files in bundles */
+    private final FileBundler fileBundler;
+    private final LocalSourceFinder localSourceFinder;
+
     private DownloadManagerFactory downloadManagerFactory = MultiSourceDownloadManager.factory;
 
     private BandwidthStatsRecorder statsRecorder;
@@ -203,6 +209,8 @@ public class TransferManager extends PFComponent {
         downloadCounter = new TransferCounter();
         totalUploadTrafficCounter = new TransferCounter();
         totalDownloadTrafficCounter = new TransferCounter();
+        fileBundler = new FileBundler(this);
+        localSourceFinder = new LocalSourceFinder(controller);
 
         // Create listener support
         listenerSupport = ListenerSupportFactory
@@ -1013,7 +1021,7 @@ public class TransferManager extends PFComponent {
             if (requestMoreFiles) {
                 // Trigger filerequestor
                 getController().getFolderRepository().getFileRequestor()
-                    .triggerFileRequesting(fileInfo.getFolderInfo());
+                    .continueFileRequesting(fileInfo.getFolderInfo());
             } else {
                 if (isFiner()) {
                     logFiner("Not triggering file requestor. " + nDlFromNode
@@ -2099,6 +2107,10 @@ public class TransferManager extends PFComponent {
         if (!manager.isRequestedAutomatic()) {
             enquePendingDownload(new Download(this, manager.getFileInfo(),
                 manager.isRequestedAutomatic()));
+        } else {
+            // Retry on next file requesting
+            getController().getFolderRepository().getFileRequestor()
+                .planDownload(manager.getFileInfo());
         }
     }
 
@@ -2310,6 +2322,38 @@ public class TransferManager extends PFComponent {
             Type.VERSION_DATE_SIZE));
     }
 
+    /**
+     * Sends the files requested in a bundle.
+     *
+     * @param from
+     *            the requesting member
+     * @param request
+     */
+    public void queueUploadBundle(Member from, RequestFileBundle request) {
+        Reject.ifNull(request, "Request is null");
+        fileBundler.upload(from, request);
+    }
+
+    /**
+     * Hands the contents received in a bundle to the downloads.
+     *
+     * @param from
+     *            the uploading member
+     * @param bundle
+     */
+    public void receivedFileBundle(Member from, FileBundle bundle) {
+        Reject.ifNull(bundle, "Bundle is null");
+        fileBundler.received(from, bundle);
+    }
+
+    FileBundler getFileBundler() {
+        return fileBundler;
+    }
+
+    LocalSourceFinder getLocalSourceFinder() {
+        return localSourceFinder;
+    }
+
     public Download getActiveDownload(Member from, FileInfo fInfo) {
         DownloadManager man = getDownloadManagerFor(fInfo);
         if (man == null) {
@@ -349,6 +349,7 @@ public class DirectoryFilter extends FilterModel {
         criteria.setPath(directoryInfo);
         criteria.setRecursive(true);
         criteria.setType(Type.FILES_ONLY);
+        addKeyWords(criteria, keywords);
         Collection<FileInfo> infoCollection = dao.findFiles(criteria);
         for (FileInfo fileInfo : infoCollection) {
             if (fileInfo instanceof DirectoryInfo) {
@@ -418,6 +419,34 @@ public class DirectoryFilter extends FilterModel {
         }
     }
 
+    /**
+     * Lets the DAO pre-select files by name if all keywords are positive and
+     * matched against the file name. The DAO matches the relative name, so
+     * its result contains at least all files matching here.
+     *
+     * @param criteria
+     * @param keywords
+     */
+    private void addKeyWords(FileInfoCriteria criteria, String[] keywords) {
+        if (keywords == null) {
+            return;
+        }
+        int searchMode = (Integer) searchModeVM.getValue();
+        if (searchMode != SEARCH_MODE_FILE_NAME_DIRECTORY_NAME
+            && searchMode != SEARCH_MODE_FILE_NAME_ONLY)
+        {
+            return;
+        }
+        for (String keyword : keywords) {
+            if (keyword.startsWith("-")) {
+                return;
+            }
+        }
+        for (String keyword : keywords) {
+            criteria.addKeyWord(keyword);
+        }
+    }
+
     private void filterFileInfo(FilteredDirectoryModel filteredDirectoryModel,
                                 String[] keywords, DirectoryFilterResult result,
                                 FileInfo fileInfo, boolean addFiles) {
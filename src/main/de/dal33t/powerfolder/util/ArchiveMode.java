@@ -5,6 +5,7 @@ import java.nio.file.Path;
 import java.util.logging.Logger;
 
 import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.disk.ChunkedFileArchiver;
 import de.dal33t.powerfolder.disk.FileArchiver;
 import de.dal33t.powerfolder.disk.Folder;
 
@@ -24,6 +25,14 @@ public enum ArchiveMode {
                 // + archive);
                 // }
             }
+            if (ConfigurationEntry.ARCHIVE_CHUNKED.getValueBoolean(f
+                .getController()))
+            {
+                Path store = archive.resolveSibling(archive.getFileName()
+                    + ".chunks");
+                return new ChunkedFileArchiver(archive, store, f
+                    .getController().getMySelf().getInfo());
+            }
             return new FileArchiver(archive, f.getController().getMySelf()
                 .getInfo());
         }
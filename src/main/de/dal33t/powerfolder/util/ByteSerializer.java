@@ -20,6 +20,7 @@
 package de.dal33t.powerfolder.util;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InvalidClassException;
@@ -30,20 +31,22 @@ import java.io.Serializable;
 import java.io.StreamCorruptedException;
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
 
 import de.dal33t.powerfolder.message.Identity;
 import de.dal33t.powerfolder.util.logging.Loggable;
+import de.dal33t.powerfolder.util.metrics.Counter;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+import de.dal33t.powerfolder.util.metrics.Timer;
 
 /**
  * Helper class which serializes and deserializes java objects into byte arrays
@@ -65,10 +68,101 @@ public class ByteSerializer extends Loggable {
     private Reference<ByteArrayOutputStream> outBufferRef;
     private Reference<byte[]> inBufferRef;
 
-    public static boolean BENCHMARK = false;
-    private static final Map<Class<?>, Integer> CLASS_STATS = new ConcurrentHashMap<Class<?>, Integer>();
-    private static long totalTime = 0;
-    private static int totalObjects = 0;
+    /**
+     * First byte of a message encoded with the negotiated codec. Neither a
+     * GZIP (1f 8b) nor a plain serialization (ac ed) stream starts with it.
+     * Followed by the codec byte and the uncompressed length (4 bytes).
+     */
+    private static final byte CODEC_MAGIC = 0x50;
+    private static final byte CODEC_STORED = 0;
+    private static final byte CODEC_DEFLATE_V1 = 1;
+    private static final int CODEC_HEADER_SIZE = 6;
+    /**
+     * Deflate level of the negotiated codec. Most of the gain of the default
+     * level at a fraction of the CPU.
+     */
+    private static final int CODEC_LEVEL = 3;
+    /**
+     * Messages of at least this size get a sample compressed first to skip
+     * incompressible payloads, like file chunks of compressed media.
+     */
+    private static final int CODEC_SAMPLE_THRESHOLD = 16 * 1024;
+    private static final int CODEC_SAMPLE_SIZE = 4 * 1024;
+    private static final double CODEC_INCOMPRESSIBLE_RATIO = 0.9;
+    /**
+     * Preset dictionary of the codec. NEVER CHANGE. A changed dictionary
+     * requires a new codec id. Most frequent tokens last.
+     */
+    private static final byte[] CODEC_DICTIONARY_V1 = String.join("",
+        ".DS_Store", "Thumbs.db", "desktop.ini", ".tmp", ".png", ".gif",
+        ".zip", ".mp3", ".mp4", ".pptx", ".docx", ".xlsx", ".doc", ".xls",
+        ".jpg", ".JPG", ".pdf", ".txt", "Documents/", "Pictures/",
+        "Desktop/", "java.util.ArrayList", "java.util.Calendar",
+        "java.util.GregorianCalendar", "sun.util.calendar.ZoneInfo",
+        "java.lang.Boolean", "java.lang.Integer", "java.lang.Number",
+        "java.lang.Long", "java.lang.String", "java.util.Date",
+        "de.dal33t.powerfolder.message.Ping",
+        "de.dal33t.powerfolder.message.Pong",
+        "de.dal33t.powerfolder.message.Problem",
+        "de.dal33t.powerfolder.message.TransferStatus",
+        "de.dal33t.powerfolder.message.RequestNodeList",
+        "de.dal33t.powerfolder.message.KnownNodesExt",
+        "de.dal33t.powerfolder.message.FolderListExt",
+        "de.dal33t.powerfolder.message.RelayedMessageExt",
+        "de.dal33t.powerfolder.message.ReplyFilePartsRecord",
+        "de.dal33t.powerfolder.message.RequestFilePartsRecord",
+        "de.dal33t.powerfolder.message.DownloadQueued",
+        "de.dal33t.powerfolder.message.AbortDownload",
+        "de.dal33t.powerfolder.message.AbortUpload",
+        "de.dal33t.powerfolder.message.StartUploadExt",
+        "de.dal33t.powerfolder.message.StopUploadExt",
+        "de.dal33t.powerfolder.message.RequestDownloadExt",
+        "de.dal33t.powerfolder.message.RequestPartExt",
+        "de.dal33t.powerfolder.message.FileChunkExt",
+        "de.dal33t.powerfolder.message.FolderFilesChangedExt",
+        "de.dal33t.powerfolder.message.FileListExt",
+        "de.dal33t.powerfolder.message.Message",
+        "de.dal33t.powerfolder.light.AccountInfo",
+        "de.dal33t.powerfolder.light.MemberInfo",
+        "de.dal33t.powerfolder.light.FolderInfo",
+        "de.dal33t.powerfolder.light.DirectoryInfo",
+        "de.dal33t.powerfolder.light.FileInfo", "modifiedByAccount",
+        "modifiedBy", "lastModifiedDate", "deleted", "version", "size",
+        "hashes", "tags", "oid", "folderInfo", "fileName").getBytes(
+        StandardCharsets.UTF_8);
+
+    // Sending and receiving threads use separate locks
+    private final Object deflateLock = new Object();
+    private Deflater deflater;
+    private Deflater sampler;
+    private final Object inflateLock = new Object();
+    private Inflater inflater;
+    // No new native contexts after close()
+    private volatile boolean closed;
+
+    private static final Timer SERIALIZE_TIMER = Metrics
+        .timer("serializer.serialize");
+    private static final Timer DESERIALIZE_TIMER = Metrics
+        .timer("serializer.deserialize");
+    private static final Counter SERIALIZED_BYTES = Metrics
+        .counter("serializer.serialize.bytes");
+    private static final Counter DESERIALIZED_BYTES = Metrics
+        .counter("serializer.deserialize.bytes");
+    private static final Timer COMPRESS_TIMER = Metrics
+        .timer("serializer.compress");
+    private static final Timer DECOMPRESS_TIMER = Metrics
+        .timer("serializer.decompress");
+    private static final Counter COMPRESS_SAVED_BYTES = Metrics
+        .counter("serializer.compress.saved.bytes");
+    private static final Counter COMPRESS_SKIPPED = Metrics
+        .counter("serializer.compress.skipped");
+    private static final ClassValue<Counter> CLASS_STATS = new ClassValue<Counter>()
+    {
+        @Override
+        protected Counter computeValue(Class<?> type) {
+            return Metrics.counter("serializer.class." + type.getName());
+        }
+    };
 
     public ByteSerializer() {
     }
@@ -91,7 +185,32 @@ public class ByteSerializer extends Loggable {
     public byte[] serialize(Serializable target, boolean compress, int padToSize)
         throws IOException
     {
-        long start = System.currentTimeMillis();
+        return serialize(target, compress, false, padToSize);
+    }
+
+    /**
+     * Serialize an object. This method is non-static an re-uses the internal
+     * byteoutputstream and compression context.
+     *
+     * @param target
+     *            The object to be serialized
+     * @param compress
+     *            true if serialization should compress.
+     * @param useCodec
+     *            true to compress with the negotiated dictionary codec instead
+     *            of GZIP. Only if the remote side supports it.
+     * @param padToSize
+     *            the size to pad the output buffer to. number below 0 means no
+     *            padding.
+     * @return The serialized object
+     * @throws IOException
+     *             In case the object cannot be serialized
+     * @see de.dal33t.powerfolder.message.Identity#isSupportsFastCompression()
+     */
+    public byte[] serialize(Serializable target, boolean compress,
+        boolean useCodec, int padToSize) throws IOException
+    {
+        long start = Metrics.start();
         ByteArrayOutputStream byteOut;
         // Reset buffer
         if (outBufferRef != null && outBufferRef.get() != null) {
@@ -110,7 +229,7 @@ public class ByteSerializer extends Loggable {
 
         OutputStream targetOut;
         // Serialize....
-        if (compress) {
+        if (compress && !useCodec) {
             PFZIPOutputStream zipOut = new PFZIPOutputStream(byteOut);
             targetOut = zipOut;
         } else {
@@ -132,6 +251,12 @@ public class ByteSerializer extends Loggable {
 
         objOut.close();
 
+        if (compress && useCodec) {
+            byte[] encoded = encode(byteOut.toByteArray());
+            byteOut.reset();
+            byteOut.write(encoded);
+        }
+
         if (padToSize > 0) {
             int modulo = byteOut.size() % padToSize;
             if (modulo != 0) {
@@ -154,15 +279,10 @@ public class ByteSerializer extends Loggable {
         }
 
         byte[] buf = byteOut.toByteArray();
-        if (BENCHMARK) {
-            totalObjects++;
-            totalTime += System.currentTimeMillis() - start;
-            int count = 0;
-            if (CLASS_STATS.containsKey(target.getClass())) {
-                count = CLASS_STATS.get(target.getClass());
-            }
-            count++;
-            CLASS_STATS.put(target.getClass(), count);
+        if (start != 0L) {
+            SERIALIZE_TIMER.stop(start);
+            SERIALIZED_BYTES.add(buf.length);
+            CLASS_STATS.get(target.getClass()).increment();
         }
         return buf;
     }
@@ -259,13 +379,62 @@ public class ByteSerializer extends Loggable {
      */
     public static Object deserializeStatic(byte[] base,
         boolean expectCompression) throws IOException, ClassNotFoundException
+    {
+        return deserialize0(base, expectCompression, null);
+    }
+
+    /**
+     * Deserialize a byte[] array into an Object. Re-uses the internal
+     * decompression context.
+     *
+     * @param base
+     *            The byte[] array
+     * @param expectCompression
+     *            if there is a zip compression expected
+     * @return The deserialized object
+     * @throws IOException
+     *             an I/O Error occured
+     * @throws ClassNotFoundException
+     *             the class for the Object to be deserialized cannot be found.
+     */
+    public Object deserialize(byte[] base, boolean expectCompression)
+        throws IOException, ClassNotFoundException
+    {
+        return deserialize0(base, expectCompression, this);
+    }
+
+    /**
+     * Releases the native memory of the compression context.
+     */
+    public void close() {
+        closed = true;
+        synchronized (deflateLock) {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+            if (sampler != null) {
+                sampler.end();
+                sampler = null;
+            }
+        }
+        synchronized (inflateLock) {
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+        }
+    }
+
+    private static Object deserialize0(byte[] base, boolean expectCompression,
+        ByteSerializer context) throws IOException, ClassNotFoundException
     {
         Object result;
         try {
-            result = deserialize0(base, expectCompression);
+            result = readObject(base, expectCompression, context);
         } catch (IOException e) {
             try {
-                result = deserialize0(base, !expectCompression);
+                result = readObject(base, !expectCompression, context);
             } catch (StreamCorruptedException e2) {
                 LOG.log(Level.WARNING, "While deserializing "
                     + (expectCompression ? "   compressed" : "uncompressed")
@@ -301,21 +470,27 @@ public class ByteSerializer extends Loggable {
      *
      * @param base
      * @param compressed
+     * @param context
+     *            the serializer to re-use the decompression context from or
+     *            null
      * @return the dezerialized object
      * @throws IOException
      * @throws ClassNotFoundException
      */
-    private static Object deserialize0(byte[] base, boolean compressed)
-        throws IOException, ClassNotFoundException
+    private static Object readObject(byte[] base, boolean compressed,
+        ByteSerializer context) throws IOException, ClassNotFoundException
     {
-        long start = System.currentTimeMillis();
+        long start = Metrics.start();
         ObjectInputStream in = null;
         Object result = null;
         try {
             InputStream targetIn;
             // deserialize from the array.......u
             ByteArrayInputStream bin = new ByteArrayInputStream(base);
-            if (compressed) {
+            if (isEncoded(base)) {
+                // Negotiated codec. Detected independent of expectation
+                targetIn = decode(base, context);
+            } else if (compressed) {
                 GZIPInputStream zipIn = new GZIPInputStream(bin);
                 targetIn = zipIn;
             } else {
@@ -328,45 +503,168 @@ public class ByteSerializer extends Loggable {
             if (in != null) {
                 in.close();
             }
-            if (BENCHMARK && result != null) {
-                totalObjects++;
-                totalTime += System.currentTimeMillis() - start;
+            if (start != 0L && result != null) {
+                DESERIALIZE_TIMER.stop(start);
+                DESERIALIZED_BYTES.add(base.length);
+                CLASS_STATS.get(result.getClass()).increment();
+            }
+        }
+    }
+
+    // Negotiated codec *******************************************************
 
-                int count = 0;
-                if (CLASS_STATS.containsKey(result.getClass())) {
-                    count = CLASS_STATS.get(result.getClass());
+    private byte[] encode(byte[] raw) throws IOException {
+        long start = Metrics.start();
+        byte[] encoded;
+        synchronized (deflateLock) {
+            if (closed) {
+                Deflater once = new Deflater(CODEC_LEVEL);
+                try {
+                    encoded = deflate(once, raw);
+                } finally {
+                    once.end();
+                }
+            } else if (raw.length >= CODEC_SAMPLE_THRESHOLD
+                && isIncompressible(raw))
+            {
+                COMPRESS_SKIPPED.increment();
+                encoded = store(raw);
+            } else {
+                if (deflater == null) {
+                    deflater = new Deflater(CODEC_LEVEL);
                 }
-                count++;
-                CLASS_STATS.put(result.getClass(), count);
+                encoded = deflate(deflater, raw);
             }
         }
+        if (start != 0L) {
+            COMPRESS_TIMER.stop(start);
+            COMPRESS_SAVED_BYTES.add(raw.length + CODEC_HEADER_SIZE
+                - encoded.length);
+        }
+        return encoded;
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] raw) {
+        deflater.reset();
+        deflater.setDictionary(CODEC_DICTIONARY_V1);
+        deflater.setInput(raw);
+        deflater.finish();
+        // Not worth it if not smaller than the raw message
+        byte[] out = new byte[CODEC_HEADER_SIZE + raw.length];
+        int len = CODEC_HEADER_SIZE;
+        while (!deflater.finished() && len < out.length) {
+            len += deflater.deflate(out, len, out.length - len);
+        }
+        if (!deflater.finished()) {
+            return store(raw);
+        }
+        writeHeader(out, CODEC_DEFLATE_V1, raw.length);
+        return Arrays.copyOf(out, len);
+    }
+
+    private boolean isIncompressible(byte[] raw) {
+        if (sampler == null) {
+            sampler = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        sampler.reset();
+        sampler.setInput(raw, (raw.length - CODEC_SAMPLE_SIZE) / 2,
+            CODEC_SAMPLE_SIZE);
+        sampler.finish();
+        byte[] sample = new byte[CODEC_SAMPLE_SIZE];
+        int len = 0;
+        while (!sampler.finished() && len < sample.length) {
+            len += sampler.deflate(sample, len, sample.length - len);
+        }
+        return len >= CODEC_SAMPLE_SIZE * CODEC_INCOMPRESSIBLE_RATIO;
     }
 
-    // Helper code ************************************************************
-
-    public static final void printStats() {
-        if (totalObjects != 0) {
-            LOG.fine("Serialization perfomance: " + totalObjects + " took "
-                + totalTime + "ms. That is "
-                + ((totalTime * 1000) / totalObjects)
-                + " ms/1k objects. Message stats: ");
-            List<Class<?>> sorted = new ArrayList<Class<?>>(CLASS_STATS
-                .keySet());
-            Collections.sort(sorted, new Comparator<Class<?>>() {
-                public int compare(Class<?> o1, Class<?> o2) {
-                    Integer n1 = CLASS_STATS.get(o1);
-                    Integer n2 = CLASS_STATS.get(o2);
-                    if (n2 == null) {
-                        return -1;
+    private static byte[] store(byte[] raw) {
+        byte[] out = new byte[CODEC_HEADER_SIZE + raw.length];
+        System.arraycopy(raw, 0, out, CODEC_HEADER_SIZE, raw.length);
+        writeHeader(out, CODEC_STORED, raw.length);
+        return out;
+    }
+
+    private static void writeHeader(byte[] out, byte codec, int length) {
+        out[0] = CODEC_MAGIC;
+        out[1] = codec;
+        out[2] = (byte) (length >>> 24);
+        out[3] = (byte) (length >>> 16);
+        out[4] = (byte) (length >>> 8);
+        out[5] = (byte) length;
+    }
+
+    private static boolean isEncoded(byte[] base) {
+        return base.length >= CODEC_HEADER_SIZE && base[0] == CODEC_MAGIC
+            && (base[1] == CODEC_STORED || base[1] == CODEC_DEFLATE_V1);
+    }
+
+    private static InputStream decode(byte[] base, ByteSerializer context)
+        throws IOException
+    {
+        int length = ((base[2] & 0xFF) << 24) | ((base[3] & 0xFF) << 16)
+            | ((base[4] & 0xFF) << 8) | (base[5] & 0xFF);
+        if (length < 0 || length > MAX_BUFFER_SIZE) {
+            throw new StreamCorruptedException("Illegal message length: "
+                + length);
+        }
+        if (base[1] == CODEC_STORED) {
+            if (CODEC_HEADER_SIZE + length > base.length) {
+                throw new EOFException("Truncated message");
+            }
+            return new ByteArrayInputStream(base, CODEC_HEADER_SIZE, length);
+        }
+        if (context == null || context.closed) {
+            Inflater inflater = new Inflater();
+            try {
+                return new ByteArrayInputStream(inflate(inflater, base, length));
+            } finally {
+                inflater.end();
+            }
+        }
+        synchronized (context.inflateLock) {
+            if (context.closed) {
+                return decode(base, null);
+            }
+            if (context.inflater == null) {
+                context.inflater = new Inflater();
+            }
+            return new ByteArrayInputStream(inflate(context.inflater, base,
+                length));
+        }
+    }
+
+    private static byte[] inflate(Inflater inflater, byte[] base, int length)
+        throws IOException
+    {
+        long start = Metrics.start();
+        inflater.reset();
+        inflater.setInput(base, CODEC_HEADER_SIZE, base.length
+            - CODEC_HEADER_SIZE);
+        byte[] raw = new byte[length];
+        int off = 0;
+        try {
+            while (off < length) {
+                int n = inflater.inflate(raw, off, length - off);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(CODEC_DICTIONARY_V1);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        break;
                     }
-                    return n2.compareTo(n1);
                 }
-            });
-            for (Class<?> clazz : sorted) {
-                LOG.fine(" " + clazz.getName() + ": " + CLASS_STATS.get(clazz));
+                off += n;
             }
-        } else {
-            LOG.fine("Serialization perfomance: " + totalObjects);
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Unable to decompress: " + e);
+        }
+        if (off != length) {
+            throw new EOFException("Truncated message. Got " + off + " of "
+                + length + " bytes");
+        }
+        if (start != 0L) {
+            DECOMPRESS_TIMER.stop(start);
         }
+        return raw;
     }
-}
\ No newline at end of file
+}
@@ -61,6 +61,7 @@ import de.dal33t.powerfolder.transfer.Upload;
 import de.dal33t.powerfolder.util.compare.FileInfoComparator;
 import de.dal33t.powerfolder.util.compare.MemberComparator;
 import de.dal33t.powerfolder.util.logging.LoggingManager;
+import de.dal33t.powerfolder.util.metrics.Metrics;
 
 /**
  * Utility class with methods for debugging
@@ -696,6 +697,27 @@ public class Debug {
         }
     }
 
+    /**
+     * Writes a plain text dump of the current {@link Metrics} to disk.
+     *
+     * @param controller
+     * @return the file written or null if failed.
+     */
+    public static Path writeMetrics(Controller controller) {
+        try {
+            Path file = LoggingManager.getDebugDir().resolve(
+                controller.getConfigName() + ".metrics.txt");
+            Files.createDirectories(file.getParent());
+            String dump = Format.formatDateShort(new Date()) + '\n'
+                + Metrics.dump() + '\n';
+            Files.write(file, dump.getBytes(Convert.UTF8));
+            return file;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to write metrics file", e);
+            return null;
+        }
+    }
+
     // public static void openedFile(File f, Object src) {
     // synchronized (fileWatch) {
     // Collection<Object> o = fileWatch.get(f);
@@ -20,21 +20,41 @@
 package de.dal33t.powerfolder.util;
 
 import java.awt.EventQueue;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.SwingUtilities;
 
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.message.Message;
 import de.dal33t.powerfolder.message.MessageListener;
+import de.dal33t.powerfolder.message.QueuedMessageListener;
 import de.dal33t.powerfolder.util.logging.Loggable;
+import de.dal33t.powerfolder.util.metrics.Counter;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+import de.dal33t.powerfolder.util.metrics.Timer;
 
 /**
  * Helper class to handle message listener/firing
+ * <p>
+ * A listener registered for a message type also receives the messages of its
+ * subtypes. The listeners of a message type are resolved once and cached until
+ * a listener for that type or a supertype is added or removed. Listeners for
+ * all messages are kept apart and don't invalidate the cache. Listeners are
+ * called on the receiving
+ * thread, in the Swing Event Dispatch Thread or, if they are a
+ * {@link QueuedMessageListener}, on their own thread. The time each listener
+ * takes is recorded in the timer "message.listener.&lt;class name&gt;".
  *
  * @author <a href="mailto:totmacher@powerfolder.com">Christian Sprajc </a>
  * @version $Revision: 1.8 $
@@ -44,11 +64,38 @@ public class MessageListenerSupport extends Loggable {
     // AWT system check
     private static final boolean AWT_AVAILABLE = Util.isAwtAvailable();
 
+    /**
+     * Maximum time to wait for space in the queue of a listener before the
+     * message is dropped for that listener.
+     */
+    private static final long QUEUE_TIMEOUT_MS = 10000L;
+
+    private static final Counter DROPPED = Metrics
+        .counter("message.listener.dropped");
+
+    /**
+     * Runs the {@link QueuedMessageListener}s. At most one thread per listener.
+     */
+    private static final ExecutorService QUEUE_EXECUTOR = Executors
+        .newCachedThreadPool(new NamedThreadFactory("MessageListener-"));
+
     private Loggable source;
 
-    // Listeners for incoming messages
-    private final Map<Class<?>, CopyOnWriteArrayList<MessageListener>> messageListenersInDispatchThread;
-    private final Map<Class<?>, CopyOnWriteArrayList<MessageListener>> messageListenersNotInDispatchThread;
+    // Listeners for incoming messages. Guarded by this.
+    private final List<Registration> registrations;
+    private final Map<MessageListener, ListenerQueue> queues;
+    private long queueTimeoutMS = QUEUE_TIMEOUT_MS;
+
+    /**
+     * The listeners for all messages.
+     */
+    private volatile Dispatch all = Dispatch.EMPTY;
+
+    /**
+     * Message class -> the listeners for the type, without the ones for all
+     * messages. Entries are added and invalidated while holding this.
+     */
+    private final ConcurrentMap<Class<?>, Dispatch> dispatches;
 
     /**
      * Initializes the the message listener support with a logger from the
@@ -60,10 +107,9 @@ public class MessageListenerSupport extends Loggable {
     public MessageListenerSupport(Loggable source) {
         this.source = source;
         Reject.ifNull(source, "Source");
-        messageListenersNotInDispatchThread = new ConcurrentHashMap<Class<?>, CopyOnWriteArrayList<MessageListener>>(
-            2, 0.75f, 8);
-        messageListenersInDispatchThread = new ConcurrentHashMap<Class<?>, CopyOnWriteArrayList<MessageListener>>(
-            2, 0.75f, 8);
+        registrations = new ArrayList<Registration>();
+        queues = new HashMap<MessageListener, ListenerQueue>(2);
+        dispatches = new ConcurrentHashMap<Class<?>, Dispatch>(16, 0.75f, 4);
     }
 
     // Message listener de-/registering ***************************************
@@ -79,7 +125,7 @@ public class MessageListenerSupport extends Loggable {
 
     /**
      * Adds a message listener, which is only triggerd if a message of type
-     * <code>messageType</code> is received.
+     * <code>messageType</code> or a subtype is received.
      *
      * @param messageType
      * @param aListener
@@ -90,22 +136,27 @@ public class MessageListenerSupport extends Loggable {
         if (aListener == null) {
             return;
         }
-        CopyOnWriteArrayList<MessageListener> listeners;
-        if (aListener.fireInEventDispatchThread()) {
-            listeners = messageListenersInDispatchThread.get(messageType);
-        } else {
-            listeners = messageListenersNotInDispatchThread.get(messageType);
+        for (Registration registration : registrations) {
+            if (registration.type == messageType
+                && registration.listener.equals(aListener))
+            {
+                return;
+            }
         }
-        if (listeners == null) {
-            // Build new list for this type of message
-            listeners = new CopyOnWriteArrayList<MessageListener>();
-            if (aListener.fireInEventDispatchThread()) {
-                messageListenersInDispatchThread.put(messageType, listeners);
-            } else {
-                messageListenersNotInDispatchThread.put(messageType, listeners);
+        boolean edt = aListener.fireInEventDispatchThread();
+        ListenerQueue queue = null;
+        if (!edt && aListener instanceof QueuedMessageListener) {
+            queue = queues.get(aListener);
+            if (queue == null) {
+                queue = new ListenerQueue(aListener,
+                    ((QueuedMessageListener) aListener).getMaxQueuedMessages(),
+                    queueTimeoutMS);
+                queues.put(aListener, queue);
             }
         }
-        listeners.addIfAbsent(aListener);
+        registrations.add(new Registration(messageType, aListener, edt,
+            queue));
+        invalidate(messageType);
     }
 
     /**
@@ -113,42 +164,63 @@ public class MessageListenerSupport extends Loggable {
      *
      * @param aListener
      */
-    public void removeMessageListener(MessageListener aListener) {
-        if (aListener.fireInEventDispatchThread()) {
-            synchronized (messageListenersInDispatchThread) {
-                for (Collection<MessageListener> listeners : messageListenersInDispatchThread
-                    .values())
-                {
-                    listeners.remove(aListener);
-                }
-            }
-        } else {
-            synchronized (messageListenersNotInDispatchThread) {
-                for (Collection<MessageListener> listeners : messageListenersNotInDispatchThread
-                    .values())
-                {
-                    listeners.remove(aListener);
-                }
+    public synchronized void removeMessageListener(MessageListener aListener) {
+        List<Registration> removed = new ArrayList<Registration>(1);
+        for (Registration registration : registrations) {
+            if (registration.listener.equals(aListener)) {
+                removed.add(registration);
             }
         }
+        if (removed.isEmpty()) {
+            return;
+        }
+        registrations.removeAll(removed);
+        ListenerQueue queue = queues.remove(aListener);
+        if (queue != null) {
+            queue.close();
+        }
+        for (Registration registration : removed) {
+            invalidate(registration.type);
+        }
     }
 
     /**
      * Removes all message listener
      */
-    public void removeAllListeners() {
-        synchronized (messageListenersInDispatchThread) {
-            for (Collection<MessageListener> listeners : messageListenersInDispatchThread
-                .values())
-            {
-                listeners.clear();
-            }
+    public synchronized void removeAllListeners() {
+        registrations.clear();
+        for (ListenerQueue queue : queues.values()) {
+            queue.close();
         }
-        synchronized (messageListenersNotInDispatchThread) {
-            for (Collection<MessageListener> listeners : messageListenersNotInDispatchThread
-                .values())
-            {
-                listeners.clear();
+        queues.clear();
+        all = Dispatch.EMPTY;
+        dispatches.clear();
+    }
+
+    /**
+     * Sets the maximum time to wait for space in the queue of a
+     * {@link QueuedMessageListener}. For tests.
+     *
+     * @param queueTimeoutMS
+     */
+    synchronized void setQueueTimeout(long queueTimeoutMS) {
+        this.queueTimeoutMS = queueTimeoutMS;
+    }
+
+    /**
+     * Drops the cached listeners of all message classes the type applies to.
+     * Call while holding this.
+     *
+     * @param messageType
+     */
+    private void invalidate(Class<?> messageType) {
+        if (messageType == All.class) {
+            all = resolve(All.class);
+            return;
+        }
+        for (Class<?> messageClass : dispatches.keySet()) {
+            if (messageType.isAssignableFrom(messageClass)) {
+                dispatches.remove(messageClass);
             }
         }
     }
@@ -172,81 +244,44 @@ public class MessageListenerSupport extends Loggable {
                 "Unable to fire message, source is null");
         }
 
-        // Fire general listener
-        Collection<MessageListener> generalListeners = messageListenersNotInDispatchThread
-            .get(All.class);
-        if (generalListeners != null && !generalListeners.isEmpty()) {
-            for (MessageListener genListener : generalListeners) {
-                try {
-                    genListener.handleMessage(theSource, message);
-                } catch (Exception e) {
-                    logSevere(source
-                        + ": Exception while handling message in listener of "
-                        + theSource + ". msg: " + message + ". " + e, e);
+        // General listeners first
+        fire(all, theSource, message);
+        Class<?> messageClass = message.getClass();
+        Dispatch dispatch = dispatches.get(messageClass);
+        if (dispatch == null) {
+            synchronized (this) {
+                dispatch = dispatches.get(messageClass);
+                if (dispatch == null) {
+                    dispatch = resolve(messageClass);
+                    dispatches.put(messageClass, dispatch);
                 }
             }
         }
+        fire(dispatch, theSource, message);
+    }
 
-        // Fire special listeners
-        Collection<MessageListener> specialListeners = messageListenersNotInDispatchThread
-            .get(message.getClass());
-        if (specialListeners != null && !specialListeners.isEmpty()) {
-            for (MessageListener specListener : specialListeners) {
-                try {
-                    specListener.handleMessage(theSource, message);
-                } catch (Exception e) {
-                    logSevere(source
-                        + ": Exception while handling message in listener of "
-                        + theSource + ". msg: " + message + ". " + e, e);
-                }
-            }
+    private void fire(Dispatch dispatch, final Member theSource,
+        final Message message)
+    {
+        for (Registration registration : dispatch.inline) {
+            handle(registration.listener, registration.timer, theSource,
+                message);
+        }
+        for (Registration registration : dispatch.queued) {
+            registration.queue.offer(theSource, message);
         }
 
-        // java.util.List<E>
-        final List<MessageListener> generalEDTListener = messageListenersInDispatchThread
-            .get(All.class);
-        final List<MessageListener> specialEDTListener = messageListenersInDispatchThread
-            .get(message.getClass());
-        boolean executeEDT = (generalEDTListener != null && !generalEDTListener
-            .isEmpty())
-            || (specialEDTListener != null && !specialEDTListener.isEmpty());
-
-        if (!executeEDT) {
+        final Registration[] edtListeners = dispatch.edt;
+        if (edtListeners.length == 0) {
             // SKIP EDT executing.
             return;
         }
 
         Runnable edtRunner = new Runnable() {
             public void run() {
-                if (generalEDTListener != null && !generalEDTListener.isEmpty())
-                {
-                    for (MessageListener genListener : generalEDTListener) {
-                        try {
-                            genListener.handleMessage(theSource, message);
-                        } catch (Exception e) {
-                            logSevere(
-                                source
-                                    + ": Exception while handling message in listener of "
-                                    + theSource + ". msg: " + message + ". "
-                                    + e, e);
-                        }
-                    }
-                }
-
-                // Fire special listeners
-                if (specialEDTListener != null && !specialEDTListener.isEmpty())
-                {
-                    for (MessageListener specListener : specialEDTListener) {
-                        try {
-                            specListener.handleMessage(theSource, message);
-                        } catch (Exception e) {
-                            logSevere(
-                                source
-                                    + ": Exception while handling message in listener of "
-                                    + theSource + ". msg: " + message + ". "
-                                    + e, e);
-                        }
-                    }
+                for (Registration registration : edtListeners) {
+                    handle(registration.listener, registration.timer,
+                        theSource, message);
                 }
             }
         };
@@ -260,6 +295,162 @@ public class MessageListenerSupport extends Loggable {
         }
     }
 
+    /**
+     * Call while holding this.
+     *
+     * @param messageClass
+     *            the message class or {@link All}
+     * @return the listeners registered for the message class or its
+     *         supertypes. Only the ones for all messages if {@link All}.
+     */
+    private Dispatch resolve(Class<?> messageClass) {
+        List<Registration> inline = new ArrayList<Registration>();
+        List<Registration> queued = new ArrayList<Registration>();
+        List<Registration> edt = new ArrayList<Registration>();
+        for (Registration registration : registrations) {
+            boolean matches = messageClass == All.class
+                ? registration.type == All.class
+                : registration.type != All.class
+                    && registration.type.isAssignableFrom(messageClass);
+            if (!matches) {
+                continue;
+            }
+            if (registration.edt) {
+                edt.add(registration);
+            } else if (registration.queue != null) {
+                queued.add(registration);
+            } else {
+                inline.add(registration);
+            }
+        }
+        return new Dispatch(inline, queued, edt);
+    }
+
+    private void handle(MessageListener listener, Timer timer,
+        Member theSource, Message message)
+    {
+        long start = Metrics.start();
+        try {
+            listener.handleMessage(theSource, message);
+        } catch (Exception e) {
+            logSevere(source
+                + ": Exception while handling message in listener of "
+                + theSource + ". msg: " + message + ". " + e, e);
+        } finally {
+            timer.stop(start);
+        }
+    }
+
+    private static Timer timerFor(MessageListener listener) {
+        return Metrics.timer("message.listener."
+            + listener.getClass().getName());
+    }
+
     private static class All {
     }
-}
\ No newline at end of file
+
+    private static class Registration {
+        private final Class<?> type;
+        private final MessageListener listener;
+        private final boolean edt;
+        private final ListenerQueue queue;
+        private final Timer timer;
+
+        Registration(Class<?> type, MessageListener listener, boolean edt,
+            ListenerQueue queue)
+        {
+            this.type = type;
+            this.listener = listener;
+            this.edt = edt;
+            this.queue = queue;
+            this.timer = timerFor(listener);
+        }
+    }
+
+    private static class Dispatch {
+        private static final Registration[] NONE = new Registration[0];
+        private static final Dispatch EMPTY = new Dispatch(
+            new ArrayList<Registration>(0), new ArrayList<Registration>(0),
+            new ArrayList<Registration>(0));
+
+        private final Registration[] inline;
+        private final Registration[] queued;
+        private final Registration[] edt;
+
+        Dispatch(List<Registration> inline, List<Registration> queued,
+            List<Registration> edt)
+        {
+            this.inline = inline.toArray(NONE);
+            this.queued = queued.toArray(NONE);
+            this.edt = edt.toArray(NONE);
+        }
+    }
+
+    /**
+     * The messages waiting for a {@link QueuedMessageListener}.
+     */
+    private class ListenerQueue implements Runnable {
+        private final MessageListener listener;
+        private final Timer timer;
+        private final BlockingQueue<Object[]> queue;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean closed;
+
+        private final long timeoutMS;
+
+        ListenerQueue(MessageListener listener, int capacity, long timeoutMS) {
+            this.listener = listener;
+            this.timeoutMS = timeoutMS;
+            this.timer = timerFor(listener);
+            this.queue = new ArrayBlockingQueue<Object[]>(Math.max(1,
+                capacity));
+        }
+
+        void offer(Member theSource, Message message) {
+            if (closed) {
+                return;
+            }
+            try {
+                if (!queue.offer(new Object[]{theSource, message},
+                    timeoutMS, TimeUnit.MILLISECONDS))
+                {
+                    DROPPED.increment();
+                    logWarning(source + ": Listener " + listener
+                        + " too slow. Dropped message from " + theSource
+                        + ": " + message);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            schedule();
+        }
+
+        void close() {
+            closed = true;
+            queue.clear();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                QUEUE_EXECUTOR.execute(this);
+            }
+        }
+
+        public void run() {
+            try {
+                Object[] received;
+                while (!closed && (received = queue.poll()) != null) {
+                    handle(listener, timer, (Member) received[0],
+                        (Message) received[1]);
+                }
+            } finally {
+                scheduled.set(false);
+                if (!closed && !queue.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    }
+}
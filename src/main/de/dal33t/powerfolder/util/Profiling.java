@@ -24,12 +24,19 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import de.dal33t.powerfolder.util.metrics.Metrics;
+import de.dal33t.powerfolder.util.metrics.Timer;
+
 /**
  * Class to monitor and log long-running method calls (only in Verbose mode).
  * Used for analysis and improvements to PowerFolder.
+ * <p>
+ * Durations are recorded into {@link Metrics} timers named
+ * <code>profiling.&lt;operationName&gt;</code>.
  */
 public class Profiling {
     private static final Logger LOG = Logger.getLogger(Profiling.class
@@ -40,12 +47,7 @@ public class Profiling {
      */
     public static boolean ENABLED;
 
-    private static long totalTime;
-    private static long minimumTime = Long.MAX_VALUE;
-    private static long maximumTime;
-    private static long totalCount;
-
-    private static final Map<String, ProfilingStat> stats = new ConcurrentHashMap<String, ProfilingStat>();
+    private static final Map<String, Timer> stats = new ConcurrentHashMap<String, Timer>();
 
     /**
      * No instances allowed.
@@ -151,34 +153,13 @@ public class Profiling {
 
         // Don't execute this asychronously. Might produce
         // uncontrollable # of thread.
-        long elapsed = profilingEntry.elapsedMilliseconds();
         String operationName = profilingEntry.getOperationName();
-        if (profileMillis > 0 && elapsed >= profileMillis) {
-            // String t = profilingEntry.getOperationName();
-            // if (profilingEntry.getDetails() != null) {
-            // t += " [" + profilingEntry.getDetails() + "]";
-            // }
-            // t += " took " + elapsed + " milliseconds";
-            // LOG.error(t);
-        }
-        totalTime += elapsed;
-        totalCount++;
-        if (elapsed < minimumTime) {
-            minimumTime = elapsed;
-        }
-        if (elapsed > maximumTime) {
-            maximumTime = elapsed;
-        }
-
-        synchronized (stats) {
-            ProfilingStat stat = stats.get(operationName);
-            if (stat != null) {
-                stat.addElapsed(elapsed);
-                return;
-            }
-            stat = new ProfilingStat(operationName, elapsed);
-            stats.put(operationName, stat);
+        Timer timer = stats.get(operationName);
+        if (timer == null) {
+            timer = stats.computeIfAbsent(operationName,
+                name -> Metrics.timer("profiling." + name));
         }
+        timer.record(profilingEntry.elapsedNanos());
     }
 
     public static String dumpStats() {
@@ -187,41 +168,60 @@ public class Profiling {
             return "Unable to dump stats. Profiling is disabled";
         }
 
+        List<String> keys = new ArrayList<String>(stats.keySet());
+        Collections.sort(keys);
+        long totalCount = 0;
+        long totalNanos = 0;
+        long maximumNanos = 0;
+        for (String key : keys) {
+            Timer timer = stats.get(key);
+            totalCount += timer.getCount();
+            totalNanos += timer.getTotalNanos();
+            maximumNanos = Math.max(maximumNanos, timer.getMaxNanos());
+        }
+
         StringBuilder sb = new StringBuilder();
 
         sb.append("=== Profiling Statistics ===\n");
         sb.append("Total invocations: " + totalCount + '\n');
-        sb.append("Total elapsed time: " + Format.formatTimeframe(totalTime)
-            + "\n");
+        sb.append("Total elapsed time: "
+            + Format.formatTimeframe(toMillis(totalNanos)) + "\n");
         if (totalCount > 0) {
             sb.append("Avg time: "
-                + Format.formatTimeframe(totalTime / totalCount) + "\n");
+                + Format.formatTimeframe(toMillis(totalNanos / totalCount))
+                + "\n");
         }
-        sb.append("Min elapsed time: " + Format.formatTimeframe(minimumTime)
-            + "\n");
-        sb.append("Max elapsed time: " + Format.formatTimeframe(maximumTime)
-            + "\n");
+        sb.append("Max elapsed time: "
+            + Format.formatTimeframe(toMillis(maximumNanos)) + "\n");
         sb.append("\n");
-        List<String> keys = new ArrayList<String>(stats.keySet());
-        Collections.sort(keys);
         for (String key : keys) {
-            ProfilingStat stat = stats.get(key);
-            sb.append("'" + stat.getOperationName() + "' invocations "
-                + stat.getCount() + " elapsed "
-                + Format.formatTimeframe(stat.getElapsed()) + " average "
-                + Format.formatTimeframe(stat.getElapsed() / stat.getCount())
-                + "\n");
+            Timer timer = stats.get(key);
+            if (timer.getCount() == 0) {
+                continue;
+            }
+            sb.append("'" + key + "' invocations " + timer.getCount()
+                + " elapsed "
+                + Format.formatTimeframe(toMillis(timer.getTotalNanos()))
+                + " average "
+                + Format.formatTimeframe(toMillis(timer.getMeanNanos()))
+                + " p99 "
+                + Format.formatTimeframe(toMillis(timer
+                    .getPercentileNanos(0.99d))) + "\n");
         }
         sb.append("============================");
         return sb.toString();
     }
 
     public static void reset() {
+        // Timers stay registered in Metrics. Clear their values.
+        for (Timer timer : stats.values()) {
+            timer.reset();
+        }
         stats.clear();
-        maximumTime = 0;
-        minimumTime = Long.MAX_VALUE;
-        totalCount = 0;
-        totalTime = 0;
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
     }
 
 }
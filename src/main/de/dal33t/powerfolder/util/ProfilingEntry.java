@@ -19,6 +19,7 @@
  */
 package de.dal33t.powerfolder.util;
 
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class describing the event being profiled.
@@ -27,12 +28,12 @@ public class ProfilingEntry {
 
     private String operationName;
     private String details;
-    private long startTime;
+    private long startNanos;
 
     public ProfilingEntry(String operationName, String details) {
         this.operationName = operationName;
         this.details = details;
-        startTime = System.currentTimeMillis();
+        startNanos = System.nanoTime();
     }
 
     public String getOperationName() {
@@ -44,6 +45,10 @@ public class ProfilingEntry {
     }
 
     public long elapsedMilliseconds() {
-        return System.currentTimeMillis() - startTime;
+        return TimeUnit.NANOSECONDS.toMillis(elapsedNanos());
+    }
+
+    public long elapsedNanos() {
+        return System.nanoTime() - startNanos;
     }
 }
@@ -19,15 +19,34 @@
  */
 package de.dal33t.powerfolder.util;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import de.dal33t.powerfolder.util.logging.Loggable;
+import de.dal33t.powerfolder.util.metrics.Counter;
+import de.dal33t.powerfolder.util.metrics.Metrics;
 
 /**
- * A simple, unlimited cache for short term and low volume
+ * A cache for short term entries with a fixed timeout.
+ * <p>
+ * Optionally bounded: If more than maxEntries are cached the least recently
+ * used entries get evicted. Expired entries are removed when read and by a
+ * periodic background sweep, so entries of keys never read again do not stay
+ * forever. Keys can be held weakly, e.g. for {@code Member} keys that should
+ * not be kept alive by the cache.
  * 
  * @author sprajc
  * @param <K>
@@ -36,19 +55,101 @@ import de.dal33t.powerfolder.util.logging.Loggable;
  *            the class of the cache entries
  */
 public class SimpleCache<K, E> extends Loggable {
-    private long entryTimeout;
-    private Map<K, Pair<Date, E>> cache;
-    private AtomicInteger cacheHits = new AtomicInteger();
-    private AtomicInteger cacheMisses = new AtomicInteger();
 
+    /**
+     * Minimum interval between two background sweeps of one cache.
+     */
+    private static final long MIN_SWEEP_INTERVAL_MS = 10000L;
+
+    /**
+     * Shared daemon thread doing the expiry sweeps of all caches.
+     */
+    private static final ScheduledThreadPoolExecutor SWEEPER = createSweeper();
+
+    private final String name;
+    private final long entryTimeout;
+    private final long entryTimeoutNanos;
+    private final int maxEntries;
+    private final boolean weakKeys;
+    private final ConcurrentMap<Object, CacheEntry<E>> cache =
+        new ConcurrentHashMap<>();
+    private final ReferenceQueue<K> collectedKeys;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final Counter hitCounter;
+    private final Counter missCounter;
+    private final Counter evictionCounter;
+
+    /**
+     * Creates an unbounded cache.
+     * 
+     * @param backingMap
+     *            no longer used to store the entries. A {@link WeakHashMap}
+     *            still selects weak keys.
+     * @param duration
+     * @param unit
+     * @deprecated use {@link #SimpleCache(long, TimeUnit)} or
+     *             {@link #SimpleCache(String, int, boolean, long, TimeUnit)}
+     */
+    @Deprecated
     public SimpleCache(Map<K, Pair<Date, E>> backingMap, long duration,
         TimeUnit unit)
     {
-        super();
+        this(null, 0, backingMap instanceof WeakHashMap, duration, unit);
         Reject.ifNull(backingMap, "Backing map");
-        Reject.ifFalse(entryTimeout <= 0, "Illegal timeout value");
-        this.cache = backingMap;
+    }
+
+    /**
+     * Creates an unbounded cache with strong keys.
+     * 
+     * @param duration
+     *            the time an entry stays valid after put.
+     * @param unit
+     */
+    public SimpleCache(long duration, TimeUnit unit) {
+        this(null, 0, false, duration, unit);
+    }
+
+    /**
+     * @param name
+     *            the name to publish hit/miss/eviction counters under in
+     *            {@link Metrics}, e.g. "folder.permission.read". May be null.
+     * @param maxEntries
+     *            the maximum number of entries. Least recently used entries
+     *            are evicted above. 0 for unbounded.
+     * @param weakKeys
+     *            true to hold the keys weakly. Keys are compared by
+     *            {@link Object#equals(Object)}.
+     * @param duration
+     *            the time an entry stays valid after put.
+     * @param unit
+     */
+    public SimpleCache(String name, int maxEntries, boolean weakKeys,
+        long duration, TimeUnit unit)
+    {
+        super();
+        Reject.ifNull(unit, "Unit");
+        Reject.ifTrue(duration <= 0, "Illegal timeout value");
+        Reject.ifTrue(maxEntries < 0, "Illegal max entries value");
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.weakKeys = weakKeys;
+        this.collectedKeys = weakKeys ? new ReferenceQueue<K>() : null;
         this.entryTimeout = unit.toMillis(duration);
+        this.entryTimeoutNanos = unit.toNanos(duration);
+        if (name != null) {
+            hitCounter = Metrics.counter("cache." + name + ".hit");
+            missCounter = Metrics.counter("cache." + name + ".miss");
+            evictionCounter = Metrics.counter("cache." + name + ".eviction");
+        } else {
+            hitCounter = null;
+            missCounter = null;
+            evictionCounter = null;
+        }
     }
 
     /**
@@ -62,7 +163,24 @@ public class SimpleCache<K, E> extends Loggable {
     public void put(K key, E entry) {
         Reject.ifNull(key, "Key is null. Not supported");
         Reject.ifNull(entry, "Value is null. Not supported");
-        cache.put(key, new Pair<>(new Date(), entry));
+        long now = System.nanoTime();
+        if (weakKeys) {
+            expungeCollectedKeys();
+        }
+        CacheEntry<E> existing = cache.get(lookupKey(key));
+        if (existing != null && existing.value == entry) {
+            // Same value (e.g. Boolean.TRUE) just gets refreshed.
+            existing.created = now;
+            existing.accessed = now;
+            return;
+        }
+        cache.put(storeKey(key), new CacheEntry<>(entry, now));
+        if (maxEntries > 0 && cache.size() > maxEntries) {
+            evict();
+        }
+        if (!sweepScheduled.get()) {
+            scheduleSweep();
+        }
     }
 
     /**
@@ -71,56 +189,265 @@ public class SimpleCache<K, E> extends Loggable {
      * @return the cached, valid entry.
      */
     public E getValidEntry(K key) {
-        Pair<Date, E> p = cache.get(key);
-        if (p == null) {
-            cacheMisses.incrementAndGet();
+        Object lookupKey = lookupKey(key);
+        CacheEntry<E> e = cache.get(lookupKey);
+        if (e == null) {
+            miss();
             return null;
         }
-        Date lastValid = p.getFirst();
-        long ago = System.currentTimeMillis() - lastValid.getTime();
-        if (ago > entryTimeout) {
-            cache.remove(key);
-            cacheMisses.incrementAndGet();
+        long now = System.nanoTime();
+        if (now - e.created > entryTimeoutNanos) {
+            cache.remove(lookupKey, e);
+            miss();
             return null;
         }
-        cacheHits.incrementAndGet();
-        return p.getSecond();
+        if (maxEntries > 0) {
+            e.accessed = now;
+        }
+        cacheHits.increment();
+        if (hitCounter != null) {
+            hitCounter.increment();
+        }
+        return e.value;
     }
-    
+
     public void invalidate(K key) {
-        cache.remove(key);
+        cache.remove(lookupKey(key));
     }
 
     public void invalidateEntry(Visitor<E> entryFilter) {
         Reject.ifNull(entryFilter, "Entry");
-        for (Map.Entry<K, Pair<Date, E>> candidate: cache.entrySet()) {
-            E canEntry = candidate.getValue().getSecond();
+        for (Map.Entry<Object, CacheEntry<E>> candidate : cache.entrySet()) {
+            E canEntry = candidate.getValue().value;
             if (entryFilter.visit(canEntry)) {
-                invalidate(candidate.getKey());
+                cache.remove(candidate.getKey(), candidate.getValue());
             }
         }
     }
 
+    /**
+     * Removes all expired entries and entries of collected weak keys. Done
+     * periodically in background.
+     * 
+     * @return the number of removed entries.
+     */
+    public int purgeExpired() {
+        if (weakKeys) {
+            expungeCollectedKeys();
+        }
+        long now = System.nanoTime();
+        int removed = 0;
+        for (Map.Entry<Object, CacheEntry<E>> candidate : cache.entrySet()) {
+            CacheEntry<E> e = candidate.getValue();
+            if (now - e.created > entryTimeoutNanos
+                && cache.remove(candidate.getKey(), e))
+            {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return the number of entries currently held. May include expired
+     *         entries not yet removed.
+     */
+    public int size() {
+        return cache.size();
+    }
+
     public int getCacheHits() {
-        return cacheHits.get();
+        return cacheHits.intValue();
     }
 
     public int getCacheMisses() {
-        return cacheMisses.get();
+        return cacheMisses.intValue();
+    }
+
+    /**
+     * @return the number of entries evicted because of the size limit.
+     */
+    public long getEvictions() {
+        return evictions.sum();
     }
 
     @Override
     public String toString() {
-        int accesses = cacheHits.get() + cacheMisses.get();
+        long hits = cacheHits.sum();
+        long misses = cacheMisses.sum();
+        long accesses = hits + misses;
         String effiStr = "n/a";
         
         if (accesses > 0) {
-            double effi = ((double) cacheHits.get()) / accesses;
+            double effi = ((double) hits) / accesses;
             effiStr = Format.formatPercent(effi * 100);
         }
 
-        return "SimpleCache [efficiency=" + effiStr + ", entries="
-            + cache.size() + ", timeoutMS=" + entryTimeout + ", cacheHits="
-            + cacheHits + ", cacheMisses=" + cacheMisses + "]";
+        return "SimpleCache [" + (name != null ? "name=" + name + ", " : "")
+            + "efficiency=" + effiStr + ", entries=" + cache.size()
+            + ", maxEntries=" + maxEntries + ", timeoutMS=" + entryTimeout
+            + ", cacheHits=" + hits + ", cacheMisses=" + misses
+            + ", evictions=" + evictions.sum() + "]";
+    }
+
+    // Internal helper ********************************************************
+
+    private void miss() {
+        cacheMisses.increment();
+        if (missCounter != null) {
+            missCounter.increment();
+        }
+    }
+
+    private Object lookupKey(K key) {
+        return weakKeys ? new WeakKey<K>(key, null) : key;
+    }
+
+    private Object storeKey(K key) {
+        return weakKeys ? new WeakKey<K>(key, collectedKeys) : key;
+    }
+
+    private void expungeCollectedKeys() {
+        Object ref;
+        while ((ref = collectedKeys.poll()) != null) {
+            cache.remove(ref);
+        }
+    }
+
+    /**
+     * Brings the cache back below its limit. First drops expired entries,
+     * then the least recently used ones. Evicts down to 90% of the limit so
+     * the sort is amortized over the following puts.
+     */
+    private void evict() {
+        if (!evictionLock.tryLock()) {
+            // Someone else is already evicting.
+            return;
+        }
+        try {
+            purgeExpired();
+            int target = maxEntries - maxEntries / 10;
+            int excess = cache.size() - target;
+            if (excess <= 0) {
+                return;
+            }
+            List<Map.Entry<Object, CacheEntry<E>>> candidates = new ArrayList<>(
+                cache.entrySet());
+            candidates.sort((e1, e2) -> Long.compare(e1.getValue().accessed,
+                e2.getValue().accessed));
+            int evicted = 0;
+            for (int i = 0; i < candidates.size() && evicted < excess; i++) {
+                Map.Entry<Object, CacheEntry<E>> candidate = candidates.get(i);
+                if (cache.remove(candidate.getKey(), candidate.getValue())) {
+                    evicted++;
+                }
+            }
+            evictions.add(evicted);
+            if (evictionCounter != null) {
+                evictionCounter.add(evicted);
+            }
+            if (isFiner()) {
+                logFiner("Evicted " + evicted + " entries: " + this);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void scheduleSweep() {
+        if (!sweepScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        long interval = Math.max(entryTimeout, MIN_SWEEP_INTERVAL_MS);
+        Sweep sweep = new Sweep(this);
+        sweep.future = SWEEPER.scheduleWithFixedDelay(sweep, interval,
+            interval, TimeUnit.MILLISECONDS);
+    }
+
+    private static ScheduledThreadPoolExecutor createSweeper() {
+        ScheduledThreadPoolExecutor sweeper = new ScheduledThreadPoolExecutor(
+            1, r -> {
+                Thread t = new Thread(r, "SimpleCache-Sweeper");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+        sweeper.setRemoveOnCancelPolicy(true);
+        return sweeper;
+    }
+
+    private static final class CacheEntry<E> {
+        private final E value;
+        private volatile long created;
+        private volatile long accessed;
+
+        private CacheEntry(E value, long now) {
+            this.value = value;
+            this.created = now;
+            this.accessed = now;
+        }
+    }
+
+    /**
+     * Weakly referenced key. Equal to other weak keys with equal referents.
+     */
+    private static final class WeakKey<K> extends WeakReference<K> {
+        private final int hash;
+
+        private WeakKey(K key, ReferenceQueue<K> queue) {
+            super(key, queue);
+            this.hash = key.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof WeakKey)) {
+                return false;
+            }
+            Object key = get();
+            return key != null && key.equals(((WeakKey<?>) obj).get());
+        }
+    }
+
+    /**
+     * Periodic sweep. Does not keep the cache from being garbage collected
+     * and cancels itself afterwards.
+     */
+    private static final class Sweep implements Runnable {
+        private final WeakReference<SimpleCache<?, ?>> cacheRef;
+        private volatile ScheduledFuture<?> future;
+
+        private Sweep(SimpleCache<?, ?> cache) {
+            this.cacheRef = new WeakReference<SimpleCache<?, ?>>(cache);
+        }
+
+        @Override
+        public void run() {
+            SimpleCache<?, ?> cache = cacheRef.get();
+            if (cache == null) {
+                ScheduledFuture<?> f = future;
+                if (f != null) {
+                    f.cancel(false);
+                }
+                return;
+            }
+            try {
+                int removed = cache.purgeExpired();
+                if (removed > 0 && cache.isFiner()) {
+                    cache.logFiner("Swept " + removed
+                        + " expired entries: " + cache);
+                }
+            } catch (RuntimeException e) {
+                cache.logWarning("Unable to sweep cache: " + e, e);
+            }
+        }
     }
 }
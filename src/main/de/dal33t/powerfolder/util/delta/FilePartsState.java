@@ -19,7 +19,21 @@
 */
 package de.dal33t.powerfolder.util.delta;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import de.dal33t.powerfolder.util.Partitions;
 import de.dal33t.powerfolder.util.Range;
@@ -28,6 +42,11 @@ import de.dal33t.powerfolder.util.Range;
 /**
  * Manages the parts of a file which contain data or not.
  * This class is Thread-safe.
+ * <p>
+ * The parts are kept as maximal runs of the same state, indexed by state and
+ * start. Lookup of the first part of a state and counting the whole file are
+ * constant time. Serialized in the {@link Partitions} format of earlier
+ * versions.
  *
  * @author Dennis "Dante" Waldherr
  * @version $Revision: 4280 $
@@ -36,90 +55,322 @@ import de.dal33t.powerfolder.util.Range;
 public class FilePartsState implements Serializable {
 
     private static final long serialVersionUID = 1L;
+    private static final ObjectStreamField[] serialPersistentFields = {new ObjectStreamField(
+        "parts", Partitions.class)};
 
-	public static enum PartState {
-		NEEDED, // Not available and not yet requested
-		PENDING, // Requested for download but not yet received
-		AVAILABLE // Available for own upload
-	}
-
-	private Partitions<PartState> parts;
-
-	/**
-	 * Creates a new instance with the given length.
-	 * All elements are set to NEEDED initially.
-	 * @param fileLength
-	 */
-	public FilePartsState(long fileLength) {
-		parts = new Partitions<PartState>(Range.getRangeByLength(0, fileLength), PartState.NEEDED);
-	}
-
-	/**
-	 * Returns the first range that lies within "in", which is marked with the given state.
-	 * @param in
-	 * @param state
-	 * @return a Range or null if if no range was found
-	 */
-	public synchronized Range findPart(Range in, PartState state) {
-		return parts.search(in, state);
-	}
-
-	/**
-	 * Returns the first range that is marked with the state.
-	 * @param state
-	 * @return
-	 */
-	public synchronized Range findFirstPart(PartState state) {
-		return findPart(parts.getPartionedRange(), state);
-	}
-
-	/**
-	 * Marks a range of data with a given state
-	 * @param range
-	 * @param state
-	 */
-	public synchronized void setPartState(Range range, PartState state) {
-		parts.insert(range, state);
-	}
-
-	/**
-	 * Counts the number of PartStates in the given range that match the given PartState.
-	 * @param r
-	 * @param s
-	 * @return
-	 */
-	public synchronized long countPartStates(Range r, PartState s) {
-		return parts.count(r, s);
-	}
-
-	/**
-	 * Resets all pending ranges to needed.
-	 */
-	public synchronized void purgePending() {
-		Range r = Range.getRangeByNumbers(0, parts.getPartionedRange().getEnd());
-		Range wr;
-		while ((wr = findPart(r, PartState.PENDING)) != null) {
-			setPartState(wr, PartState.NEEDED);
-			r = Range.getRangeByNumbers(wr.getEnd() + 1, r.getEnd());
-		}
-	}
-
-	public long getFileLength() {
-		return parts.getPartionedRange().getLength();
-	}
-
-	public Range getRange() {
-		return parts.getPartionedRange();
-	}
-
-	public synchronized boolean isCompleted() {
-	    if (parts.getPartionedRange().getLength() == 0) {
-	        return true;
-	    }
-		Range r = parts.search(parts.getPartionedRange(), PartState.AVAILABLE);
-		if (r == null) {
-			return false;
-		}
-		return r.equals(parts.getPartionedRange());
-	}
+    public static enum PartState {
+        NEEDED, // Not available and not yet requested
+        PENDING, // Requested for download but not yet received
+        AVAILABLE // Available for own upload
+    }
+
+    private transient Range range;
+    /**
+     * State -> start -> inclusive end of the runs in that state. All runs
+     * together cover the range without overlap.
+     */
+    private transient Map<PartState, NavigableMap<Long, Long>> runs;
+    /**
+     * State -> total length of runs in that state.
+     */
+    private transient Map<PartState, Long> totals;
+    private transient ReadWriteLock lock;
+
+    /**
+     * Creates a new instance with the given length.
+     * All elements are set to NEEDED initially.
+     * @param fileLength
+     */
+    public FilePartsState(long fileLength) {
+        init(Range.getRangeByLength(0, fileLength));
+    }
+
+    private void init(Range fileRange) {
+        range = fileRange;
+        runs = new EnumMap<PartState, NavigableMap<Long, Long>>(
+            PartState.class);
+        totals = new EnumMap<PartState, Long>(PartState.class);
+        for (PartState state : PartState.values()) {
+            runs.put(state, new TreeMap<Long, Long>());
+            totals.put(state, 0L);
+        }
+        lock = new ReentrantReadWriteLock();
+        if (range.getLength() > 0) {
+            addRun(PartState.NEEDED, range.getStart(), range.getEnd());
+        }
+    }
+
+    /**
+     * Returns the first range that lies within "in", which is marked with the given state.
+     * @param in
+     * @param state
+     * @return a Range or null if if no range was found
+     */
+    public Range findPart(Range in, PartState state) {
+        lock.readLock().lock();
+        try {
+            NavigableMap<Long, Long> map = runs.get(state);
+            Entry<Long, Long> run = map.floorEntry(in.getStart());
+            if (run == null || run.getValue() < in.getStart()) {
+                run = map.ceilingEntry(in.getStart());
+            }
+            if (run == null || run.getKey() > in.getEnd()) {
+                return null;
+            }
+            return Range.getRangeByNumbers(
+                Math.max(run.getKey(), in.getStart()),
+                Math.min(run.getValue(), in.getEnd()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the first range that is marked with the state.
+     * @param state
+     * @return
+     */
+    public Range findFirstPart(PartState state) {
+        lock.readLock().lock();
+        try {
+            Entry<Long, Long> run = runs.get(state).firstEntry();
+            if (run == null) {
+                return null;
+            }
+            return Range.getRangeByNumbers(run.getKey(), run.getValue());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Marks a range of data with a given state
+     * @param range
+     * @param state
+     */
+    public void setPartState(Range range, PartState state) {
+        long start = Math.max(range.getStart(), this.range.getStart());
+        long end = Math.min(range.getEnd(), this.range.getEnd());
+        if (start > end) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for (PartState other : PartState.values()) {
+                cut(other, start, end);
+            }
+            addRun(state, start, end);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Counts the number of PartStates in the given range that match the given PartState.
+     * @param r
+     * @param s
+     * @return
+     */
+    public long countPartStates(Range r, PartState s) {
+        lock.readLock().lock();
+        try {
+            if (r.contains(range)) {
+                return totals.get(s);
+            }
+            NavigableMap<Long, Long> map = runs.get(s);
+            Long from = map.floorKey(r.getStart());
+            if (from == null) {
+                from = r.getStart();
+            }
+            long count = 0;
+            for (Entry<Long, Long> run : map.subMap(from, true, r.getEnd(),
+                true).entrySet())
+            {
+                long start = Math.max(run.getKey(), r.getStart());
+                long end = Math.min(run.getValue(), r.getEnd());
+                if (start <= end) {
+                    count += end - start + 1;
+                }
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Resets all pending ranges to needed.
+     */
+    public void purgePending() {
+        lock.writeLock().lock();
+        try {
+            NavigableMap<Long, Long> pending = runs.get(PartState.PENDING);
+            List<Entry<Long, Long>> purged = new ArrayList<Entry<Long, Long>>(
+                pending.entrySet());
+            pending.clear();
+            totals.put(PartState.PENDING, 0L);
+            for (Entry<Long, Long> run : purged) {
+                addRun(PartState.NEEDED, run.getKey(), run.getValue());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getFileLength() {
+        return range.getLength();
+    }
+
+    public Range getRange() {
+        return range;
+    }
+
+    public boolean isCompleted() {
+        if (range.getLength() == 0) {
+            return true;
+        }
+        lock.readLock().lock();
+        try {
+            return totals.get(PartState.AVAILABLE) == range.getLength();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Internal ***************************************************************
+
+    /**
+     * Removes [start, end] from the runs of the given state.
+     */
+    private void cut(PartState state, long start, long end) {
+        NavigableMap<Long, Long> map = runs.get(state);
+        long removed = 0;
+        Entry<Long, Long> before = map.floorEntry(start);
+        if (before != null && before.getKey() < start
+            && before.getValue() >= start)
+        {
+            // Split run overlapping the start
+            long runEnd = before.getValue();
+            map.put(before.getKey(), start - 1);
+            if (runEnd > end) {
+                map.put(end + 1, runEnd);
+                removed += end - start + 1;
+            } else {
+                removed += runEnd - start + 1;
+            }
+        }
+        Iterator<Entry<Long, Long>> it = map.subMap(start, true, end, true)
+            .entrySet().iterator();
+        List<Long> tails = null;
+        while (it.hasNext()) {
+            Entry<Long, Long> run = it.next();
+            // Read before removal, TreeMap may reuse the entry
+            long runStart = run.getKey();
+            long runEnd = run.getValue();
+            it.remove();
+            if (runEnd > end) {
+                if (tails == null) {
+                    tails = new ArrayList<Long>(1);
+                }
+                tails.add(runEnd);
+                removed += end - runStart + 1;
+            } else {
+                removed += runEnd - runStart + 1;
+            }
+        }
+        if (tails != null) {
+            for (Long runEnd : tails) {
+                map.put(end + 1, runEnd);
+            }
+        }
+        if (removed > 0) {
+            totals.put(state, totals.get(state) - removed);
+        }
+    }
+
+    /**
+     * Adds [start, end] to the runs of the state. The range must not be
+     * covered by any run of this state. Merges with adjacent runs.
+     */
+    private void addRun(PartState state, long start, long end) {
+        NavigableMap<Long, Long> map = runs.get(state);
+        totals.put(state, totals.get(state) + end - start + 1);
+        Entry<Long, Long> before = map.lowerEntry(start);
+        if (before != null && before.getValue() == start - 1) {
+            start = before.getKey();
+        }
+        Long afterEnd = map.remove(end + 1);
+        if (afterEnd != null) {
+            end = afterEnd;
+        }
+        map.put(start, end);
+    }
+
+    private Partitions<PartState> toPartitions() {
+        Partitions<PartState> parts = new Partitions<PartState>(range,
+            PartState.NEEDED);
+        for (PartState state : PartState.values()) {
+            if (state == PartState.NEEDED) {
+                continue;
+            }
+            for (Entry<Long, Long> run : runs.get(state).entrySet()) {
+                parts.insert(
+                    Range.getRangeByNumbers(run.getKey(), run.getValue()),
+                    state);
+            }
+        }
+        return parts;
+    }
+
+    private void fromPartitions(Partitions<PartState> parts) {
+        init(parts.getPartionedRange());
+        long pos = range.getStart();
+        long end = range.getEnd();
+        while (pos <= end) {
+            Range found = null;
+            PartState foundState = null;
+            for (PartState state : PartState.values()) {
+                Range r = parts.search(Range.getRangeByNumbers(pos, end),
+                    state);
+                if (r != null && r.getStart() == pos) {
+                    found = r;
+                    foundState = state;
+                    break;
+                }
+            }
+            if (found == null) {
+                // Unknown content. Download again
+                break;
+            }
+            if (foundState != PartState.NEEDED) {
+                setPartState(found, foundState);
+            }
+            pos = found.getEnd() + 1;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        lock.readLock().lock();
+        try {
+            fields.put("parts", toPartitions());
+        } finally {
+            lock.readLock().unlock();
+        }
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException,
+        ClassNotFoundException
+    {
+        ObjectInputStream.GetField fields = in.readFields();
+        Partitions<PartState> parts = (Partitions<PartState>) fields.get(
+            "parts", null);
+        if (parts == null) {
+            throw new IOException("Missing parts in serialized "
+                + FilePartsState.class.getSimpleName());
+        }
+        fromPartitions(parts);
+    }
 }
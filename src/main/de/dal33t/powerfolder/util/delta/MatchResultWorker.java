@@ -19,37 +19,75 @@
  */
 package de.dal33t.powerfolder.util.delta;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import de.dal33t.powerfolder.util.CountedInputStream;
 import de.dal33t.powerfolder.util.ProgressListener;
 import de.dal33t.powerfolder.util.Reject;
 
 public class MatchResultWorker implements Callable<List<MatchInfo>> {
+    /**
+     * Files are only split into segments of at least this size.
+     */
+    static final long MIN_SEGMENT_SIZE = 128L * 1024 * 1024;
+
     private final FilePartsRecord record;
     private final Path inFile;
     private final ProgressListener progressListener;
+    private final ExecutorService executor;
+    private final int segments;
 
     public MatchResultWorker(FilePartsRecord record, Path inFile,
         ProgressListener obs)
+    {
+        this(record, inFile, obs, null, 1);
+    }
+
+    /**
+     * @param record
+     * @param inFile
+     * @param obs
+     * @param executor
+     *            runs the segments. May be null if segments is 1.
+     * @param segments
+     *            the max number of segments to match in parallel. Matches
+     *            at segment borders may slightly differ from sequential
+     *            matching but are still valid.
+     */
+    public MatchResultWorker(FilePartsRecord record, Path inFile,
+        ProgressListener obs, ExecutorService executor, int segments)
     {
         Reject.noNullElements(record, inFile);
+        Reject.ifTrue(segments > 1 && executor == null,
+            "Executor required for segments");
         this.record = record;
         this.inFile = inFile;
         this.progressListener = obs;
+        this.executor = executor;
+        this.segments = Math.max(1, segments);
     }
 
     public List<MatchInfo> call() throws Exception {
+        long fsize = Files.size(inFile);
+        if (segments > 1 && fsize >= 2 * MIN_SEGMENT_SIZE) {
+            return callSegmented(fsize);
+        }
         CountedInputStream in = new CountedInputStream(Files.newInputStream(inFile));
         PartInfoMatcher matcher = null;
         try {
-            final long fsize = Files.size(inFile);
-
             matcher = new PartInfoMatcher(in,
                 new RollingAdler32(record.getPartLength()), MessageDigest
                     .getInstance("SHA-256"), record.getInfos());
@@ -67,7 +105,112 @@ public class MatchResultWorker implements Callable<List<MatchInfo>> {
             return matches;
         } finally {
             in.close();
-            matcher.close();
+            if (matcher != null) {
+                matcher.close();
+            }
+        }
+    }
+
+    /**
+     * Splits the file into segments and matches them in parallel. Each
+     * segment reads up to one part into the next one, so every frame
+     * starting in it gets checked.
+     */
+    private List<MatchInfo> callSegmented(long fsize) throws Exception {
+        PartInfoTable table = new PartInfoTable(record.getInfos());
+        int partLength = record.getPartLength();
+        long segmentLength = Math.max(MIN_SEGMENT_SIZE, (fsize + segments - 1)
+            / segments);
+        int n = (int) ((fsize + segmentLength - 1) / segmentLength);
+        CountedInputStream[] streams = new CountedInputStream[n];
+        List<Future<List<MatchInfo>>> futures = new ArrayList<>(n);
+        try {
+            for (int i = 0; i < n; i++) {
+                long start = i * segmentLength;
+                boolean last = i == n - 1;
+                long limit = last ? Long.MAX_VALUE : segmentLength
+                    + partLength - 1;
+                streams[i] = new CountedInputStream(openAt(start));
+                futures.add(executor.submit(new Segment(streams, i, table,
+                    start, limit, last, fsize)));
+            }
+            List<MatchInfo> matches = new LinkedList<MatchInfo>();
+            for (Future<List<MatchInfo>> future : futures) {
+                try {
+                    matches.addAll(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw e;
+                }
+            }
+            return matches;
+        } finally {
+            for (Future<List<MatchInfo>> future : futures) {
+                future.cancel(true);
+            }
+            for (CountedInputStream stream : streams) {
+                if (stream != null) {
+                    stream.close();
+                }
+            }
+        }
+    }
+
+    private InputStream openAt(long position) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(inFile);
+        try {
+            channel.position(position);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return Channels.newInputStream(channel);
+    }
+
+    private class Segment implements Callable<List<MatchInfo>> {
+        private final CountedInputStream[] streams;
+        private final int index;
+        private final PartInfoTable table;
+        private final long start;
+        private final long limit;
+        private final boolean last;
+        private final long fsize;
+
+        private Segment(CountedInputStream[] streams, int index,
+            PartInfoTable table, long start, long limit, boolean last,
+            long fsize)
+        {
+            this.streams = streams;
+            this.index = index;
+            this.table = table;
+            this.start = start;
+            this.limit = limit;
+            this.last = last;
+            this.fsize = fsize;
+        }
+
+        public List<MatchInfo> call() throws Exception {
+            PartInfoMatcher matcher = new PartInfoMatcher(streams[index],
+                new RollingAdler32(record.getPartLength()),
+                MessageDigest.getInstance("SHA-256"), table, start, limit,
+                last);
+            List<MatchInfo> matches = new LinkedList<MatchInfo>();
+            MatchInfo match;
+            while ((match = matcher.nextMatch()) != null) {
+                if (progressListener != null) {
+                    long read = 0;
+                    for (CountedInputStream stream : streams) {
+                        read += stream != null ? stream.getReadBytes() : 0;
+                    }
+                    progressListener.progressReached(Math.min(1.0,
+                        (double) read / fsize));
+                }
+                matches.add(match);
+            }
+            return matches;
         }
     }
 }
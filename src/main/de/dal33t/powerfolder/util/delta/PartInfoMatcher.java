@@ -22,121 +22,224 @@ package de.dal33t.powerfolder.util.delta;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
 
 import de.dal33t.powerfolder.util.Reject;
-import de.dal33t.powerfolder.util.RingBuffer;
 
 /**
  * Creates arrays of PartInfos given the algorithms to use and a data set.
+ * <p>
+ * Reads the data in large blocks into a window and rolls the checksum over
+ * it. Checksums are looked up in a {@link PartInfoTable}, only hits get
+ * digested. Does not allocate except for the returned {@link MatchInfo}s.
  *
  * @author Dennis "Dante" Waldherr
  * @version $Revision: 4280 $
  */
 public class PartInfoMatcher extends FilterInputStream {
-	private static final int BUFFER_SIZE = 16384;
+    /**
+     * Minimum size of the read window.
+     */
+    private static final int WINDOW_SIZE = 1024 * 1024;
+
 	private final RollingChecksum chksum;
 	private final MessageDigest digester;
-    private final RingBuffer rbuf;
-    private final byte[] buf = new byte[BUFFER_SIZE];
-    private final Map<Long, List<PartInfo>> partCache =
-        new HashMap<Long, List<PartInfo>>();
-    private final byte[] dbuf;
+    private final PartInfoTable parts;
+    private final int frameSize;
 
-    private long pos;
+    /** Stream position of the first byte of in. */
+    private final long startPosition;
+    /** Max number of bytes to read from in. */
+    private final long limit;
+    /** True to match the zero padded last part at EOF. */
+    private final boolean matchTail;
 
-	public PartInfoMatcher(InputStream in, RollingChecksum chksum, MessageDigest digester, PartInfo[] partInfos) {
-		super(in);
-		Reject.noNullElements(chksum, digester, partInfos);
-		this.chksum = chksum;
-		this.digester = digester;
+    private final byte[] window;
+    /** Position of window[0], relative to startPosition. */
+    private long windowPos;
+    /** Start of the current frame in the window. */
+    private int frameStart;
+    /** End of the current frame. The checksum covers all data up to here. */
+    private int frameEnd;
+    /** End of valid data in the window. */
+    private int dataEnd;
+    private boolean eof;
+    private boolean finished;
 
-        rbuf = new RingBuffer(chksum.getFrameSize());
-        dbuf = new byte[chksum.getFrameSize()];
-        for (PartInfo info: partInfos) {
-            List<PartInfo> pList = partCache.get(info.getChecksum());
-            if (pList == null) {
-                partCache.put(info.getChecksum(), pList = new LinkedList<PartInfo>());
-            }
-            pList.add(info);
-        }
-	}
+    private final byte[] digest;
+    private final byte[] zeros;
 
-	public MatchInfo nextMatch() throws IOException, InterruptedException {
-	    // Step 1: Fill buffer for matching
-	    int rem = rbuf.remaining();
+	public PartInfoMatcher(InputStream in, RollingChecksum chksum, MessageDigest digester, PartInfo[] partInfos) {
+        this(in, chksum, digester, new PartInfoTable(partInfos), 0,
+            Long.MAX_VALUE, true);
+	}
 
-	    while (rem > 0) {
-	        int amount = Math.min(rem, BUFFER_SIZE);
-	        int read = read(buf, 0, amount);
-	        if (read == -1) {
-	            break;
-	        }
-	        pos += read;
-	        rem -= read;
-	        chksum.update(buf, 0, read);
-	        rbuf.write(buf, 0, read);
-	    }
-	    // Step 2: If the buffer is full, try to find a match or EOF
-	    while (rbuf.remaining() == 0) {
-	        if (Thread.interrupted()) {
-	            throw new InterruptedException();
-	        }
-	        List<PartInfo> lookup = partCache.get(chksum.getValue());
-	        if (lookup != null) {
-                rbuf.peek(dbuf, 0, chksum.getFrameSize());
-                byte[] digest = digester.digest(dbuf);
+    /**
+     * Matches one segment of a larger data set.
+     *
+     * @param in
+     *            the data of the segment
+     * @param chksum
+     * @param digester
+     * @param parts
+     *            the parts to look for. May be shared with other matchers.
+     * @param startPosition
+     *            the position of the first byte of in. Added to the matched
+     *            positions.
+     * @param limit
+     *            the maximum number of bytes to read from in.
+     * @param matchTail
+     *            true if the segment ends at EOF of the data set and the zero
+     *            padded last part should be matched there.
+     */
+    PartInfoMatcher(InputStream in, RollingChecksum chksum,
+        MessageDigest digester, PartInfoTable parts, long startPosition,
+        long limit, boolean matchTail)
+    {
+        super(in);
+        Reject.noNullElements(in, chksum, digester, parts);
+        this.chksum = chksum;
+        this.digester = digester;
+        this.parts = parts;
+        this.frameSize = chksum.getFrameSize();
+        this.startPosition = startPosition;
+        this.limit = limit;
+        this.matchTail = matchTail;
+        window = new byte[Math.max(WINDOW_SIZE, frameSize * 2)];
+        digest = new byte[digester.getDigestLength()];
+        zeros = new byte[frameSize];
+    }
 
-                for (PartInfo info: lookup) {
-                    if (Arrays.equals(digest, info.getDigest())) {
-                        MatchInfo retval = new MatchInfo(info, pos - chksum.getFrameSize());
-                        rbuf.reset();
-                        return retval;
-                    }
+	public MatchInfo nextMatch() throws IOException, InterruptedException {
+        if (finished) {
+            return null;
+        }
+        while (true) {
+            if (frameEnd - frameStart < frameSize) {
+                // Step 1: Fill the frame after start or a match
+                if (frameEnd == dataEnd && !fill()) {
+                    break;
                 }
-	        }
-	        rbuf.skip(1);
-            int data = read();
-            if (data == -1) {
-                break;
+                int n = Math.min(frameSize - (frameEnd - frameStart), dataEnd
+                    - frameEnd);
+                chksum.update(window, frameEnd, n);
+                frameEnd += n;
+                continue;
             }
-	        pos++;
-	        rbuf.write(data);
-	        chksum.update(data);
-	    }
-	    // Step 3: If we got on EOF before try to finalize the result or return null if all is done
-        rem = (int) (pos % chksum.getFrameSize());
-        if (rem > 0) {
-            pos -= rem;
-
-            int av = rbuf.available();
-            rbuf.peek(dbuf, 0, av);
-            digester.update(dbuf, 0, av);
-
-
-            rem = chksum.getFrameSize() - rem;
 
-            for (int i = 0; i < rem; i++) {
-                chksum.update(0);
-                digester.update((byte) 0);
+            // Step 2: Frame is full, try to find a match or roll on
+            MatchInfo match = match(frameStart, 0);
+            if (match != null) {
+                frameStart = frameEnd;
+                return match;
+            }
+            if (frameEnd == dataEnd && !fill()) {
+                break;
+            }
+            // Roll until the next candidate or end of data in window
+            int i = frameEnd;
+            while (i < dataEnd) {
+                chksum.update(window[i++]);
+                if (parts.first(chksum.getValue()) >= 0) {
+                    break;
+                }
             }
+            frameStart += i - frameEnd;
+            frameEnd = i;
+        }
 
-            byte[] digest = digester.digest();
-            List<PartInfo> mList = partCache.get(chksum.getValue());
+        // Step 3: EOF. Try the zero padded last part.
+        finished = true;
+        if (!matchTail) {
+            return null;
+        }
+        // Parts are aligned to the start of the data set, not the segment
+        int tail = (int) ((startPosition + windowPos + dataEnd) % frameSize);
+        if (tail == 0 || tail > frameEnd - frameStart) {
+            // Aligned or already part of the last match.
+            return null;
+        }
+        int padding = frameSize - tail;
+        for (int i = 0; i < padding; i++) {
+            chksum.update(0);
+        }
+        return match(dataEnd - tail, padding);
+	}
 
-            if (mList != null) {
-                for (PartInfo info: mList) {
-                    if (Arrays.equals(digest, info.getDigest())) {
-                        return new MatchInfo(info, pos);
-                    }
-                }
+    /**
+     * @param off
+     *            start of the frame in the window
+     * @param padding
+     *            number of zeros after the frame data
+     * @return the match of the current checksum and the frame, or null
+     */
+    private MatchInfo match(int off, int padding) {
+        int index = parts.first(chksum.getValue());
+        if (index < 0) {
+            return null;
+        }
+        digester.update(window, off, frameSize - padding);
+        if (padding > 0) {
+            digester.update(zeros, 0, padding);
+        }
+        byte[] d = digest();
+        for (; index >= 0; index = parts.next(index)) {
+            PartInfo info = parts.get(index);
+            if (Arrays.equals(d, info.getDigest())) {
+                return new MatchInfo(info, startPosition + windowPos + off);
             }
         }
         return null;
-	}
+    }
+
+    private byte[] digest() {
+        if (digest.length == 0) {
+            // Provider does not tell the length
+            return digester.digest();
+        }
+        try {
+            digester.digest(digest, 0, digest.length);
+            return digest;
+        } catch (DigestException e) {
+            throw new IllegalStateException("Unable to digest: " + e, e);
+        }
+    }
+
+    /**
+     * Reads the next block into the window. Moves the current frame to the
+     * front if the window is full.
+     *
+     * @return false on EOF or if the limit is reached.
+     */
+    private boolean fill() throws IOException, InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (eof) {
+            return false;
+        }
+        if (dataEnd == window.length) {
+            int keep = dataEnd - frameStart;
+            System.arraycopy(window, frameStart, window, 0, keep);
+            windowPos += frameStart;
+            frameEnd -= frameStart;
+            dataEnd = keep;
+            frameStart = 0;
+        }
+        long remaining = limit - (windowPos + dataEnd);
+        if (remaining <= 0) {
+            eof = true;
+            return false;
+        }
+        int len = (int) Math.min(window.length - dataEnd, remaining);
+        int read = in.read(window, dataEnd, len);
+        if (read == -1) {
+            eof = true;
+            return false;
+        }
+        dataEnd += read;
+        return true;
+    }
 }
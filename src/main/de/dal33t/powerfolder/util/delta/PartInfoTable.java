@@ -0,0 +1,137 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Read-only lookup of {@link PartInfo}s by their rolling checksum.
+ * <p>
+ * Open addressing table from checksum to the first part with that checksum,
+ * parts sharing a checksum are chained by index. A bloom filter in front of
+ * it answers the common "no such checksum" probe from a small bit array.
+ * Neither lookup boxes or allocates. Immutable after construction and may be
+ * shared by several {@link PartInfoMatcher}s.
+ */
+final class PartInfoTable {
+
+    /** Bloom filter bits per part. */
+    private static final int BLOOM_BITS_PER_PART = 8;
+
+    private final PartInfo[] parts;
+    private final long[] keys;
+    /** Index of first part + 1 for the slot. 0 = free slot */
+    private final int[] heads;
+    /** Index of next part with the same checksum or -1 */
+    private final int[] chain;
+    private final int mask;
+
+    private final long[] bloom;
+    private final int bloomMask;
+
+    PartInfoTable(PartInfo[] partInfos) {
+        Reject.ifNull(partInfos, "Part infos");
+        parts = partInfos.clone();
+        int capacity = tableSizeFor(parts.length * 2);
+        keys = new long[capacity];
+        heads = new int[capacity];
+        chain = new int[parts.length];
+        mask = capacity - 1;
+
+        int bloomBits = tableSizeFor(Math.max(64, parts.length
+            * BLOOM_BITS_PER_PART));
+        bloom = new long[bloomBits >>> 6];
+        bloomMask = bloomBits - 1;
+
+        // Reverse order: chains keep the order of the given parts
+        for (int i = parts.length - 1; i >= 0; i--) {
+            long checksum = parts[i].getChecksum();
+            long hash = mix(checksum);
+            int slot = (int) hash & mask;
+            while (heads[slot] != 0 && keys[slot] != checksum) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = checksum;
+            chain[i] = heads[slot] - 1;
+            heads[slot] = i + 1;
+
+            int b1 = (int) hash & bloomMask;
+            int b2 = (int) (hash >>> 32) & bloomMask;
+            bloom[b1 >>> 6] |= 1L << b1;
+            bloom[b2 >>> 6] |= 1L << b2;
+        }
+    }
+
+    /**
+     * @param checksum
+     * @return the index of the first part with the given checksum or -1 if
+     *         there is none. Iterate further parts with {@link #next(int)}.
+     */
+    int first(long checksum) {
+        long hash = mix(checksum);
+        int b1 = (int) hash & bloomMask;
+        int b2 = (int) (hash >>> 32) & bloomMask;
+        if ((bloom[b1 >>> 6] & (1L << b1)) == 0
+            || (bloom[b2 >>> 6] & (1L << b2)) == 0)
+        {
+            return -1;
+        }
+        int slot = (int) hash & mask;
+        int head;
+        while ((head = heads[slot]) != 0) {
+            if (keys[slot] == checksum) {
+                return head - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @param partIndex
+     * @return the index of the next part with the same checksum or -1.
+     */
+    int next(int partIndex) {
+        return chain[partIndex];
+    }
+
+    PartInfo get(int partIndex) {
+        return parts[partIndex];
+    }
+
+    int size() {
+        return parts.length;
+    }
+
+    private static long mix(long x) {
+        // Finalizer of MurmurHash3
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    private static int tableSizeFor(int n) {
+        int size = Integer.highestOneBit(Math.max(2, n) - 1) << 1;
+        return size > 0 ? size : 1 << 30;
+    }
+}
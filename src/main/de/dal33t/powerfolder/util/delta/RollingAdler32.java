@@ -19,9 +19,6 @@
 */
 package de.dal33t.powerfolder.util.delta;
 
-import de.dal33t.powerfolder.util.RingBuffer;
-
-
 /**
  * Adler32 implementation which supports rolling over data.
  * Although there is a java Adler32 implementation (even done in native code), it lacks
@@ -33,37 +30,59 @@ import de.dal33t.powerfolder.util.RingBuffer;
  */
 public final class RollingAdler32 implements RollingChecksum {
 	private final static int MOD_ADLER = 65521;
-	private final RingBuffer rbuf;
+	/** The last n bytes, used as ring */
+	private final byte[] frame;
 	private final int n;
+	/**
+	 * Amount to subtract from B when rolling out a byte:
+	 * (n * byte + 1) % MOD_ADLER
+	 */
+	private final int[] rollOutB = new int[256];
+	private int framePos;
+	private boolean frameFull;
 
 	/** Adler32 specific */
 	private int A = 1, B;
 
 	public RollingAdler32(int n) {
-		rbuf = new RingBuffer(n);
+		frame = new byte[n];
 		this.n = n;
+		for (int i = 0; i < rollOutB.length; i++) {
+			rollOutB[i] = (int) (((long) n * i + 1) % MOD_ADLER);
+		}
 	}
 
 	public void update(int nd) {
-		int fb = 0;
 		nd &= 0xff; // This allows update to be called with bytes directly
 
-		if (rbuf.remaining() == 0) {
-			fb = rbuf.read();
-			B--;
+		if (frameFull) {
+			int fb = frame[framePos] & 0xff;
+			A = A + nd - fb;
+			if (A < 0) {
+				A += MOD_ADLER;
+			} else if (A >= MOD_ADLER) {
+				A -= MOD_ADLER;
+			}
+			// Branch free: Result is in (-MOD_ADLER, 2 * MOD_ADLER)
+			B = B + A - rollOutB[fb];
+			B += (B >> 31) & MOD_ADLER;
+			B -= MOD_ADLER;
+			B += (B >> 31) & MOD_ADLER;
+		} else {
+			A += nd;
+			if (A >= MOD_ADLER) {
+				A -= MOD_ADLER;
+			}
+			B += A;
+			if (B >= MOD_ADLER) {
+				B -= MOD_ADLER;
+			}
 		}
 
-		rbuf.write(nd);
-
-		A = A + nd - fb;
-		if (A < 0) {
-			A += MOD_ADLER;
-		} else if (A >= MOD_ADLER) {
-			A -= MOD_ADLER;
-		}
-		B = (B + A - n * fb) % MOD_ADLER;
-		if (B < 0) {
-			B += MOD_ADLER;
+		frame[framePos] = (byte) nd;
+		if (++framePos == n) {
+			framePos = 0;
+			frameFull = true;
 		}
 	}
 
@@ -74,7 +93,8 @@ public final class RollingAdler32 implements RollingChecksum {
 	public void reset() {
 		A = 1;
 		B = 0;
-		rbuf.reset();
+		framePos = 0;
+		frameFull = false;
 	}
 
 	public void update(byte[] data, int ofs, int len) {
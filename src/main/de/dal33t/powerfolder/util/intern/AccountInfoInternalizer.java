@@ -19,46 +19,29 @@
  */
 package de.dal33t.powerfolder.util.intern;
 
-import java.util.Map;
-import java.util.WeakHashMap;
-
 import de.dal33t.powerfolder.light.AccountInfo;
 import de.dal33t.powerfolder.util.StringUtils;
 
 /**
- * To internalize {@link AccountInfo}s into a weak hash map.
+ * To internalize {@link AccountInfo}s into a {@link WeakInterner}.
  *
  * @author sprajc
  */
 public class AccountInfoInternalizer implements Internalizer<AccountInfo> {
-    private final Map<AccountInfo, AccountInfo> INSTANCES = new WeakHashMap<>();
-    
+    private final WeakInterner<AccountInfo> INSTANCES = new WeakInterner<>(
+        "accountinfo");
+
     @Override
     public AccountInfo intern(AccountInfo accountInfo) {
         if (accountInfo == null) {
             return null;
         }
-        AccountInfo internInstance = INSTANCES.get(accountInfo);
-        if (internInstance != null) {
-            return internInstance;
-        }
-
-        // New Intern
-        synchronized (INSTANCES) {
-            internInstance = INSTANCES.get(accountInfo);
-            if (internInstance == null) {
-                if (StringUtils.isBlank(accountInfo.getUsername())) {
-                    // Not interned folder info without name.
-                    // System.err.println("INTERN FAILED: " + folderInfo + " / "
-                    // + folderInfo.getId());
-                    // new RuntimeException().printStackTrace();
-                    return accountInfo;
-                }
-                INSTANCES.put(accountInfo, accountInfo);
-                internInstance = accountInfo;
-            }
+        if (StringUtils.isBlank(accountInfo.getUsername())) {
+            // Not interned account info without username.
+            AccountInfo internInstance = INSTANCES.get(accountInfo);
+            return internInstance != null ? internInstance : accountInfo;
         }
-        return internInstance;
+        return INSTANCES.intern(accountInfo);
     }
 
     @Override
@@ -82,9 +65,13 @@ public class AccountInfoInternalizer implements Internalizer<AccountInfo> {
             return oldInstance;
         }
 
-        INSTANCES.put(accountInfo, accountInfo);
+        INSTANCES.put(accountInfo);
 
         return accountInfo;
     }
 
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " " + INSTANCES;
+    }
 }
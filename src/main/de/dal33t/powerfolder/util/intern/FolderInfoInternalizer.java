@@ -19,50 +19,28 @@
  */
 package de.dal33t.powerfolder.util.intern;
 
-import java.util.Map;
-import java.util.WeakHashMap;
-
 import de.dal33t.powerfolder.light.FolderInfo;
 import de.dal33t.powerfolder.util.StringUtils;
 
 /**
- * To internalize {@link FolderInfo}s into a weak hash map.
+ * To internalize {@link FolderInfo}s into a {@link WeakInterner}.
  *
  * @author sprajc
  */
 public class FolderInfoInternalizer implements Internalizer<FolderInfo> {
-    private final Map<FolderInfo, FolderInfo> INSTANCES = new WeakHashMap<FolderInfo, FolderInfo>();
+    private final WeakInterner<FolderInfo> INSTANCES = new WeakInterner<FolderInfo>(
+        "folderinfo");
 
     public FolderInfo intern(FolderInfo folderInfo) {
         if (folderInfo == null) {
             return null;
         }
-        FolderInfo internInstance = null;
-        synchronized (INSTANCES) {
-            internInstance = INSTANCES.get(folderInfo);
-        }
-        if (internInstance != null) {
-            return internInstance;
-        }
-
-        // New Intern
-        synchronized (INSTANCES) {
-            internInstance = INSTANCES.get(folderInfo);
-            if (internInstance == null) {
-                if (StringUtils.isBlank(folderInfo.getName())) {
-                    // Not interned folder info without name.
-                    // System.err.println("INTERN FAILED: " + folderInfo + " / "
-                    // + folderInfo.getId());
-                    // new RuntimeException().printStackTrace();
-                    return folderInfo;
-                }
-                INSTANCES.put(folderInfo, folderInfo);
-                internInstance = folderInfo;
-            } else {
-
-            }
+        if (StringUtils.isBlank(folderInfo.getName())) {
+            // Not interned folder info without name.
+            FolderInfo internInstance = INSTANCES.get(folderInfo);
+            return internInstance != null ? internInstance : folderInfo;
         }
-        return internInstance;
+        return INSTANCES.intern(folderInfo);
     }
 
     public FolderInfo rename(FolderInfo foInfo) {
@@ -70,19 +48,19 @@ public class FolderInfoInternalizer implements Internalizer<FolderInfo> {
             return null;
         }
 
-        FolderInfo oldInstance = null;
-        synchronized (INSTANCES) {
-            oldInstance = INSTANCES.get(foInfo);
-
-            if (oldInstance != null
-                    && oldInstance.getName().equals(foInfo.getName()))
-            {
-                return oldInstance;
-            }
-
-            INSTANCES.put(foInfo, foInfo);
+        FolderInfo oldInstance = INSTANCES.get(foInfo);
+        if (oldInstance != null
+            && oldInstance.getName().equals(foInfo.getName()))
+        {
+            return oldInstance;
         }
 
+        INSTANCES.put(foInfo);
         return foInfo;
     }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " " + INSTANCES;
+    }
 }
@@ -19,11 +19,10 @@
  */
 package de.dal33t.powerfolder.util.intern;
 
-import java.util.WeakHashMap;
-
 /**
  * A general class that is able to internalize a given object to save memory
- * resources. The internalization is usually realized via {@link WeakHashMap}
+ * resources. The internalization is usually realized via a
+ * {@link WeakInterner}
  *
  * @author sprajc
  * @param <T>
@@ -19,6 +19,8 @@
  */
 package de.dal33t.powerfolder.util.intern;
 
+import java.util.concurrent.atomic.LongAdder;
+
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.light.MemberInfo;
 import de.dal33t.powerfolder.net.NodeManager;
@@ -32,8 +34,8 @@ import de.dal33t.powerfolder.util.Reject;
 public class MemberInfoInternalizer implements Internalizer<MemberInfo> {
     private NodeManager nodeManager;
 
-    private volatile int hits;
-    private volatile int misses;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
 
     public MemberInfoInternalizer(NodeManager nodeManager) {
         super();
@@ -47,15 +49,21 @@ public class MemberInfoInternalizer implements Internalizer<MemberInfo> {
         }
         Member node = nodeManager.getNode(item);
         if (node != null) {
-            hits++;
+            hits.increment();
             return node.getInfo();
         } else {
-            hits++;
-            return nodeManager.addNode(item).getInfo();
+            misses.increment();
+            return nodeManager.getOrAddNode(item).getInfo();
         }
     }
     
     public MemberInfo rename(MemberInfo item) {
         return intern(item);
     }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " hits: " + hits.sum()
+            + ", misses: " + misses.sum();
+    }
 }
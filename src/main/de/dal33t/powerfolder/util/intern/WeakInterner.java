@@ -0,0 +1,199 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.intern;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.dal33t.powerfolder.util.metrics.Counter;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+
+/**
+ * A concurrent replacement for a synchronized {@link java.util.WeakHashMap}
+ * mapping instances to themselves. Lookups do not lock. Instances are held
+ * weakly and removed after garbage collection.
+ *
+ * @param <T>
+ *            the type of the interned instances. Must implement equals and
+ *            hashCode.
+ */
+public class WeakInterner<T> {
+    private final ConcurrentMap<Key<T>, Ref<T>> instances = new ConcurrentHashMap<Key<T>, Ref<T>>();
+    private final ReferenceQueue<T> queue = new ReferenceQueue<T>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final Counter hitsCounter;
+    private final Counter missesCounter;
+
+    /**
+     * @param name
+     *            the name for statistics, e.g. "folderinfo"
+     */
+    public WeakInterner(String name) {
+        hitsCounter = Metrics.counter("intern." + name + ".hits");
+        missesCounter = Metrics.counter("intern." + name + ".misses");
+    }
+
+    /**
+     * @param item
+     * @return the interned instance equal to the item or null if none.
+     */
+    public T get(T item) {
+        Ref<T> ref = instances.get(new Lookup<T>(item));
+        return ref != null ? ref.get() : null;
+    }
+
+    /**
+     * @param item
+     * @return the interned instance equal to the item. The item itself if it
+     *         was not interned before.
+     */
+    public T intern(T item) {
+        T instance = get(item);
+        if (instance != null) {
+            hits.increment();
+            hitsCounter.increment();
+            return instance;
+        }
+        misses.increment();
+        missesCounter.increment();
+        expungeStale();
+        Ref<T> ref = new Ref<T>(item, queue);
+        while (true) {
+            Ref<T> existing = instances.putIfAbsent(ref, ref);
+            if (existing == null) {
+                return item;
+            }
+            instance = existing.get();
+            if (instance != null) {
+                // Interned concurrently
+                return instance;
+            }
+            // Cleared, but not expunged yet
+            instances.remove(existing, existing);
+        }
+    }
+
+    /**
+     * Makes the item the interned instance. Replaces a previously interned
+     * equal instance.
+     *
+     * @param item
+     */
+    public void put(T item) {
+        expungeStale();
+        Ref<T> ref = new Ref<T>(item, queue);
+        // Remove first. put() would keep the key of the old instance.
+        instances.remove(new Lookup<T>(item));
+        instances.put(ref, ref);
+    }
+
+    /**
+     * @return the number of interned instances, including not yet expunged
+     *         garbage collected ones.
+     */
+    public int size() {
+        return instances.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private void expungeStale() {
+        Object ref;
+        while ((ref = queue.poll()) != null) {
+            instances.remove(ref);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "size: " + size() + ", hits: " + getHits() + ", misses: "
+            + getMisses();
+    }
+
+    private interface Key<T> {
+        T get();
+    }
+
+    private static boolean keyEquals(Key<?> key, Object other) {
+        if (key == other) {
+            return true;
+        }
+        if (!(other instanceof Key) || key.hashCode() != other.hashCode()) {
+            return false;
+        }
+        Object value = key.get();
+        return value != null && value.equals(((Key<?>) other).get());
+    }
+
+    private static class Ref<T> extends WeakReference<T> implements Key<T> {
+        private final int hash;
+
+        private Ref(T referent, ReferenceQueue<T> queue) {
+            super(referent, queue);
+            hash = referent.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return keyEquals(this, obj);
+        }
+    }
+
+    /**
+     * Strong key for lookups.
+     */
+    private static class Lookup<T> implements Key<T> {
+        private final T value;
+
+        private Lookup(T value) {
+            this.value = value;
+        }
+
+        public T get() {
+            return value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return keyEquals(this, obj);
+        }
+    }
+}
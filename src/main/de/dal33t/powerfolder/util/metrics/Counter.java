@@ -0,0 +1,68 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A striped counter. Safe and cheap to update concurrently from many threads.
+ *
+ * @see Metrics#counter(String)
+ */
+public final class Counter {
+    private final String name;
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Ignored while metrics are disabled.
+     */
+    public void increment() {
+        if (Metrics.ENABLED) {
+            value.increment();
+        }
+    }
+
+    public void add(long delta) {
+        if (Metrics.ENABLED) {
+            value.add(delta);
+        }
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    void reset() {
+        value.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "Counter '" + name + "': " + get();
+    }
+}
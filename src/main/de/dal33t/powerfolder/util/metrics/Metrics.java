@@ -0,0 +1,183 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of low-overhead {@link Counter}s and {@link Timer}s for the hot
+ * paths (message handling, serialization, scanning, persisting, transfers and
+ * remote calls).
+ * <p>
+ * Metrics are disabled by default. Instances are usually obtained once and
+ * kept in a static field. Snapshots are available through {@link #dump()} and
+ * via JMX under {@link #OBJECT_NAME}.
+ */
+public final class Metrics {
+    private static final Logger LOG = Logger.getLogger(Metrics.class
+        .getName());
+
+    public static final String OBJECT_NAME = "de.dal33t.powerfolder:type=Metrics";
+
+    /**
+     * Allow public access for faster check
+     */
+    public static volatile boolean ENABLED;
+
+    private static final ConcurrentMap<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Timer> TIMERS = new ConcurrentHashMap<>();
+
+    /**
+     * No instances allowed.
+     */
+    private Metrics() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        ENABLED = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * @param name
+     * @return the counter with that name. Created if not existing.
+     */
+    public static Counter counter(String name) {
+        return COUNTERS.computeIfAbsent(name, Counter::new);
+    }
+
+    /**
+     * @param name
+     * @return the timer with that name. Created if not existing.
+     */
+    public static Timer timer(String name) {
+        return TIMERS.computeIfAbsent(name, Timer::new);
+    }
+
+    /**
+     * @return the start time to pass to {@link Timer#stop(long)} or 0 if
+     *         metrics are disabled.
+     */
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Resets all values. Registered counters and timers stay valid.
+     */
+    public static void reset() {
+        for (Counter counter : COUNTERS.values()) {
+            counter.reset();
+        }
+        for (Timer timer : TIMERS.values()) {
+            timer.reset();
+        }
+    }
+
+    /**
+     * @return all metrics with recorded values as plain text, one per line.
+     */
+    public static String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("=== Metrics ===\n");
+        List<String> names = new ArrayList<>(TIMERS.keySet());
+        Collections.sort(names);
+        for (String name : names) {
+            Timer timer = TIMERS.get(name);
+            if (timer.getCount() > 0) {
+                sb.append(timer).append('\n');
+            }
+        }
+        names = new ArrayList<>(COUNTERS.keySet());
+        Collections.sort(names);
+        for (String name : names) {
+            Counter counter = COUNTERS.get(name);
+            if (counter.get() != 0) {
+                sb.append(counter).append('\n');
+            }
+        }
+        sb.append("===============");
+        return sb.toString();
+    }
+
+    static List<String> getTimerNames() {
+        List<String> names = new ArrayList<>(TIMERS.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    static List<String> getCounterNames() {
+        List<String> names = new ArrayList<>(COUNTERS.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    static Timer getTimer(String name) {
+        return TIMERS.get(name);
+    }
+
+    static Counter getCounter(String name) {
+        return COUNTERS.get(name);
+    }
+
+    // JMX ********************************************************************
+
+    /**
+     * Registers the {@link MetricsControlMBean} at the platform MBean server.
+     */
+    public static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsControl(), name);
+            }
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Unable to register metrics MBean. " + e,
+                e);
+        }
+    }
+
+    public static void unregisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            LOG.log(Level.FINER, "Unable to unregister metrics MBean. " + e,
+                e);
+        }
+    }
+}
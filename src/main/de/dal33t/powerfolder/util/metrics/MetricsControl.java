@@ -0,0 +1,97 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.metrics;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposes the {@link Metrics} registry via JMX.
+ */
+public class MetricsControl implements MetricsControlMBean {
+
+    MetricsControl() {
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return Metrics.isEnabled();
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        Metrics.setEnabled(enabled);
+    }
+
+    @Override
+    public String[] getTimerNames() {
+        List<String> names = Metrics.getTimerNames();
+        return names.toArray(new String[names.size()]);
+    }
+
+    @Override
+    public String[] getCounterNames() {
+        List<String> names = Metrics.getCounterNames();
+        return names.toArray(new String[names.size()]);
+    }
+
+    @Override
+    public long getCount(String timerName) {
+        Timer timer = Metrics.getTimer(timerName);
+        return timer != null ? timer.getCount() : 0;
+    }
+
+    @Override
+    public long getMeanMicros(String timerName) {
+        Timer timer = Metrics.getTimer(timerName);
+        return timer != null ? TimeUnit.NANOSECONDS.toMicros(timer
+            .getMeanNanos()) : 0;
+    }
+
+    @Override
+    public long getPercentileMicros(String timerName, double percentile) {
+        Timer timer = Metrics.getTimer(timerName);
+        return timer != null ? TimeUnit.NANOSECONDS.toMicros(timer
+            .getPercentileNanos(percentile)) : 0;
+    }
+
+    @Override
+    public long getMaxMicros(String timerName) {
+        Timer timer = Metrics.getTimer(timerName);
+        return timer != null ? TimeUnit.NANOSECONDS.toMicros(timer
+            .getMaxNanos()) : 0;
+    }
+
+    @Override
+    public long getCounterValue(String counterName) {
+        Counter counter = Metrics.getCounter(counterName);
+        return counter != null ? counter.get() : 0;
+    }
+
+    @Override
+    public String dump() {
+        return Metrics.dump();
+    }
+
+    @Override
+    public void reset() {
+        Metrics.reset();
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.metrics;
+
+/**
+ * JMX management interface of the {@link Metrics} registry.
+ */
+public interface MetricsControlMBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    String[] getTimerNames();
+
+    String[] getCounterNames();
+
+    long getCount(String timerName);
+
+    long getMeanMicros(String timerName);
+
+    long getPercentileMicros(String timerName, double percentile);
+
+    long getMaxMicros(String timerName);
+
+    long getCounterValue(String counterName);
+
+    String dump();
+
+    void reset();
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records durations in nanoseconds into a lock-free histogram with
+ * power-of-two buckets. Percentiles are estimated from the buckets and are
+ * accurate to a factor of two, which is plenty for spotting hot paths.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * long start = Metrics.start();
+ * try {
+ *     // Measured code
+ * } finally {
+ *     TIMER.stop(start);
+ * }
+ * </pre>
+ *
+ * @see Metrics#timer(String)
+ */
+public final class Timer {
+    private static final int BUCKETS = 64;
+
+    private final String name;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    Timer(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records the time elapsed since the given start.
+     *
+     * @param startNanos
+     *            the value returned by {@link Metrics#start()}. Nothing is
+     *            recorded if 0 (metrics were disabled at start).
+     */
+    public void stop(long startNanos) {
+        if (startNanos != 0L) {
+            record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * @param nanos
+     *            the duration to record in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+        buckets.incrementAndGet(bucketOf(nanos));
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public long getMeanNanos() {
+        long c = getCount();
+        return c > 0 ? getTotalNanos() / c : 0;
+    }
+
+    /**
+     * @param percentile
+     *            between 0 and 1, e.g. 0.99
+     * @return the upper bound of the bucket the given percentile falls into.
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= threshold && snapshot[i] > 0) {
+                return Math.min(upperBoundOf(i), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    /**
+     * Clears all recorded durations. Not atomic with concurrent recording.
+     */
+    public void reset() {
+        count.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+    }
+
+    private static int bucketOf(long nanos) {
+        return nanos == 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(nanos);
+    }
+
+    private static long upperBoundOf(int bucket) {
+        return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    private static String micros(long nanos) {
+        return String.valueOf(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    @Override
+    public String toString() {
+        return "Timer '" + name + "': count=" + getCount() + " totalms="
+            + TimeUnit.NANOSECONDS.toMillis(getTotalNanos()) + " meanus="
+            + micros(getMeanNanos()) + " p50us="
+            + micros(getPercentileNanos(0.5d)) + " p99us="
+            + micros(getPercentileNanos(0.99d)) + " maxus="
+            + micros(getMaxNanos());
+    }
+}
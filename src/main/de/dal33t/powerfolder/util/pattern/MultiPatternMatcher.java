@@ -0,0 +1,300 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.pattern;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Matches a string against a whole set of patterns in one pass instead of
+ * testing every pattern on its own.
+ * <p>
+ * The patterns are compiled into three structures:
+ * <ul>
+ * <li>A prefix trie for {@link ExactMatchPattern} and
+ * {@link StartMatchPattern}. Exact names are marked on the node where they
+ * end, start patterns match as soon as their node is reached.</li>
+ * <li>A trie of reversed texts for {@link EndMatchPattern}, walked from the end
+ * of the string.</li>
+ * <li>An Aho-Corasick automaton over the longest literal part of all other
+ * patterns (e.g. {@link CompiledPattern}). A single scan finds all patterns
+ * whose literal part occurs in the string, only those get verified with
+ * {@link Pattern#isMatch(String)}.</li>
+ * </ul>
+ * Matching is case-insensitive like the single patterns and does not allocate.
+ * Instances are immutable and thread-safe. Rebuild on pattern changes.
+ */
+public final class MultiPatternMatcher {
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_NODES = new Node[0];
+    private static final Pattern[] NO_PATTERNS = new Pattern[0];
+
+    private final int size;
+    private final Node prefixRoot;
+    private final Node suffixRoot;
+    private final Node automatonRoot;
+
+    /**
+     * Patterns without any literal part, e.g. "*". Always verified.
+     */
+    private final Pattern[] unanchored;
+
+    /**
+     * @param patterns
+     *            the patterns to compile. Not modified.
+     */
+    public MultiPatternMatcher(Collection<? extends Pattern> patterns) {
+        Reject.ifNull(patterns, "Patterns");
+        prefixRoot = new Node();
+        suffixRoot = new Node();
+        automatonRoot = new Node();
+        List<Pattern> noAnchor = new ArrayList<Pattern>();
+        int n = 0;
+        for (Pattern pattern : patterns) {
+            n++;
+            String text = pattern.getPatternText();
+            Class<?> type = pattern.getClass();
+            if (type == ExactMatchPattern.class) {
+                prefixRoot.add(text, false).exact = true;
+            } else if (type == StartMatchPattern.class) {
+                prefixRoot.add(stripStars(text), false).terminal = true;
+            } else if (type == EndMatchPattern.class) {
+                suffixRoot.add(stripStars(text), true).terminal = true;
+            } else if (type == CompiledPattern.class
+                || type == OfficeTempFilesMatchPattern.class)
+            {
+                String anchor = longestPart(text);
+                if (anchor.length() == 0) {
+                    noAnchor.add(pattern);
+                } else {
+                    automatonRoot.add(anchor, false).addOutput(pattern);
+                }
+            } else {
+                // Unknown semantics. Can't index, always verify.
+                noAnchor.add(pattern);
+            }
+        }
+        size = n;
+        unanchored = noAnchor.toArray(new Pattern[noAnchor.size()]);
+        linkAutomaton();
+    }
+
+    /**
+     * @return the number of patterns compiled into this matcher.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param matchString
+     * @return true if at least one of the patterns matches the matchString.
+     */
+    public boolean isMatch(String matchString) {
+        if (size == 0) {
+            return false;
+        }
+        return matchesPrefix(matchString) || matchesSuffix(matchString)
+            || matchesAutomaton(matchString) || matchesUnanchored(matchString);
+    }
+
+    // Internal helper ********************************************************
+
+    private boolean matchesPrefix(String s) {
+        Node node = prefixRoot;
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            if (node.terminal) {
+                return true;
+            }
+            node = node.child(fold(s.charAt(i)));
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.terminal || node.exact;
+    }
+
+    private boolean matchesSuffix(String s) {
+        Node node = suffixRoot;
+        for (int i = s.length() - 1; i >= 0; i--) {
+            if (node.terminal) {
+                return true;
+            }
+            node = node.child(fold(s.charAt(i)));
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.terminal;
+    }
+
+    private boolean matchesAutomaton(String s) {
+        if (automatonRoot.keys.length == 0) {
+            return false;
+        }
+        Node state = automatonRoot;
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = fold(s.charAt(i));
+            Node next = state.child(c);
+            while (next == null && state != automatonRoot) {
+                state = state.fail;
+                next = state.child(c);
+            }
+            state = next != null ? next : automatonRoot;
+            Node out = state.output.length > 0 ? state : state.outputLink;
+            for (; out != null; out = out.outputLink) {
+                for (Pattern candidate : out.output) {
+                    if (candidate.isMatch(s)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesUnanchored(String s) {
+        for (Pattern pattern : unanchored) {
+            if (pattern.isMatch(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes failure and output links of the automaton (breadth first).
+     */
+    private void linkAutomaton() {
+        Deque<Node> queue = new ArrayDeque<Node>();
+        for (Node child : automatonRoot.next) {
+            child.fail = automatonRoot;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            for (int i = 0; i < node.keys.length; i++) {
+                char c = node.keys[i];
+                Node child = node.next[i];
+                Node f = node.fail;
+                while (f != automatonRoot && f.child(c) == null) {
+                    f = f.fail;
+                }
+                Node target = f.child(c);
+                child.fail = target != null ? target : automatonRoot;
+                Node fo = child.fail;
+                child.outputLink = fo.output.length > 0 ? fo : fo.outputLink;
+                queue.add(child);
+            }
+        }
+    }
+
+    private static String stripStars(String text) {
+        return text.replace("*", "");
+    }
+
+    /**
+     * @param text
+     * @return the longest literal part between stars. Every string matching
+     *         the pattern contains this part.
+     */
+    private static String longestPart(String text) {
+        String longest = "";
+        for (String part : text.split("\\*")) {
+            if (part.length() > longest.length()) {
+                longest = part;
+            }
+        }
+        return longest;
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(c);
+    }
+
+    /**
+     * Node of a trie or the automaton. Children are kept in sorted arrays to
+     * look them up by binary search without boxing.
+     */
+    private static final class Node {
+        private char[] keys = NO_KEYS;
+        private Node[] next = NO_NODES;
+
+        /** Trie: A start/end pattern ends here. */
+        private boolean terminal;
+        /** Prefix trie: An exact name ends here. */
+        private boolean exact;
+
+        /** Automaton: Patterns whose anchor ends here. */
+        private Pattern[] output = NO_PATTERNS;
+        private Node fail;
+        /** Automaton: Next node on the fail chain with output. */
+        private Node outputLink;
+
+        private Node child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i >= 0 ? next[i] : null;
+        }
+
+        private Node add(String text, boolean reverse) {
+            Node node = this;
+            int len = text.length();
+            for (int i = 0; i < len; i++) {
+                char c = fold(text.charAt(reverse ? len - 1 - i : i));
+                node = node.getOrAddChild(c);
+            }
+            return node;
+        }
+
+        private Node getOrAddChild(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            if (i >= 0) {
+                return next[i];
+            }
+            int pos = -i - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newNext = new Node[next.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, pos);
+            System.arraycopy(next, 0, newNext, 0, pos);
+            System.arraycopy(keys, pos, newKeys, pos + 1, keys.length - pos);
+            System.arraycopy(next, pos, newNext, pos + 1, next.length - pos);
+            Node child = new Node();
+            newKeys[pos] = c;
+            newNext[pos] = child;
+            keys = newKeys;
+            next = newNext;
+            return child;
+        }
+
+        private void addOutput(Pattern pattern) {
+            output = Arrays.copyOf(output, output.length + 1);
+            output[output.length - 1] = pattern;
+        }
+    }
+}
@@ -20,6 +20,7 @@
 package de.dal33t.powerfolder.disk;
 
 import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.DirectoryInfo;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.light.FolderInfo;
@@ -104,6 +105,23 @@ public class DiskItemFilterTest extends TestCase {
 
     }
 
+    public void testDirectoryVerdictInvalidation() {
+        DiskItemFilter blacklist = new DiskItemFilter();
+        FolderInfo folderInfo = new FolderInfo("foldername", "id");
+        DirectoryInfo dir = FileInfoFactory.lookupDirectory(folderInfo,
+            "build/classes");
+        assertTrue(blacklist.isRetained(dir));
+        blacklist.addPattern("build/*");
+        assertTrue(blacklist.isExcluded(dir));
+        assertTrue(blacklist.isExcluded(dir));
+        blacklist.removePattern("build/*");
+        assertTrue(blacklist.isRetained(dir));
+        blacklist.addPattern("*/classes/*");
+        assertTrue(blacklist.isExcluded(dir));
+        blacklist.removeAllPatterns();
+        assertTrue(blacklist.isRetained(dir));
+    }
+
     public void testMulti() throws Exception {
         long start = System.currentTimeMillis();
         for (int i = 0; i < 100000; i++) {
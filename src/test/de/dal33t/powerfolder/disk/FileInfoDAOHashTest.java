@@ -1,7 +1,15 @@
 package de.dal33t.powerfolder.disk;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.logging.Level;
 
+import de.dal33t.powerfolder.disk.dao.FileInfoCriteria;
+import de.dal33t.powerfolder.disk.dao.FileInfoCriteria.Type;
 import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
 import de.dal33t.powerfolder.disk.dao.FileInfoDAOHashMapImpl;
 import de.dal33t.powerfolder.light.FileInfo;
@@ -83,4 +91,121 @@ public class FileInfoDAOHashTest extends FileInfoDAOTestCase {
         assertNotNull(found);
         testAssertEquals(fInfoWithID_2, found);
     }
+
+    public void testFindAllByOIDAndHashes() {
+        // Indexed own domain and scanned other domain
+        for (String domain : new String[]{null, "anydomain"}) {
+            FileInfo a = withContent("dir/a.txt", 1, "OID1", "HASH1");
+            FileInfo copy = withContent("other/copy.txt", 1, "OID1", "HASH1");
+            FileInfo b = withContent("b.txt", 1, "OID2", "HASH2");
+            dao.store(domain, a, copy, b);
+            assertFound(dao.findByOID("OID1", domain), a, copy);
+            assertFound(dao.findByHashes("HASH1", domain), a, copy);
+            assertFound(dao.findByOID("OID2", domain), b);
+            assertFound(dao.findByOID("OID3", domain));
+
+            // Changed contents
+            dao.store(domain, withContent("dir/a.txt", 2, "OID3", "HASH3"));
+            assertFound(dao.findByOID("OID1", domain), copy);
+            assertFound(dao.findByHashes("HASH1", domain), copy);
+            assertFound(dao.findByHashes("HASH3", domain), version(a, 2));
+
+            // Deleted
+            FileInfo deleted = FileInfoFactory.unmarshallDeletedFile(
+                copy.getFolderInfo(), copy.getRelativeName(), "OID1", null,
+                null, new Date(), 2, "HASH1", false, null);
+            dao.store(domain, deleted);
+            assertFound(dao.findByOID("OID1", domain));
+            assertFound(dao.findByHashes("HASH1", domain));
+            dao.delete(domain, b);
+            assertFound(dao.findByOID("OID2", domain));
+
+            // Replaced by a directory
+            dao.store(domain, createFileInfo("dir/a.txt", 3, true));
+            assertFound(dao.findByOID("OID3", domain));
+        }
+    }
+
+    private static FileInfo withContent(String name, int version, String oid,
+        String hashes)
+    {
+        FileInfo fInfo = createFileInfo(name, version, false);
+        return FileInfoFactory.unmarshallExistingFile(fInfo.getFolderInfo(),
+            name, oid, fInfo.getSize(), fInfo.getModifiedBy(),
+            fInfo.getModifiedByAccount(), fInfo.getModifiedDate(), version,
+            hashes, false, null);
+    }
+
+    private static void assertFound(Collection<FileInfo> found,
+        FileInfo... expected)
+    {
+        assertEquals(new HashSet<FileInfo>(Arrays.asList(expected)),
+            new HashSet<FileInfo>(found));
+        for (FileInfo fInfo : expected) {
+            for (FileInfo candidate : found) {
+                if (candidate.equals(fInfo)) {
+                    assertEquals(fInfo.getVersion(), candidate.getVersion());
+                }
+            }
+        }
+    }
+
+    public void testKeywordSearchIndex() {
+        FileInfoDAO indexed = new FileInfoDAOHashMapImpl("ME", filter, true);
+        List<FileInfo> fInfos = new ArrayList<FileInfo>();
+        for (int i = 0; i < 3000; i++) {
+            String name = (i % 3 == 0 ? "Report" : i % 3 == 1
+                ? "photo" : "Übersicht") + i + ".txt";
+            fInfos.add(createRandomFileInfo(i, name));
+        }
+        fInfos.add(createFileInfo("subdir1/reports", 0, true));
+        fInfos.add(createFileInfo("Report", 0, false));
+        dao.store(null, fInfos);
+        indexed.store(null, fInfos);
+        assertSearchEquals(dao, indexed);
+
+        // Removes enough to compact the index
+        for (int i = 0; i < 2500; i++) {
+            dao.delete(null, fInfos.get(i));
+            indexed.delete(null, fInfos.get(i));
+        }
+        assertSearchEquals(dao, indexed);
+
+        // Re-add, reusing slots
+        dao.store(null, fInfos.subList(0, 100));
+        indexed.store(null, fInfos.subList(0, 100));
+        assertSearchEquals(dao, indexed);
+
+        FileInfoCriteria crit = new FileInfoCriteria();
+        crit.addDomain(null);
+        crit.setRecursive(true);
+        crit.addKeyWord("photo");
+        crit.setMaxResults(10);
+        assertEquals(10, indexed.findFiles(crit).size());
+        indexed.stop();
+    }
+
+    private void assertSearchEquals(FileInfoDAO expected, FileInfoDAO actual)
+    {
+        String[][] queries = new String[][]{{"report"}, {"REPORT", "99"},
+            {"übersicht1"}, {"photo", ".txt"}, {"po"}, {"nothing"},
+            {"subdir", "photo1"}, {"reports"}};
+        for (String[] keyWords : queries) {
+            for (Type type : Type.values()) {
+                for (String path : new String[]{"", "subdir1/SUBDIR2"}) {
+                    FileInfoCriteria crit = new FileInfoCriteria();
+                    crit.addDomain(null);
+                    crit.setType(type);
+                    crit.setPath(path);
+                    crit.setRecursive(true);
+                    for (String keyWord : keyWords) {
+                        crit.addKeyWord(keyWord);
+                    }
+                    assertEquals(crit.toString(), new HashSet<FileInfo>(
+                        expected.findFiles(crit)), new HashSet<FileInfo>(
+                        actual.findFiles(crit)));
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.util.test.Condition;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+/**
+ * Tests the coalescing and flushing of {@link FolderChangesBroadcaster}.
+ */
+public class FolderChangesBroadcasterTest extends ControllerTestCase {
+    private final List<List<FileInfo>> broadcasts = Collections
+        .synchronizedList(new ArrayList<List<FileInfo>>());
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        setupTestFolder(SyncProfile.HOST_FILES);
+    }
+
+    public void testCollapseToNewest() {
+        FolderChangesBroadcaster broadcaster = createBroadcaster(60000);
+        FileInfo a1 = file("a", 1);
+        FileInfo a2 = file("a", 2);
+        FileInfo b1 = file("b", 1);
+        broadcaster.add(list(a1));
+        broadcaster.add(list(b1, a2));
+        // Older version does not replace the pending one
+        broadcaster.add(list(a1));
+        assertTrue(broadcasts.isEmpty());
+
+        broadcaster.flush();
+        assertEquals(1, broadcasts.size());
+        List<FileInfo> sent = broadcasts.get(0);
+        // Order of first occurrence
+        assertEquals(list(a2, b1), sent);
+        assertEquals(2, sent.get(0).getVersion());
+    }
+
+    public void testFlush() {
+        FolderChangesBroadcaster broadcaster = createBroadcaster(60000);
+        broadcaster.flush();
+        assertTrue("Nothing to flush", broadcasts.isEmpty());
+
+        FileInfo a = file("a", 1);
+        broadcaster.add(list(a));
+        broadcaster.flush();
+        assertEquals(Collections.singletonList(list(a)), broadcasts);
+
+        // Pending cleared
+        broadcaster.flush();
+        assertEquals(1, broadcasts.size());
+    }
+
+    public void testFlushAfterWindow() {
+        FolderChangesBroadcaster broadcaster = createBroadcaster(1000);
+        FileInfo a = file("a", 1);
+        FileInfo b = file("b", 1);
+        broadcaster.add(list(a));
+        broadcaster.add(list(b));
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                return !broadcasts.isEmpty();
+            }
+        });
+        TestHelper.waitMilliSeconds(500);
+        assertEquals(Collections.singletonList(list(a, b)), broadcasts);
+
+        // Flushed window does not send again
+        broadcaster.flush();
+        assertEquals(1, broadcasts.size());
+    }
+
+    public void testFullMessageSentImmediately() {
+        FolderChangesBroadcaster broadcaster = createBroadcaster(60000);
+        int max = Constants.FILE_LIST_MAX_FILES_PER_MESSAGE;
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        for (int i = 0; i < max + 3; i++) {
+            files.add(file("file" + i, 1));
+        }
+        broadcaster.add(files);
+        assertEquals(1, broadcasts.size());
+        assertEquals(files.subList(0, max), broadcasts.get(0));
+
+        broadcaster.flush();
+        assertEquals(2, broadcasts.size());
+        assertEquals(files.subList(max, max + 3), broadcasts.get(1));
+    }
+
+    public void testNoDelay() {
+        FolderChangesBroadcaster broadcaster = createBroadcaster(0);
+        FileInfo a = file("a", 1);
+        broadcaster.add(list(a));
+        broadcaster.add(list(a));
+        assertEquals(Arrays.asList(list(a), list(a)), broadcasts);
+    }
+
+    private FolderChangesBroadcaster createBroadcaster(int maxDelay) {
+        ConfigurationEntry.FOLDER_CHANGES_BATCH_MAX_DELAY.setValue(
+            getController(), maxDelay);
+        return new FolderChangesBroadcaster(getFolder()) {
+            @Override
+            void broadcast(List<FileInfo> files) {
+                if (!files.isEmpty()) {
+                    broadcasts.add(files);
+                }
+            }
+        };
+    }
+
+    private FileInfo file(String name, int version) {
+        return FileInfoFactory.unmarshallExistingFile(getFolder().getInfo(),
+            name, null, 10, getController().getMySelf().getInfo(), null,
+            new Date(), version, null, false, null);
+    }
+
+    private static List<FileInfo> list(FileInfo... files) {
+        return new ArrayList<FileInfo>(Arrays.asList(files));
+    }
+}
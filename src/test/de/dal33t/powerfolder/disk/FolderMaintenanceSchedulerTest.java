@@ -0,0 +1,98 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.disk.FolderMaintenanceScheduler.Due;
+import de.dal33t.powerfolder.util.test.Condition;
+import de.dal33t.powerfolder.util.test.ConditionWithMessage;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+public class FolderMaintenanceSchedulerTest extends ControllerTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        setupTestFolder(SyncProfile.HOST_FILES);
+    }
+
+    public void testDueOrder() {
+        Due late = new Due(null, 2000L, 1, "a");
+        Due big = new Due(null, 1000L, 500, "b");
+        Due small = new Due(null, 1000L, 10, "c");
+        Due sameSize = new Due(null, 1000L, 10, "B");
+        List<Due> queue = new ArrayList<>();
+        queue.add(late);
+        queue.add(big);
+        queue.add(small);
+        queue.add(sameSize);
+
+        Collections.sort(queue);
+        assertSame(sameSize, queue.get(0));
+        assertSame(small, queue.get(1));
+        assertSame(big, queue.get(2));
+        assertSame(late, queue.get(3));
+    }
+
+    public void testDispatchReleasesSlots() {
+        ConfigurationEntry.FOLDER_MAINTENANCE_WORKERS.setValue(
+            getController(), 1);
+        ConfigurationEntry.FOLDER_MAINTENANCE_PER_DEVICE.setValue(
+            getController(), 1);
+        final FolderMaintenanceScheduler scheduler = new FolderMaintenanceScheduler(
+            getController(), getController().getFolderRepository());
+        assertEquals(1, scheduler.getWorkers());
+        final Collection<Folder> folders = Collections.singleton(getFolder());
+        assertEquals(0, scheduler.dispatch(folders));
+
+        scheduler.start();
+        try {
+            // Twice: The only worker and device slot must be free again
+            for (int i = 0; i < 2; i++) {
+                TestHelper.waitForCondition(10, new ConditionWithMessage() {
+                    public boolean reached() {
+                        getFolder().recommendScanOnNextMaintenance(true);
+                        return scheduler.dispatch(folders) == 1;
+                    }
+
+                    public String message() {
+                        return "Maintenance not started. Maintaining: "
+                            + scheduler.getMaintainingFolders();
+                    }
+                });
+                TestHelper.waitForCondition(30, new Condition() {
+                    public boolean reached() {
+                        return scheduler.getMaintainingFolders().isEmpty();
+                    }
+                });
+                assertEquals(0L, scheduler.getMaintenanceLag(getFolder()));
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+        assertEquals(0, scheduler.dispatch(folders));
+    }
+}
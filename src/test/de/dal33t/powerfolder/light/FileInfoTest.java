@@ -109,6 +109,38 @@ public class FileInfoTest extends TestCase {
         testAssertEquals(fInfo, copy);
     }
 
+    public void testSharedDirectories() throws Exception {
+        FolderInfo foInfo = new FolderInfo("Shared dirs",
+            IdGenerator.makeFolderId());
+        FileInfo a = FileInfoFactory.lookupInstance(foInfo,
+            "dir/sub dir/a.txt");
+        FileInfo b = FileInfoFactory.lookupInstance(foInfo,
+            "dir/sub dir/b.txt");
+        FileInfo root = FileInfoFactory.lookupInstance(foInfo, "root.txt");
+        assertEquals("dir/sub dir/a.txt", a.getRelativeName());
+        assertEquals("a.txt", a.getFilenameOnly());
+        assertEquals("root.txt", root.getRelativeName());
+        assertEquals("dir/sub dir", a.getDirectory().getRelativeName());
+        assertTrue(root.getDirectory().isBaseDirectory());
+        assertSame(PathNode.lookup("dir/sub dir/x", 11),
+            PathNode.lookup("dir/sub dir", 11));
+        assertFalse(a.equals(b));
+        assertEquals(a, FileInfoFactory.lookupInstance(foInfo,
+            "dir/sub dir/a.txt"));
+        assertFalse(a.equals(FileInfoFactory.lookupInstance(foInfo,
+            "dir/sub dirx/a.txt")));
+        FileInfo otherCase = FileInfoFactory.lookupInstance(foInfo,
+            "DIR/sub dir/a.txt");
+        assertEquals(FileInfo.IGNORE_CASE, a.equals(otherCase));
+        assertEquals(FileInfo.IGNORE_CASE,
+            a.hashCode() == otherCase.hashCode());
+
+        FileInfo copy = (FileInfo) ByteSerializer.deserializeStatic(
+            ByteSerializer.serializeStatic(a, true), true);
+        assertEquals(a, copy);
+        assertEquals(a.getRelativeName(), copy.getRelativeName());
+    }
+
     private void testAssertEquals(FileInfo fInfo, FileInfo copy) {
         // Test
         assertEquals(fInfo, copy);
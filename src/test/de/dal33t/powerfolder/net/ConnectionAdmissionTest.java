@@ -0,0 +1,223 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.util.test.Condition;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+/**
+ * Tests the token bucket and the round robin of {@link ConnectionAdmission}.
+ */
+public class ConnectionAdmissionTest extends ControllerTestCase {
+    private final List<String> accepted = Collections
+        .synchronizedList(new ArrayList<String>());
+    private final CountDownLatch blockerStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseBlocker = new CountDownLatch(1);
+    private ConnectionAdmission admission;
+    private volatile long now;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ConfigurationEntry.NET_ACCEPT_MAX_HANDSHAKES
+            .setValue(getController(), 1);
+        ConfigurationEntry.NET_ACCEPT_MAX_QUEUED.setValue(getController(), 20);
+        ConfigurationEntry.NET_ACCEPT_RATE_PER_ADDRESS.setValue(
+            getController(), 2);
+        now = System.nanoTime();
+        admission = new ConnectionAdmission(getController(), getController()
+            .getNodeManager())
+        {
+            @Override
+            long nanoTime() {
+                return now;
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        admission.clear();
+        releaseBlocker.countDown();
+        super.tearDown();
+    }
+
+    public void testTokenBucket() throws Exception {
+        InetAddress a = address(1);
+        occupyWorker(address(9));
+
+        // Burst is twice the rate
+        for (int i = 0; i < 4; i++) {
+            assertTrue(admission.offer(new Acceptor("a" + i), a));
+        }
+        assertFalse(admission.offer(new Acceptor("a4"), a));
+        assertEquals(1, admission.getRejected());
+        // Other addresses have their own bucket
+        assertTrue(admission.offer(new Acceptor("b0"), address(2)));
+
+        // 2 tokens per second
+        advance(500);
+        assertTrue(admission.offer(new Acceptor("a5"), a));
+        assertFalse(admission.offer(new Acceptor("a6"), a));
+
+        // Refill is capped at the burst
+        advance(60000);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(admission.offer(new Acceptor("c" + i), a));
+        }
+        assertFalse(admission.offer(new Acceptor("c4"), a));
+        assertEquals(3, admission.getRejected());
+    }
+
+    public void testUnknownAddressNotRateLimited() throws Exception {
+        occupyWorker(address(9));
+        // More than the burst of one address
+        for (int i = 0; i < 10; i++) {
+            assertTrue(admission.offer(new Acceptor("u" + i), null));
+        }
+        assertEquals(10, admission.getQueueSize());
+        assertEquals(0, admission.getRejected());
+    }
+
+    public void testQueueLimit() throws Exception {
+        occupyWorker(address(9));
+        for (int i = 0; i < 20; i++) {
+            assertTrue(admission.offer(new Acceptor("q" + i), address(i)));
+        }
+        assertEquals(20, admission.getQueueSize());
+        assertFalse(admission.offer(new Acceptor("q20"), address(20)));
+        assertEquals(1, admission.getRejected());
+    }
+
+    public void testPurgeTimedOut() throws Exception {
+        occupyWorker(address(9));
+        Acceptor old = new Acceptor("old");
+        assertTrue(admission.offer(old, address(1)));
+        advance(1000);
+        Acceptor young = new Acceptor("young");
+        assertTrue(admission.offer(young, address(1)));
+
+        advance(TimeUnit.SECONDS.toMillis(Constants.CONNECTION_KEEP_ALIVE_TIMOUT));
+        assertEquals(Collections.singletonList(old), admission.purge());
+        assertEquals(1, admission.getQueueSize());
+        advance(1000);
+        assertEquals(Collections.singletonList(young), admission.purge());
+        assertEquals(0, admission.getQueueSize());
+    }
+
+    public void testRoundRobin() throws Exception {
+        InetAddress a = address(1);
+        InetAddress b = address(2);
+        InetAddress c = address(3);
+        occupyWorker(a);
+
+        assertTrue(admission.offer(new Acceptor("a1"), a));
+        assertTrue(admission.offer(new Acceptor("a2"), a));
+        assertTrue(admission.offer(new Acceptor("b0"), b));
+        assertTrue(admission.offer(new Acceptor("b1"), b));
+        assertTrue(admission.offer(new Acceptor("c0"), c));
+        assertEquals(5, admission.getQueueSize());
+
+        releaseBlocker.countDown();
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                return accepted.size() == 6;
+            }
+        });
+        assertEquals(
+            list("blocker", "a1", "b0", "c0", "a2", "b1"),
+            new ArrayList<String>(accepted));
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                return admission.getHandshaking() == 0;
+            }
+        });
+        assertEquals(0, admission.getQueueSize());
+    }
+
+    /**
+     * Admits an acceptor that blocks the only handshake slot until released.
+     */
+    private void occupyWorker(InetAddress address) throws InterruptedException
+    {
+        assertTrue(admission.offer(new Acceptor("blocker") {
+            @Override
+            protected void accept() {
+                super.accept();
+                blockerStarted.countDown();
+                try {
+                    releaseBlocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, address));
+        assertTrue(blockerStarted.await(10, TimeUnit.SECONDS));
+        assertEquals(1, admission.getHandshaking());
+        assertEquals(0, admission.getQueueSize());
+    }
+
+    private void advance(long millis) {
+        now += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static InetAddress address(int i) throws Exception {
+        return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) i});
+    }
+
+    private static List<String> list(String... names) {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, names);
+        return list;
+    }
+
+    private class Acceptor extends AbstractAcceptor {
+        private final String name;
+
+        private Acceptor(String name) {
+            super(ConnectionAdmissionTest.this.getController());
+            this.name = name;
+        }
+
+        @Override
+        public String getConnectionInfo() {
+            return name;
+        }
+
+        @Override
+        protected void shutdown() {
+        }
+
+        @Override
+        protected void accept() {
+            accepted.add(name);
+        }
+    }
+}
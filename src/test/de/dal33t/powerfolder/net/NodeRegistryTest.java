@@ -0,0 +1,123 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.net;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+
+/**
+ * Tests the search index of the {@link NodeRegistry}.
+ */
+public class NodeRegistryTest extends ControllerTestCase {
+    private NodeRegistry registry;
+    private Member john;
+    private Member smith;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        registry = new NodeRegistry();
+        john = node("John Doe", "ABC123");
+        smith = node("mr.smith-PC", "XYZ789");
+        registry.update(john);
+        registry.update(smith);
+    }
+
+    public void testSearchWords() {
+        assertSearch("doe", john);
+        assertSearch("john", john);
+        assertSearch("smith", smith);
+        assertSearch("pc", smith);
+        assertSearch("mr", smith);
+        // Not at the start of a word
+        assertSearch("oe");
+        assertSearch("ith");
+    }
+
+    public void testSearchNick() {
+        assertSearch("john d", john);
+        assertSearch("john doe", john);
+        assertSearch("mr.sm", smith);
+        assertSearch("john x");
+    }
+
+    public void testSearchIdPrefix() {
+        assertSearch("abc", john);
+        assertSearch("ABC123", john);
+        assertSearch("xyz7", smith);
+        assertSearch("123");
+    }
+
+    public void testSearchCaseInsensitive() {
+        assertSearch("JOHN", john);
+        assertSearch("Smi", smith);
+        assertSearch("aBc", john);
+    }
+
+    public void testSearchEmpty() {
+        assertSearch("");
+    }
+
+    public void testSearchMultipleMatches() {
+        Member jones = node("Johnny Jones", "ABD456");
+        registry.update(jones);
+        assertSearch("john", john, jones);
+        assertSearch("ab", john, jones);
+        assertSearch("j", john, jones);
+    }
+
+    public void testNickChange() {
+        john.getInfo().nick = "Jane Roe";
+        registry.update(john);
+        assertSearch("john");
+        assertSearch("doe");
+        assertSearch("roe", john);
+        assertSearch("jane r", john);
+        // Id still indexed
+        assertSearch("abc", john);
+    }
+
+    public void testRemove() {
+        registry.remove(john);
+        assertSearch("john");
+        assertSearch("abc");
+        assertSearch("smith", smith);
+
+        registry.clear();
+        assertSearch("smith");
+        assertSearch("xyz");
+    }
+
+    private Member node(String nick, String id) {
+        return new Member(getController(), new MemberInfo(nick, id, null));
+    }
+
+    private void assertSearch(String searchString, Member... expected) {
+        Collection<Member> result = registry.search(searchString);
+        assertEquals("Search for '" + searchString + "'",
+            new HashSet<Member>(Arrays.asList(expected)),
+            new HashSet<Member>(result));
+    }
+}
@@ -1,5 +1,10 @@
 package de.dal33t.powerfolder.security;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
 import junit.framework.TestCase;
 import de.dal33t.powerfolder.light.FolderInfo;
 
@@ -97,4 +102,90 @@ public class PermissionTest extends TestCase {
                 p.implies(ownerPermission));
         }
     }
+
+    /**
+     * Indexed lookup must give the same answers as checking every permission
+     * with equals/implies.
+     */
+    public void testIndexedPermissions() {
+        Group grp = new Group("testGroup");
+        FolderInfo[] folders = new FolderInfo[5];
+        List<Permission> candidates = new ArrayList<Permission>();
+        for (int i = 0; i < folders.length; i++) {
+            folders[i] = new FolderInfo("testFolder" + i, "id" + i);
+            candidates.add(FolderPermission.read(folders[i]));
+            candidates.add(FolderPermission.readWrite(folders[i]));
+            candidates.add(FolderPermission.admin(folders[i]));
+            candidates.add(FolderPermission.owner(folders[i]));
+            candidates.add(new FolderDeletePermission(folders[i]));
+        }
+        candidates.add(FolderCreatePermission.INSTANCE);
+        candidates.add(new GroupAdminPermission(grp));
+
+        Random random = new Random(4711);
+        for (int i = 0; i < 200; i++) {
+            Permission p = candidates.get(random.nextInt(candidates.size()));
+            if (random.nextInt(3) == 0) {
+                grp.revoke(p);
+            } else {
+                grp.grant(p);
+            }
+            for (Permission c : candidates) {
+                assertEquals("Wrong result for " + c + " on "
+                    + grp.getPermissions(), impliedByAny(grp.getPermissions(),
+                    c), grp.hasPermission(c));
+            }
+        }
+    }
+
+    public void testIndexedAccountPermissions() {
+        Group grp = new Group("testGroup");
+        Account acc = new Account();
+        acc.addGroup(grp);
+        FolderInfo foInfo = new FolderInfo("testFolder", "4711");
+
+        assertEquals(AccessMode.NO_ACCESS, acc.getAllowedAccess(foInfo));
+        assertFalse(acc.hasAnyFolderAdmin());
+
+        acc.grant(FolderPermission.read(foInfo));
+        assertEquals(AccessMode.READ, acc.getAllowedAccess(foInfo));
+        assertEquals(FolderPermission.read(foInfo),
+            acc.getPermissionFor(foInfo));
+
+        // Replaces read permission
+        acc.grant(FolderPermission.admin(foInfo));
+        assertEquals(AccessMode.ADMIN, acc.getAllowedAccess(foInfo));
+        assertTrue(acc.hasAnyFolderAdmin());
+        assertEquals(1, acc.getPermissions().size());
+
+        acc.revokeAllFolderPermission(foInfo);
+        assertEquals(AccessMode.NO_ACCESS, acc.getAllowedAccess(foInfo));
+        assertFalse(acc.hasAnyFolderAdmin());
+
+        // Changes on the group are visible on the account
+        grp.grant(FolderPermission.owner(foInfo));
+        assertEquals(AccessMode.OWNER, acc.getAllowedAccess(foInfo));
+        assertTrue(acc.hasAnyFolderAdmin());
+        grp.revoke(FolderPermission.owner(foInfo));
+        assertEquals(AccessMode.NO_ACCESS, acc.getAllowedAccess(foInfo));
+
+        Organization org = new Organization();
+        assertFalse(acc.isAdminOfAnyOrganization());
+        acc.grant(new OrganizationAdminPermission(org.getOID()));
+        assertTrue(acc.isAdminOfAnyOrganization());
+        assertEquals(1, acc.getOrgAdminPermissions().size());
+        acc.revokeAllPermissions();
+        assertFalse(acc.isAdminOfAnyOrganization());
+    }
+
+    private static boolean impliedByAny(Collection<Permission> permissions,
+        Permission permission)
+    {
+        for (Permission p : permissions) {
+            if (p.equals(permission) || p.implies(permission)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
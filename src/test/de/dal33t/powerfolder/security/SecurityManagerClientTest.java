@@ -0,0 +1,113 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.security;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.dal33t.powerfolder.light.AccountInfo;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.security.SecurityManagerClient.PermissionBatch;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+
+/**
+ * Tests the batching of permission requests in
+ * {@link SecurityManagerClient}.
+ */
+public class SecurityManagerClientTest extends ControllerTestCase {
+    private final List<List<Permission>> requests = Collections
+        .synchronizedList(new ArrayList<List<Permission>>());
+    private SecurityManagerClient securityManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        securityManager = new SecurityManagerClient(getController(),
+            getController().getOSClient())
+        {
+            @Override
+            Map<String, Boolean> requestPermissions(AccountInfo aInfo,
+                List<Permission> permissions)
+            {
+                requests.add(new ArrayList<Permission>(permissions));
+                Map<String, Boolean> results = new HashMap<String, Boolean>();
+                for (Permission permission : permissions) {
+                    results.put(permission.getId(), Boolean.TRUE);
+                }
+                return results;
+            }
+        };
+    }
+
+    public void testSplitAtMaxPermissions() {
+        AccountInfo aInfo = new AccountInfo(IdGenerator.makeId(), "test");
+        SecurityManagerClient.PermissionsCacheSegment cache = securityManager.new PermissionsCacheSegment();
+        int nFolders = 100;
+        Set<PermissionBatch> batches = new LinkedHashSet<PermissionBatch>();
+        for (int i = 0; i < nFolders; i++) {
+            FolderInfo foInfo = new FolderInfo("Folder " + i,
+                IdGenerator.makeFolderId());
+            batches.add(securityManager.enqueuePermission(aInfo,
+                FolderPermission.read(foInfo), cache));
+        }
+        for (PermissionBatch batch : batches) {
+            batch.await();
+        }
+
+        // Read, read/write, admin and owner of every folder
+        int max = SecurityManagerClient.MAX_REQUEST_PERMISSIONS;
+        int nExpected = nFolders * 4;
+        // Folders are not split across requests
+        assertEquals(2, requests.size());
+        assertEquals(max / 4 * 4, requests.get(0).size());
+        Set<String> requested = new HashSet<String>();
+        for (List<Permission> request : requests) {
+            assertTrue("Request of " + request.size() + " permissions",
+                request.size() <= max);
+            for (Permission permission : request) {
+                assertTrue("Requested twice: " + permission,
+                    requested.add(permission.getId()));
+                assertEquals(Boolean.TRUE, cache.hasPermission(permission));
+            }
+        }
+        assertEquals(nExpected, requested.size());
+    }
+
+    public void testJoinRunningRequest() {
+        AccountInfo aInfo = new AccountInfo(IdGenerator.makeId(), "test");
+        SecurityManagerClient.PermissionsCacheSegment cache = securityManager.new PermissionsCacheSegment();
+        FolderInfo foInfo = new FolderInfo("Folder", IdGenerator
+            .makeFolderId());
+        PermissionBatch batch = securityManager.enqueuePermission(aInfo,
+            FolderPermission.read(foInfo), cache);
+        assertSame(batch, securityManager.enqueuePermission(aInfo,
+            FolderPermission.admin(foInfo), cache));
+        batch.await();
+        assertEquals(1, requests.size());
+        assertEquals(4, requests.get(0).size());
+    }
+}
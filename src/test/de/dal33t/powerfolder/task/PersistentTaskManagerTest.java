@@ -0,0 +1,94 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.task;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+
+public class PersistentTaskManagerTest extends ControllerTestCase {
+
+    public void testLegacyTaskFileMigration() throws Exception {
+        PersistentTaskManager man = getController().getTaskManager();
+        man.purgeAllTasks();
+        man.shutdown();
+
+        // Written by previous versions
+        Path taskFile = man.getTaskFile();
+        Path journalFile = man.getJournalFile();
+        Files.deleteIfExists(journalFile);
+        writeTaskFile(taskFile, 2);
+
+        man.start();
+        assertEquals(2, man.activeTaskCount());
+        assertTrue(Files.notExists(taskFile));
+        assertTrue(Files.exists(journalFile));
+
+        // From the journal only
+        man.shutdown();
+        man.start();
+        assertEquals(2, man.activeTaskCount());
+        man.purgeAllTasks();
+        assertEquals(0, man.activeTaskCount());
+    }
+
+    public void testUnreadableJournal() throws Exception {
+        PersistentTaskManager man = getController().getTaskManager();
+        man.purgeAllTasks();
+        man.shutdown();
+
+        Path taskFile = man.getTaskFile();
+        Path journalFile = man.getJournalFile();
+        Files.deleteIfExists(journalFile);
+        Files.createDirectory(journalFile);
+        writeTaskFile(taskFile, 2);
+
+        man.start();
+        assertEquals(2, man.activeTaskCount());
+        man.scheduleTask(new SendMessageTask(new Ping(0), "unknown2"));
+        assertEquals(3, man.activeTaskCount());
+        man.shutdown();
+        // Neither replaced nor migrated
+        assertTrue(Files.isDirectory(journalFile));
+        assertTrue(Files.exists(taskFile));
+
+        Files.delete(journalFile);
+        man.start();
+        assertEquals(2, man.activeTaskCount());
+        man.purgeAllTasks();
+    }
+
+    private static void writeTaskFile(Path taskFile, int nTasks)
+        throws IOException
+    {
+        try (ObjectOutputStream oout = new ObjectOutputStream(
+            Files.newOutputStream(taskFile)))
+        {
+            for (int i = 0; i < nTasks; i++) {
+                oout.writeUnshared(new SendMessageTask(new Ping(0), "unknown"
+                    + i));
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.task;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.util.PathUtils;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+public class TaskJournalTest extends TestCase {
+    private Path file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Path dir = TestHelper.getTestDir().resolve("TaskJournalTest");
+        PathUtils.recursiveDelete(dir);
+        Files.createDirectories(dir);
+        file = dir.resolve("Test.tasks.journal");
+    }
+
+    public void testReplay() throws IOException {
+        TaskJournal journal = new TaskJournal(file);
+        assertTrue(journal.recover().isEmpty());
+        journal.added(1, new NamedTask("a"));
+        journal.added(2, new NamedTask("b"));
+        journal.removed(1);
+        journal.added(3, new NamedTask("c"));
+        journal.close();
+
+        journal = new TaskJournal(file);
+        Map<Long, PersistentTask> tasks = journal.recover();
+        assertEquals(4, journal.getRecords());
+        assertEquals(names("b", "c"), names(tasks));
+        assertEquals(2L, tasks.keySet().iterator().next().longValue());
+    }
+
+    public void testTruncatedTail() throws IOException {
+        TaskJournal journal = new TaskJournal(file);
+        journal.added(1, new NamedTask("a"));
+        journal.added(2, new NamedTask("b"));
+        journal.close();
+        // Crash while writing the last record
+        try (FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.WRITE))
+        {
+            channel.truncate(Files.size(file) - 5);
+        }
+
+        journal = new TaskJournal(file);
+        Map<Long, PersistentTask> tasks = journal.recover();
+        assertEquals(names("a"), names(tasks));
+        assertEquals(1, journal.getRecords());
+
+        // Records after the compacted journal are readable again
+        journal.compact(tasks);
+        journal.added(3, new NamedTask("c"));
+        journal.close();
+        assertEquals(names("a", "c"), names(new TaskJournal(file).recover()));
+    }
+
+    public void testChecksumMismatch() throws IOException {
+        TaskJournal journal = new TaskJournal(file);
+        journal.added(1, new NamedTask("a"));
+        journal.close();
+        long firstRecord = Files.size(file);
+        journal.added(2, new NamedTask("b"));
+        journal.added(3, new NamedTask("c"));
+        journal.close();
+
+        // Flip a byte in the data of the second record
+        byte[] data = Files.readAllBytes(file);
+        int pos = (int) firstRecord + 1 + 8 + 4 + 10;
+        data[pos] = (byte) ~data[pos];
+        Files.write(file, data);
+
+        journal = new TaskJournal(file);
+        assertEquals(names("a"), names(journal.recover()));
+        assertEquals(1, journal.getRecords());
+    }
+
+    public void testCompaction() throws IOException {
+        TaskJournal journal = new TaskJournal(file);
+        for (long id = 0; id < 10; id++) {
+            journal.added(id, new NamedTask("t" + id));
+        }
+        for (long id = 0; id < 8; id++) {
+            journal.removed(id);
+        }
+        assertEquals(18, journal.getRecords());
+        journal.close();
+        long size = Files.size(file);
+
+        journal = new TaskJournal(file);
+        Map<Long, PersistentTask> tasks = journal.recover();
+        assertEquals(18, journal.getRecords());
+        journal.compact(tasks);
+        assertEquals(2, journal.getRecords());
+        assertTrue(Files.size(file) < size);
+        assertTrue(Files.notExists(file.resolveSibling(file.getFileName()
+            + ".tmp")));
+
+        journal = new TaskJournal(file);
+        tasks = journal.recover();
+        assertEquals(2, journal.getRecords());
+        assertEquals(names("t8", "t9"), names(tasks));
+        assertTrue(tasks.containsKey(9L));
+    }
+
+    private static List<String> names(String... names) {
+        List<String> list = new ArrayList<String>();
+        for (String name : names) {
+            list.add(name);
+        }
+        return list;
+    }
+
+    private static List<String> names(Map<Long, PersistentTask> tasks) {
+        List<String> list = new ArrayList<String>();
+        for (PersistentTask task : tasks.values()) {
+            list.add(((NamedTask) task).name);
+        }
+        return list;
+    }
+
+    private static class NamedTask extends PersistentTask {
+        private static final long serialVersionUID = 1L;
+        private final String name;
+
+        NamedTask(String name) {
+            super(DEFAULT_DAYS_TO_EXIPRE);
+            this.name = name;
+        }
+
+        @Override
+        public void initialize() {
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.folder;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.disk.ChunkedFileArchiver;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.PathUtils;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+/**
+ * Tests the deduplicating file archiver without controller.
+ */
+public class ChunkedFileArchiverTest extends TestCase {
+    private static final int SIZE = 2 * 1024 * 1024;
+
+    private Path baseDir;
+    private MemberInfo mySelf;
+    private FolderInfo foInfo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        baseDir = TestHelper.getTestDir().resolve("ChunkedFileArchiverTest");
+        PathUtils.recursiveDelete(baseDir);
+        Files.createDirectories(baseDir);
+        mySelf = new MemberInfo("me", "meId", null);
+        foInfo = new FolderInfo("folder", "folderId");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        PathUtils.recursiveDelete(baseDir);
+        super.tearDown();
+    }
+
+    public void testDeduplicateAndRestore() throws IOException {
+        byte[] v1 = new byte[SIZE];
+        new Random(1).nextBytes(v1);
+        // Insert a few bytes in the middle. Shifts all following data.
+        byte[] v2 = new byte[SIZE + 10];
+        System.arraycopy(v1, 0, v2, 0, SIZE / 2);
+        System.arraycopy(v1, SIZE / 2, v2, SIZE / 2 + 10, SIZE / 2);
+
+        ChunkedFileArchiver archiver = newArchiver();
+        archive(archiver, v1, 1);
+        long sizeAfterFirst = archiver.getSize();
+        assertEquals(SIZE, sizeAfterFirst);
+        archive(archiver, v2, 2);
+        long added = archiver.getSize() - sizeAfterFirst;
+        assertTrue("Stored " + added + " bytes for small change",
+            added < SIZE / 4);
+
+        FileInfo fInfo = fileInfo(3);
+        List<FileInfo> archived = archiver.getArchivedFilesInfos(fInfo);
+        assertEquals(2, archived.size());
+        assertTrue(archiver.hasArchivedFileInfo(fInfo));
+
+        // Reload from index
+        archiver = newArchiver();
+        assertEquals(2, archiver.getArchivedFilesInfos(fInfo).size());
+        assertRestore(archiver, v1, 1);
+        assertRestore(archiver, v2, 2);
+    }
+
+    public void testLimitedVersions() throws IOException {
+        ChunkedFileArchiver archiver = newArchiver();
+        archiver.setVersionsPerFile(2);
+        Random random = new Random(2);
+        byte[][] data = new byte[4][];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = new byte[100 * 1024 + i];
+            random.nextBytes(data[i]);
+            archive(archiver, data[i], i);
+        }
+        List<FileInfo> archived = archiver.getArchivedFilesInfos(fileInfo(9));
+        assertEquals(2, archived.size());
+        assertFalse(archiver.restore(fileInfo(0), baseDir.resolve("x")));
+        assertRestore(archiver, data[3], 3);
+        assertEquals(data[2].length + data[3].length, archiver.getSize());
+
+        archiver.cleanupOldArchiveFiles(new Date(Long.MAX_VALUE));
+        assertEquals(0, archiver.getArchivedFilesInfos(fileInfo(9)).size());
+        assertEquals(0, archiver.getSize());
+        assertTrue(archiver.maintain());
+        assertEquals(0, newArchiver().getSize());
+    }
+
+    public void testFailedRestoreKeepsTarget() throws IOException {
+        byte[] data = new byte[SIZE];
+        new Random(3).nextBytes(data);
+        ChunkedFileArchiver archiver = newArchiver();
+        archive(archiver, data, 1);
+
+        // Lose the last chunk
+        Path store = archiver.getStoreDir();
+        Path lastChunk = null;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(store)) {
+            for (Path dir : dirs) {
+                if (Files.isDirectory(dir)) {
+                    try (DirectoryStream<Path> files = Files
+                        .newDirectoryStream(dir))
+                    {
+                        for (Path file : files) {
+                            lastChunk = file;
+                        }
+                    }
+                }
+            }
+        }
+        assertNotNull(lastChunk);
+        Files.delete(lastChunk);
+
+        Path target = baseDir.resolve("restored");
+        byte[] local = "local".getBytes();
+        Files.write(target, local);
+        try {
+            archiver.restore(fileInfo(1), target);
+            fail("Restored with missing chunk");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertTrue(Arrays.equals(local, Files.readAllBytes(target)));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(store,
+            "*.tmp"))
+        {
+            assertFalse(files.iterator().hasNext());
+        }
+    }
+
+    public void testUnreadableIndexKeepsChunks() throws IOException {
+        Random random = new Random(4);
+        byte[][] data = new byte[3][];
+        ChunkedFileArchiver archiver = newArchiver();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = new byte[300 * 1024];
+            random.nextBytes(data[i]);
+            if (i < 2) {
+                archive(archiver, data[i], i);
+            }
+        }
+        Set<Path> chunks = listChunks(archiver.getStoreDir());
+        assertFalse(chunks.isEmpty());
+
+        // Illegal type of the first record
+        Path indexFile = archiver.getStoreDir().resolve("index");
+        byte[] index = Files.readAllBytes(indexFile);
+        byte[] corrupt = index.clone();
+        corrupt[0] = 99;
+        Files.write(indexFile, corrupt);
+
+        archiver = newArchiver();
+        assertEquals(0, archiver.getArchivedFilesInfos(fileInfo(9)).size());
+        assertFalse(archiver.maintain());
+        archiver.cleanupOldArchiveFiles(new Date(Long.MAX_VALUE));
+        // Archived outside of the chunk store
+        archive(archiver, data[2], 2);
+        assertEquals(1, archiver.getArchivedFilesInfos(fileInfo(9)).size());
+        assertEquals(chunks, listChunks(archiver.getStoreDir()));
+        assertTrue(Arrays.equals(corrupt, Files.readAllBytes(indexFile)));
+
+        // Readable again
+        Files.write(indexFile, index);
+        assertEquals(3, archiver.getArchivedFilesInfos(fileInfo(9)).size());
+        assertTrue(archiver.maintain());
+        assertEquals(chunks, listChunks(archiver.getStoreDir()));
+        for (int i = 0; i < data.length; i++) {
+            assertRestore(archiver, data[i], i);
+        }
+    }
+
+    private static Set<Path> listChunks(Path store) throws IOException {
+        Set<Path> chunks = new HashSet<Path>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(store)) {
+            for (Path dir : dirs) {
+                if (Files.isDirectory(dir)) {
+                    try (DirectoryStream<Path> files = Files
+                        .newDirectoryStream(dir))
+                    {
+                        for (Path file : files) {
+                            chunks.add(file);
+                        }
+                    }
+                }
+            }
+        }
+        return chunks;
+    }
+
+    private ChunkedFileArchiver newArchiver() {
+        return new ChunkedFileArchiver(baseDir.resolve("archive"),
+            baseDir.resolve("archive.chunks"), mySelf);
+    }
+
+    private FileInfo fileInfo(int version) {
+        return FileInfoFactory.archivedFile(foInfo, "dir/file.bin", null, 0,
+            mySelf, null, new Date(), version, null, null);
+    }
+
+    private void archive(ChunkedFileArchiver archiver, byte[] data,
+        int version) throws IOException
+    {
+        Path source = baseDir.resolve("source");
+        Files.write(source, data);
+        archiver.archive(fileInfo(version), source, false);
+        assertTrue(Files.notExists(source));
+    }
+
+    private void assertRestore(ChunkedFileArchiver archiver, byte[] data,
+        int version) throws IOException
+    {
+        Path target = baseDir.resolve("restored");
+        assertTrue(archiver.restore(fileInfo(version), target));
+        assertTrue(Arrays.equals(data, Files.readAllBytes(target)));
+    }
+}
@@ -116,6 +116,34 @@ public class ScanFolderTest extends ControllerTestCase {
         assertTrue(fileInfo.isDeleted());
     }
 
+    public void testHibernateAndActivate() throws IOException {
+        Path deleted = null;
+        for (int i = 0; i < 5; i++) {
+            deleted = TestHelper.createRandomFile(getFolder().getLocalBase(),
+                10);
+        }
+        scanFolder();
+        Files.delete(deleted);
+        scanFolder();
+        assertEquals(5, getFolder().getKnownItemCount());
+
+        // Recently used
+        assertFalse(getFolder().hibernateIfIdle(60000L));
+        assertFalse(getFolder().isHibernated());
+
+        assertTrue(getFolder().hibernateIfIdle(0));
+        assertTrue(getFolder().isHibernated());
+        assertFalse(getFolder().isMaintenanceRequired());
+        // Also counts the deleted file without loading
+        assertEquals(5, getFolder().getKnownItemCount());
+        assertTrue(getFolder().isHibernated());
+
+        // Loaded again on access
+        assertEquals(5, getFolder().getKnownFiles().size());
+        assertFalse(getFolder().isHibernated());
+        assertEquals(5, getFolder().getKnownItemCount());
+    }
+
     public void testScanSingleFileMulti() throws Exception {
         for (int i = 0; i < 40; i++) {
             testScanSingleFile();
@@ -22,12 +22,21 @@ package de.dal33t.powerfolder.test.message;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Random;
 import java.util.UUID;
 
 import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.message.FileBundle;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.message.RequestFileBundle;
 import de.dal33t.powerfolder.util.ByteSerializer;
 import de.dal33t.powerfolder.util.Format;
+import de.dal33t.powerfolder.util.IdGenerator;
 
 public class SerializationCompareTest extends TestCase {
 
@@ -106,6 +115,52 @@ public class SerializationCompareTest extends TestCase {
             + Format.formatBytes(uncompressed.length));
     }
 
+    public void testCodec() throws Exception {
+        FolderInfo foInfo = new FolderInfo("Codec",
+            IdGenerator.makeFolderId());
+        FileInfo[] files = new FileInfo[1000];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = FileInfoFactory.lookupInstance(foInfo,
+                "Documents/Project/subdir " + (i % 10) + "/file " + i
+                    + ".docx");
+        }
+        ByteSerializer sender = new ByteSerializer();
+        ByteSerializer receiver = new ByteSerializer();
+        byte[] gzip = sender.serialize(files, true, -1);
+        byte[] codec = sender.serialize(files, true, true, -1);
+        System.out.println("Codec compare: " + Format.formatBytes(codec.length)
+            + " - " + Format.formatBytes(gzip.length));
+        assertTrue(Arrays.equals(files,
+            (FileInfo[]) receiver.deserialize(codec, true)));
+        assertTrue(Arrays.equals(files,
+            (FileInfo[]) receiver.deserialize(gzip, true)));
+        assertTrue(Arrays.equals(files,
+            (FileInfo[]) ByteSerializer.deserializeStatic(codec, false)));
+
+        // Small control message
+        byte[] ping = sender.serialize(new Ping(), true, true, -1);
+        assertTrue(receiver.deserialize(ping, true) instanceof Ping);
+
+        // Incompressible payload is stored
+        byte[] random = new byte[64 * 1024];
+        new Random(4711).nextBytes(random);
+        byte[] raw = sender.serialize(random, false, -1);
+        byte[] stored = sender.serialize(random, true, true, -1);
+        assertTrue(stored.length <= raw.length + 6);
+        assertTrue(Arrays.equals(random,
+            (byte[]) receiver.deserialize(stored, true)));
+
+        sender.close();
+        receiver.close();
+
+        // Late messages after close use a temporary context
+        codec = sender.serialize(files, true, true, -1);
+        assertTrue(Arrays.equals(files,
+            (FileInfo[]) receiver.deserialize(codec, true)));
+        sender.close();
+        receiver.close();
+    }
+
     private static FileInfoSerializable createRandomFileInfo() {
         FileInfoSerializable f = new FileInfoSerializable();
         f.fileName = UUID.randomUUID().toString() + "/"
@@ -131,4 +186,30 @@ public class SerializationCompareTest extends TestCase {
         f.version = (int) (Math.random() * 100);
         return f;
     }
+
+    public void testFileBundle() throws Exception {
+        FolderInfo foInfo = new FolderInfo("Bundle",
+            IdGenerator.makeFolderId());
+        FileInfo[] files = new FileInfo[]{
+            FileInfoFactory.lookupInstance(foInfo, "a.txt"),
+            FileInfoFactory.lookupInstance(foInfo, "sub/b.txt")};
+        byte[][] contents = new byte[][]{"Hello".getBytes("UTF-8"), null};
+        byte[][] digests = new byte[][]{new byte[16], null};
+        FileBundle bundle = new FileBundle(files, contents, digests);
+
+        ByteSerializer serializer = new ByteSerializer();
+        FileBundle received = (FileBundle) serializer.deserialize(serializer
+            .serialize(bundle, true, true, -1), true);
+        assertTrue(received.isValid());
+        assertEquals(2, received.size());
+        assertEquals(files[1], received.getFile(1));
+        assertTrue(Arrays.equals(contents[0], received.getContents(0)));
+        assertNull(received.getContents(1));
+        assertNull(received.getDigest(1));
+
+        RequestFileBundle request = (RequestFileBundle) ByteSerializer
+            .deserializeStatic(ByteSerializer.serializeStatic(
+                new RequestFileBundle(files), true), true);
+        assertTrue(Arrays.equals(files, request.getFiles()));
+    }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.transfer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.event.TransferManagerAdapter;
+import de.dal33t.powerfolder.event.TransferManagerEvent;
+import de.dal33t.powerfolder.util.test.ConditionWithMessage;
+import de.dal33t.powerfolder.util.test.TestHelper;
+import de.dal33t.powerfolder.util.test.TwoControllerTestCase;
+
+/**
+ * Tests the transfer of small files in bundles.
+ */
+public class FileBundleTest extends TwoControllerTestCase {
+    private CountingListener bartsListener;
+    private CountingListener lisasListener;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteTestFolderContents();
+        connectBartAndLisa();
+        joinTestFolder(SyncProfile.AUTOMATIC_DOWNLOAD);
+        getFolderAtBart().getFolderWatcher().setIngoreAll(true);
+        getFolderAtLisa().getFolderWatcher().setIngoreAll(true);
+        bartsListener = new CountingListener();
+        getContollerBart().getTransferManager().addListener(bartsListener);
+        lisasListener = new CountingListener();
+        getContollerLisa().getTransferManager().addListener(lisasListener);
+    }
+
+    public void testSmallFilesInBundles() throws IOException {
+        List<Path> files = createSmallFiles(120);
+        waitForDownloads(files.size());
+
+        assertFilesAtLisa(files);
+        // Bundled files don't create uploads.
+        assertEquals(0, bartsListener.uploadRequested.get());
+        assertEquals(0, lisasListener.downloadBroken.get());
+        TestHelper.assertIncompleteFilesGone(this);
+    }
+
+    public void testBundlesDisabled() throws IOException {
+        ConfigurationEntry.TRANSFERS_BUNDLE_MAX_FILE_SIZE.setValue(
+            getContollerLisa(), 0);
+        List<Path> files = createSmallFiles(20);
+        waitForDownloads(files.size());
+
+        assertFilesAtLisa(files);
+        assertEquals(files.size(), bartsListener.uploadRequested.get());
+        TestHelper.assertIncompleteFilesGone(this);
+    }
+
+    private List<Path> createSmallFiles(int nFiles) {
+        List<Path> files = new ArrayList<Path>(nFiles);
+        for (int i = 0; i < nFiles; i++) {
+            files.add(TestHelper.createRandomFile(getFolderAtBart()
+                .getLocalBase(), 1 + (long) (Math.random() * 16 * 1024)));
+        }
+        scanFolder(getFolderAtBart());
+        assertEquals(nFiles, getFolderAtBart().getKnownItemCount());
+        return files;
+    }
+
+    private void waitForDownloads(final int nFiles) {
+        TestHelper.waitForCondition(60, new ConditionWithMessage() {
+            public boolean reached() {
+                return lisasListener.downloadCompleted.get() >= nFiles;
+            }
+
+            public String message() {
+                return "Lisa downloads completed: "
+                    + lisasListener.downloadCompleted.get() + " of " + nFiles;
+            }
+        });
+    }
+
+    private void assertFilesAtLisa(List<Path> files) throws IOException {
+        assertEquals(files.size(), getFolderAtLisa().getKnownItemCount());
+        for (Path fileAtBart : files) {
+            Path fileAtLisa = getFolderAtLisa().getLocalBase().resolve(
+                fileAtBart.getFileName().toString());
+            assertTrue(fileAtLisa + " differs", Arrays.equals(
+                Files.readAllBytes(fileAtBart), Files.readAllBytes(fileAtLisa)));
+        }
+    }
+
+    private static class CountingListener extends TransferManagerAdapter {
+        private final AtomicInteger uploadRequested = new AtomicInteger();
+        private final AtomicInteger downloadCompleted = new AtomicInteger();
+        private final AtomicInteger downloadBroken = new AtomicInteger();
+
+        @Override
+        public void uploadRequested(TransferManagerEvent event) {
+            uploadRequested.incrementAndGet();
+        }
+
+        @Override
+        public void downloadCompleted(TransferManagerEvent event) {
+            downloadCompleted.incrementAndGet();
+        }
+
+        @Override
+        public void downloadBroken(TransferManagerEvent event) {
+            downloadBroken.incrementAndGet();
+        }
+
+        public boolean fireInEventDispatchThread() {
+            return false;
+        }
+    }
+}
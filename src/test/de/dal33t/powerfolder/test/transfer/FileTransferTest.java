@@ -41,6 +41,7 @@ import de.dal33t.powerfolder.event.TransferManagerListener;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.transfer.DownloadManager;
+import de.dal33t.powerfolder.transfer.Transfer.TransferState;
 import de.dal33t.powerfolder.util.DateUtil;
 import de.dal33t.powerfolder.util.Format;
 import de.dal33t.powerfolder.util.PathUtils;
@@ -65,6 +66,11 @@ public class FileTransferTest extends TwoControllerTestCase {
         LoggingManager.setConsoleLogging(Level.OFF);
         PreferencesEntry.EXPERT_MODE.setValue(getContollerLisa(), true);
         PreferencesEntry.EXPERT_MODE.setValue(getContollerBart(), true);
+        // Count single transfers. Bundles are covered by FileBundleTest
+        ConfigurationEntry.TRANSFERS_BUNDLE_MAX_FILE_SIZE.setValue(
+            getContollerLisa(), 0);
+        ConfigurationEntry.TRANSFERS_BUNDLE_MAX_FILE_SIZE.setValue(
+            getContollerBart(), 0);
         deleteTestFolderContents();
         connectBartAndLisa();
         // Join on testfolder
@@ -1233,35 +1239,12 @@ public class FileTransferTest extends TwoControllerTestCase {
             }
         });
 
-        final Path tempFile = getContollerLisa().getTransferManager()
-            .getActiveDownloads().iterator().next().getTempFile();
+        DownloadManager dlm = getContollerLisa().getTransferManager()
+            .getActiveDownloads().iterator().next();
+        final Path tempFile = dlm.getTempFile();
         // Let them copy some ~1 megs
         final long mbUntilBreak = 1;
-        TestHelper.waitForCondition(100, new ConditionWithMessage() {
-
-            @Override
-            public boolean reached() {
-                try {
-                    return Files.size(tempFile) > mbUntilBreak * 1024 * 1024;
-                } catch (IOException ioe) {
-                    return false;
-                }
-            }
-
-            @Override
-            public String message() {
-                long size = -1l;
-
-                try {
-                    size = Files.size(tempFile);
-                } catch (IOException e) {
-                    return e.getMessage();
-                }
-
-                return "Size of file should be " + (mbUntilBreak * 1024 * 1024)
-                    + " but was " + size;
-            }
-        });
+        waitForReceivedBytes(dlm, mbUntilBreak * 1024 * 1024);
         disconnectBartAndLisa();
         TestHelper.waitForCondition(LONG_WAIT_TIME_SECONDS, new ConditionWithMessage() {
             @Override
@@ -1281,11 +1264,8 @@ public class FileTransferTest extends TwoControllerTestCase {
         LoggingManager.setConsoleLogging(Level.FINE);
 
         assertTrue(Files.exists(tempFile));
-        assertTrue(Files.size(tempFile) > 0);
-        assertTrue(Files.size(tempFile) < Files.size(testFile));
-        assertTrue("Size inc. file: " + Files.size(tempFile)
-            + ", size testfile: " + Files.size(testFile),
-            Files.size(tempFile) < Files.size(testFile));
+        // Preallocated
+        assertEquals(Files.size(testFile), Files.size(tempFile));
 
         // Now mess up the tempfile = Force a MD5_ERROR
         long tempMod = Files.getLastModifiedTime(tempFile).toMillis();
@@ -1621,18 +1601,11 @@ public class FileTransferTest extends TwoControllerTestCase {
 
         // Let them copy some ~1 megs
         final long mbUntilBreak = 1;
-        TestHelper.waitForCondition(100, new Condition() {
-            @Override
-            public boolean reached() {
-                try {
-                    return Files.size(incompleteFile) > mbUntilBreak * 1024 * 1024;
-                } catch (IOException ioe) {
-                    return false;
-                }
-            }
-        });
-        assertEquals(1, getContollerLisa().getTransferManager()
-            .getActiveDownload(fInfo).getSources().size());
+        DownloadManager dlm = getContollerLisa().getTransferManager()
+            .getActiveDownload(fInfo);
+        waitForReceivedBytes(dlm, mbUntilBreak * 1024 * 1024);
+        assertEquals(1, dlm.getSources().size());
+        long received = receivedBytes(dlm);
 
         assertEquals(0, lisasListener.downloadBroken);
 
@@ -1641,13 +1614,9 @@ public class FileTransferTest extends TwoControllerTestCase {
 
         TestHelper.waitMilliSeconds(100);
 
-        assertTrue(Files.size(incompleteFile) < Files.size(fileBart));
-
         assertTrue(Files.exists(incompleteFile));
-        assertTrue(Files.size(incompleteFile) > 0);
-        assertTrue("Size inc. file: " + Files.size(incompleteFile)
-            + ", size testfile: " + Files.size(fileBart),
-            Files.size(incompleteFile) < Files.size(fileBart));
+        // Preallocated
+        assertEquals(Files.size(fileBart), Files.size(incompleteFile));
 
         assertEquals(1, bartsListener.uploadRequested);
         assertEquals(1, bartsListener.uploadStarted);
@@ -1664,15 +1633,12 @@ public class FileTransferTest extends TwoControllerTestCase {
 
         assertFalse(Files.exists(fileLisa));
         assertTrue(Files.exists(incompleteFile));
-        assertTrue(Files.size(incompleteFile) > mbUntilBreak * 1024 * 1024);
         long bytesDownloaded = getContollerLisa().getTransferManager()
             .getDownloadCounter().getBytesTransferred();
         // Test has to be >= because it could happen that the download gets
         // broken before the received data is written
-        assertTrue(
-            "Downloaded: " + bytesDownloaded + " filesize: "
-                + Files.size(incompleteFile),
-            bytesDownloaded >= Files.size(incompleteFile));
+        assertTrue("Downloaded: " + bytesDownloaded + " received: "
+            + received, bytesDownloaded >= received);
         // System.err.println("Incomplete file: " +
         // incompleteFile.lastModified()
         // + ", size: " + incompleteFile.length());
@@ -1686,8 +1652,7 @@ public class FileTransferTest extends TwoControllerTestCase {
         assertEquals(bartFInfo.getModifiedDate().getTime(), Files
             .getLastModifiedTime(incompleteFile).toMillis());
 
-        System.err.println("Transferred " + Files.size(incompleteFile)
-            + " bytes");
+        System.err.println("Transferred " + received + " bytes");
 
         // Reconnect /Resume transfer
         connectBartAndLisa();
@@ -1713,16 +1678,11 @@ public class FileTransferTest extends TwoControllerTestCase {
             }
         });
 
-        // Temp file should be greater than 3mb already
+        // Received parts should be kept
         // TODO: I added speed limits above because on my machine the transfer
         // was too fast and the
         // file was completed already. Please check if this test is correct.
         assertTrue("Tempfile already removed", Files.exists(incompleteFile));
-        assertTrue(
-            "Temp file should be greater than " + mbUntilBreak
-                + "mb already. got "
-                + Format.formatBytes(Files.size(incompleteFile)),
-            Files.size(incompleteFile) > mbUntilBreak * 1024 * 1024);
 
         TestHelper.waitForCondition(60, new ConditionWithMessage() {
             @Override
@@ -1776,8 +1736,9 @@ public class FileTransferTest extends TwoControllerTestCase {
         // More bytes downloaded means no resume!
         bytesDownloaded = getContollerLisa().getTransferManager()
             .getDownloadCounter().getBytesTransferred();
-        // assertEquals("Mismatch, bytes Downloaded: " + bytesDownloaded
-        // + ", file size: " + file.length(), bytesDownloaded, file.length());
+        assertTrue("Not resumed, bytes downloaded: " + bytesDownloaded
+            + ", file size: " + Files.size(fileBart),
+            bytesDownloaded < Files.size(fileBart) + received);
 
         // Test ;)
         assertEquals(1, getFolderAtLisa().getKnownItemCount());
@@ -2509,4 +2470,36 @@ public class FileTransferTest extends TwoControllerTestCase {
                 + uploadsCompletedRemoved + "]";
         }
     }
+
+    /**
+     * The tempfile is preallocated, so its size tells nothing about the
+     * received data.
+     *
+     * @return the bytes of the received and written parts.
+     */
+    private static long receivedBytes(DownloadManager dlm) {
+        if (dlm.getState().getState() != TransferState.DOWNLOADING) {
+            // Progress of matching or copying
+            return 0;
+        }
+        return (long) (dlm.getState().getProgress() * dlm.getFileInfo()
+            .getSize());
+    }
+
+    private static void waitForReceivedBytes(final DownloadManager dlm,
+        final long bytes)
+    {
+        TestHelper.waitForCondition(100, new ConditionWithMessage() {
+            @Override
+            public boolean reached() {
+                return receivedBytes(dlm) > bytes;
+            }
+
+            @Override
+            public String message() {
+                return "Received bytes should be " + bytes + " but was "
+                    + receivedBytes(dlm);
+            }
+        });
+    }
 }
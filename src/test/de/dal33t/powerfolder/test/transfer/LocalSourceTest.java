@@ -0,0 +1,114 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.transfer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.UUID;
+
+import de.dal33t.powerfolder.disk.Folder;
+import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.util.metrics.Counter;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+import de.dal33t.powerfolder.util.test.Condition;
+import de.dal33t.powerfolder.util.test.TestHelper;
+import de.dal33t.powerfolder.util.test.TwoControllerTestCase;
+
+/**
+ * Tests the copy of downloads from local files with the same contents.
+ */
+public class LocalSourceTest extends TwoControllerTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Metrics.setEnabled(true);
+        deleteTestFolderContents();
+        connectBartAndLisa();
+        joinTestFolder(SyncProfile.AUTOMATIC_DOWNLOAD);
+        getFolderAtBart().getFolderWatcher().setIngoreAll(true);
+        getFolderAtLisa().getFolderWatcher().setIngoreAll(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Metrics.setEnabled(false);
+        Metrics.reset();
+        super.tearDown();
+    }
+
+    /**
+     * A file moved from one folder to another at bart is copied from the
+     * first folder at lisa.
+     */
+    public void testCopyMovedFileFromOtherFolder() throws IOException {
+        Counter reused = Metrics.counter("transfer.local.reused");
+        String oid = UUID.randomUUID().toString();
+
+        Path fileAtBart = TestHelper.createRandomFile(getFolderAtBart()
+            .getLocalBase(), 256 * 1024);
+        final String name = fileAtBart.getFileName().toString();
+        scanFolder(getFolderAtBart());
+        TestHelper.waitForCondition(30, new Condition() {
+            public boolean reached() {
+                return getFolderAtLisa().getKnownItemCount() == 1;
+            }
+        });
+        Folder folderAtLisa = getFolderAtLisa();
+        FileInfo fileAtLisa = folderAtLisa.getKnownFiles().iterator().next();
+        folderAtLisa.getDAO().store(null,
+            FileInfoFactory.setOID(fileAtLisa, oid));
+
+        // Move at bart. Not scanned in the first folder.
+        FolderInfo foInfo2 = new FolderInfo("testFolder2", UUID
+            .randomUUID().toString());
+        Path baseBart2 = TESTFOLDER_BASEDIR_BART.resolveSibling("testFolder2");
+        Path baseLisa2 = TESTFOLDER_BASEDIR_LISA.resolveSibling("testFolder2");
+        Files.createDirectories(baseBart2);
+        Path movedAtBart = Files.move(fileAtBart, baseBart2.resolve(name));
+        Folder folder2AtBart = joinFolder(foInfo2, baseBart2,
+            getContollerBart(), SyncProfile.AUTOMATIC_DOWNLOAD);
+        scanFolder(folder2AtBart);
+        FileInfo movedInfo = folder2AtBart.getKnownFiles().iterator().next();
+        folder2AtBart.getDAO().store(null,
+            FileInfoFactory.setOID(movedInfo, oid));
+
+        long reusedBefore = reused.get();
+        final Folder folder2AtLisa = joinFolder(foInfo2, baseLisa2,
+            getContollerLisa(), SyncProfile.AUTOMATIC_DOWNLOAD);
+        TestHelper.waitForCondition(30, new Condition() {
+            public boolean reached() {
+                return folder2AtLisa.getKnownItemCount() == 1
+                    && Files.exists(folder2AtLisa.getLocalBase().resolve(
+                        name));
+            }
+        });
+
+        assertEquals(reusedBefore + 1, reused.get());
+        assertTrue(Arrays.equals(Files.readAllBytes(movedAtBart),
+            Files.readAllBytes(baseLisa2.resolve(name))));
+        TestHelper.assertIncompleteFilesGone(this);
+    }
+}
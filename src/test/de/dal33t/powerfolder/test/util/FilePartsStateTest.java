@@ -0,0 +1,120 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.util.Partitions;
+import de.dal33t.powerfolder.util.Range;
+import de.dal33t.powerfolder.util.delta.FilePartsState;
+import de.dal33t.powerfolder.util.delta.FilePartsState.PartState;
+
+public class FilePartsStateTest extends TestCase {
+    private static final long LENGTH = 100000;
+
+    public void testAgainstPartitions() {
+        Random random = new Random(4711);
+        FilePartsState state = new FilePartsState(LENGTH);
+        Partitions<PartState> model = new Partitions<PartState>(
+            state.getRange(), PartState.NEEDED);
+        PartState[] states = PartState.values();
+        for (int i = 0; i < 5000; i++) {
+            if (i % 500 == 499) {
+                state.purgePending();
+                Range r;
+                while ((r = model.search(state.getRange(), PartState.PENDING)) != null)
+                {
+                    model.insert(r, PartState.NEEDED);
+                }
+            } else {
+                Range r = randomRange(random);
+                PartState s = states[random.nextInt(states.length)];
+                state.setPartState(r, s);
+                model.insert(r, s);
+            }
+            Range in = randomRange(random);
+            for (PartState s : states) {
+                assertEquals(model.count(state.getRange(), s),
+                    state.countPartStates(state.getRange(), s));
+                assertEquals(model.count(in, s), state.countPartStates(in, s));
+                Range expected = model.search(in, s);
+                Range found = state.findPart(in, s);
+                if (expected == null) {
+                    assertNull(found);
+                } else {
+                    assertEquals(expected.getStart(), found.getStart());
+                    assertTrue(found.getEnd() >= expected.getEnd());
+                    assertEquals(found.getLength(), model.count(found, s));
+                }
+            }
+        }
+    }
+
+    public void testCompleted() {
+        FilePartsState state = new FilePartsState(LENGTH);
+        assertFalse(state.isCompleted());
+        assertEquals(state.getRange(), state.findFirstPart(PartState.NEEDED));
+        state.setPartState(Range.getRangeByNumbers(0, 10), PartState.PENDING);
+        state.setPartState(Range.getRangeByNumbers(11, LENGTH - 1),
+            PartState.AVAILABLE);
+        assertNull(state.findFirstPart(PartState.NEEDED));
+        state.setPartState(Range.getRangeByNumbers(0, 10), PartState.AVAILABLE);
+        assertTrue(state.isCompleted());
+        assertTrue(new FilePartsState(0).isCompleted());
+    }
+
+    public void testSerialization() throws Exception {
+        Random random = new Random(42);
+        FilePartsState state = new FilePartsState(LENGTH);
+        for (int i = 0; i < 200; i++) {
+            state.setPartState(randomRange(random), PartState.values()[random
+                .nextInt(3)]);
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bout)) {
+            out.writeObject(state);
+        }
+        FilePartsState copy;
+        try (ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(bout.toByteArray())))
+        {
+            copy = (FilePartsState) in.readObject();
+        }
+        assertEquals(state.getRange(), copy.getRange());
+        for (PartState s : PartState.values()) {
+            for (int i = 0; i < 100; i++) {
+                Range r = randomRange(random);
+                assertEquals(state.countPartStates(r, s),
+                    copy.countPartStates(r, s));
+            }
+        }
+    }
+
+    private static Range randomRange(Random random) {
+        long start = (long) (random.nextDouble() * LENGTH);
+        long length = 1 + random.nextInt(2000);
+        return Range.getRangeByLength(start, Math.min(length, LENGTH - start));
+    }
+}
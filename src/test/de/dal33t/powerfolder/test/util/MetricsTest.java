@@ -0,0 +1,94 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.util;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.util.metrics.Counter;
+import de.dal33t.powerfolder.util.metrics.Metrics;
+import de.dal33t.powerfolder.util.metrics.Timer;
+
+public class MetricsTest extends TestCase {
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        Metrics.setEnabled(false);
+        Metrics.reset();
+    }
+
+    public void testDisabled() {
+        Metrics.setEnabled(false);
+        assertEquals(0L, Metrics.start());
+        Timer timer = Metrics.timer("test.disabled");
+        timer.stop(Metrics.start());
+        assertEquals(0, timer.getCount());
+        Counter counter = Metrics.counter("test.disabled");
+        counter.add(10);
+        assertEquals(0, counter.get());
+    }
+
+    public void testCounter() throws InterruptedException {
+        Metrics.setEnabled(true);
+        final Counter counter = Metrics.counter("test.counter");
+        assertSame(counter, Metrics.counter("test.counter"));
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.increment();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, counter.get());
+        Metrics.reset();
+        assertEquals(0, counter.get());
+    }
+
+    public void testTimerHistogram() {
+        Metrics.setEnabled(true);
+        Timer timer = Metrics.timer("test.timer");
+        for (int i = 1; i <= 99; i++) {
+            timer.record(1000);
+        }
+        timer.record(1000000);
+        assertEquals(100, timer.getCount());
+        assertEquals(99 * 1000 + 1000000, timer.getTotalNanos());
+        assertEquals(1000000, timer.getMaxNanos());
+
+        // Power of two buckets: Accurate within factor of two
+        long p50 = timer.getPercentileNanos(0.5d);
+        assertTrue("p50: " + p50, p50 >= 1000 && p50 < 2000);
+        long p99 = timer.getPercentileNanos(0.99d);
+        assertTrue("p99: " + p99, p99 >= 1000 && p99 < 2000);
+        assertEquals(1000000, timer.getPercentileNanos(1.0d));
+
+        Metrics.timer("test.unused");
+        String dump = Metrics.dump();
+        assertTrue(dump, dump.contains("test.timer"));
+        assertFalse(dump, dump.contains("test.unused"));
+    }
+}
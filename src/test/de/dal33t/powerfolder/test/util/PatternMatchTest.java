@@ -19,6 +19,10 @@
  */
 package de.dal33t.powerfolder.test.util;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import de.dal33t.powerfolder.Constants;
 import junit.framework.TestCase;
 import de.dal33t.powerfolder.util.Profiling;
@@ -27,6 +31,7 @@ import de.dal33t.powerfolder.util.pattern.CompiledPattern;
 import de.dal33t.powerfolder.util.pattern.DefaultExcludes;
 import de.dal33t.powerfolder.util.pattern.EndMatchPattern;
 import de.dal33t.powerfolder.util.pattern.ExactMatchPattern;
+import de.dal33t.powerfolder.util.pattern.MultiPatternMatcher;
 import de.dal33t.powerfolder.util.pattern.OfficeTempFilesMatchPattern;
 import de.dal33t.powerfolder.util.pattern.Pattern;
 import de.dal33t.powerfolder.util.pattern.PatternFactory;
@@ -237,6 +242,49 @@ public class PatternMatchTest extends TestCase {
             .isMatch("baaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa"));
     }
 
+    public void testMultiPatternMatcher() {
+        String[] texts = {"thumbs.db", "exact/name.txt", "build/*",
+            "images/cache*", "*.tmp", "*.DS_Store", "*gc.2010*",
+            "images/*thumbs.db", "c*/huh/*name", "a*b*c",
+            DefaultExcludes.OFFICE_TEMP.getPattern(),
+            DefaultExcludes.OFFICEX_TEMP.getPattern()};
+        String[] names = {"thumbs.db", "Thumbs.DB", "sub/thumbs.db",
+            "exact/name.txt", "EXACT/NAME.TXT", "exact/name.txt2",
+            "build/out.jar", "build", "Images/Cache/x.png", "imagescache",
+            "file.TMP", "tmp", "dir/.ds_store", "file.gc.20100412.gc",
+            "file.gc", "images/deep/THUMBS.db", "c:/huh/name", "c:/hah/name",
+            "abc", "xaybzc", "ab", "~report.tmp", "~$Quotation.xlsx",
+            "plain.txt", ""};
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        for (String text : texts) {
+            patterns.add(PatternFactory.createPattern(text.toLowerCase()));
+        }
+
+        // Each single pattern must give the same verdict as the compiled
+        // set.
+        for (Pattern pattern : patterns) {
+            MultiPatternMatcher single = new MultiPatternMatcher(
+                Collections.singletonList(pattern));
+            for (String name : names) {
+                assertEquals(pattern.getPatternText() + " on " + name,
+                    pattern.isMatch(name), single.isMatch(name));
+            }
+        }
+        MultiPatternMatcher all = new MultiPatternMatcher(patterns);
+        assertEquals(texts.length, all.size());
+        for (String name : names) {
+            boolean expected = false;
+            for (Pattern pattern : patterns) {
+                expected |= pattern.isMatch(name);
+            }
+            assertEquals(name, expected, all.isMatch(name));
+        }
+        assertTrue(all.isMatch("Build/sub/file"));
+        assertFalse(all.isMatch("src/Main.java"));
+        assertFalse(new MultiPatternMatcher(new ArrayList<Pattern>())
+            .isMatch("thumbs.db"));
+    }
+
     public void testPerformance() {
         Profiling.setEnabled(true);
 
@@ -87,4 +87,18 @@ public class ProfilingTest extends TestCase {
         assertTrue(Profiling.dumpStats().contains("ProfilingTest"));
         assertTrue(Profiling.dumpStats().contains("testAutoOperationName"));
     }
-}
\ No newline at end of file
+
+    public void testReset() {
+        Profiling.setEnabled(true);
+        Profiling.end(Profiling.start("Test reset", ""));
+        Profiling.end(Profiling.start("Test reset", ""));
+        assertTrue(Profiling.dumpStats().contains(
+            "'Test reset' invocations 2"));
+
+        Profiling.reset();
+        assertFalse(Profiling.dumpStats().contains("'Test reset'"));
+        Profiling.end(Profiling.start("Test reset", ""));
+        assertTrue(Profiling.dumpStats().contains(
+            "'Test reset' invocations 1"));
+    }
+}
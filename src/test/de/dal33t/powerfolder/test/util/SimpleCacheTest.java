@@ -21,7 +21,6 @@ package de.dal33t.powerfolder.test.util;
 
 import java.util.Collection;
 import java.util.LinkedList;
-import java.util.WeakHashMap;
 import java.util.concurrent.TimeUnit;
 
 import de.dal33t.powerfolder.util.IdGenerator;
@@ -57,4 +56,58 @@ public class SimpleCacheTest extends TestCase {
         assertEquals(1000, cache.getCacheHits());
         assertEquals(1000, cache.getCacheMisses());
     }
+
+    public void testMaxEntries() {
+        SimpleCache<Integer, String> cache = new SimpleCache<>(null, 100,
+            false, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, String.valueOf(i));
+        }
+        // Keep the first ones in use
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(cache.getValidEntry(i));
+        }
+        TestHelper.waitMilliSeconds(2);
+        cache.put(100, "100");
+        assertTrue(cache.size() <= 100);
+        assertTrue(cache.getEvictions() > 0);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(String.valueOf(i), cache.getValidEntry(i));
+        }
+        assertEquals("100", cache.getValidEntry(100));
+        assertNull(cache.getValidEntry(10));
+    }
+
+    public void testPurgeExpired() {
+        SimpleCache<String, String> cache = new SimpleCache<>(50,
+            TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 100; i++) {
+            cache.put("k" + i, "v" + i);
+        }
+        assertEquals(100, cache.size());
+        assertEquals(0, cache.purgeExpired());
+        TestHelper.waitMilliSeconds(100);
+        assertEquals(100, cache.purgeExpired());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getCacheMisses());
+    }
+
+    public void testWeakKeys() {
+        SimpleCache<String, Boolean> cache = new SimpleCache<>(null, 0, true,
+            1, TimeUnit.MINUTES);
+        String key = new String("key");
+        cache.put(key, Boolean.TRUE);
+        // Equal, but not the same instance
+        assertEquals(Boolean.TRUE, cache.getValidEntry(new String("key")));
+        cache.invalidate(new String("key"));
+        assertNull(cache.getValidEntry(key));
+
+        cache.put(new String("gone"), Boolean.TRUE);
+        for (int i = 0; i < 20 && cache.size() > 0; i++) {
+            System.gc();
+            TestHelper.waitMilliSeconds(50);
+            cache.purgeExpired();
+        }
+        assertEquals(0, cache.size());
+    }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.intern.FolderInfoInternalizer;
+import de.dal33t.powerfolder.util.intern.WeakInterner;
+import junit.framework.TestCase;
+
+public class WeakInternerTest extends TestCase {
+
+    public void testIntern() {
+        WeakInterner<String> interner = new WeakInterner<>("test");
+        String a = new String("a");
+        String a2 = new String("a");
+        assertSame(a, interner.intern(a));
+        assertSame(a, interner.intern(a2));
+        assertSame(a, interner.get(a2));
+        assertNull(interner.get("b"));
+        assertEquals(1, interner.size());
+        assertEquals(1, interner.getHits());
+        assertEquals(1, interner.getMisses());
+
+        interner.put(a2);
+        assertSame(a2, interner.intern(a));
+        assertEquals(1, interner.size());
+    }
+
+    public void testGarbageCollected() throws InterruptedException {
+        WeakInterner<String> interner = new WeakInterner<>("test");
+        for (int i = 0; i < 1000; i++) {
+            interner.intern(new String("x" + i));
+        }
+        for (int i = 0; i < 10 && interner.size() > 1; i++) {
+            System.gc();
+            Thread.sleep(50);
+            // Triggers expunging
+            interner.intern(new String("y"));
+        }
+        assertTrue("Size: " + interner.size(), interner.size() < 1000);
+    }
+
+    public void testConcurrentIntern() throws Exception {
+        final WeakInterner<String> interner = new WeakInterner<>("test");
+        final List<String> keep = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            keep.add("k" + i);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String[]>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                results.add(executor.submit(new Callable<String[]>() {
+                    public String[] call() {
+                        String[] interned = new String[keep.size()];
+                        for (int i = 0; i < interned.length; i++) {
+                            interned[i] = interner.intern(new String(keep
+                                .get(i)));
+                        }
+                        return interned;
+                    }
+                }));
+            }
+            String[] first = results.get(0).get();
+            for (Future<String[]> result : results) {
+                String[] interned = result.get();
+                for (int i = 0; i < interned.length; i++) {
+                    assertSame(first[i], interned[i]);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testFolderInfoRename() {
+        FolderInfoInternalizer internalizer = new FolderInfoInternalizer();
+        String id = IdGenerator.makeFolderId();
+        FolderInfo foInfo = new FolderInfo("Old", id);
+        assertSame(foInfo, internalizer.intern(foInfo));
+        assertSame(foInfo, internalizer.intern(new FolderInfo("Old", id)));
+
+        FolderInfo renamed = new FolderInfo("New", id);
+        assertSame(renamed, internalizer.rename(renamed));
+        assertSame(renamed, internalizer.intern(new FolderInfo("Old", id)));
+        assertSame(renamed, internalizer.rename(new FolderInfo("New", id)));
+    }
+}
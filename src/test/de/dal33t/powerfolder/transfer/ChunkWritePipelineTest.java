@@ -0,0 +1,152 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.util.test.Condition;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+public class ChunkWritePipelineTest extends TestCase {
+    private Path file;
+    private ExecutorService executor;
+    private FileInfo fInfo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Files.createDirectories(TestHelper.getTestDir());
+        file = TestHelper.getTestDir().resolve("ChunkWritePipelineTest.tmp");
+        Files.deleteIfExists(file);
+        executor = Executors.newSingleThreadExecutor();
+        fInfo = FileInfoFactory.archivedFile(new FolderInfo("folder",
+            "folderId"), "file.bin", null, Long.MAX_VALUE, new MemberInfo(
+            "me", "meId", null), null, new Date(), 0, null, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        Files.deleteIfExists(file);
+        super.tearDown();
+    }
+
+    public void testWriteOutOfOrder() throws IOException {
+        byte[] data = new byte[3 * ChunkWritePipeline.MAX_WRITE_SIZE + 17];
+        new Random(1).nextBytes(data);
+        List<FileChunk> chunks = new ArrayList<FileChunk>();
+        for (int offset = 0; offset < data.length; offset += 32 * 1024) {
+            int len = Math.min(32 * 1024, data.length - offset);
+            chunks.add(new FileChunk(fInfo, offset, Arrays.copyOfRange(data,
+                offset, offset + len)));
+        }
+        Collections.shuffle(chunks, new Random(2));
+
+        final List<FileChunk> written = new CopyOnWriteArrayList<FileChunk>();
+        try (FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+        {
+            final ChunkWritePipeline pipeline = new ChunkWritePipeline(
+                channel, executor, new ChunkWritePipeline.Listener() {
+                    public void chunksWritten(List<FileChunk> list) {
+                        written.addAll(list);
+                    }
+
+                    public void writeFailed(IOException e) {
+                        fail(e.toString());
+                    }
+                });
+            for (FileChunk chunk : chunks) {
+                pipeline.awaitCapacity();
+                pipeline.write(chunk);
+            }
+            TestHelper.waitForCondition(10, new Condition() {
+                public boolean reached() {
+                    return pipeline.isIdle();
+                }
+            });
+        }
+        assertEquals(chunks.size(), written.size());
+        assertTrue(Arrays.equals(data, Files.readAllBytes(file)));
+    }
+
+    public void testListenerFailure() throws IOException {
+        final AtomicBoolean failed = new AtomicBoolean();
+        try (FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+        {
+            final ChunkWritePipeline pipeline = new ChunkWritePipeline(
+                channel, executor, new ChunkWritePipeline.Listener() {
+                    public void chunksWritten(List<FileChunk> list) {
+                        throw new IllegalStateException("Listener failure");
+                    }
+
+                    public void writeFailed(IOException e) {
+                        failed.set(true);
+                    }
+                });
+            // More than the queue limit. Must not block after the failure.
+            int chunkSize = 256 * 1024;
+            long size = 2 * ChunkWritePipeline.MAX_QUEUED_BYTES;
+            for (long offset = 0; offset < size; offset += chunkSize) {
+                pipeline.awaitCapacity();
+                pipeline.write(new FileChunk(fInfo, offset,
+                    new byte[chunkSize]));
+            }
+            TestHelper.waitForCondition(10, new Condition() {
+                public boolean reached() {
+                    return pipeline.isIdle() && failed.get();
+                }
+            });
+        }
+    }
+
+    public void testMergeAdjacent() {
+        List<FileChunk> sorted = new ArrayList<FileChunk>();
+        sorted.add(new FileChunk(fInfo, 0, new byte[10]));
+        sorted.add(new FileChunk(fInfo, 10, new byte[10]));
+        sorted.add(new FileChunk(fInfo, 30, new byte[10]));
+        sorted.add(new FileChunk(fInfo, 40,
+            new byte[ChunkWritePipeline.MAX_WRITE_SIZE]));
+        assertEquals(2, ChunkWritePipeline.nextRunEnd(sorted, 0));
+        assertEquals(3, ChunkWritePipeline.nextRunEnd(sorted, 2));
+        assertEquals(4, ChunkWritePipeline.nextRunEnd(sorted, 3));
+    }
+}
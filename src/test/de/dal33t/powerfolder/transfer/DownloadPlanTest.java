@@ -0,0 +1,114 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.transfer.TransferPriorities.TransferPriority;
+
+public class DownloadPlanTest extends TestCase {
+    private FolderInfo foInfo;
+    private MemberInfo member;
+    private TransferPriorities priorities;
+    private DownloadPlan plan;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        foInfo = new FolderInfo("folder", "folderId");
+        member = new MemberInfo("me", "meId", null);
+        priorities = new TransferPriorities();
+        plan = new DownloadPlan(priorities);
+    }
+
+    public void testOrder() {
+        FileInfo a = file("a", 0);
+        FileInfo b = file("b", 0);
+        FileInfo c = file("c", 0);
+        FileInfo d = file("d", 0);
+        priorities.setPriority(c, TransferPriority.HIGH);
+        priorities.setPriority(a, TransferPriority.LOW);
+
+        assertTrue(plan.isRebuildRequired(Long.MAX_VALUE));
+        plan.rebuild(Arrays.asList(a, b, c, d), false);
+        assertFalse(plan.isRebuildRequired(Long.MAX_VALUE));
+        assertEquals(4, plan.size());
+
+        assertEquals(Arrays.asList(c, b), plan.poll(2));
+        assertEquals(2, plan.size());
+        assertEquals(Arrays.asList(d, a), plan.poll(10));
+        assertEquals(0, plan.size());
+        assertTrue(plan.poll(10).isEmpty());
+    }
+
+    public void testAddNewerVersion() {
+        FileInfo a = file("a", 0);
+        FileInfo b = file("b", 0);
+        plan.rebuild(Arrays.asList(a, b), false);
+
+        // Newer version keeps its place, older is ignored.
+        FileInfo a1 = file("a", 1);
+        plan.add(a1);
+        plan.add(a);
+        assertEquals(2, plan.size());
+        List<FileInfo> files = plan.poll(1);
+        assertEquals(1, files.get(0).getVersion());
+
+        // Added again after polled: Goes to the end.
+        plan.add(a1);
+        assertEquals(Arrays.asList(b, a1), plan.poll(10));
+    }
+
+    public void testRebuildRequired() {
+        plan.rebuild(Arrays.asList(file("a", 0)), false);
+        assertFalse(plan.isRebuildRequired(Long.MAX_VALUE));
+        assertTrue(plan.getAge() >= 0);
+
+        plan.invalidate();
+        assertTrue(plan.isRebuildRequired(Long.MAX_VALUE));
+        plan.rebuild(Collections.<FileInfo> emptyList(), false);
+        assertEquals(0, plan.size());
+        assertFalse(plan.isRebuildRequired(Long.MAX_VALUE));
+        assertTrue(plan.isRebuildRequired(-1));
+    }
+
+    public void testTruncated() {
+        plan.rebuild(Arrays.asList(file("a", 0), file("b", 0)), true);
+        assertFalse(plan.isRebuildRequired(Long.MAX_VALUE));
+        plan.poll(1);
+        assertFalse(plan.isRebuildRequired(Long.MAX_VALUE));
+        plan.poll(1);
+        // Ran empty: There might be more incoming files.
+        assertTrue(plan.isRebuildRequired(Long.MAX_VALUE));
+    }
+
+    private FileInfo file(String name, int version) {
+        return FileInfoFactory.archivedFile(foInfo, name, null, 100, member,
+            null, new Date(1000000L + version), version, null, null);
+    }
+}
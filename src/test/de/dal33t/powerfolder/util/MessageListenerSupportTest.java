@@ -0,0 +1,229 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import de.dal33t.powerfolder.Member;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.message.FolderRelatedMessage;
+import de.dal33t.powerfolder.message.Message;
+import de.dal33t.powerfolder.message.MessageListener;
+import de.dal33t.powerfolder.message.Ping;
+import de.dal33t.powerfolder.message.QueuedMessageListener;
+import de.dal33t.powerfolder.message.ScanCommand;
+import de.dal33t.powerfolder.util.test.Condition;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+public class MessageListenerSupportTest extends ControllerTestCase {
+    private MessageListenerSupport support;
+    private Member source;
+    private FolderInfo foInfo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        support = new MessageListenerSupport(getController());
+        source = getController().getMySelf();
+        foInfo = new FolderInfo("Unknown", IdGenerator.makeFolderId());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        support.removeAllListeners();
+        super.tearDown();
+    }
+
+    public void testSupertypeDispatch() {
+        List<Object> received = new ArrayList<Object>();
+        RecordingListener all = new RecordingListener("all", received);
+        RecordingListener folder = new RecordingListener("folder", received);
+        RecordingListener ping = new RecordingListener("ping", received);
+        support.addMessageListener(all);
+        support.addMessageListener(FolderRelatedMessage.class, folder);
+        support.addMessageListener(Ping.class, ping);
+
+        Message scan = new ScanCommand(foInfo);
+        support.fireMessage(source, scan);
+        assertEquals(list("all", scan, "folder", scan), received);
+
+        received.clear();
+        Message pingMsg = new Ping(0);
+        support.fireMessage(source, pingMsg);
+        assertEquals(list("all", pingMsg, "ping", pingMsg), received);
+
+        // Cached dispatch of ScanCommand must see changes of supertypes
+        received.clear();
+        support.removeMessageListener(folder);
+        support.fireMessage(source, scan);
+        assertEquals(list("all", scan), received);
+
+        received.clear();
+        support.addMessageListener(Message.class, folder);
+        support.fireMessage(source, scan);
+        assertEquals(list("all", scan, "folder", scan), received);
+
+        // Listeners for all messages don't touch the typed ones
+        received.clear();
+        support.removeMessageListener(all);
+        support.fireMessage(source, pingMsg);
+        assertEquals(list("ping", pingMsg, "folder", pingMsg), received);
+    }
+
+    public void testQueueOrder() {
+        final SlowListener listener = new SlowListener(1000);
+        listener.release();
+        support.addMessageListener(listener);
+        List<Message> sent = new ArrayList<Message>();
+        for (int i = 0; i < 500; i++) {
+            Message message = new Ping(0);
+            sent.add(message);
+            support.fireMessage(source, message);
+        }
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                return listener.received.size() == 500;
+            }
+        });
+        assertEquals(sent, listener.received);
+        assertNotNull(listener.thread);
+        assertNotSame(Thread.currentThread(), listener.thread);
+    }
+
+    public void testDropIfTooSlow() throws InterruptedException {
+        final SlowListener listener = new SlowListener(1);
+        support.setQueueTimeout(100);
+        support.addMessageListener(listener);
+
+        Message first = new Ping(0);
+        support.fireMessage(source, first);
+        // Handling the first message. Blocks until released
+        assertTrue(listener.started.await(10, TimeUnit.SECONDS));
+        Message queued = new Ping(0);
+        support.fireMessage(source, queued);
+        long start = System.currentTimeMillis();
+        support.fireMessage(source, new Ping(0));
+        assertTrue(System.currentTimeMillis() - start >= 90);
+
+        listener.release();
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                return listener.received.size() == 2;
+            }
+        });
+        TestHelper.waitMilliSeconds(200);
+        assertEquals(list(first, queued), listener.received);
+    }
+
+    public void testRemoveClosesQueue() throws InterruptedException {
+        final SlowListener listener = new SlowListener(10);
+        support.addMessageListener(listener);
+        Message first = new Ping(0);
+        support.fireMessage(source, first);
+        assertTrue(listener.started.await(10, TimeUnit.SECONDS));
+        support.fireMessage(source, new Ping(0));
+
+        support.removeMessageListener(listener);
+        listener.release();
+        support.fireMessage(source, new Ping(0));
+        TestHelper.waitMilliSeconds(300);
+        assertEquals(list(first), listener.received);
+    }
+
+    public void testMemberSubtypeListener() {
+        List<Object> received = new ArrayList<Object>();
+        RecordingListener folder = new RecordingListener("folder", received);
+        source.addMessageListener(FolderRelatedMessage.class, folder);
+        try {
+            Message scan = new ScanCommand(foInfo);
+            source.handleMessage(scan, null);
+            source.handleMessage(new Ping(-1), null);
+            assertEquals(list("folder", scan), received);
+        } finally {
+            source.removeMessageListener(folder);
+        }
+    }
+
+    private static List<Object> list(Object... objects) {
+        List<Object> list = new ArrayList<Object>();
+        Collections.addAll(list, objects);
+        return list;
+    }
+
+    private static class RecordingListener implements MessageListener {
+        private final String name;
+        private final List<Object> received;
+
+        RecordingListener(String name, List<Object> received) {
+            this.name = name;
+            this.received = received;
+        }
+
+        public void handleMessage(Member source, Message message) {
+            received.add(name);
+            received.add(message);
+        }
+
+        public boolean fireInEventDispatchThread() {
+            return false;
+        }
+    }
+
+    private static class SlowListener implements QueuedMessageListener {
+        private final int maxQueued;
+        private final List<Object> received = Collections
+            .synchronizedList(new ArrayList<Object>());
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private volatile Thread thread;
+
+        SlowListener(int maxQueued) {
+            this.maxQueued = maxQueued;
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        public void handleMessage(Member source, Message message) {
+            thread = Thread.currentThread();
+            started.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            received.add(message);
+        }
+
+        public boolean fireInEventDispatchThread() {
+            return false;
+        }
+
+        public int getMaxQueuedMessages() {
+            return maxQueued;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2004 - 2018 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.Adler32;
+
+import junit.framework.TestCase;
+
+public class PartInfoMatcherTest extends TestCase {
+    private static final int PART_SIZE = 1024;
+
+    public void testTableChains() {
+        PartInfo[] infos = new PartInfo[1000];
+        for (int i = 0; i < infos.length; i++) {
+            // Every checksum used by 4 parts
+            infos[i] = new PartInfo(i, i % 250, new byte[]{(byte) i});
+        }
+        PartInfoTable table = new PartInfoTable(infos);
+        for (int c = 0; c < 250; c++) {
+            List<Long> indices = new ArrayList<Long>();
+            for (int i = table.first(c); i >= 0; i = table.next(i)) {
+                assertEquals(c, table.get(i).getChecksum());
+                indices.add(table.get(i).getIndex());
+            }
+            assertEquals(Arrays.asList((long) c, c + 250L, c + 500L,
+                c + 750L), indices);
+        }
+        assertEquals(-1, table.first(250));
+        assertEquals(-1, table.first(-1));
+        assertEquals(-1, new PartInfoTable(new PartInfo[0]).first(0));
+    }
+
+    public void testSegments() throws Exception {
+        Random r = new Random(4711);
+        byte[] data = new byte[3 * 1024 * 1024 + 333];
+        r.nextBytes(data);
+        FilePartsRecord record = createRecord(data);
+
+        // Shift the data by some bytes and change a few parts. Same length,
+        // so the zero padded last part stays at the end.
+        byte[] local = new byte[data.length];
+        int half = data.length / 2;
+        System.arraycopy(data, 0, local, 17, half);
+        System.arraycopy(data, half + 17, local, half + 17, data.length - half
+            - 17);
+        for (int i = 0; i < 50; i++) {
+            local[17 + r.nextInt(local.length - 17 - PART_SIZE)] ^= 0x5A;
+        }
+        long tailIndex = data.length / PART_SIZE;
+        long tailPosition = local.length - data.length % PART_SIZE;
+
+        List<MatchInfo> sequential = match(new PartInfoMatcher(
+            new ByteArrayInputStream(local), new RollingAdler32(PART_SIZE),
+            MessageDigest.getInstance("SHA-256"), record.getInfos()));
+        assertTrue(sequential.size() > record.getInfos().length - 60);
+        assertValid(sequential, data, local);
+        assertTail(sequential, tailIndex, tailPosition);
+
+        PartInfoTable table = new PartInfoTable(record.getInfos());
+        int segmentLength = 500000;
+        List<MatchInfo> segmented = new ArrayList<MatchInfo>();
+        for (int start = 0; start < local.length; start += segmentLength) {
+            boolean last = start + segmentLength >= local.length;
+            segmented.addAll(match(new PartInfoMatcher(
+                new ByteArrayInputStream(local, start, local.length - start),
+                new RollingAdler32(PART_SIZE), MessageDigest
+                    .getInstance("SHA-256"), table, start, segmentLength
+                    + PART_SIZE - 1, last)));
+        }
+        assertValid(segmented, data, local);
+        // Segments are not aligned to parts
+        assertTail(segmented, tailIndex, tailPosition);
+
+        // Only parts crossing a segment border may be missed
+        Set<Long> found = new HashSet<Long>();
+        for (MatchInfo info : segmented) {
+            found.add(info.getMatchedPart().getIndex());
+        }
+        int missing = 0;
+        for (MatchInfo info : sequential) {
+            if (!found.contains(info.getMatchedPart().getIndex())) {
+                missing++;
+            }
+        }
+        assertTrue("Missing " + missing, missing <= local.length
+            / segmentLength);
+    }
+
+    public void testTail() throws Exception {
+        byte[] data = new byte[10 * PART_SIZE + 100];
+        new Random(1).nextBytes(data);
+        FilePartsRecord record = createRecord(data);
+        List<MatchInfo> matches = match(new PartInfoMatcher(
+            new ByteArrayInputStream(data), new RollingAdler32(PART_SIZE),
+            MessageDigest.getInstance("SHA-256"), record.getInfos()));
+        assertEquals(11, matches.size());
+        MatchInfo tail = matches.get(10);
+        assertEquals(10, tail.getMatchedPart().getIndex());
+        assertEquals(10 * PART_SIZE, tail.getMatchedPosition());
+    }
+
+    private static void assertTail(List<MatchInfo> matches, long index,
+        long position)
+    {
+        int found = 0;
+        for (MatchInfo info : matches) {
+            if (info.getMatchedPart().getIndex() == index) {
+                assertEquals(position, info.getMatchedPosition());
+                found++;
+            }
+        }
+        assertEquals("Tail matches", 1, found);
+    }
+
+    private static FilePartsRecord createRecord(byte[] data) throws Exception
+    {
+        FilePartsRecordBuilder builder = new FilePartsRecordBuilder(
+            new Adler32(), MessageDigest.getInstance("SHA-256"),
+            MessageDigest.getInstance("MD5"), PART_SIZE);
+        builder.update(data);
+        return builder.getRecord();
+    }
+
+    private static List<MatchInfo> match(PartInfoMatcher matcher)
+        throws Exception
+    {
+        List<MatchInfo> matches = new ArrayList<MatchInfo>();
+        MatchInfo match;
+        while ((match = matcher.nextMatch()) != null) {
+            matches.add(match);
+        }
+        matcher.close();
+        return matches;
+    }
+
+    private static void assertValid(List<MatchInfo> matches, byte[] remote,
+        byte[] local)
+    {
+        long lastPos = -1;
+        for (MatchInfo info : matches) {
+            assertTrue(info.getMatchedPosition() > lastPos);
+            lastPos = info.getMatchedPosition();
+            int remotePos = (int) info.getMatchedPart().getIndex() * PART_SIZE;
+            int len = Math.min(PART_SIZE, remote.length - remotePos);
+            for (int i = 0; i < len; i++) {
+                assertEquals(remote[remotePos + i],
+                    local[(int) info.getMatchedPosition() + i]);
+            }
+        }
+    }
+}